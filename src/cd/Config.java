@@ -1,6 +1,10 @@
 package cd;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
 
 public class Config {
 
@@ -8,10 +12,23 @@ public class Config {
 		LINUX, WINDOWS, MACOSX
 	};
 
+	public static enum Target {
+		ASSEMBLY, C, JVM
+	};
+
+	/**
+	 * What the compiler generates: x86 assembly, C for an optimizing C
+	 * compiler, selected with {@code --target=c}, or JVM classes which are
+	 * run in the compiler's process, selected with {@code --target=jvm}.
+	 */
+	public static Target TARGET = Target.ASSEMBLY;
+
 	/**
-	 * If using X86-64, this flag should be set to true
+	 * Generate code for x86-64 instead of 32-bit x86. Selected at runtime
+	 * with {@code --x64}, which also sets {@link #SIZEOF_PTR} and
+	 * {@link #SSE2}.
 	 */
-	public static final boolean x64_tests = false;
+	public static boolean X64 = false;
 
 	/**
 	 * What kind of system we are on
@@ -24,6 +41,21 @@ public class Config {
 	 */
 	public static final String ASMEXT = ".s";
 
+	/** Defines the extension used for C files, see {@link #TARGET}. */
+	public static final String CEXT = ".c";
+
+	/**
+	 * Defines the extension used for object files, see
+	 * {@link #INTEGRATED_ASSEMBLER}.
+	 */
+	public static final String OBJEXT = ".o";
+
+	/**
+	 * Defines the extension used for checkpoints of the checked program,
+	 * see {@link cd.ir.AstCheckpoint}.
+	 */
+	public static final String CHECKPOINTEXT = ".ast";
+
 	/** Defines the extension used for binary files on this platform. */
 	public static final String BINARYEXT;
 
@@ -45,6 +77,33 @@ public class Config {
 	/** Defines the name of the exit function to be used in .s file */
 	public static final String EXIT;
 
+	/** Defines the name of the write function to be used in .s file */
+	public static final String WRITE;
+
+	/** Defines the name of the read function to be used in .s file */
+	public static final String READ;
+
+	/** Defines the name of the snprintf function to be used in .s file */
+	public static final String SNPRINTF;
+
+	/** Defines the name of the sigaction function to be used in .s file */
+	public static final String SIGACTION;
+
+	/** Defines the name of the fopen function to be used in .s file */
+	public static final String FOPEN;
+
+	/** Defines the name of the fprintf function to be used in .s file */
+	public static final String FPRINTF;
+
+	/** Defines the name of the fclose function to be used in .s file */
+	public static final String FCLOSE;
+
+	/** Defines the name of the atexit function to be used in .s file */
+	public static final String ATEXIT;
+
+	/** The prefix of labels which are local to the assembly file */
+	public static final String LOCAL_LABEL;
+
 	/** The assembler directive used to define a constant string */
 	public static final String DOT_STRING;
 
@@ -71,7 +130,7 @@ public class Config {
 	 * entry is one argument. Use the special string "$0" to refer to the output
 	 * file, and $1 to refer to the ".s" file.
 	 */
-	public static final String[] ASM;
+	public static String[] ASM;
 
 	/**
 	 * The directory from which to run the assembler. In a CYGWIN installation,
@@ -82,7 +141,7 @@ public class Config {
 	/**
 	 * sizeof a pointer in bytes in the target platform.
 	 */
-	public static final int SIZEOF_PTR = 4;
+	public static int SIZEOF_PTR = 4;
 	
 	/**
 	 * Perform constant folding.
@@ -92,6 +151,185 @@ public class Config {
 	 * Perform dead assignment statement elimination.
 	 */
 	public static final boolean DSTMT = false;
+	/**
+	 * Perform strength reduction of multiplication, division and modulo by
+	 * constants.
+	 */
+	public static final boolean SREDUCE = true;
+	/**
+	 * Turn calls in tail position into jumps which reuse the frame of the
+	 * calling method.
+	 */
+	public static final boolean TAIL_CALLS = true;
+	/**
+	 * Keep the variables of leaf methods in registers, the most used ones if
+	 * there are not enough registers, and omit their stack frame if all of
+	 * them fit.
+	 */
+	public static final boolean OMIT_FRAMES = true;
+	/**
+	 * Replace loops which fill an array or copy one array into another by
+	 * rep stos and rep movs.
+	 */
+	public static final boolean LOOP_IDIOMS = true;
+	/**
+	 * Compute four elements at once with SSE2 in loops which combine int or
+	 * float arrays element by element. Only applies with {@link #SSE2} on
+	 * 32-bit x86, where array elements are four bytes wide.
+	 */
+	public static final boolean VECTORIZE = true;
+
+	/**
+	 * Generate SSE2 scalar instructions for float arithmetic, comparisons and
+	 * output instead of going through the x87 FPU. Floats are computed in
+	 * xmm registers. Enabled with {@code --sse2}.
+	 */
+	public static boolean SSE2 = false;
+
+	/**
+	 * Implement the built-in read and write functions with the buffered
+	 * runtime emitted by {@code BufferedIoEmitter} instead of calling
+	 * printf/scanf for every value. Disabled with {@code --no-bufio}.
+	 */
+	public static boolean BUFFERED_IO = true;
+
+	/**
+	 * Compile the conditions of if and while statements to conditional
+	 * jumps instead of computing a boolean value first. Disabled with
+	 * {@code --no-jump-conditions}.
+	 */
+	public static boolean JUMP_CONDITIONS = true;
+
+	/**
+	 * Leave out the explicit null checks before field accesses, array
+	 * accesses and method calls. Dereferencing null faults on page zero
+	 * instead, and a SIGSEGV handler reports the null pointer exception.
+	 * Enabled with {@code --implicit-null-checks}, Linux only.
+	 */
+	public static boolean IMPLICIT_NULL_CHECKS = false;
+
+	/**
+	 * Encode the assembly into an ELF object with
+	 * {@code cd.codegen.X86Assembler} instead of leaving it to {@link #ASM},
+	 * which then only links the object. The .s file is only written for
+	 * debugging. Enabled with {@code --integrated-as}, 32-bit Linux only.
+	 */
+	public static boolean INTEGRATED_ASSEMBLER = false;
+
+	/**
+	 * Do without the C library: the runtime emitted by
+	 * {@code cd.codegen.FreestandingEmitter} does its I/O, memory
+	 * allocation and exit with Linux system calls, and starts the program at
+	 * _start. The binary is linked statically with {@code -nostdlib}, so it
+	 * is small and starts without a dynamic loader. Needs the buffered I/O
+	 * and no profiling. Enabled with {@code --freestanding}, Linux only.
+	 */
+	public static boolean FREESTANDING = false;
+
+	/**
+	 * The first step of profile-guided optimization: if not null, the
+	 * program counts method entries, the branches taken by if and while
+	 * statements and the receiver classes of virtual calls, and appends
+	 * the counts to this file at exit. Set with
+	 * {@code --profile-generate=FILE}.
+	 */
+	public static String PROFILE_GENERATE = null;
+
+	/**
+	 * The second step of profile-guided optimization: if not null, the
+	 * profile read from this file decides the layout of if statements,
+	 * which calls are devirtualized and inlined, and which variables are
+	 * kept in registers. Set with {@code --profile-use=FILE}.
+	 */
+	public static String PROFILE_USE = null;
+
+	/**
+	 * If not null, the program measures the cycles spent in each method and
+	 * writes a flat profile to this file at exit. Set with {@code --profile}
+	 * to {@value #DEFAULT_PROFILE} or with {@code --profile=FILE}.
+	 */
+	public static String PROFILE = null;
+
+	/** The file {@code --profile} writes to, in the working directory. */
+	public static final String DEFAULT_PROFILE = "javali.prof";
+
+	/**
+	 * Also count the calls of each method by each caller in the profile.
+	 * Enabled with {@code --profile-callers}, which implies {@code --profile}.
+	 */
+	public static boolean PROFILE_CALLERS = false;
+
+	/**
+	 * If not null, the program counts the objects and bytes allocated by
+	 * each {@code new} and writes them, sorted by bytes, to this file at
+	 * exit. Set with {@code --alloc-profile} to {@value #DEFAULT_ALLOC_PROFILE}
+	 * or with {@code --alloc-profile=FILE}.
+	 */
+	public static String ALLOC_PROFILE = null;
+
+	/** The file {@code --alloc-profile} writes to, in the working directory. */
+	public static final String DEFAULT_ALLOC_PROFILE = "javali.alloc";
+
+	/**
+	 * Compile the files named after it again whenever they change, reusing
+	 * the code of the methods which did not. Enabled with {@code --watch}.
+	 */
+	public static boolean WATCH = false;
+
+	/**
+	 * If not null, the directory of a store of compiled files, from which
+	 * the code of a file compiled before in the same way is taken. Set with
+	 * {@code --cache=DIR}.
+	 */
+	public static String CACHE_DIR = null;
+
+	/**
+	 * The bytes the store in {@link #CACHE_DIR} holds at most. Set in
+	 * megabytes with {@code --cache-size=MB}.
+	 */
+	public static long CACHE_SIZE = 256L << 20;
+
+	/**
+	 * Write the checked program to a file with {@link #CHECKPOINTEXT}
+	 * appended, which can be compiled instead of the source. Enabled with
+	 * {@code --checkpoint}.
+	 */
+	public static boolean CHECKPOINT = false;
+
+	/**
+	 * Write the code as units in a directory with {@code .units} appended,
+	 * which are assembled on their own, see {@code Main.generateUnits}.
+	 * Enabled with {@code --separate}, for assembly only.
+	 */
+	public static boolean SEPARATE = false;
+
+	/**
+	 * Returns the names and values of all settings above, one per line,
+	 * which include all that decide the code generated for a program.
+	 */
+	public static String options() {
+		StringBuilder options = new StringBuilder();
+		Field[] fields = Config.class.getFields();
+		// The order of the fields is unspecified
+		Arrays.sort(fields, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (Field field : fields) {
+			if (!Modifier.isStatic(field.getModifiers()))
+				continue;
+			try {
+				Object value = field.get(null);
+				options.append(field.getName()).append('=').append(
+						value instanceof Object[] ? Arrays.toString((Object[]) value) : value);
+				options.append('\n');
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return options.toString();
+	}
 
 	static {
 
@@ -106,6 +344,15 @@ public class Config {
 			MALLOC = "_malloc";
 			PUTCHAR = "_putchar";
 			EXIT = "_exit";
+			WRITE = "_write";
+			READ = "_read";
+			SNPRINTF = "_snprintf";
+			SIGACTION = "_sigaction";
+			FOPEN = "_fopen";
+			FPRINTF = "_fprintf";
+			FCLOSE = "_fclose";
+			ATEXIT = "_atexit";
+			LOCAL_LABEL = ".L";
 			// These are set up for a Cygwin installation on C:,
 			// you can change as needed.
 			ASM = new String[] { "gcc", "-o", "$0", "$1" };
@@ -125,6 +372,15 @@ public class Config {
 			MALLOC = "_malloc";
 			PUTCHAR = "_putchar";
 			EXIT = "_exit";
+			WRITE = "_write";
+			READ = "_read";
+			SNPRINTF = "_snprintf";
+			SIGACTION = "_sigaction";
+			FOPEN = "_fopen";
+			FPRINTF = "_fprintf";
+			FCLOSE = "_fclose";
+			ATEXIT = "_atexit";
+			LOCAL_LABEL = "L";
 			ASM = new String[] { "gcc", "-m32", "-o", "$0", "$1" };
 			ASM_DIR = new File(".");
 			DOT_STRING = ".asciz";
@@ -142,6 +398,15 @@ public class Config {
 			MALLOC = "malloc";
 			PUTCHAR = "putchar";
 			EXIT = "exit";
+			WRITE = "write";
+			READ = "read";
+			SNPRINTF = "snprintf";
+			SIGACTION = "sigaction";
+			FOPEN = "fopen";
+			FPRINTF = "fprintf";
+			FCLOSE = "fclose";
+			ATEXIT = "atexit";
+			LOCAL_LABEL = ".L";
 			ASM = new String[] { "gcc", "-m32", "-o", "$0", "$1" };
 			ASM_DIR = new File(".");
 			DOT_STRING = ".string";
@@ -1,13 +1,25 @@
 package cd;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.antlr.runtime.ANTLRReaderStream;
 import org.antlr.runtime.CommonTokenStream;
@@ -15,14 +27,23 @@ import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
 
 import cd.codegen.AstCodeGenerator;
+import cd.codegen.CCodeGenerator;
+import cd.codegen.JvmCodeGenerator;
+import cd.codegen.JvmRuntime;
+import cd.codegen.MethodCache;
+import cd.codegen.X86Assembler;
 import cd.debug.AstDump;
 import cd.exceptions.ParseFailure;
 import cd.ir.Ast.ClassDecl;
+import cd.ir.AstCheckpoint;
 import cd.ir.Symbol;
 import cd.ir.Symbol.PrimitiveTypeSymbol;
 import cd.optimizer.ConstantFolderVisitor;
 import cd.optimizer.DeadStatementVisitor;
 import cd.semantic.SemanticAnalyzer;
+import cd.util.ContentStore;
+import cd.util.Digest;
+import cd.util.FileUtil;
 
 /** 
  * The main entrypoint for the compiler.  Consists of a series
@@ -35,6 +56,21 @@ public class Main {
 	
 	// Set to non-null to write debug info out
 	public Writer debug = null;
+
+	/** If not null, the code of the methods which did not change since the last compilation is reused. */
+	public MethodCache methodCache = null;
+
+	/** How often {@code --watch} checks whether the files changed, in milliseconds. */
+	private static final long WATCH_INTERVAL = 100;
+
+	/**
+	 * The manifest of the units of {@link #generateUnits}: the super
+	 * classes, field offsets and vtable slots of the classes.
+	 */
+	public static final String LAYOUT_FILE = "layout.txt";
+
+	/** The hash of the classes of the compiler, once computed. */
+	private static String compilerVersion = null;
 	
 	/** Symbols for the built-in primitive types */
 	public PrimitiveTypeSymbol intType, floatType, voidType, booleanType;
@@ -55,43 +91,293 @@ public class Main {
 		}
 	}
 	
-	/** Parse command line, invoke compile() routine */
+	/**
+	 * Parse command line, invoke compile() routine. With {@code --watch}
+	 * before them, the files are compiled again whenever they change, which
+	 * reuses the code of the methods which did not. With {@code --cache=DIR},
+	 * the code of a file compiled before in the same way is taken from there.
+	 * With {@code --checkpoint}, the checked program is written to a file
+	 * with {@link Config#CHECKPOINTEXT} appended, which can be compiled
+	 * instead of the source. With {@code --separate}, the code is written
+	 * as units in a directory with {@code .units} appended instead, see
+	 * {@link #generateUnits}. With {@code --integrated-as}, an object is
+	 * written instead of the assembly, see {@link #writeCode}.
+	 */
 	public static void main(String args[]) throws IOException {
 		
 		Main m = new Main();
+		Map<String, MethodCache> watched = null;
 		
 		for (String file : args) {
 			
 			if (file.equals("-d"))
 				m.debug = new OutputStreamWriter(System.err);
+			else if (file.startsWith("--"))
+				parseOption(file);
 			else {
-				FileReader fin = new FileReader(file);
-
-				// Parse:
-				List<ClassDecl> astRoots = m.parse(file, fin, false);
-				System.out.println(AstDump.toString(astRoots));
-				
-				// Run the semantic check:
-				m.semanticCheck(astRoots);
-				
-				// Perform optimizations
-				if (Config.CFOLD) {
-					ConstantFolderVisitor cfv = new ConstantFolderVisitor();
-					cfv.go(astRoots);
+				if (Config.WATCH) {
+					if (Config.TARGET == Config.Target.JVM)
+						throw new IllegalArgumentException("--watch does not run programs");
+					if (watched == null)
+						watched = new LinkedHashMap<String, MethodCache>();
+					watched.put(file, new MethodCache());
 				}
-				if (Config.DSTMT) {
-					DeadStatementVisitor dsv = new DeadStatementVisitor();
-					dsv.go(astRoots);
+				m.methodCache = watched == null ? null : watched.get(file);
+				if (watched == null)
+					compile(m, file);
+				else {
+					// The file may be fixed while watching it
+					try {
+						compile(m, file);
+					} catch (RuntimeException e) {
+						System.err.println(file + ": " + e);
+					}
+				}
+			}
+		}
+		if (watched != null)
+			watch(m, watched);
+	}
+
+	private static void compile(Main m, String file) throws IOException {
+		// The code is looked up by everything it depends on, unless the
+		// program has to be checked for a checkpoint
+		boolean run = Config.TARGET == Config.Target.JVM;
+		boolean fromCheckpoint = file.endsWith(Config.CHECKPOINTEXT);
+		String base = fromCheckpoint ? file.substring(0, file.length() - Config.CHECKPOINTEXT.length()) : file;
+		String sFile = base + (Config.TARGET == Config.Target.C ? Config.CEXT : Config.ASMEXT);
+		ContentStore cache = null;
+		String key = null;
+		if (Config.CACHE_DIR != null && !run && !Config.SEPARATE && !Config.CHECKPOINT) {
+			cache = new ContentStore(new File(Config.CACHE_DIR), Config.CACHE_SIZE);
+			key = cacheKey(new File(file));
+			String code = cache.get(key);
+			if (code != null) {
+				writeCode(m, base, sFile, code);
+				return;
+			}
+		}
+
+		// Parse, or load the program checked before:
+		List<ClassDecl> astRoots;
+		if (fromCheckpoint)
+			astRoots = AstCheckpoint.read(new File(file));
+		else
+			astRoots = m.parse(file, new FileReader(file), false);
+		// The program run on the JVM has the standard output to
+		// itself, the compiler's output goes to the standard error
+		PrintStream stdout = System.out;
+		if (run)
+			System.setOut(System.err);
+		else
+			System.out.println(AstDump.toString(astRoots));
+		
+		// Run the semantic check:
+		if (!fromCheckpoint) {
+			m.semanticCheck(astRoots);
+			if (Config.CHECKPOINT) {
+				FileOutputStream out = new FileOutputStream(file + Config.CHECKPOINTEXT);
+				try {
+					AstCheckpoint.write(astRoots, out);
+				} finally {
+					out.close();
 				}
-				System.out.println(AstDump.toString(astRoots));
-				
-				// Generate code:
-				String sFile = file + Config.ASMEXT;
-				FileWriter fout = new FileWriter(sFile);
-				m.generateCode(astRoots, fout);
-				fout.close();
 			}
 		}
+		
+		// Perform optimizations
+		if (Config.CFOLD) {
+			ConstantFolderVisitor cfv = new ConstantFolderVisitor();
+			cfv.go(astRoots);
+		}
+		if (Config.DSTMT) {
+			DeadStatementVisitor dsv = new DeadStatementVisitor();
+			dsv.go(astRoots);
+		}
+		if (run) {
+			Writer out = new OutputStreamWriter(stdout);
+			int code = m.runOnJvm(astRoots, new InputStreamReader(System.in), out);
+			if (code != 0)
+				System.exit(code);
+			return;
+		}
+		System.out.println(AstDump.toString(astRoots));
+		
+		// Generate code:
+		if (Config.SEPARATE) {
+			m.generateUnits(astRoots, new File(base + ".units"));
+			return;
+		}
+		if (key != null || Config.INTEGRATED_ASSEMBLER) {
+			StringWriter code = new StringWriter();
+			m.generateCode(astRoots, code);
+			if (key != null)
+				cache.put(key, code.toString());
+			writeCode(m, base, sFile, code.toString());
+			return;
+		}
+		FileWriter fout = new FileWriter(sFile);
+		m.generateCode(astRoots, fout);
+		fout.close();
+	}
+
+	/**
+	 * Writes the {@code code} compiled from {@code base} to {@code sFile}, or
+	 * with {@link Config#INTEGRATED_ASSEMBLER} assembles it into an object
+	 * with {@link Config#OBJEXT} appended to {@code base}; then the code is
+	 * only written with {@code -d}.
+	 */
+	private static void writeCode(Main m, String base, String sFile, String code) throws IOException {
+		if (!Config.INTEGRATED_ASSEMBLER || m.debug != null)
+			FileUtil.write(new File(sFile), code);
+		if (Config.INTEGRATED_ASSEMBLER) {
+			X86Assembler assembler = integratedAssembler(null);
+			assembler.write(code);
+			FileOutputStream out = new FileOutputStream(base + Config.OBJEXT);
+			try {
+				assembler.writeObject(out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the key of the code compiled from {@code source} in the
+	 * cache: the hash of the source or checkpoint, the options, the profile used and
+	 * the compiler itself.
+	 */
+	private static String cacheKey(File source) throws IOException {
+		if (compilerVersion == null) {
+			CodeSource classes = Main.class.getProtectionDomain().getCodeSource();
+			if (classes == null)
+				throw new IllegalStateException("--cache needs the classes of the compiler");
+			try {
+				compilerVersion = Digest.sha256(new File(classes.getLocation().toURI()));
+			} catch (URISyntaxException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		String profile = Config.PROFILE_USE == null ? "" : FileUtil.read(new File(Config.PROFILE_USE));
+		return Digest.sha256(Digest.sha256(source), Config.options(), profile, compilerVersion);
+	}
+
+	/**
+	 * Compiles each of the {@code files} again whenever it changes, with
+	 * its cache of the methods compiled before, until the process is
+	 * killed. Errors in the files are reported, and do not stop watching.
+	 */
+	private static void watch(Main m, Map<String, MethodCache> files) throws IOException {
+		Map<String, Long> modified = new HashMap<String, Long>();
+		for (String file : files.keySet())
+			modified.put(file, new File(file).lastModified());
+		System.err.println("Watching " + files.keySet() + " for changes");
+		while (true) {
+			try {
+				Thread.sleep(WATCH_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (Map.Entry<String, MethodCache> file : files.entrySet()) {
+				long lastModified = new File(file.getKey()).lastModified();
+				if (lastModified == modified.get(file.getKey()))
+					continue;
+				modified.put(file.getKey(), lastModified);
+				long start = System.nanoTime();
+				try {
+					m.methodCache = file.getValue();
+					compile(m, file.getKey());
+				} catch (RuntimeException e) {
+					// Parse and semantic failures, and other bugs of the file
+					System.err.println(file.getKey() + ": " + e);
+					continue;
+				}
+				MethodCache cache = file.getValue();
+				System.err.println(String.format("Compiled %s in %d ms, reused %d of %d methods",
+						file.getKey(), (System.nanoTime() - start) / 1000000,
+						cache.hits(), cache.hits() + cache.misses()));
+			}
+		}
+	}
+	
+	/**
+	 * Applies a long command line option (one starting with {@code --}) to
+	 * the {@link Config}.
+	 */
+	public static void parseOption(String option) {
+		if (option.equals("--sse2")) {
+			Config.SSE2 = true;
+			String[] asm = Arrays.copyOf(Config.ASM, Config.ASM.length + 1);
+			asm[asm.length - 1] = "-msse2";
+			Config.ASM = asm;
+		} else if (option.equals("--x64")) {
+			if (Config.systemKind == Config.SystemKind.WINDOWS)
+				throw new IllegalArgumentException("x86-64 is not supported on Windows");
+			Config.X64 = true;
+			Config.SSE2 = true; // there is no x87 code for x86-64
+			Config.SIZEOF_PTR = 8;
+			List<String> asm = new ArrayList<String>(Arrays.asList(Config.ASM));
+			asm.remove("-m32");
+			Config.ASM = asm.toArray(new String[asm.size()]);
+		} else if (option.equals("--target=c")) {
+			// The same compiler driver builds the C, with optimizations
+			Config.TARGET = Config.Target.C;
+			List<String> asm = new ArrayList<String>(Arrays.asList(Config.ASM));
+			asm.addAll(1, Arrays.asList("-O2", "-std=c99", "-fno-strict-aliasing"));
+			Config.ASM = asm.toArray(new String[asm.size()]);
+		} else if (option.equals("--target=jvm")) {
+			Config.TARGET = Config.Target.JVM;
+		} else if (option.equals("--target=x86")) {
+			Config.TARGET = Config.Target.ASSEMBLY;
+		} else if (option.equals("--no-bufio")) {
+			Config.BUFFERED_IO = false;
+		} else if (option.equals("--no-jump-conditions")) {
+			Config.JUMP_CONDITIONS = false;
+		} else if (option.equals("--implicit-null-checks")) {
+			if (Config.systemKind != Config.SystemKind.LINUX)
+				throw new IllegalArgumentException("Implicit null checks are only supported on Linux");
+			Config.IMPLICIT_NULL_CHECKS = true;
+		} else if (option.equals("--integrated-as")) {
+			if (Config.systemKind != Config.SystemKind.LINUX)
+				throw new IllegalArgumentException("The integrated assembler is only supported on Linux");
+			Config.INTEGRATED_ASSEMBLER = true;
+		} else if (option.equals("--freestanding")) {
+			if (Config.systemKind != Config.SystemKind.LINUX)
+				throw new IllegalArgumentException("Freestanding programs are only supported on Linux");
+			Config.FREESTANDING = true;
+			List<String> asm = new ArrayList<String>(Arrays.asList(Config.ASM));
+			asm.addAll(1, Arrays.asList("-nostdlib", "-static"));
+			Config.ASM = asm.toArray(new String[asm.size()]);
+		} else if (option.startsWith("--profile-generate=")) {
+			// The program may run in another directory than the compiler
+			String file = option.substring("--profile-generate=".length());
+			Config.PROFILE_GENERATE = new File(file).getAbsolutePath();
+		} else if (option.startsWith("--profile-use=")) {
+			Config.PROFILE_USE = option.substring("--profile-use=".length());
+		} else if (option.equals("--profile")) {
+			Config.PROFILE = Config.DEFAULT_PROFILE;
+		} else if (option.startsWith("--profile=")) {
+			Config.PROFILE = option.substring("--profile=".length());
+		} else if (option.equals("--profile-callers")) {
+			if (Config.PROFILE == null)
+				Config.PROFILE = Config.DEFAULT_PROFILE;
+			Config.PROFILE_CALLERS = true;
+		} else if (option.equals("--alloc-profile")) {
+			Config.ALLOC_PROFILE = Config.DEFAULT_ALLOC_PROFILE;
+		} else if (option.startsWith("--alloc-profile=")) {
+			Config.ALLOC_PROFILE = option.substring("--alloc-profile=".length());
+		} else if (option.equals("--watch")) {
+			Config.WATCH = true;
+		} else if (option.startsWith("--cache=")) {
+			Config.CACHE_DIR = option.substring("--cache=".length());
+		} else if (option.startsWith("--cache-size=")) {
+			Config.CACHE_SIZE = Long.parseLong(option.substring("--cache-size=".length())) << 20;
+		} else if (option.equals("--checkpoint")) {
+			Config.CHECKPOINT = true;
+		} else if (option.equals("--separate")) {
+			Config.SEPARATE = true;
+		} else
+			throw new IllegalArgumentException("Unknown option: " + option);
 	}
 	
 	public Main() {
@@ -151,10 +437,77 @@ public class Main {
 	}
 	
 	public void generateCode(List<ClassDecl> astRoots, Writer out) {
-		AstCodeGenerator cg = new AstCodeGenerator(this, out);
+		if (Config.TARGET == Config.Target.C) {
+			if (Config.FREESTANDING)
+				throw new IllegalArgumentException("The C target needs the C library");
+			new CCodeGenerator(out).go(astRoots);
+			return;
+		}
+		AstCodeGenerator cg = new AstCodeGenerator(this, out, methodCache);
 		cg.go(astRoots);
 	}
 
+	/**
+	 * Generates the code of {@code astRoots} and assembles it into an ELF
+	 * object, written to {@code out}, which is only left to be linked; see
+	 * {@link X86Assembler}. The assembly is also written to {@code listing}
+	 * unless it is null.
+	 */
+	public void generateObject(List<ClassDecl> astRoots, OutputStream out, Writer listing)
+			throws IOException {
+		X86Assembler assembler = integratedAssembler(listing);
+		generateCode(astRoots, assembler);
+		assembler.writeObject(out);
+	}
+
+	private static X86Assembler integratedAssembler(Writer listing) {
+		if (Config.TARGET != Config.Target.ASSEMBLY || Config.X64)
+			throw new IllegalArgumentException("The integrated assembler only assembles 32-bit x86");
+		return new X86Assembler(listing);
+	}
+
+	/**
+	 * Generates the assembly of {@code astRoots} into units in {@code dir},
+	 * which are assembled on their own and linked together, see
+	 * {@link AstCodeGenerator#goSeparately}. The layout of the classes the
+	 * units depend on is written to {@link #LAYOUT_FILE}. Units which did not
+	 * change are not written again, and the ones of removed classes are
+	 * deleted. Returns the files of the units.
+	 */
+	public List<File> generateUnits(List<ClassDecl> astRoots, File dir) throws IOException {
+		if (Config.TARGET != Config.Target.ASSEMBLY)
+			throw new IllegalArgumentException("Only assembly is compiled separately");
+		AstCodeGenerator cg = new AstCodeGenerator(this, new StringWriter());
+		Map<String, String> units = cg.goSeparately(astRoots);
+		dir.mkdirs();
+		List<File> files = new ArrayList<File>();
+		for (Map.Entry<String, String> unit : units.entrySet()) {
+			File file = new File(dir, unit.getKey() + Config.ASMEXT);
+			writeIfChanged(file, unit.getValue());
+			files.add(file);
+		}
+		for (File file : dir.listFiles())
+			if (file.getName().endsWith(Config.ASMEXT) && !files.contains(file))
+				file.delete();
+		writeIfChanged(new File(dir, LAYOUT_FILE), cg.layout());
+		return files;
+	}
+
+	/** Writes {@code text} to {@code file} unless it has it already. */
+	private static void writeIfChanged(File file, String text) throws IOException {
+		if (!file.exists() || !FileUtil.read(file).equals(text))
+			FileUtil.write(file, text);
+	}
+
+	/**
+	 * Compiles {@code astRoots} to JVM classes and runs them in this process,
+	 * reading from {@code in} and writing to {@code out}. Returns the exit
+	 * code the program would have, 0 unless it failed with an exception.
+	 */
+	public int runOnJvm(List<ClassDecl> astRoots, Reader in, Writer out) throws IOException {
+		return JvmRuntime.run(new JvmCodeGenerator().go(astRoots), in, out);
+	}
+
 	/** Dumps the AST to the debug stream */
 	private void dumpAst(List<ClassDecl> astRoots) throws IOException {
 		if (this.debug == null) return;
@@ -0,0 +1,283 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cd.Config;
+import cd.ir.Ast;
+import cd.ir.Ast.ClassDecl;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.NewArray;
+import cd.ir.Ast.NewObject;
+import cd.ir.AstVisitor;
+
+/**
+ * Counts the objects and bytes allocated by each {@code new} of the
+ * program. The sites of a method are numbered in the order of the source,
+ * as the AST carries no line numbers, and named e.g.
+ * {@code Main.main#2 new int[]}. Each site has a record of its own:
+ *
+ * <pre>
+ * 0    objects   number of allocations
+ * 8    bytes     allocated in total
+ * 16   name
+ * 24   printed   set while writing the report
+ * </pre>
+ *
+ * which the allocation updates inline, without a call. At exit the sites
+ * which allocated anything are written to {@link Config#ALLOC_PROFILE},
+ * sorted by bytes.
+ */
+class AllocationProfiler {
+
+	private static final String RECORDS = "Javali_alloc_records";
+	private static final String DUMP = "Javali_alloc_dump";
+
+	private static final int OBJECTS = 0, BYTES = 8, NAME = 16, PRINTED = 24, RECORD_SIZE = 32;
+
+	// The sites of the program, in the order of their records
+	private final Map<Ast, Integer> sites = new IdentityHashMap<Ast, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	/** Numbers the allocation sites of all methods before code is generated. */
+	void collectSites(List<? extends ClassDecl> astRoots) {
+		for (ClassDecl classDecl : astRoots)
+			for (MethodDecl method : classDecl.methods())
+				collectSites(classDecl.name + "." + method.name, method);
+	}
+
+	private void collectSites(final String method, MethodDecl ast) {
+		new AstVisitor<Void, Void>() {
+			private int count = 0;
+
+			@Override
+			public Void newObject(NewObject ast, Void arg) {
+				add(ast, method + "#" + count++ + " new " + ast.typeName);
+				return null;
+			}
+
+			@Override
+			public Void newArray(NewArray ast, Void arg) {
+				add(ast, method + "#" + count++ + " new " + ast.typeName);
+				return visitChildren(ast, arg);
+			}
+		}.visit(ast.body(), null);
+	}
+
+	private void add(Ast ast, String name) {
+		sites.put(ast, names.size());
+		names.add(name);
+	}
+
+	/**
+	 * Counts an allocation of {@code ast} whose size is the register or
+	 * immediate {@code byteSize}. Allocations outside of the methods, i.e.
+	 * of the Main object, are attributed to the program.
+	 */
+	void emitCount(Ast ast, String byteSize) {
+		if (Config.ALLOC_PROFILE == null)
+			return;
+		if (!sites.containsKey(ast))
+			add(ast, "<main> new " + ((NewObject) ast).typeName);
+		String record = RECORDS + "+" + sites.get(ast) * RECORD_SIZE;
+		if (Config.X64) {
+			emit("incq", g(record + "+" + OBJECTS));
+			emit("addq", byteSize, g(record + "+" + BYTES));
+		} else {
+			emit("addl", c(1), record + "+" + OBJECTS);
+			emit("adcl", c(0), record + "+" + (OBJECTS + 4));
+			emit("addl", byteSize, record + "+" + BYTES);
+			emit("adcl", c(0), record + "+" + (BYTES + 4));
+		}
+	}
+
+	/** Makes main write the report at exit, however the program ends. */
+	void emitRegistration() {
+		emitAtExit(DUMP);
+	}
+
+	/** Emits the records and the report, once all sites are known. */
+	void emitRuntime() {
+		emitSection(".data");
+		emit(".balign", "8");
+		emitLabel(RECORDS);
+		for (int i = 0; i < names.size(); i++) {
+			emit(".quad", "0, 0");
+			if (Config.X64)
+				emit(".quad", "alloc_site_" + i);
+			else
+				emit(".int", "alloc_site_" + i + ", 0");
+			emit(".quad", "0");
+		}
+
+		emitSection(".section .rodata");
+		for (int i = 0; i < names.size(); i++)
+			emitDeclaration("alloc_site_" + i, "string", "\"" + names.get(i) + "\"");
+		emitDeclaration("alloc_file_name", "string",
+				"\"" + Config.ALLOC_PROFILE.replace("\\", "\\\\") + "\"");
+		emitDeclaration("alloc_file_mode", "string", "\"w\"");
+		emitDeclaration("alloc_header", "string", "\"%12s %16s  %s\\n\"");
+		emitDeclaration("alloc_objects", "string", "\"objects\"");
+		emitDeclaration("alloc_bytes", "string", "\"bytes\"");
+		emitDeclaration("alloc_site", "string", "\"site\"");
+		emitDeclaration("alloc_line", "string", "\"%12llu %16llu  %s\\n\"");
+
+		emitSection(".text");
+		if (Config.X64)
+			emitDump64();
+		else
+			emitDump32();
+	}
+
+	private void emitDump32() {
+		String close = uniqueLabel(), done = uniqueLabel();
+		String select = uniqueLabel(), next = uniqueLabel(), better = uniqueLabel();
+		String print = uniqueLabel();
+		emitFunctionLabel(DUMP);
+		emitMethodPrefix();
+		for (String reg : CallingConvention.cCalleeSaved())
+			emitPush(reg);
+		emit("pushl", c("alloc_file_mode"));
+		emit("pushl", c("alloc_file_name"));
+		emitLibCall(Config.FOPEN, 0);
+		emitDeallocation(8);
+		emit("testl", "%eax", "%eax");
+		emit("je", done);
+		emit("movl", "%eax", "%esi");
+		emit("pushl", c("alloc_site"));
+		emit("pushl", c("alloc_bytes"));
+		emit("pushl", c("alloc_objects"));
+		emit("pushl", c("alloc_header"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(20);
+
+		// Select the site with the most bytes which allocated anything and
+		// has not been printed yet
+		emitLabel(select);
+		emit("xorl", "%edi", "%edi");
+		emit("movl", c(RECORDS), "%ebx");
+		emit("movl", c(names.size()), "%ecx");
+		emitLabel(next);
+		emit("testl", "%ecx", "%ecx");
+		emit("je", print);
+		emit("decl", "%ecx");
+		emit("movl", "%ebx", "%eax");
+		emit("addl", c(RECORD_SIZE), "%ebx");
+		emit("cmpl", c(0), o(PRINTED, "%eax"));
+		emit("jne", next);
+		emit("movl", o(OBJECTS, "%eax"), "%edx");
+		emit("orl", o(OBJECTS + 4, "%eax"), "%edx");
+		emit("je", next);
+		emit("testl", "%edi", "%edi");
+		emit("je", better);
+		emit("movl", o(BYTES + 4, "%eax"), "%edx");
+		emit("cmpl", o(BYTES + 4, "%edi"), "%edx");
+		emit("ja", better);
+		emit("jb", next);
+		emit("movl", o(BYTES, "%eax"), "%edx");
+		emit("cmpl", o(BYTES, "%edi"), "%edx");
+		emit("jbe", next);
+		emitLabel(better);
+		emit("movl", "%eax", "%edi");
+		emit("jmp", next);
+
+		emitLabel(print);
+		emit("testl", "%edi", "%edi");
+		emit("je", close);
+		emit("movl", c(1), o(PRINTED, "%edi"));
+		emit("pushl", o(NAME, "%edi"));
+		emit("pushl", o(BYTES + 4, "%edi"));
+		emit("pushl", o(BYTES, "%edi"));
+		emit("pushl", o(OBJECTS + 4, "%edi"));
+		emit("pushl", o(OBJECTS, "%edi"));
+		emit("pushl", c("alloc_line"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(28);
+		emit("jmp", select);
+
+		emitLabel(close);
+		emit("pushl", "%esi");
+		emitLibCall(Config.FCLOSE, 0);
+		emitDeallocation(4);
+		emitLabel(done);
+		String[] calleeSaved = CallingConvention.cCalleeSaved();
+		for (int i = calleeSaved.length - 1; i >= 0; i--)
+			emitPop(calleeSaved[i]);
+		emitMethodSuffix(false);
+	}
+
+	private void emitDump64() {
+		String close = uniqueLabel(), done = uniqueLabel();
+		String select = uniqueLabel(), next = uniqueLabel(), better = uniqueLabel();
+		String print = uniqueLabel();
+		String file = "%r12", best = "%r13", record = "%r14", left = "%r15";
+		emitFunctionLabel(DUMP);
+		emitMethodPrefix();
+		for (String reg : CallingConvention.cCalleeSaved())
+			emitPush(reg);
+		emitLoadAddress("alloc_file_mode", "%rsi");
+		emitLoadAddress("alloc_file_name", "%rdi");
+		emitLibCall(Config.FOPEN, 0);
+		emit("testq", "%rax", "%rax");
+		emit("je", done);
+		emit("movq", "%rax", file);
+		emit("movq", file, "%rdi");
+		emitLoadAddress("alloc_header", "%rsi");
+		emitLoadAddress("alloc_objects", "%rdx");
+		emitLoadAddress("alloc_bytes", "%rcx");
+		emitLoadAddress("alloc_site", "%r8");
+		emitLibCall(Config.FPRINTF, 0);
+
+		// Select the site with the most bytes which allocated anything and
+		// has not been printed yet
+		emitLabel(select);
+		emit("xorl", "%r13d", "%r13d");
+		emitLoadAddress(RECORDS, record);
+		emit("movl", c(names.size()), "%r15d");
+		emitLabel(next);
+		emit("testq", left, left);
+		emit("je", print);
+		emit("decq", left);
+		emit("movq", record, "%rax");
+		emit("addq", c(RECORD_SIZE), record);
+		emit("cmpq", c(0), o(PRINTED, "%rax"));
+		emit("jne", next);
+		emit("cmpq", c(0), o(OBJECTS, "%rax"));
+		emit("je", next);
+		emit("testq", best, best);
+		emit("je", better);
+		emit("movq", o(BYTES, "%rax"), "%rdx");
+		emit("cmpq", o(BYTES, best), "%rdx");
+		emit("jbe", next);
+		emitLabel(better);
+		emit("movq", "%rax", best);
+		emit("jmp", next);
+
+		emitLabel(print);
+		emit("testq", best, best);
+		emit("je", close);
+		emit("movq", c(1), o(PRINTED, best));
+		emit("movq", file, "%rdi");
+		emitLoadAddress("alloc_line", "%rsi");
+		emit("movq", o(OBJECTS, best), "%rdx");
+		emit("movq", o(BYTES, best), "%rcx");
+		emit("movq", o(NAME, best), "%r8");
+		emitLibCall(Config.FPRINTF, 0);
+		emit("jmp", select);
+
+		emitLabel(close);
+		emit("movq", file, "%rdi");
+		emitLibCall(Config.FCLOSE, 0);
+		emitLabel(done);
+		String[] calleeSaved = CallingConvention.cCalleeSaved();
+		for (int i = calleeSaved.length - 1; i >= 0; i--)
+			emitPop(calleeSaved[i]);
+		emitMethodSuffix(false);
+	}
+}
@@ -2,6 +2,7 @@ package cd.codegen;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.List;
 
 import cd.Config;
 
@@ -11,25 +12,193 @@ import cd.Config;
 public class AssemblerHelper {
 	private static StringBuilder indent = new StringBuilder();
 	private static int counter = 0;
+	// The function whose code is being emitted, see emitFunctionLabel, and
+	// the number of labels in it so far
+	private static String currentFunction;
+	private static int functionCounter;
 	private static Writer out;
+	// True if the functions and data are visible to other assembly files
+	private static boolean exportSymbols;
 	private static AstCodeGenerator acg;
 
+	/** The stack pointer, base pointer and return value registers of the target. */
+	protected static String SP, BP, AX, DX;
+
 	protected static void init(AstCodeGenerator acg, Writer writer) {
 		out = writer;
 		AssemblerHelper.acg = acg;
+		// Labels are numbered from 0 for each program, so that the same
+		// program always gives the same code
+		counter = 0;
+		indent.setLength(0);
+		currentFunction = null;
+		exportSymbols = false;
+		SP = Config.X64 ? "%rsp" : "%esp";
+		BP = Config.X64 ? "%rbp" : "%ebp";
+		AX = Config.X64 ? "%rax" : "%eax";
+		DX = Config.X64 ? "%rdx" : "%edx";
+	}
+
+	/**
+	 * Pushes all registers that are currently reserved, including xmm
+	 * registers, as they will be overwritten by a call. Returns the
+	 * registers to hand to {@link #restoreRegisters(List)} after the call.
+	 */
+	protected static List<String> saveRegisters() {
+		List<String> saved = acg.registerPool.getInUse();
+		saved.addAll(acg.xmmPool.getInUse());
+		for (String reg : saved)
+			emitPush(reg);
+		return saved;
+	}
+
+	protected static void restoreRegisters(List<String> saved) {
+		for (int i = saved.size() - 1; i >= 0; i--)
+			emitPop(saved.get(i));
+	}
+
+	/** Returns a word sized register by its x86 name, e.g. %ecx or %rcx for "cx". */
+	protected static String r(String name) {
+		return (Config.X64 ? "%r" : "%e") + name;
+	}
+
+	/** Creates an operand for a global variable. */
+	protected static String g(String lbl) {
+		return Config.X64 ? lbl + "(%rip)" : lbl;
+	}
+
+	/** Returns the word sized version of an instruction, e.g. movl or movq. */
+	protected static String w(String op) {
+		return op + (Config.X64 ? "q" : "l");
+	}
+
+	/** Returns the 32-bit part of a register, e.g. %eax for %rax. */
+	protected static String low32(String reg) {
+		if (!Config.X64)
+			return reg;
+		if (Character.isDigit(reg.charAt(2)))
+			return reg + "d";
+		return "%e" + reg.substring(2);
+	}
+
+	/**
+	 * Returns the lowest byte of a register, e.g. %al for %eax, or null for
+	 * %esi and %edi, which have none on x86.
+	 */
+	protected static String byteReg(String reg) {
+		if (!Config.X64)
+			return reg.endsWith("x") ? "%" + reg.charAt(2) + "l" : null;
+		if (Character.isDigit(reg.charAt(2)))
+			return reg + "b";
+		if (reg.endsWith("x"))
+			return "%" + reg.charAt(2) + "l";
+		return "%" + reg.substring(2) + "l";
 	}
-	
-	protected static boolean pushEax() {
-		boolean pushEax = acg.registerPool.isInUse("%eax");
-		if (pushEax)
-			emit("pushl", "%eax");
-		return pushEax;
+
+	/**
+	 * Sign extends the 32-bit int in {@code reg} to the whole register. On
+	 * x86-64 ints are kept sign extended so that comparisons and address
+	 * arithmetic can work on full registers.
+	 */
+	protected static void emitSignExtend(String reg) {
+		if (Config.X64)
+			emit("movslq", low32(reg), reg);
+	}
+
+	/**
+	 * Checks that {@code reg} is not null before {@code offset(reg)} is
+	 * accessed. With implicit null checks, nothing is emitted as long as the
+	 * access faults on page zero.
+	 */
+	protected static void emitNullCheck(String reg, int offset) {
+		if (Config.IMPLICIT_NULL_CHECKS && offset < StdLibEmitter.NULL_PAGE_SIZE)
+			return;
+		emit(w("cmp"), c(0), reg);
+		emit("je", StdLibEmitter.NULL_POINTER_EXCEPTION);
+	}
+
+	/** Loads the address of a label into a register. */
+	protected static void emitLoadAddress(String lbl, String reg) {
+		if (Config.X64)
+			emit("leaq", lbl + "(%rip)", reg);
+		else
+			emitMove(c(lbl), reg);
+	}
+
+	/** Compares a register with the address of a label, using %r11 on x86-64. */
+	protected static void emitCompareAddress(String lbl, String reg) {
+		if (Config.X64) {
+			emitLoadAddress(lbl, "%r11");
+			emit("cmpq", "%r11", reg);
+		} else
+			emit("cmpl", c(lbl), reg);
+	}
+
+	/** Stores the address of a label in memory. */
+	protected static void emitStoreAddress(String lbl, int destOffset, String dest) {
+		if (Config.X64) {
+			String reg = acg.registerPool.reserve();
+			emitLoadAddress(lbl, reg);
+			emitStore(reg, destOffset, dest);
+			acg.registerPool.release(reg);
+		} else
+			emitStore(c(lbl), destOffset, dest);
+	}
+
+	/** Pushes the address of a label. */
+	protected static void emitPushAddress(String lbl) {
+		if (Config.X64) {
+			String reg = acg.registerPool.reserve();
+			emitLoadAddress(lbl, reg);
+			emitPush(reg);
+			acg.registerPool.release(reg);
+		} else
+			emitPush(c(lbl));
+	}
+
+	/**
+	 * Calls a function of the C library. On x86 its arguments have been
+	 * pushed before and must be removed afterwards. On x86-64 they have to be
+	 * in the System V argument registers already; the stack is aligned to 16
+	 * bytes around the call and %al holds the number of vector registers
+	 * used, as required for variadic functions.
+	 */
+	protected static void emitLibCall(String function, int vectorArgs) {
+		// The replacements of a freestanding program need no aligned stack
+		if (Config.FREESTANDING) {
+			emit("call", FreestandingEmitter.replacement(function));
+			return;
+		}
+		if (!Config.X64) {
+			emit("call", function);
+			return;
+		}
+		emit("pushq", "%rsp");
+		emit("pushq", "(%rsp)");
+		emit("andq", c(-16), "%rsp");
+		emit("movl", c(vectorArgs), "%eax");
+		if (Config.systemKind == Config.SystemKind.LINUX)
+			emit("call", function + "@PLT");
+		else
+			emit("call", function);
+		emit("movq", "8(%rsp)", "%rsp");
 	}
-	
-	protected static void restoreEax(){
-		emit("popl", "%eax");
+
+	/**
+	 * Registers {@code function} with atexit, so that it runs however the
+	 * program ends, e.g. for a profiler to write what it recorded.
+	 */
+	protected static void emitAtExit(String function) {
+		if (Config.X64) {
+			emitLoadAddress(function, "%rdi");
+			emitLibCall(Config.ATEXIT, 0);
+		} else {
+			emit("pushl", c(function));
+			emitLibCall(Config.ATEXIT, 0);
+			emitDeallocation(4);
+		}
 	}
-	
+
 	/** Creates an constant operand relative to another operand. */
 	protected static String c(int i) {
 		return "$" + i;
@@ -47,8 +216,8 @@ public class AssemblerHelper {
 
 	/** Creates an operand addressing an item in an array */
 	protected static String a(String arrReg, String idxReg) {
-		final int offset = Config.SIZEOF_PTR; // one word in front for vptr
-		final int mul = Config.SIZEOF_PTR; // assume all arrays of 4-byte elem
+		final int offset = 2 * Config.SIZEOF_PTR; // vptr and length in front
+		final int mul = Config.SIZEOF_PTR; // all elements are word sized
 		return String.format("%d(%s,%s,%d)", offset, arrReg, idxReg, mul);
 	}
 
@@ -102,7 +271,29 @@ public class AssemblerHelper {
 
 	protected static void emitMove(String src, String dest) {
 		if (!src.equals(dest))
-			emit("movl", src, dest);
+			emit(w("mov"), src, dest);
+	}
+
+	/** Pushes {@code src}, which may be an xmm register holding a float. */
+	protected static void emitPush(String src) {
+		if (isXmm(src)) {
+			emitAllocation(Config.SIZEOF_PTR);
+			emit("movss", src, o(0, SP));
+		} else
+			emit(w("push"), src);
+	}
+
+	protected static void emitPop(String dest) {
+		if (isXmm(dest)) {
+			emit("movss", o(0, SP), dest);
+			emitDeallocation(Config.SIZEOF_PTR);
+		} else
+			emit(w("pop"), dest);
+	}
+
+	/** Returns whether {@code reg} is an xmm register. */
+	protected static boolean isXmm(String reg) {
+		return reg.startsWith("%xmm");
 	}
 
 	protected static void emitLoad(int srcOffset, String src, String dest) {
@@ -114,19 +305,91 @@ public class AssemblerHelper {
 	}
 
 	protected static void emitConstantData(String data) {
-		emit(String.format("\t%s %s", Config.DOT_INT, data));
+		emit(String.format("\t%s %s", Config.X64 ? ".quad" : Config.DOT_INT, data));
 	}
 
 	protected static void emitDeclaration(String name, String type, String value) {
+		emitGlobal(name);
 		emit(String.format("%s:\n\t.%s %s", name, type, value));
 	}
 
 
+	/**
+	 * Returns a new label which is local to the assembly file, so that it
+	 * stays out of the symbol table of the binary. Within a function, the
+	 * labels are named after it, so that its code does not depend on the
+	 * code before it.
+	 */
 	protected static String uniqueLabel() {
-		String labelName = "label" + counter++;
+		if (currentFunction != null)
+			return Config.LOCAL_LABEL + currentFunction + "." + functionCounter++;
+		String labelName = Config.LOCAL_LABEL + "label" + counter++;
 		return labelName;
 	}
 
+	/**
+	 * Emits the label of a function. On ELF targets it is typed as a
+	 * function, and the function before it ends here, so that profilers
+	 * and debuggers can attribute every instruction to its function.
+	 */
+	protected static void emitFunctionLabel(String name) {
+		emitFunctionEnd();
+		emitGlobal(name);
+		if (Config.systemKind == Config.SystemKind.LINUX)
+			emit(".type", name + ", @function");
+		emitLabel(name);
+		currentFunction = name;
+		functionCounter = 0;
+	}
+
+	/**
+	 * Emits {@code code}, which was generated for the function {@code name}
+	 * and starts with its label, as if it was generated here. The function
+	 * before must have ended.
+	 */
+	protected static void emitFunction(String name, String code) {
+		try {
+			out.write(code);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		currentFunction = name;
+	}
+
+	/** Emits all code to {@code writer} from now on, and returns the previous one. */
+	protected static Writer redirect(Writer writer) {
+		Writer previous = out;
+		out = writer;
+		return previous;
+	}
+
+	/**
+	 * Makes the functions and data emitted from now on visible to other
+	 * assembly files, which are linked with this one.
+	 */
+	protected static void exportSymbols() {
+		exportSymbols = true;
+	}
+
+	/** Makes the symbol {@code name} visible to other assembly files, if they are linked. */
+	protected static void emitGlobal(String name) {
+		if (exportSymbols)
+			emit(".globl", name);
+	}
+
+	/** Ends the current function, if any, by emitting its size. */
+	protected static void emitFunctionEnd() {
+		if (currentFunction != null && Config.systemKind == Config.SystemKind.LINUX)
+			emit(".size", currentFunction + ", .-" + currentFunction);
+		currentFunction = null;
+	}
+
+	/** Switches to another section, which ends the current function. */
+	protected static void emitSection(String directive) {
+		emitFunctionEnd();
+		emit(directive);
+	}
+
 	protected static void emitLabel(String main) {
 		try {
 			out.write(main + ":" + "\n");
@@ -147,22 +410,22 @@ public class AssemblerHelper {
 
 	protected static void emitMethodSuffix(boolean returnNull) {
 		if (returnNull)
-			emit("movl", "$0", "%eax");
+			emitMove("$0", AX);
 		emit("leave");
 		emit("ret");
 	}
 
 	protected static void emitMethodPrefix() {
-		emit("pushl", "%ebp");
-		emitMove("%esp", "%ebp");
+		emitPush(BP);
+		emitMove(SP, BP);
 	}
 
 	protected static void emitAllocation(int bytes) {
-		emit("subl", c(bytes), "%esp");
+		emit(w("sub"), c(bytes), SP);
 	}
 
 	protected static void emitDeallocation(int bytes) {
-		emit("addl", c(bytes), "%esp");
+		emit(w("add"), c(bytes), SP);
 	}
 
 }
@@ -1,13 +1,26 @@
 package cd.codegen;
 
+import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import cd.Config;
 import cd.Main;
+import cd.debug.AstDump;
 import cd.ir.Ast.ClassDecl;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Symbol.ClassSymbol;
+import cd.ir.Symbol.MethodSymbol;
+import cd.ir.Symbol.VariableSymbol;
+import cd.util.Digest;
 
 /**
  * Main class for generating code. Mainly works as a hub containing
@@ -19,23 +32,56 @@ public class AstCodeGenerator {
 	// for comments.
 	protected final ExprGenerator eg = new ExprGenerator(this);
 	protected final StmtDeclGenerator sdg = new StmtDeclGenerator(this);
-	protected final AddressGenerator av = new AddressGenerator(this);
+	protected final InstructionSelector is = new InstructionSelector(this);
+	protected final RegsNeededVisitor rnv = new RegsNeededVisitor();
+	protected final ConditionGenerator cg = new ConditionGenerator(this);
+	protected final StrengthReducer sr = new StrengthReducer(this);
+	protected final LoopIdioms li = new LoopIdioms(this);
+	protected final LoopVectorizer lv = new LoopVectorizer(this);
 	protected final InitializationGenerator iv = new InitializationGenerator(this);
+	protected final VariableWeights vw = new VariableWeights(this);
 	protected final Main main;
 	protected final RegisterPool registerPool = new RegisterPool(this);
+	// The registers floats are computed in with SSE2
+	protected final RegisterPool xmmPool = new RegisterPool(Arrays.asList("%xmm0",
+			"%xmm1", "%xmm2", "%xmm3", "%xmm4", "%xmm5", "%xmm6", "%xmm7"));
+	protected final Profile profile = Profile.load();
+	protected final MethodProfiler mp = new MethodProfiler();
+	protected final AllocationProfiler ap = new AllocationProfiler();
 
 	// Data about the classes that exist in the program and the offsets of their field (in respect to the instance
 	// pointer), their methods (in respect to the vtable pointer) and its methods locals (in respect to EBP).
 	private final Map<String, ClassOffsets> classes = new HashMap<String, ClassOffsets>();
+	// Methods which are overridden in at least one subclass, as "Class.method".
+	private final Set<String> overriddenMethods = new HashSet<String>();
+	// The classes of the program in the order of their declarations.
+	private final Map<String, ClassSymbol> classSymbols = new LinkedHashMap<String, ClassSymbol>();
 	// Pointer to the current class being processed. Used for finding the corresponding field/method
 	// offset needed in its method declarations.
 	protected ClassOffsets currentClass;
 	// Pointer to the current method being processed. Used for finding the corresponding local variable
 	// offsets needed in expressions.
 	protected String currentMethod;
+	// Variables of the current method which live in a register instead of
+	// its stack frame.
+	protected final Map<String, String> variableRegisters = new HashMap<String, String>();
+	// The code of methods from earlier compilations, or null, and what the
+	// code of all methods depends on besides the methods themselves. The
+	// latter is null if methods are not cached.
+	protected final MethodCache methodCache;
+	private String options, layout;
+
+	/** The name of the unit of {@link #goSeparately} which does not depend on the program. */
+	public static final String RUNTIME_UNIT = "javali-runtime";
 
 	public AstCodeGenerator(Main main, Writer out) {
+		this(main, out, null);
+	}
+
+	/** Reuses the code in {@code methodCache} for the methods which are unchanged. */
+	public AstCodeGenerator(Main main, Writer out, MethodCache methodCache) {
 		this.main = main;
+		this.methodCache = methodCache;
 		AssemblerHelper.init(this, out);
 	}
 
@@ -49,8 +95,19 @@ public class AstCodeGenerator {
 	 * occur.
 	 */
 	public void go(List<? extends ClassDecl> astRoots) {
+		collectClasses(astRoots);
+		if (Config.ALLOC_PROFILE != null)
+			ap.collectSites(astRoots);
 		// Emit vtables
 		iv.go(astRoots);
+		// Methods are only cached without profiles, whose counters are
+		// numbered across methods
+		if (methodCache != null && Config.PROFILE_GENERATE == null && Config.PROFILE_USE == null
+				&& Config.PROFILE == null && Config.ALLOC_PROFILE == null) {
+			methodCache.startCompilation();
+			options = Config.options();
+			layout = layout();
+		}
 		// Emit standard library
 		StdLibEmitter.emitAll(this);
 		// Emit program code
@@ -58,6 +115,125 @@ public class AstCodeGenerator {
 			currentClass = getClassOffsets(ast.name);
 			sdg.gen(ast);
 		}
+		// Emit the counters of an instrumented program
+		if (Config.PROFILE_GENERATE != null)
+			profile.emitRuntime();
+		if (Config.PROFILE != null)
+			mp.emitRuntime();
+		if (Config.ALLOC_PROFILE != null)
+			ap.emitRuntime();
+		AssemblerHelper.emitFunctionEnd();
+	}
+
+	/**
+	 * Like {@link #go}, but returns the code as units to be assembled on
+	 * their own and linked together, by name: the runtime
+	 * {@link #RUNTIME_UNIT}, which only depends on the options, and a unit
+	 * per class with its vtables and methods, and the main function in the
+	 * one of Main. The classes are laid out as {@link #layout()} describes.
+	 */
+	public Map<String, String> goSeparately(List<? extends ClassDecl> astRoots) {
+		// The counters of an instrumented program are numbered across classes
+		if (Config.PROFILE_GENERATE != null || Config.PROFILE != null || Config.ALLOC_PROFILE != null)
+			throw new IllegalArgumentException("Instrumented programs cannot be compiled separately");
+		collectClasses(astRoots);
+		iv.addOffsets(astRoots);
+		AssemblerHelper.exportSymbols();
+		Map<String, String> units = new LinkedHashMap<String, String>();
+
+		Writer out = AssemblerHelper.redirect(new StringWriter());
+		AssemblerHelper.emitSection(".section .data");
+		iv.emitRuntimeVtables();
+		StdLibEmitter.emitRuntime(this);
+		AssemblerHelper.emitFunctionEnd();
+		units.put(RUNTIME_UNIT, AssemblerHelper.redirect(new StringWriter()).toString());
+
+		for (ClassDecl ast : astRoots) {
+			AssemblerHelper.emitSection(".section .data");
+			iv.emitVtables(ast);
+			AssemblerHelper.emitSection(".text");
+			if (ast.name.equals("Main"))
+				StdLibEmitter.emitMain(this);
+			currentClass = getClassOffsets(ast.name);
+			sdg.gen(ast);
+			AssemblerHelper.emitFunctionEnd();
+			units.put(ast.name, AssemblerHelper.redirect(new StringWriter()).toString());
+		}
+		AssemblerHelper.redirect(out);
+		return units;
+	}
+
+	/** Collects the classes of the program and the methods they override. */
+	private void collectClasses(List<? extends ClassDecl> astRoots) {
+		for (ClassDecl ast : astRoots) {
+			if (ast.sym == null)
+				continue;
+			classSymbols.put(ast.name, ast.sym);
+			for (MethodDecl method : ast.methods())
+				for (ClassSymbol c = ast.sym.superClass; c != null; c = c.superClass)
+					if (c.methods.containsKey(method.name))
+						overriddenMethods.add(c.name + "." + method.name);
+		}
+	}
+
+	/**
+	 * Returns the layout of all classes: their super classes, and the types
+	 * and offsets of their fields and methods, in the order of the instances
+	 * and vtables. The code of a method depends on these, but on no other
+	 * part of other methods.
+	 */
+	public String layout() {
+		StringBuilder layout = new StringBuilder();
+		for (ClassSymbol sym : classSymbols.values()) {
+			ClassOffsets offsets = getClassOffsets(sym.name);
+			layout.append(sym.name).append(" extends ").append(sym.superClass.name).append('\n');
+			for (String name : iv.getFieldsInOrder(sym)) {
+				VariableSymbol field = sym.getField(name);
+				layout.append(String.format("  %s %s @%d\n", field == null ? "?" : field.type.name,
+						name, offsets.getField(name)));
+			}
+			for (MethodSymbol method : iv.getMethodsInOrder(sym))
+				layout.append(String.format("  %s %s.%s%s @%d\n", method.ast.returnType,
+						method.getClassAst().name, method.name, method.ast.argumentTypes,
+						offsets.getMethod(method.name)));
+		}
+		return layout.toString();
+	}
+
+	/**
+	 * Returns the key of the code of {@code ast}, a method of the current
+	 * class, in the {@link MethodCache}, or null if the code is not cached.
+	 * It must be called before the code is generated, which changes the
+	 * method.
+	 */
+	public String methodKey(MethodDecl ast) {
+		if (layout == null)
+			return null;
+		return Digest.sha256(options, layout, currentClass.name, AstDump.toString(ast));
+	}
+
+	/**
+	 * Returns true if a subclass of {@code className} overrides the method,
+	 * so that a call on an instance of it need not end up in its own method.
+	 */
+	public boolean isOverridden(String className, String methodName) {
+		return overriddenMethods.contains(className + "." + methodName);
+	}
+
+	public ClassSymbol getClassSymbol(String name) {
+		return classSymbols.get(name);
+	}
+
+	/** Returns {@code className} and all of its subclasses. */
+	public List<String> getSubclasses(String className) {
+		List<String> subclasses = new ArrayList<String>();
+		for (ClassSymbol sym : classSymbols.values())
+			for (ClassSymbol c = sym; c != null; c = c.superClass)
+				if (c.name.equals(className)) {
+					subclasses.add(sym.name);
+					break;
+				}
+		return subclasses;
 	}
 
 	public ClassOffsets getClassOffsets(String name) {
@@ -112,7 +288,8 @@ public class AstCodeGenerator {
 		}
 
 		public boolean containsLocal(String methodName, String localName) {
-			return methodVariableOffsets.get(methodName).containsKey(localName);
+			return methodVariableOffsets.containsKey(methodName)
+					&& methodVariableOffsets.get(methodName).containsKey(localName);
 		}
 
 
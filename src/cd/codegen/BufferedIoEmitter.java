@@ -0,0 +1,512 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+import cd.Config;
+
+/*
+ * Emits the runtime behind the built-in read and write functions when
+ * Config.BUFFERED_IO is set. Output is collected in a large buffer which
+ * is handed to write(2) when it is full, at the end of main and before an
+ * exception exits the program. Input is read with read(2) into a buffer
+ * and parsed by hand.
+ *
+ * All functions take their arguments on the stack like Javali methods and
+ * return their result in %eax (%rax). They do not preserve any registers.
+ */
+class BufferedIoEmitter {
+
+	protected static final String WRITE_INT = "Javali_write_int";
+	protected static final String WRITE_FLOAT = "Javali_write_float";
+	protected static final String WRITE_CHAR = "Javali_write_char";
+	protected static final String WRITE_STRING = "Javali_write_string";
+	protected static final String FLUSH = "Javali_flush";
+	protected static final String READ_INT = "Javali_read_int";
+	protected static final String READ_FLOAT = "Javali_read_float";
+
+	private static final String OUT_BUF = "Javali_out_buf";
+	private static final String OUT_POS = "Javali_out_pos";
+	private static final String IN_BUF = "Javali_in_buf";
+	private static final String IN_POS = "Javali_in_pos";
+	private static final String IN_LEN = "Javali_in_len";
+	private static final String POW10 = "Javali_pow10";
+	private static final String PEEK = "Javali_peek";
+	private static final String SKIP_WHITESPACE = "Javali_skip_whitespace";
+	private static final String PARSE_INT = "Javali_parse_int";
+	private static final String ENSURE_ROOM = "Javali_ensure_room";
+
+	private static final int BUF_SIZE = 1 << 16;
+	// Room that has to be left in the output buffer for one formatted value
+	private static final int MAX_VALUE_LENGTH = 64;
+
+	/** Offset of the first argument from the base pointer */
+	private static int ARG;
+
+	public static void emitAll() {
+		ARG = 2 * Config.SIZEOF_PTR;
+		data();
+		emitSection(".text");
+		flush();
+		ensureRoom();
+		writeInt();
+		writeChar();
+		writeString();
+		writeFloat();
+		peek();
+		skipWhitespace();
+		parseInt();
+		readInt();
+		readFloat();
+	}
+
+	private static void data() {
+		emit("");
+		emitSection(".section .data");
+		emitDeclaration(OUT_POS, "int", "0");
+		emitDeclaration(IN_POS, "int", "0");
+		emitDeclaration(IN_LEN, "int", "0");
+		// Powers of ten which are exact as doubles, used to scale floats
+		StringBuilder pow = new StringBuilder("1e0");
+		for (int i = 1; i <= 22; i++)
+			pow.append(", 1e").append(i);
+		emitDeclaration(POW10, "double", pow.toString());
+		emit(".lcomm", OUT_BUF + ", " + BUF_SIZE);
+		emit(".lcomm", IN_BUF + ", " + BUF_SIZE);
+	}
+
+	/*
+	 * Writes out the whole output buffer.
+	 */
+	private static void flush() {
+		String loopLabel = uniqueLabel();
+		String doneLabel = uniqueLabel();
+		emitFunctionLabel(FLUSH);
+		emitIndent(null);
+		emitMethodPrefix();
+		// -P(%ebp) holds the number of bytes written so far
+		emitPush(c(0));
+		emitLabel(loopLabel);
+		emit("movl", g(OUT_POS), "%edx");
+		emit("subl", o(-Config.SIZEOF_PTR, BP), "%edx");
+		emit("jle", doneLabel);
+		emit("movl", o(-Config.SIZEOF_PTR, BP), "%ecx");
+		emitLoadAddress(OUT_BUF, AX);
+		if (Config.X64) {
+			emit("leaq", "(%rax,%rcx)", "%rsi");
+			emit("movl", c(1), "%edi");
+			emitLibCall(Config.WRITE, 0);
+		} else {
+			emit("pushl", "%edx");
+			emit("leal", "(%eax,%ecx)", "%eax");
+			emit("pushl", "%eax");
+			emit("pushl", c(1));
+			emitLibCall(Config.WRITE, 0);
+			emitDeallocation(12);
+		}
+		// Give up on errors instead of looping forever
+		emit("cmpl", c(0), "%eax");
+		emit("jle", doneLabel);
+		emit("addl", "%eax", o(-Config.SIZEOF_PTR, BP));
+		emit("jmp", loopLabel);
+		emitLabel(doneLabel);
+		emit("movl", c(0), g(OUT_POS));
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	/*
+	 * Flushes the output buffer unless there is room for one more value.
+	 */
+	private static void ensureRoom() {
+		String roomLabel = uniqueLabel();
+		emitFunctionLabel(ENSURE_ROOM);
+		emitIndent(null);
+		emit("cmpl", c(BUF_SIZE - MAX_VALUE_LENGTH), g(OUT_POS));
+		emit("jle", roomLabel);
+		emit("call", FLUSH);
+		emitLabel(roomLabel);
+		emit("ret");
+		emitUndent();
+	}
+
+	/*
+	 * Formats an int into the output buffer. The digits are produced
+	 * backwards on the stack and then copied with rep movsb.
+	 */
+	private static void writeInt() {
+		String positiveLabel = uniqueLabel();
+		String digitLabel = uniqueLabel();
+		String copyLabel = uniqueLabel();
+		emitFunctionLabel(WRITE_INT);
+		emitIndent(null);
+		emitMethodPrefix();
+		emit("call", ENSURE_ROOM);
+		emitAllocation(16);
+		emitMove(BP, r("si"));
+		emit("movl", o(ARG, BP), "%eax");
+		emit("movl", c(10), "%ecx");
+		emit("testl", "%eax", "%eax");
+		emit("jns", positiveLabel);
+		// INT_MIN stays the same, but is correct when divided unsigned
+		emit("negl", "%eax");
+		emitLabel(positiveLabel);
+		emitLabel(digitLabel);
+		emit("xorl", "%edx", "%edx");
+		emit("divl", "%ecx");
+		emit("addb", c('0'), "%dl");
+		emit(w("dec"), r("si"));
+		emit("movb", "%dl", o(0, r("si")));
+		emit("testl", "%eax", "%eax");
+		emit("jnz", digitLabel);
+		emit("cmpl", c(0), o(ARG, BP));
+		emit("jge", copyLabel);
+		emit(w("dec"), r("si"));
+		emit("movb", c('-'), o(0, r("si")));
+		emitLabel(copyLabel);
+		emitMove(BP, r("cx"));
+		emit(w("sub"), r("si"), r("cx"));
+		emit("movl", g(OUT_POS), "%edi");
+		emit("addl", "%ecx", g(OUT_POS));
+		emitLoadAddress(OUT_BUF, AX);
+		emit(w("add"), AX, r("di"));
+		emit("rep movsb");
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	private static void writeChar() {
+		emitFunctionLabel(WRITE_CHAR);
+		emitIndent(null);
+		emitMethodPrefix();
+		emit("call", ENSURE_ROOM);
+		emit("movl", g(OUT_POS), "%ecx");
+		emitLoadAddress(OUT_BUF, AX);
+		emit("movl", o(ARG, BP), "%edx");
+		emit("movb", "%dl", String.format("(%s,%s)", AX, r("cx")));
+		emit("incl", g(OUT_POS));
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	/*
+	 * Writes a zero terminated string, one character at a time.
+	 */
+	private static void writeString() {
+		String loopLabel = uniqueLabel();
+		String doneLabel = uniqueLabel();
+		emitFunctionLabel(WRITE_STRING);
+		emitIndent(null);
+		emitMethodPrefix();
+		emitLabel(loopLabel);
+		emitLoad(ARG, BP, AX);
+		emit("movzbl", o(0, AX), "%eax");
+		emit("testl", "%eax", "%eax");
+		emit("jz", doneLabel);
+		emitPush(AX);
+		emit("call", WRITE_CHAR);
+		emitDeallocation(Config.SIZEOF_PTR);
+		emit(w("inc"), o(ARG, BP));
+		emit("jmp", loopLabel);
+		emitLabel(doneLabel);
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	/*
+	 * Formats a float with snprintf directly into the output buffer, or
+	 * without the C library with FreestandingEmitter.FORMAT_FLOAT.
+	 */
+	private static void writeFloat() {
+		emitFunctionLabel(WRITE_FLOAT);
+		emitIndent(null);
+		emitMethodPrefix();
+		emit("call", ENSURE_ROOM);
+		emit("movl", g(OUT_POS), "%ecx");
+		emitLoadAddress(OUT_BUF, AX);
+		if (Config.FREESTANDING) {
+			emitPush(o(ARG, BP));
+			emit(w("lea"), String.format("(%s,%s)", AX, r("cx")), AX);
+			emitPush(AX);
+			emit("call", FreestandingEmitter.FORMAT_FLOAT);
+			emitDeallocation(2 * Config.SIZEOF_PTR);
+		} else if (Config.X64) {
+			emit("leaq", "(%rax,%rcx)", "%rdi");
+			emit("movss", o(ARG, BP), "%xmm0");
+			emit("cvtss2sd", "%xmm0", "%xmm0");
+			emit("movl", c(MAX_VALUE_LENGTH), "%esi");
+			emitLoadAddress("float_format_string", "%rdx");
+			emitLibCall(Config.SNPRINTF, 1);
+		} else {
+			emit("flds", o(ARG, BP));
+			emitAllocation(8);
+			emit("fstpl", o(0, "%esp"));
+			emit("pushl", c("float_format_string"));
+			emit("pushl", c(MAX_VALUE_LENGTH));
+			emit("leal", "(%eax,%ecx)", "%eax");
+			emit("pushl", "%eax");
+			emitLibCall(Config.SNPRINTF, 1);
+			emitDeallocation(20);
+		}
+		emit("addl", "%eax", g(OUT_POS));
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	/*
+	 * Returns the next input character without consuming it, or -1 at the
+	 * end of the input. Refills the input buffer when it is empty.
+	 */
+	private static void peek() {
+		String haveLabel = uniqueLabel();
+		String filledLabel = uniqueLabel();
+		emitFunctionLabel(PEEK);
+		emitIndent(null);
+		emitMethodPrefix();
+		emit("movl", g(IN_POS), "%eax");
+		emit("cmpl", g(IN_LEN), "%eax");
+		emit("jl", haveLabel);
+		if (Config.X64) {
+			emit("movl", c(BUF_SIZE), "%edx");
+			emitLoadAddress(IN_BUF, "%rsi");
+			emit("xorl", "%edi", "%edi");
+			emitLibCall(Config.READ, 0);
+		} else {
+			emit("pushl", c(BUF_SIZE));
+			emit("pushl", c(IN_BUF));
+			emit("pushl", c(0));
+			emitLibCall(Config.READ, 0);
+			emitDeallocation(12);
+		}
+		emit("movl", c(0), g(IN_POS));
+		emit("cmpl", c(0), "%eax");
+		emit("jg", filledLabel);
+		emit("movl", c(0), g(IN_LEN));
+		emitMove(c(-1), AX);
+		emit("leave");
+		emit("ret");
+		emitLabel(filledLabel);
+		emit("movl", "%eax", g(IN_LEN));
+		emitLabel(haveLabel);
+		emit("movl", g(IN_POS), "%ecx");
+		emitLoadAddress(IN_BUF, AX);
+		emit("movzbl", String.format("(%s,%s)", AX, r("cx")), "%eax");
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	private static void skipWhitespace() {
+		String loopLabel = uniqueLabel();
+		String skipLabel = uniqueLabel();
+		String doneLabel = uniqueLabel();
+		emitFunctionLabel(SKIP_WHITESPACE);
+		emitIndent(null);
+		emitLabel(loopLabel);
+		emit("call", PEEK);
+		emit("cmpl", c(' '), "%eax");
+		emit("je", skipLabel);
+		// '\t', '\n', '\v', '\f' and '\r'
+		emit("subl", c('\t'), "%eax");
+		emit("cmpl", c(4), "%eax");
+		emit("ja", doneLabel);
+		emitLabel(skipLabel);
+		emit("incl", g(IN_POS));
+		emit("jmp", loopLabel);
+		emitLabel(doneLabel);
+		emit("ret");
+		emitUndent();
+	}
+
+	/*
+	 * Parses an optionally signed decimal int at the current input position.
+	 */
+	private static void parseInt() {
+		String negativeLabel = uniqueLabel();
+		String doneLabel = uniqueLabel();
+		String loopLabel = uniqueLabel();
+		emitFunctionLabel(PARSE_INT);
+		emitIndent(null);
+		emitMethodPrefix();
+		// -P: negative, -2P: value
+		emitPush(c(0));
+		emitPush(c(0));
+		emit("call", PEEK);
+		emit("cmpl", c('+'), "%eax");
+		emit("je", negativeLabel + "_skip");
+		emit("cmpl", c('-'), "%eax");
+		emit("jne", loopLabel);
+		emitLabel(negativeLabel);
+		emit("movl", c(1), o(-Config.SIZEOF_PTR, BP));
+		emitLabel(negativeLabel + "_skip");
+		emit("incl", g(IN_POS));
+		emitLabel(loopLabel);
+		emit("call", PEEK);
+		emit("subl", c('0'), "%eax");
+		emit("cmpl", c(9), "%eax");
+		emit("ja", doneLabel);
+		emit("movl", o(-2 * Config.SIZEOF_PTR, BP), "%ecx");
+		emit("imull", c(10), "%ecx");
+		emit("addl", "%eax", "%ecx");
+		emit("movl", "%ecx", o(-2 * Config.SIZEOF_PTR, BP));
+		emit("incl", g(IN_POS));
+		emit("jmp", loopLabel);
+		emitLabel(doneLabel);
+		emit("movl", o(-2 * Config.SIZEOF_PTR, BP), "%eax");
+		emit("cmpl", c(0), o(-Config.SIZEOF_PTR, BP));
+		emit("je", doneLabel + "_positive");
+		emit("negl", "%eax");
+		emitLabel(doneLabel + "_positive");
+		emitSignExtend(AX);
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	private static void readInt() {
+		emitFunctionLabel(READ_INT);
+		emitIndent(null);
+		emit("call", SKIP_WHITESPACE);
+		emit("jmp", PARSE_INT);
+		emitUndent();
+	}
+
+	/*
+	 * Reads a float in the format [+-]digits[.digits][(e|E)[+-]digits].
+	 * Up to nine significant digits are collected in an int mantissa which is
+	 * then scaled by the exact powers of ten in Javali_pow10.
+	 */
+	private static void readFloat() {
+		final int P = Config.SIZEOF_PTR;
+		final String negative = o(-P, BP), mantissa = o(-2 * P, BP),
+				exponent = o(-3 * P, BP), digits = o(-4 * P, BP),
+				seenDot = o(-5 * P, BP), scratch = o(-6 * P, BP);
+		String signLabel = uniqueLabel();
+		String loopLabel = uniqueLabel();
+		String dotLabel = uniqueLabel();
+		String ignoreLabel = uniqueLabel();
+		String nextLabel = uniqueLabel();
+		String endLabel = uniqueLabel();
+		String scaleLabel = uniqueLabel();
+		String divideLabel = uniqueLabel();
+		String doneLabel = uniqueLabel();
+
+		emitFunctionLabel(READ_FLOAT);
+		emitIndent(null);
+		emitMethodPrefix();
+		for (int i = 0; i < 6; i++)
+			emitPush(c(0));
+		emit("call", SKIP_WHITESPACE);
+		emit("call", PEEK);
+		emit("cmpl", c('+'), "%eax");
+		emit("je", signLabel + "_skip");
+		emit("cmpl", c('-'), "%eax");
+		emit("jne", loopLabel);
+		emitLabel(signLabel);
+		emit("movl", c(1), negative);
+		emitLabel(signLabel + "_skip");
+		emit("incl", g(IN_POS));
+
+		emitLabel(loopLabel);
+		emit("call", PEEK);
+		emit("cmpl", c('.'), "%eax");
+		emit("je", dotLabel);
+		emit("subl", c('0'), "%eax");
+		emit("cmpl", c(9), "%eax");
+		emit("ja", endLabel);
+		emit("cmpl", c(9), digits);
+		emit("jge", ignoreLabel);
+		emit("movl", mantissa, "%ecx");
+		emit("imull", c(10), "%ecx");
+		emit("addl", "%eax", "%ecx");
+		emit("movl", "%ecx", mantissa);
+		// Leading zeros are not significant
+		emit("testl", "%ecx", "%ecx");
+		emit("jz", ignoreLabel + "_fraction");
+		emit("incl", digits);
+		emitLabel(ignoreLabel + "_fraction");
+		emit("movl", seenDot, "%ecx");
+		emit("subl", "%ecx", exponent);
+		emit("jmp", nextLabel);
+		emitLabel(ignoreLabel);
+		// Digits beyond the precision of the mantissa only scale it
+		emit("movl", c(1), "%ecx");
+		emit("subl", seenDot, "%ecx");
+		emit("addl", "%ecx", exponent);
+		emit("jmp", nextLabel);
+		emitLabel(dotLabel);
+		emit("cmpl", c(0), seenDot);
+		emit("jne", endLabel);
+		emit("movl", c(1), seenDot);
+		emitLabel(nextLabel);
+		emit("incl", g(IN_POS));
+		emit("jmp", loopLabel);
+
+		emitLabel(endLabel);
+		emit("call", PEEK);
+		emit("orl", c(0x20), "%eax"); // lower case
+		emit("cmpl", c('e'), "%eax");
+		emit("jne", scaleLabel);
+		emit("incl", g(IN_POS));
+		emit("call", PARSE_INT);
+		emit("addl", "%eax", exponent);
+
+		// Scale the mantissa by 10^exponent, at most 10^22 at a time
+		emitLabel(scaleLabel);
+		if (Config.X64)
+			emit("cvtsi2sdl", mantissa, "%xmm0");
+		else
+			emit("fildl", mantissa);
+		emitLoadAddress(POW10, DX);
+		String scaleLoop = uniqueLabel();
+		emitLabel(scaleLoop);
+		emit("movl", exponent, "%ecx");
+		emit("cmpl", c(0), "%ecx");
+		emit("je", doneLabel);
+		emit("jl", divideLabel);
+		emit("cmpl", c(22), "%ecx");
+		emit("jle", scaleLoop + "_mul");
+		emit("movl", c(22), "%ecx");
+		emitLabel(scaleLoop + "_mul");
+		emit("subl", "%ecx", exponent);
+		scale(Config.X64 ? "mulsd" : "fmull");
+		emit("jmp", scaleLoop);
+		emitLabel(divideLabel);
+		emit("negl", "%ecx");
+		emit("cmpl", c(22), "%ecx");
+		emit("jle", divideLabel + "_div");
+		emit("movl", c(22), "%ecx");
+		emitLabel(divideLabel + "_div");
+		emit("addl", "%ecx", exponent);
+		scale(Config.X64 ? "divsd" : "fdivl");
+		emit("jmp", scaleLoop);
+
+		emitLabel(doneLabel);
+		if (Config.X64) {
+			emit("cvtsd2ss", "%xmm0", "%xmm0");
+			emit("movd", "%xmm0", "%eax");
+		} else {
+			emit("fstps", scratch);
+			emit("movl", scratch, "%eax");
+		}
+		emit("cmpl", c(0), negative);
+		emit("je", doneLabel + "_positive");
+		emit("xorl", c(0x80000000), "%eax");
+		emitLabel(doneLabel + "_positive");
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	private static void scale(String op) {
+		String operand = String.format("(%s,%s,8)", DX, r("cx"));
+		if (Config.X64)
+			emit(op, operand, "%xmm0");
+		else
+			emit(op, operand);
+	}
+
+}
@@ -0,0 +1,788 @@
+package cd.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cd.ir.Ast;
+import cd.ir.Ast.Assign;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.BuiltInRead;
+import cd.ir.Ast.BuiltInReadFloat;
+import cd.ir.Ast.BuiltInWrite;
+import cd.ir.Ast.BuiltInWriteFloat;
+import cd.ir.Ast.BuiltInWriteln;
+import cd.ir.Ast.Cast;
+import cd.ir.Ast.ClassDecl;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.Field;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.IfElse;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.NewArray;
+import cd.ir.Ast.NewObject;
+import cd.ir.Ast.Nop;
+import cd.ir.Ast.NullConst;
+import cd.ir.Ast.ReturnStmt;
+import cd.ir.Ast.Seq;
+import cd.ir.Ast.ThisRef;
+import cd.ir.Ast.UnaryOp;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.VarDecl;
+import cd.ir.Ast.WhileLoop;
+import cd.ir.AstVisitor;
+import cd.ir.ExprVisitor;
+import cd.ir.Symbol.ClassSymbol;
+import cd.ir.Symbol.MethodSymbol;
+import cd.ir.Symbol.TypeSymbol;
+import cd.ir.Symbol.VariableSymbol;
+
+/**
+ * Generates C instead of assembly, to be compiled by an optimizing C
+ * compiler. The layout is the one of the assembly: an object is a struct
+ * with its vtable pointer and all fields in the order of
+ * {@link InitializationGenerator}, a vtable a struct with the vtable of the
+ * super class and a function pointer for each method, in the same order.
+ * References are {@code Object *}, which is cast to the struct of the static
+ * type to access a field or call a method.
+ * <p>
+ * Expressions become C expressions which neither have side effects nor can
+ * fail. Calls, reads, allocations and the null, bounds, cast and division
+ * checks become statements before them, in the order the assembly evaluates
+ * them, so that a program writes the same output and fails with the same
+ * exception and exit code.
+ */
+public class CCodeGenerator {
+
+	private final Writer out;
+	// Only used for the order of fields and methods
+	private final InitializationGenerator layout = new InitializationGenerator(null);
+
+	// The statements of the method being generated
+	private final List<String> lines = new ArrayList<String>();
+	private String indent;
+	private int temps;
+	private ClassDecl currentClass;
+	private MethodDecl currentMethod;
+
+	private final Expressions eg = new Expressions();
+	private final Statements sg = new Statements();
+
+	public CCodeGenerator(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Emits C corresponding to {@code astRoots}. Throws a
+	 * {@link RuntimeException} should any I/O error occur.
+	 */
+	public void go(List<? extends ClassDecl> astRoots) {
+		List<ClassDecl> classes = new ArrayList<ClassDecl>();
+		for (ClassDecl ast : astRoots)
+			if (ast.sym != null)
+				classes.add(ast);
+
+		emitRuntime();
+		for (ClassDecl ast : classes) {
+			write("struct class_" + ast.name + " {");
+			write("\tconst struct vtable *vtable;");
+			for (String field : layout.getFieldsInOrder(ast.sym))
+				write("\t" + declaration(fieldType(ast.sym, field), "f_" + field) + ";");
+			write("};");
+			write("");
+		}
+		for (ClassDecl ast : classes) {
+			write("struct vtable_" + ast.name + " {");
+			write("\tconst struct vtable *super;");
+			for (MethodSymbol method : layout.getMethodsInOrder(ast.sym))
+				write("\t" + cType(method.returnType) + " (*m_" + method.name + ")("
+						+ parameters(method, false) + ");");
+			write("};");
+			write("");
+		}
+		for (ClassDecl ast : classes)
+			for (MethodDecl method : ast.methods())
+				write("static " + signature(method.sym) + ";");
+		write("");
+
+		Set<String> emitted = new HashSet<String>();
+		for (ClassDecl ast : classes)
+			emitVtable(ast.sym, emitted);
+
+		for (ClassDecl ast : classes)
+			for (MethodDecl method : ast.methods())
+				emitMethod(ast, method);
+
+		write("int main(void) {");
+		write("\tObject *object = Javali_new_object(sizeof(struct class_Main), "
+				+ vtable("Main") + ");");
+		write("\tMain_main(object);");
+		write("\treturn 0;");
+		write("}");
+	}
+
+	/**
+	 * Emits the types of objects, arrays and vtables and the checks, which
+	 * print the messages and exit with the codes of {@link StdLibEmitter}.
+	 */
+	private void emitRuntime() {
+		String[] runtime = {
+			"#include <stdint.h>",
+			"#include <stdio.h>",
+			"#include <stdlib.h>",
+			"#include <math.h>",
+			"",
+			"struct vtable {",
+			"\tconst struct vtable *super;",
+			"};",
+			"",
+			"typedef struct {",
+			"\tconst struct vtable *vtable;",
+			"} Object;",
+			"",
+			"struct array {",
+			"\tconst struct vtable *vtable;",
+			"\tint32_t length;",
+			"};",
+			"",
+			"struct array_int {",
+			"\tconst struct vtable *vtable;",
+			"\tint32_t length;",
+			"\tint32_t data[];",
+			"};",
+			"",
+			"struct array_float {",
+			"\tconst struct vtable *vtable;",
+			"\tint32_t length;",
+			"\tfloat data[];",
+			"};",
+			"",
+			"struct array_Object {",
+			"\tconst struct vtable *vtable;",
+			"\tint32_t length;",
+			"\tObject *data[];",
+			"};",
+			"",
+			"static const struct vtable vtable_Object = { 0 };",
+			"static const struct vtable vtable_float_Array = { &vtable_Object };",
+			"static const struct vtable vtable_boolean_Array = { &vtable_Object };",
+			"static const struct vtable vtable_int_Array = { &vtable_Object };",
+			"static const struct vtable vtable_Object_Array = { &vtable_Object };",
+			"",
+			"static void Javali_exception(const char *message, int code) {",
+			"\tprintf(\"%s\", message);",
+			"\texit(code);",
+			"}",
+			"",
+			"static void Javali_null_check(const Object *object) {",
+			"\tif (object == NULL)",
+			"\t\tJavali_exception(\"EXCEPTION: Null pointer.\\n\", 4);",
+			"}",
+			"",
+			"static void Javali_bounds_check(const Object *array, int32_t index) {",
+			"\t/* Negative indices are large unsigned numbers and fail, too */",
+			"\tif ((uint32_t) index >= (uint32_t) ((const struct array *) array)->length)",
+			"\t\tJavali_exception(\"EXCEPTION: Array index out of bounds.\\n\", 3);",
+			"}",
+			"",
+			"static void Javali_check_divisor(int32_t divisor) {",
+			"\tif (divisor == 0)",
+			"\t\tJavali_exception(\"EXCEPTION: Division by zero.\\n\", 8);",
+			"}",
+			"",
+			"/* The quotient of INT32_MIN / -1 overflows, it wraps around */",
+			"static int32_t Javali_div(int32_t left, int32_t right) {",
+			"\treturn right == -1 ? (int32_t) -(uint32_t) left : left / right;",
+			"}",
+			"",
+			"static int32_t Javali_mod(int32_t left, int32_t right) {",
+			"\treturn right == -1 ? 0 : left % right;",
+			"}",
+			"",
+			"/* Walks up the vtables of object until the one of the class cast to,",
+			"   failing at the vtable of Object. null can be cast to any type. */",
+			"static void Javali_cast(const Object *object, const struct vtable *to) {",
+			"\tconst struct vtable *vtable;",
+			"\tif (object == NULL)",
+			"\t\treturn;",
+			"\tfor (vtable = object->vtable; vtable != to; vtable = vtable->super)",
+			"\t\tif (vtable == &vtable_Object)",
+			"\t\t\tJavali_exception(\"EXCEPTION: Invalid cast.\\n\", 1);",
+			"}",
+			"",
+			"static Object *Javali_new_object(size_t size, const struct vtable *vtable) {",
+			"\tObject *object = calloc(1, size);",
+			"\tobject->vtable = vtable;",
+			"\treturn object;",
+			"}",
+			"",
+			"static Object *Javali_new_array(int32_t length, size_t header, size_t element,",
+			"\t\tconst struct vtable *vtable) {",
+			"\tstruct array *array;",
+			"\tif (length < 0)",
+			"\t\tJavali_exception(\"EXCEPTION: Illegal Array Size.\\n\", 5);",
+			"\tarray = calloc(1, header + (size_t) length * element);",
+			"\tarray->vtable = vtable;",
+			"\tarray->length = length;",
+			"\treturn (Object *) array;",
+			"}",
+			"",
+			"static int32_t Javali_read_int(void) {",
+			"\tint value;",
+			"\tif (scanf(\"%d\", &value) != 1)",
+			"\t\treturn 0;",
+			"\treturn value;",
+			"}",
+			"",
+			"static float Javali_read_float(void) {",
+			"\tfloat value;",
+			"\tif (scanf(\"%f\", &value) != 1)",
+			"\t\treturn 0;",
+			"\treturn value;",
+			"}",
+			"",
+		};
+		for (String line : runtime)
+			write(line);
+	}
+
+	/** Emits the vtable of {@code sym} after the ones of its super classes. */
+	private void emitVtable(ClassSymbol sym, Set<String> emitted) {
+		if (sym.name.equals("Object") || !emitted.add(sym.name))
+			return;
+		emitVtable(sym.superClass, emitted);
+		write("static const struct vtable_" + sym.name + " vtable_" + sym.name + " = {");
+		write("\t" + vtable(sym.superClass.name) + ",");
+		for (MethodSymbol method : layout.getMethodsInOrder(sym))
+			write("\t" + method.getClassAst().name + "_" + method.name + ",");
+		write("};");
+		write("static const struct vtable vtable_" + sym.name + "_Array = { &vtable_Object };");
+		write("");
+	}
+
+	private void emitMethod(ClassDecl classDecl, MethodDecl ast) {
+		currentClass = classDecl;
+		currentMethod = ast;
+		lines.clear();
+		indent = "\t";
+		temps = 0;
+		for (Ast decl : ast.decls().children()) {
+			VariableSymbol local = ast.sym.locals.get(((VarDecl) decl).name);
+			line(declaration(local.type, "v_" + local.name) + " = 0;");
+		}
+		sg.visit(ast.body(), null);
+
+		write("static " + signature(ast.sym) + " {");
+		for (String line : lines)
+			write(line);
+		write("}");
+		write("");
+	}
+
+	/**
+	 * The operands of an expression, in the order they are evaluated. An
+	 * operand which reads memory is copied into a temporary before the
+	 * statements of a later operand, as these may change the memory.
+	 */
+	private class Operands {
+		private final List<String> texts = new ArrayList<String>();
+		private final List<String> types = new ArrayList<String>();
+		private final List<Integer> ends = new ArrayList<Integer>();
+
+		String add(Expr ast) {
+			int start = lines.size();
+			String text = eg.visit(ast, null);
+			if (lines.size() > start) {
+				// Insert the copies from the back, so that the positions
+				// of earlier operands stay valid
+				for (int i = texts.size() - 1; i >= 0; i--) {
+					if (!texts.get(i).contains("->"))
+						continue;
+					String temp = "t" + temps++;
+					lines.add(ends.get(i), indent + declaration(types.get(i), temp) + " = "
+							+ texts.get(i) + ";");
+					texts.set(i, temp);
+				}
+			}
+			texts.add(text);
+			types.add(cType(typeOf(ast)));
+			ends.add(lines.size());
+			return text;
+		}
+
+		String get(int i) {
+			return texts.get(i);
+		}
+	}
+
+	private class Statements extends AstVisitor<Void, Void> {
+
+		@Override
+		public Void nop(Nop ast, Void arg) {
+			return null;
+		}
+
+		@Override
+		public Void assign(Assign ast, Void arg) {
+			// Like the assembly, evaluates the value before the target
+			Operands operands = new Operands();
+			operands.add(ast.right());
+			String target;
+			if (ast.left() instanceof Var)
+				target = eg.visit(ast.left(), null);
+			else if (ast.left() instanceof Field) {
+				Field field = (Field) ast.left();
+				operands.add(field.arg());
+				nullCheck(operands.get(1));
+				target = fieldOf(field, operands.get(1));
+			} else {
+				Index index = (Index) ast.left();
+				operands.add(index.left());
+				nullCheck(operands.get(1));
+				operands.add(index.right());
+				target = element(index, operands.get(1), operands.get(2));
+			}
+			line(target + " = " + operands.get(0) + ";");
+			return null;
+		}
+
+		@Override
+		public Void builtInWrite(BuiltInWrite ast, Void arg) {
+			line("printf(\"%d\", " + eg.visit(ast.arg(), null) + ");");
+			return null;
+		}
+
+		@Override
+		public Void builtInWriteFloat(BuiltInWriteFloat ast, Void arg) {
+			line("printf(\"%f\", (double) " + eg.visit(ast.arg(), null) + ");");
+			return null;
+		}
+
+		@Override
+		public Void builtInWriteln(BuiltInWriteln ast, Void arg) {
+			line("putchar('\\n');");
+			return null;
+		}
+
+		@Override
+		public Void ifElse(IfElse ast, Void arg) {
+			line("if (" + unparen(eg.visit(ast.condition(), null)) + ") {");
+			block(ast.then());
+			if (!isEmpty(ast.otherwise())) {
+				line("} else {");
+				block(ast.otherwise());
+			}
+			line("}");
+			return null;
+		}
+
+		@Override
+		public Void whileLoop(WhileLoop ast, Void arg) {
+			// A condition with statements is evaluated at the start of the body
+			int loop = lines.size();
+			line("for (;;) {");
+			String outer = indent;
+			indent += "\t";
+			String condition = eg.visit(ast.condition(), null);
+			if (lines.size() == loop + 1)
+				lines.set(loop, outer + "while (" + unparen(condition) + ") {");
+			else {
+				line("if (!" + paren(condition) + ")");
+				line("\tbreak;");
+			}
+			visit(ast.body(), null);
+			indent = outer;
+			line("}");
+			return null;
+		}
+
+		@Override
+		public Void returnStmt(ReturnStmt ast, Void arg) {
+			if (ast.arg() == null)
+				line("return;");
+			else
+				line("return " + unparen(eg.visit(ast.arg(), null)) + ";");
+			return null;
+		}
+
+		@Override
+		public Void methodCall(MethodCall ast, Void arg) {
+			line(call(ast.receiver(), ast.methodName, ast.argumentsWithoutReceiver()) + ";");
+			return null;
+		}
+
+		@Override
+		public Void varDecl(VarDecl ast, Void arg) {
+			// Declared at the start of the method
+			return null;
+		}
+
+		private void block(Ast ast) {
+			String outer = indent;
+			indent += "\t";
+			visit(ast, null);
+			indent = outer;
+		}
+
+		private boolean isEmpty(Ast ast) {
+			if (ast instanceof Nop)
+				return true;
+			if (!(ast instanceof Seq))
+				return false;
+			for (Ast child : ast.children())
+				if (!isEmpty(child))
+					return false;
+			return true;
+		}
+	}
+
+	/** Returns C expressions, emitting the statements they need first. */
+	private class Expressions extends ExprVisitor<String, Void> {
+
+		@Override
+		public String intConst(IntConst ast, Void arg) {
+			if (ast.value == Integer.MIN_VALUE)
+				return "(-2147483647 - 1)";
+			return ast.value < 0 ? "(" + ast.value + ")" : Integer.toString(ast.value);
+		}
+
+		@Override
+		public String floatConst(FloatConst ast, Void arg) {
+			// Folded constants may not be finite
+			if (Float.isNaN(ast.value))
+				return "NAN";
+			if (Float.isInfinite(ast.value))
+				return ast.value > 0 ? "INFINITY" : "(-INFINITY)";
+			// The shortest decimal which is read as this float
+			String text = Float.toString(ast.value) + "f";
+			return text.startsWith("-") ? "(" + text + ")" : text;
+		}
+
+		@Override
+		public String booleanConst(BooleanConst ast, Void arg) {
+			return ast.value ? "1" : "0";
+		}
+
+		@Override
+		public String nullConst(NullConst ast, Void arg) {
+			return "((Object *) 0)";
+		}
+
+		@Override
+		public String thisRef(ThisRef ast, Void arg) {
+			return "self";
+		}
+
+		@Override
+		public String var(Var ast, Void arg) {
+			// Like the semantic analysis, a name which is no local variable
+			// or parameter is a field
+			if (!currentMethod.sym.locals.containsKey(ast.name) && !isParameter(ast.name))
+				return "((struct class_" + currentClass.name + " *) self)->f_" + ast.name;
+			return "v_" + ast.name;
+		}
+
+		@Override
+		public String field(Field ast, Void arg) {
+			String receiver = visit(ast.arg(), null);
+			nullCheck(receiver);
+			return fieldOf(ast, receiver);
+		}
+
+		@Override
+		public String index(Index ast, Void arg) {
+			Operands operands = new Operands();
+			operands.add(ast.left());
+			nullCheck(operands.get(0));
+			operands.add(ast.right());
+			return element(ast, operands.get(0), operands.get(1));
+		}
+
+		@Override
+		public String cast(Cast ast, Void arg) {
+			String object = visit(ast.arg(), null);
+			// Casts to Object and upcasts always succeed
+			if (ast.typeName.equals("Object"))
+				return object;
+			if (typeOf(ast.arg()) instanceof ClassSymbol)
+				for (ClassSymbol c = (ClassSymbol) typeOf(ast.arg()); c != null; c = c.superClass)
+					if (c.name.equals(ast.typeName))
+						return object;
+			String castToType = ast.typeName;
+			if (castToType.contains("["))
+				castToType = castToType.split("\\[")[0].trim() + "_Array";
+			line("Javali_cast(" + object + ", " + vtable(castToType) + ");");
+			return object;
+		}
+
+		@Override
+		public String binaryOp(BinaryOp ast, Void arg) {
+			if (ast.operator == BOp.B_AND || ast.operator == BOp.B_OR)
+				return shortCircuit(ast);
+
+			Operands operands = new Operands();
+			operands.add(ast.left());
+			operands.add(ast.right());
+			String left = operands.get(0), right = operands.get(1);
+			boolean isFloat = typeOf(ast.left()).name.equals("float");
+			switch (ast.operator) {
+			case B_PLUS:
+			case B_MINUS:
+			case B_TIMES:
+				if (isFloat)
+					return "(float) (" + left + " " + ast.operator.repr + " " + right + ")";
+				// Wraps around on overflow, like the machine
+				return "(int32_t) ((uint32_t) " + left + " " + ast.operator.repr + " (uint32_t) "
+						+ right + ")";
+			case B_DIV:
+				if (isFloat)
+					return "(float) (" + left + " / " + right + ")";
+				line("Javali_check_divisor(" + right + ");");
+				return "Javali_div(" + left + ", " + right + ")";
+			case B_MOD:
+				line("Javali_check_divisor(" + right + ");");
+				return "Javali_mod(" + left + ", " + right + ")";
+			default:
+				return "(" + left + " " + ast.operator.repr + " " + right + ")";
+			}
+		}
+
+		/**
+		 * Evaluates the right operand of && and || only if needed. If it
+		 * needs statements, they go into an if statement.
+		 */
+		private String shortCircuit(BinaryOp ast) {
+			String left = visit(ast.left(), null);
+			int start = lines.size();
+			String outer = indent;
+			indent += "\t";
+			String right = visit(ast.right(), null);
+			indent = outer;
+			if (lines.size() == start)
+				return "(" + left + " " + ast.operator.repr + " " + right + ")";
+
+			List<String> rightLines = new ArrayList<String>(lines.subList(start, lines.size()));
+			lines.subList(start, lines.size()).clear();
+			String result = temp("int32_t", left);
+			line("if (" + (ast.operator == BOp.B_AND ? result : "!" + result) + ") {");
+			lines.addAll(rightLines);
+			line("\t" + result + " = " + unparen(right) + ";");
+			line("}");
+			return result;
+		}
+
+		@Override
+		public String unaryOp(UnaryOp ast, Void arg) {
+			String operand = visit(ast.arg(), null);
+			switch (ast.operator) {
+			case U_MINUS:
+				if (typeOf(ast.arg()).name.equals("float"))
+					return "(-" + operand + ")";
+				return "(int32_t) -(uint32_t) " + operand;
+			case U_BOOL_NOT:
+				return "!" + paren(operand);
+			default:
+				return operand;
+			}
+		}
+
+		@Override
+		public String builtInRead(BuiltInRead ast, Void arg) {
+			return temp("int32_t", "Javali_read_int()");
+		}
+
+		@Override
+		public String builtInReadFloat(BuiltInReadFloat ast, Void arg) {
+			return temp("float", "Javali_read_float()");
+		}
+
+		@Override
+		public String newObject(NewObject ast, Void arg) {
+			return temp("Object *", "Javali_new_object(sizeof(struct class_" + ast.typeName + "), "
+					+ vtable(ast.typeName) + ")");
+		}
+
+		@Override
+		public String newArray(NewArray ast, Void arg) {
+			String length = visit(ast.arg(), null);
+			String elementTypeName = ast.typeName.split("\\[")[0].trim();
+			String struct = "struct " + arrayStruct(elementTypeName);
+			return temp("Object *", "Javali_new_array(" + length + ", sizeof(" + struct + "), sizeof(("
+					+ struct + " *) 0)->data[0], " + vtable(elementTypeName + "_Array") + ")");
+		}
+
+		@Override
+		public String methodCall(MethodCallExpr ast, Void arg) {
+			return temp(cType(ast.type),
+					call(ast.receiver(), ast.methodName, ast.argumentsWithoutReceiver()));
+		}
+	}
+
+	/**
+	 * Returns a call of a method of {@code receiver} through its vtable.
+	 * Like the assembly, the receiver is checked before the arguments are
+	 * evaluated, from the last to the first.
+	 */
+	private String call(Expr receiver, String methodName, List<Expr> arguments) {
+		Operands operands = new Operands();
+		operands.add(receiver);
+		nullCheck(operands.get(0));
+		for (int i = arguments.size() - 1; i >= 0; i--)
+			operands.add(arguments.get(i));
+
+		String object = operands.get(0);
+		StringBuilder call = new StringBuilder();
+		call.append("((const struct vtable_").append(typeOf(receiver).name).append(" *) ")
+				.append(object).append("->vtable)->m_").append(methodName).append("(")
+				.append(object);
+		for (int i = 0; i < arguments.size(); i++)
+			call.append(", ").append(unparen(operands.get(arguments.size() - i)));
+		return call.append(")").toString();
+	}
+
+	private boolean isParameter(String name) {
+		for (VariableSymbol parameter : currentMethod.sym.parameters)
+			if (parameter.name.equals(name))
+				return true;
+		return false;
+	}
+
+	private void nullCheck(String object) {
+		line("Javali_null_check(" + object + ");");
+	}
+
+	/** Returns the field of {@code ast} of {@code object}, once checked. */
+	private String fieldOf(Field ast, String object) {
+		return "((struct class_" + typeOf(ast.arg()).name + " *) " + object + ")->f_" + ast.fieldName;
+	}
+
+	/** Checks the bounds and returns the element of {@code ast}. */
+	private String element(Index ast, String array, String index) {
+		line("Javali_bounds_check(" + array + ", " + unparen(index) + ");");
+		String elementType = typeOf(ast.left()).name.split("\\[")[0].trim();
+		return "((struct " + arrayStruct(elementType) + " *) " + array + ")->data[" + unparen(index)
+				+ "]";
+	}
+
+	/** Declares a temporary with the value of {@code value} and returns it. */
+	private String temp(String type, String value) {
+		String temp = "t" + temps++;
+		line(declaration(type, temp) + " = " + unparen(value) + ";");
+		return temp;
+	}
+
+	private void line(String line) {
+		lines.add(indent + line);
+	}
+
+	private void write(String line) {
+		try {
+			out.write(line);
+			out.write('\n');
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the type of {@code ast}. The semantic analysis gives field
+	 * accesses the type of their receiver, the field has the actual one.
+	 */
+	private static TypeSymbol typeOf(Expr ast) {
+		return ast instanceof Field ? ((Field) ast).sym.type : ast.type;
+	}
+
+	/** Returns the type of {@code field} in the class which declares it first. */
+	private static TypeSymbol fieldType(ClassSymbol sym, String field) {
+		TypeSymbol type = null;
+		for (ClassSymbol c = sym; c != null; c = c.superClass)
+			if (c.fields.containsKey(field))
+				type = c.fields.get(field).type;
+		return type;
+	}
+
+	private static String signature(MethodSymbol method) {
+		return cType(method.returnType) + " " + method.getClassAst().name + "_" + method.name + "("
+				+ parameters(method, true) + ")";
+	}
+
+	private static String parameters(MethodSymbol method, boolean withNames) {
+		StringBuilder parameters = new StringBuilder(withNames ? "Object *self" : "Object *");
+		for (VariableSymbol parameter : method.parameters) {
+			parameters.append(", ");
+			if (withNames)
+				parameters.append(declaration(parameter.type, "v_" + parameter.name));
+			else
+				parameters.append(cType(parameter.type));
+		}
+		return parameters.toString();
+	}
+
+	private static String declaration(TypeSymbol type, String name) {
+		return declaration(cType(type), name);
+	}
+
+	private static String declaration(String type, String name) {
+		return type.endsWith("*") ? type + name : type + " " + name;
+	}
+
+	/** The C type of a Javali type: int32_t, float or a reference. */
+	private static String cType(TypeSymbol type) {
+		// Void methods have no return type
+		if (type == null)
+			return "void";
+		if (type.name.equals("int") || type.name.equals("boolean"))
+			return "int32_t";
+		if (type.name.equals("float") || type.name.equals("void"))
+			return type.name;
+		return "Object *";
+	}
+
+	private static String arrayStruct(String elementType) {
+		if (elementType.equals("int") || elementType.equals("boolean"))
+			return "array_int";
+		if (elementType.equals("float"))
+			return "array_float";
+		return "array_Object";
+	}
+
+	private static String vtable(String name) {
+		return "(const struct vtable *) &vtable_" + name;
+	}
+
+	private static String paren(String expression) {
+		return isParenthesized(expression) || expression.matches("[\\w.]+") ? expression
+				: "(" + expression + ")";
+	}
+
+	private static String unparen(String expression) {
+		return isParenthesized(expression) ? expression.substring(1, expression.length() - 1)
+				: expression;
+	}
+
+	/** True if the whole of {@code expression} is in one pair of parentheses. */
+	private static boolean isParenthesized(String expression) {
+		if (!expression.startsWith("(") || !expression.endsWith(")"))
+			return false;
+		int depth = 0;
+		for (int i = 0; i < expression.length() - 1; i++) {
+			char c = expression.charAt(i);
+			if (c == '(')
+				depth++;
+			else if (c == ')')
+				depth--;
+			if (depth == 0)
+				return false;
+		}
+		return true;
+	}
+}
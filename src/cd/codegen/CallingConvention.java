@@ -0,0 +1,70 @@
+package cd.codegen;
+
+import cd.Config;
+import cd.ir.Ast;
+import cd.ir.Ast.BuiltInRead;
+import cd.ir.Ast.BuiltInReadFloat;
+import cd.ir.Ast.BuiltInWrite;
+import cd.ir.Ast.BuiltInWriteFloat;
+import cd.ir.Ast.BuiltInWriteln;
+import cd.ir.Ast.Cast;
+import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
+import cd.ir.Ast.NewArray;
+import cd.ir.Ast.NewObject;
+
+/**
+ * The calling convention for calls between Javali methods. The receiver
+ * and the first arguments are passed in registers, the remaining ones are
+ * pushed from right to left and removed by the caller as with cdecl. The
+ * result is returned in %eax (%rax).
+ *
+ * Only the stack and base pointer are callee-saved: a caller pushes the
+ * registers it still needs around a call. Calls of the C library and of
+ * the runtime functions emitted by StdLibEmitter and BufferedIoEmitter
+ * keep using the C calling convention.
+ */
+class CallingConvention {
+
+	/** Returns the registers for the receiver and the first arguments. */
+	static String[] argumentRegisters() {
+		if (Config.X64)
+			return new String[] { "%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9" };
+		return new String[] { "%eax", "%edx", "%ecx" };
+	}
+
+	/**
+	 * Returns a register which is not used to pass arguments, for loading
+	 * the method pointer once the arguments are in place.
+	 */
+	static String scratchRegister() {
+		return Config.X64 ? "%rax" : "%ebx";
+	}
+
+	/**
+	 * Returns the registers which the C calling convention expects to be
+	 * preserved, and which main therefore has to save.
+	 */
+	static String[] cCalleeSaved() {
+		if (Config.X64)
+			return new String[] { "%rbx", "%r12", "%r13", "%r14", "%r15" };
+		return new String[] { "%ebx", "%esi", "%edi" };
+	}
+
+	/**
+	 * Returns true if {@code ast} calls nothing, neither a method nor the C
+	 * library nor the runtime, so that registers survive all of it.
+	 */
+	static boolean isLeaf(Ast ast) {
+		if (ast instanceof MethodCall || ast instanceof MethodCallExpr
+				|| ast instanceof NewObject || ast instanceof NewArray
+				|| ast instanceof Cast || ast instanceof BuiltInRead
+				|| ast instanceof BuiltInReadFloat || ast instanceof BuiltInWrite
+				|| ast instanceof BuiltInWriteFloat || ast instanceof BuiltInWriteln)
+			return false;
+		for (Ast child : ast.children())
+			if (child != null && !isLeaf(child))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,325 @@
+package cd.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a JVM class file with the fields and methods added to it. The
+ * class file has version 49, which the JVM verifies by type inference, so
+ * that the code needs no stack map frames.
+ */
+class ClassFileWriter {
+
+	static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_SUPER = 0x0020;
+
+	private static final int VERSION = 49;
+
+	private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_FLOAT = 4,
+			CONSTANT_CLASS = 7, CONSTANT_FIELDREF = 9, CONSTANT_METHODREF = 10,
+			CONSTANT_NAME_AND_TYPE = 12;
+
+	private final String name, superName;
+	private final ByteArrayOutputStream constantBytes = new ByteArrayOutputStream();
+	private final DataOutputStream constants = new DataOutputStream(constantBytes);
+	private final Map<String, Integer> constantIndices = new HashMap<String, Integer>();
+	private int constantCount = 1;
+	private final List<byte[]> fields = new ArrayList<byte[]>();
+	private final List<byte[]> methods = new ArrayList<byte[]>();
+
+	/** A class with the internal names of it and its super class, e.g. java/lang/Object. */
+	ClassFileWriter(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	void addField(int access, String fieldName, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(fieldName));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	/** Adds a method whose code is {@code code}, once it is complete. */
+	void addMethod(int access, String methodName, String descriptor, Code code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(methodName));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + code.length);
+			out.writeShort(code.maxStack);
+			out.writeShort(code.maxLocals);
+			out.writeInt(code.length);
+			out.write(code.bytes, 0, code.length);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			int thisClass = classConstant(name);
+			int superClass = classConstant(superName);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(constantCount);
+			constants.flush();
+			constantBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(fields.size());
+			for (byte[] field : fields)
+				out.write(field);
+			out.writeShort(methods.size());
+			for (byte[] method : methods)
+				out.write(method);
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	// ---------------------------------------------------------------
+	// Constant pool
+
+	private int utf8(String value) {
+		Integer index = constantIndices.get("U" + value);
+		if (index != null)
+			return index;
+		try {
+			constants.writeByte(CONSTANT_UTF8);
+			constants.writeUTF(value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return add("U" + value, 1);
+	}
+
+	int classConstant(String internalName) {
+		Integer index = constantIndices.get("C" + internalName);
+		if (index != null)
+			return index;
+		int nameIndex = utf8(internalName);
+		writeConstant(CONSTANT_CLASS, nameIndex);
+		return add("C" + internalName, 1);
+	}
+
+	int intConstant(int value) {
+		Integer index = constantIndices.get("I" + value);
+		if (index != null)
+			return index;
+		try {
+			constants.writeByte(CONSTANT_INTEGER);
+			constants.writeInt(value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return add("I" + value, 1);
+	}
+
+	int floatConstant(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		Integer index = constantIndices.get("F" + bits);
+		if (index != null)
+			return index;
+		try {
+			constants.writeByte(CONSTANT_FLOAT);
+			constants.writeInt(bits);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return add("F" + bits, 1);
+	}
+
+	int fieldConstant(String owner, String fieldName, String descriptor) {
+		return memberConstant(CONSTANT_FIELDREF, owner, fieldName, descriptor);
+	}
+
+	int methodConstant(String owner, String methodName, String descriptor) {
+		return memberConstant(CONSTANT_METHODREF, owner, methodName, descriptor);
+	}
+
+	private int memberConstant(int tag, String owner, String memberName, String descriptor) {
+		String key = tag + owner + "." + memberName + ":" + descriptor;
+		Integer index = constantIndices.get(key);
+		if (index != null)
+			return index;
+		int classIndex = classConstant(owner);
+		String nameAndTypeKey = "N" + memberName + ":" + descriptor;
+		Integer nameAndType = constantIndices.get(nameAndTypeKey);
+		if (nameAndType == null) {
+			int nameIndex = utf8(memberName);
+			int descriptorIndex = utf8(descriptor);
+			try {
+				constants.writeByte(CONSTANT_NAME_AND_TYPE);
+				constants.writeShort(nameIndex);
+				constants.writeShort(descriptorIndex);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			nameAndType = add(nameAndTypeKey, 1);
+		}
+		try {
+			constants.writeByte(tag);
+			constants.writeShort(classIndex);
+			constants.writeShort(nameAndType);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return add(key, 1);
+	}
+
+	private void writeConstant(int tag, int index) {
+		try {
+			constants.writeByte(tag);
+			constants.writeShort(index);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private int add(String key, int slots) {
+		int index = constantCount;
+		constantCount += slots;
+		if (constantCount > 0xFFFF)
+			throw new RuntimeException("Too many constants in class " + name);
+		constantIndices.put(key, index);
+		return index;
+	}
+
+	// ---------------------------------------------------------------
+	// Code
+
+	/** A position in the code which jumps refer to. */
+	static class Label {
+		private int position = -1;
+		// The jumps to the label before it was placed: the start of the
+		// instruction and of its offset
+		private final List<int[]> jumps = new ArrayList<int[]>();
+	}
+
+	/**
+	 * The bytecode of a method. Each instruction is added with the change
+	 * of the stack depth it causes, from which the maximum depth follows.
+	 */
+	static class Code {
+		private byte[] bytes = new byte[64];
+		private int length;
+		private int depth, maxStack;
+		int maxLocals;
+
+		Code(int locals) {
+			this.maxLocals = locals;
+		}
+
+		/** Reserves a new local variable slot and returns it. */
+		int newLocal() {
+			return maxLocals++;
+		}
+
+		void op(int opcode, int stackChange) {
+			write(opcode);
+			adjust(stackChange);
+		}
+
+		void op1(int opcode, int operand, int stackChange) {
+			write(opcode);
+			write(operand);
+			adjust(stackChange);
+		}
+
+		void op2(int opcode, int operand, int stackChange) {
+			write(opcode);
+			write(operand >> 8);
+			write(operand);
+			adjust(stackChange);
+		}
+
+		/** Loads or stores a local variable, with the wide form if needed. */
+		void local(int opcode, int slot, int stackChange) {
+			if (slot > 0xFF) {
+				write(0xC4); // wide
+				op2(opcode, slot, stackChange);
+			} else
+				op1(opcode, slot, stackChange);
+		}
+
+		void jump(int opcode, Label label, int stackChange) {
+			int start = length;
+			write(opcode);
+			if (label.position >= 0)
+				writeOffset(label.position - start);
+			else {
+				label.jumps.add(new int[] { start, length });
+				write(0);
+				write(0);
+			}
+			adjust(stackChange);
+		}
+
+		void place(Label label) {
+			label.position = length;
+			for (int[] jump : label.jumps) {
+				int end = length;
+				length = jump[1];
+				writeOffset(label.position - jump[0]);
+				length = end;
+			}
+			label.jumps.clear();
+		}
+
+		/** Sets the stack depth after an instruction which does not fall through. */
+		void setDepth(int depth) {
+			this.depth = depth;
+		}
+
+		int depth() {
+			return depth;
+		}
+
+		private void writeOffset(int offset) {
+			if (offset != (short) offset)
+				throw new RuntimeException("Method too large for 16-bit jumps");
+			write(offset >> 8);
+			write(offset);
+		}
+
+		private void adjust(int stackChange) {
+			depth += stackChange;
+			maxStack = Math.max(maxStack, depth);
+		}
+
+		private void write(int b) {
+			if (length == bytes.length) {
+				byte[] larger = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, larger, 0, length);
+				bytes = larger;
+			}
+			bytes[length++] = (byte) b;
+		}
+	}
+}
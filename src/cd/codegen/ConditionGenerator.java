@@ -0,0 +1,160 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+import cd.Config;
+import cd.codegen.InstructionSelector.Operand;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.UnaryOp;
+
+/**
+ * Generates code for the conditions of if and while statements. Instead
+ * of computing a boolean value and testing it, the code jumps directly
+ * to a label: relational operators end in a conditional jump and &&, ||
+ * and ! only decide where the jumps of their operands go.
+ */
+class ConditionGenerator {
+
+	private final AstCodeGenerator acg;
+
+	ConditionGenerator(AstCodeGenerator astCodeGenerator) {
+		this.acg = astCodeGenerator;
+	}
+
+	/**
+	 * Emits code which jumps to {@code label} if {@code cond} evaluates to
+	 * {@code value} and falls through otherwise.
+	 */
+	public void jumpIf(Expr cond, boolean value, String label) {
+		if (cond instanceof BooleanConst) {
+			if (((BooleanConst) cond).value == value)
+				emit("jmp", label);
+		} else if (cond instanceof UnaryOp
+				&& ((UnaryOp) cond).operator == UnaryOp.UOp.U_BOOL_NOT) {
+			jumpIf(((UnaryOp) cond).arg(), !value, label);
+		} else if (cond instanceof BinaryOp) {
+			binaryOp((BinaryOp) cond, value, label);
+		} else {
+			jumpIfValue(cond, value, label);
+		}
+	}
+
+	private void binaryOp(BinaryOp ast, boolean value, String label) {
+		switch (ast.operator) {
+		case B_AND:
+			if (value) {
+				String skipLabel = uniqueLabel();
+				jumpIf(ast.left(), false, skipLabel);
+				jumpIf(ast.right(), true, label);
+				emitLabel(skipLabel);
+			} else {
+				jumpIf(ast.left(), false, label);
+				jumpIf(ast.right(), false, label);
+			}
+			return;
+		case B_OR:
+			if (value) {
+				jumpIf(ast.left(), true, label);
+				jumpIf(ast.right(), true, label);
+			} else {
+				String skipLabel = uniqueLabel();
+				jumpIf(ast.left(), true, skipLabel);
+				jumpIf(ast.right(), false, label);
+				emitLabel(skipLabel);
+			}
+			return;
+		case B_EQUAL:
+		case B_NOT_EQUAL:
+		case B_LESS_THAN:
+		case B_LESS_OR_EQUAL:
+		case B_GREATER_THAN:
+		case B_GREATER_OR_EQUAL:
+			if (!ast.left().type.name.equals("float"))
+				compare(ast, value, label);
+			else if (Config.SSE2)
+				compareFloats(ast, value, label);
+			else
+				jumpIfValue(ast, value, label);
+			return;
+		default:
+			jumpIfValue(ast, value, label);
+		}
+	}
+
+	/** Evaluates a boolean expression and tests the result. */
+	private void jumpIfValue(Expr cond, boolean value, String label) {
+		Operand operand = acg.is.select(cond);
+		emit(w("cmp"), c(0), operand.text);
+		acg.is.release(operand);
+		emit(value ? "jne" : "je", label);
+	}
+
+	/**
+	 * Compares two ints, booleans or references. The right operand is an
+	 * immediate or memory operand where the instruction selector finds one.
+	 */
+	private void compare(BinaryOp ast, boolean value, String label) {
+		InstructionSelector.BinaryOperands operands = acg.is.selectOperands(ast);
+		emit(w("cmp"), operands.right.text, operands.left);
+		acg.registerPool.release(operands.left);
+		acg.is.release(operands.right);
+
+		String jump;
+		switch (operands.operator) {
+		case B_EQUAL:
+			jump = value ? "je" : "jne";
+			break;
+		case B_NOT_EQUAL:
+			jump = value ? "jne" : "je";
+			break;
+		case B_LESS_THAN:
+			jump = value ? "jl" : "jge";
+			break;
+		case B_LESS_OR_EQUAL:
+			jump = value ? "jle" : "jg";
+			break;
+		case B_GREATER_THAN:
+			jump = value ? "jg" : "jle";
+			break;
+		default:
+			jump = value ? "jge" : "jl";
+			break;
+		}
+		emit(jump, label);
+	}
+
+	/**
+	 * Compares two floats with ucomiss, where a < b is compared as b > a.
+	 * The operands stay in xmm registers, see {@link ExprGenerator#genFloat}.
+	 * Unordered operands (NaN) set the parity flag, which makes every
+	 * comparison but != false.
+	 */
+	private void compareFloats(BinaryOp ast, boolean value, String label) {
+		boolean reversed = ast.operator == BinaryOp.BOp.B_LESS_THAN
+				|| ast.operator == BinaryOp.BOp.B_LESS_OR_EQUAL;
+		acg.xmmPool.release(acg.eg.floatOperation("ucomiss", ast.left(), ast.right(), reversed));
+
+		if (ast.operator == BinaryOp.BOp.B_EQUAL || ast.operator == BinaryOp.BOp.B_NOT_EQUAL) {
+			if (value == (ast.operator == BinaryOp.BOp.B_EQUAL)) {
+				// jump if equal and ordered
+				String skipLabel = uniqueLabel();
+				emit("jp", skipLabel);
+				emit("je", label);
+				emitLabel(skipLabel);
+			} else {
+				// jump if not equal or unordered
+				emit("jp", label);
+				emit("jne", label);
+			}
+			return;
+		}
+		boolean orEqual = ast.operator == BinaryOp.BOp.B_GREATER_OR_EQUAL
+				|| ast.operator == BinaryOp.BOp.B_LESS_OR_EQUAL;
+		if (orEqual)
+			emit(value ? "jae" : "jb", label);
+		else
+			emit(value ? "ja" : "jbe", label);
+	}
+
+}
@@ -0,0 +1,274 @@
+package cd.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes an ELF32 relocatable object for the i386 with the sections and
+ * symbols added to it. Relocations have their addend in the relocated
+ * field, as the i386 ABI has it. Besides the sections, the object has a
+ * .note.GNU-stack section, as the code needs no executable stack.
+ */
+class ElfObjectWriter {
+
+	static final int SHT_PROGBITS = 1, SHT_NOBITS = 8;
+	static final int SHF_WRITE = 0x1, SHF_ALLOC = 0x2, SHF_EXECINSTR = 0x4;
+	static final int STT_NOTYPE = 0, STT_OBJECT = 1, STT_FUNC = 2, STT_SECTION = 3;
+	static final int R_386_32 = 1, R_386_PC32 = 2;
+
+	private static final int SHT_SYMTAB = 2, SHT_STRTAB = 3, SHT_REL = 9;
+	private static final int STB_LOCAL = 0, STB_GLOBAL = 1;
+	private static final int EHDR_SIZE = 52, SHDR_SIZE = 40, SYM_SIZE = 16, REL_SIZE = 8;
+
+	/** A section, whose contents grow as code and data are added to it. */
+	static class Section {
+		final String name;
+		final int type, flags;
+		int align = 1;
+		private byte[] bytes = new byte[256];
+		private int size;
+		final List<Relocation> relocations = new ArrayList<Relocation>();
+		/** The symbol which relocations refer to for addresses in this section. */
+		final Symbol symbol;
+		private int index;
+
+		Section(String name, int type, int flags) {
+			this.name = name;
+			this.type = type;
+			this.flags = flags;
+			this.symbol = new Symbol("", STT_SECTION);
+			symbol.section = this;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void emit(int b) {
+			if (type == SHT_NOBITS && b != 0)
+				throw new IllegalStateException("Data in " + name);
+			if (type != SHT_NOBITS) {
+				if (size == bytes.length)
+					bytes = Arrays.copyOf(bytes, 2 * size);
+				bytes[size] = (byte) b;
+			}
+			size++;
+		}
+
+		void emit32(int value) {
+			for (int i = 0; i < 4; i++)
+				emit(value >>> (8 * i));
+		}
+
+		int read32(int offset) {
+			int value = 0;
+			for (int i = 0; i < 4; i++)
+				value |= (bytes[offset + i] & 0xFF) << (8 * i);
+			return value;
+		}
+
+		void patch32(int offset, int value) {
+			for (int i = 0; i < 4; i++)
+				bytes[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	/** A symbol, which is undefined while its section is null. */
+	static class Symbol {
+		final String name;
+		int type;
+		Section section;
+		int value, size;
+		boolean global;
+		private int index;
+
+		Symbol(String name, int type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/** A field at {@code offset} of a section which the linker fills in. */
+	static class Relocation {
+		final int offset, type;
+		final Symbol symbol;
+
+		Relocation(int offset, int type, Symbol symbol) {
+			this.offset = offset;
+			this.type = type;
+			this.symbol = symbol;
+		}
+	}
+
+	private final List<Section> sections = new ArrayList<Section>();
+	private final List<Symbol> symbols = new ArrayList<Symbol>();
+
+	void addSection(Section section) {
+		sections.add(section);
+	}
+
+	void addSymbol(Symbol symbol) {
+		symbols.add(symbol);
+	}
+
+	byte[] toByteArray() {
+		// The symbols: the null symbol, then the local ones, the ones of the
+		// sections first, and then the global ones
+		List<Symbol> table = new ArrayList<Symbol>();
+		table.add(new Symbol("", STT_NOTYPE));
+		for (Section section : sections)
+			table.add(section.symbol);
+		for (Symbol symbol : symbols)
+			if (!symbol.global)
+				table.add(symbol);
+		int firstGlobal = table.size();
+		for (Symbol symbol : symbols)
+			if (symbol.global)
+				table.add(symbol);
+		for (int i = 0; i < table.size(); i++)
+			table.get(i).index = i;
+
+		int count = 1;
+		for (Section section : sections)
+			section.index = count++;
+
+		// The section headers: the null section, the sections, their
+		// relocations and then the symbols, their names and the names of
+		// the sections
+		Bytes names = new Bytes();
+		names.emit(0);
+		Bytes strings = new Bytes();
+		strings.emit(0);
+		Bytes symtab = new Bytes();
+		for (Symbol symbol : table) {
+			symtab.emit32(symbol.name.isEmpty() ? 0 : strings.string(symbol.name));
+			symtab.emit32(symbol.value);
+			symtab.emit32(symbol.size);
+			symtab.emit((symbol.global ? STB_GLOBAL : STB_LOCAL) << 4 | symbol.type);
+			symtab.emit(0);
+			symtab.emit16(symbol.section == null ? 0 : symbol.section.index);
+		}
+
+		List<Section> relocated = new ArrayList<Section>();
+		for (Section section : sections)
+			if (!section.relocations.isEmpty())
+				relocated.add(section);
+		int symtabIndex = count + relocated.size();
+		int sectionCount = symtabIndex + 4;
+
+		Bytes out = new Bytes();
+		Bytes headers = new Bytes();
+		headers.fill(SHDR_SIZE, 0);
+		out.fill(EHDR_SIZE, 0);
+		for (Section section : sections) {
+			out.align(Math.max(section.align, 1));
+			int offset = out.size();
+			if (section.type != SHT_NOBITS)
+				out.write(section.bytes, section.size);
+			header(headers, names.string(section.name), section.type, section.flags, offset,
+					section.size, 0, 0, section.align, 0);
+		}
+		for (Section section : relocated) {
+			out.align(4);
+			int offset = out.size();
+			for (Relocation relocation : section.relocations) {
+				out.emit32(relocation.offset);
+				out.emit32(relocation.symbol.index << 8 | relocation.type);
+			}
+			header(headers, names.string(".rel" + section.name), SHT_REL, 0, offset,
+					section.relocations.size() * REL_SIZE, symtabIndex, section.index, 4, REL_SIZE);
+		}
+		out.align(4);
+		header(headers, names.string(".symtab"), SHT_SYMTAB, 0, out.size(), symtab.size(),
+				symtabIndex + 1, firstGlobal, 4, SYM_SIZE);
+		symtab.writeTo(out);
+		header(headers, names.string(".strtab"), SHT_STRTAB, 0, out.size(), strings.size(), 0, 0, 1, 0);
+		strings.writeTo(out);
+		header(headers, names.string(".note.GNU-stack"), SHT_PROGBITS, 0, out.size(), 0, 0, 0, 1, 0);
+		int shstrtabName = names.string(".shstrtab");
+		header(headers, shstrtabName, SHT_STRTAB, 0, out.size(), names.size(), 0, 0, 1, 0);
+		names.writeTo(out);
+		out.align(4);
+		int headerOffset = out.size();
+		headers.writeTo(out);
+
+		// The ELF header
+		byte[] ident = { 0x7F, 'E', 'L', 'F', 1 /* 32 bit */, 1 /* little endian */, 1 /* version */ };
+		for (int i = 0; i < ident.length; i++)
+			out.patch8(i, ident[i]);
+		out.patch16(16, 1); // relocatable
+		out.patch16(18, 3); // i386
+		out.patch32(20, 1); // version
+		out.patch32(32, headerOffset);
+		out.patch16(40, EHDR_SIZE);
+		out.patch16(46, SHDR_SIZE);
+		out.patch16(48, sectionCount);
+		out.patch16(50, sectionCount - 1); // .shstrtab
+		return out.toByteArray();
+	}
+
+	private static void header(Bytes headers, int name, int type, int flags, int offset, int size,
+			int link, int info, int align, int entrySize) {
+		for (int field : new int[] { name, type, flags, 0, offset, size, link, info, align, entrySize })
+			headers.emit32(field);
+	}
+
+	/** Little-endian bytes. */
+	private static class Bytes extends ByteArrayOutputStream {
+		void emit(int b) {
+			write(b);
+		}
+
+		void emit16(int value) {
+			write(value);
+			write(value >>> 8);
+		}
+
+		void emit32(int value) {
+			emit16(value);
+			emit16(value >>> 16);
+		}
+
+		void fill(int count, int b) {
+			for (int i = 0; i < count; i++)
+				write(b);
+		}
+
+		void align(int alignment) {
+			fill((alignment - size() % alignment) % alignment, 0);
+		}
+
+		void write(byte[] bytes, int length) {
+			write(bytes, 0, length);
+		}
+
+		void writeTo(Bytes out) {
+			out.write(buf, count);
+		}
+
+		void patch8(int offset, int value) {
+			buf[offset] = (byte) value;
+		}
+
+		void patch16(int offset, int value) {
+			patch8(offset, value);
+			patch8(offset + 1, value >>> 8);
+		}
+
+		void patch32(int offset, int value) {
+			patch16(offset, value);
+			patch16(offset + 2, value >>> 16);
+		}
+
+		/** Adds {@code s} to this string table and returns its offset. */
+		int string(String s) {
+			int offset = size();
+			byte[] bytes = s.getBytes();
+			write(bytes, bytes.length);
+			write(0);
+			return offset;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package cd.codegen;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -22,11 +23,15 @@ import cd.ir.Ast.MethodCallExpr;
 import cd.ir.Ast.NewArray;
 import cd.ir.Ast.NewObject;
 import cd.ir.Ast.NullConst;
+import cd.ir.Ast.ReturnStmt;
 import cd.ir.Ast.ThisRef;
 import cd.ir.Ast.UnaryOp;
 import cd.ir.Ast.Var;
 import cd.ir.Symbol.ClassSymbol;
+import cd.ir.Symbol.MethodSymbol;
 import cd.ir.Symbol.TypeSymbol;
+import cd.codegen.AstCodeGenerator.ClassOffsets;
+import cd.codegen.InstructionSelector.Operand;
 import static cd.codegen.AssemblerHelper.*;
 
 /**
@@ -35,6 +40,9 @@ import static cd.codegen.AssemblerHelper.*;
  */
 class ExprGenerator extends ExprVisitor<String, Void> {
 
+	/** The number of nodes of the largest expression to inline. */
+	private static final int MAX_INLINED_SIZE = 16;
+
 	/**
 	 * 
 	 */
@@ -66,26 +74,33 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 
 	@Override
 	public String binaryOp(BinaryOp ast, Void arg) {
+		if (Config.SREDUCE) {
+			String reduced = acg.sr.reduce(ast);
+			if (reduced != null)
+				return reduced;
+		}
+		boolean isFloatOperation = ast.left().type.name.equals("float");
+		if (!isFloatOperation && ast.operator != BinaryOp.BOp.B_AND
+				&& ast.operator != BinaryOp.BOp.B_OR)
+			return intBinaryOp(ast);
+		if (isFloatOperation && Config.SSE2)
+			return sseBinaryOp(ast);
+
 		// Always evaluate in left to right order
 		String regLeft = visit(ast.left(), arg);
-		boolean isFloatOperation = ast.left().type.name.equals("float");
 
 		String shortCircuitLabel = emitShortCircuiting(ast, regLeft);
 
 		// Always push registers when not needed, register spilling
-		emit("pushl", regLeft);
+		emitPush(regLeft);
 		acg.registerPool.release(regLeft);
 		String regRight = visit(ast.right(), arg);
-		emit("pushl", regRight);
+		emitPush(regRight);
 		acg.registerPool.release(regRight);
-		String rhs = o(0, "%esp");
+		String rhs = o(0, SP);
 		regLeft = acg.registerPool.reserve(regLeft); // Re-reserve regLeft
-		emitLoad(4, "%esp", regLeft);
+		emitLoad(Config.SIZEOF_PTR, SP, regLeft);
 		
-		// Register of the least significant byte of
-		// regLeft. Needed for zero-extending in boolean
-		// operations.
-		String byteReg = "%" + regLeft.charAt(2) + "l";
 		boolean performedFloatOp = false;
 		
 		if (isFloatOperation){
@@ -102,83 +117,70 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 			if (isFloatOperation) {
 				emit("faddp");
 				performedFloatOp = true;
-			} else
-				emit("addl", rhs, regLeft);
+			} else {
+				emit(w("add"), rhs, regLeft);
+				emitSignExtend(regLeft);
+			}
 			break;
 		case B_MINUS:
 			if (isFloatOperation) {
 				emit("fsubp");
 				performedFloatOp = true;
-			} else
-				emit("subl", rhs, regLeft);
+			} else {
+				emit(w("sub"), rhs, regLeft);
+				emitSignExtend(regLeft);
+			}
 			break;
 		case B_TIMES:
 			if (isFloatOperation) {
 				emit("fmulp");
 				performedFloatOp = true;
-			} else
-				emit("imull", rhs, regLeft);
+			} else {
+				emit(w("imul"), rhs, regLeft);
+				emitSignExtend(regLeft);
+			}
 			break;
 		case B_DIV:
 			if (isFloatOperation) {
 				emit("fdivp");
 				performedFloatOp = true;
-			} else {
-				emit("cmpl", c(0), rhs);
-				emit("je", StdLibEmitter.DIVISION_BY_ZERO_EXCEPTION);
-				emit("pushl", "%eax");
-				emitMove(regLeft, "%eax");
-				emit("cltd");
-				emit("idivl", rhs);
-				emitMove("%eax", regLeft);
-				emit("popl", "%eax");
-			}
+			} else
+				emitDivision(regLeft, rhs, false);
 			break;
 		case B_MOD:
-			emit("pushl", "%eax");
-			emitMove(regLeft, "%eax");
-			emit("cltd");
-			emit("idivl", rhs);
-			emitMove("%edx", regLeft);
-			emit("popl", "%eax");
+			emitDivision(regLeft, rhs, true);
 			break;
 		case B_AND:
 			// Perform AND
-			emit("andl", rhs, regLeft);
+			emit(w("and"), rhs, regLeft);
 			break;
 		case B_OR:
 			// Perform OR
-			emit("orl", rhs, regLeft);
+			emit(w("or"), rhs, regLeft);
 			break;
 		case B_EQUAL:
-			emit("cmpl", rhs, regLeft);
-			emit("sete", byteReg);
-			emit("movzx", byteReg, regLeft);
+			emit(w("cmp"), rhs, regLeft);
+			emitSetCondition("e", regLeft);
 			break;
 		case B_NOT_EQUAL:
-			emit("cmpl", rhs, regLeft);
-			emit("setne", byteReg);
-			emit("movzx", byteReg, regLeft);
+			emit(w("cmp"), rhs, regLeft);
+			emitSetCondition("ne", regLeft);
 			break;
 		case B_GREATER_OR_EQUAL:
-			emit("cmpl", rhs, regLeft);
-			emit("setge", byteReg);
-			emit("movzx", byteReg, regLeft);
+			emit(w("cmp"), rhs, regLeft);
+			emitSetCondition("ge", regLeft);
 			break;
 		case B_GREATER_THAN:
-			emit("cmpl", rhs, regLeft);
-			emit("setg", byteReg);
-			emit("movzx", byteReg, regLeft);
+			emit(w("cmp"), rhs, regLeft);
+			emitSetCondition("g", regLeft);
 			break;
 		case B_LESS_OR_EQUAL:
-			emit("cmpl", rhs, regLeft);
-			emit("setle", byteReg);
-			emit("movzx", byteReg, regLeft);
+			emit(w("cmp"), rhs, regLeft);
+			emitSetCondition("le", regLeft);
 			break;
 		case B_LESS_THAN:
-			emit("cmpl", rhs, regLeft);
-			emit("setl", byteReg);
-			emit("movzx", byteReg, regLeft);
+			emit(w("cmp"), rhs, regLeft);
+			emitSetCondition("l", regLeft);
 			break;
 		default:
 			break;
@@ -191,13 +193,262 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 			// FPU loading required an extra pushed value.
 			emitDeallocation(12);
 		} else {
-			emitDeallocation(8);
+			emitDeallocation(2 * Config.SIZEOF_PTR);
 		}
 		// Jump here if the operation could short circuit.
 		emitLabel(shortCircuitLabel);
 		return regLeft;
 	}
 
+	/**
+	 * Emits an int, boolean or reference operation. The right operand is
+	 * folded into the instruction where the instruction selector finds an
+	 * immediate or memory operand for it.
+	 */
+	private String intBinaryOp(BinaryOp ast) {
+		InstructionSelector.BinaryOperands operands = acg.is.selectOperands(ast);
+		String reg = operands.left;
+		Operand rhs = operands.right;
+		switch (operands.operator) {
+		case B_PLUS:
+			emit(w("add"), rhs.text, reg);
+			emitSignExtend(reg);
+			break;
+		case B_MINUS:
+			emit(w("sub"), rhs.text, reg);
+			emitSignExtend(reg);
+			break;
+		case B_TIMES:
+			emit(w("imul"), rhs.text, reg);
+			emitSignExtend(reg);
+			break;
+		case B_DIV:
+		case B_MOD:
+			// idivl takes no immediate and needs %eax and %edx, so the
+			// divisor goes to the stack
+			emitPush(rhs.text);
+			acg.is.release(rhs);
+			emitDivision(reg, o(0, SP), operands.operator == BinaryOp.BOp.B_MOD);
+			emitDeallocation(Config.SIZEOF_PTR);
+			return reg;
+		default:
+			emit(w("cmp"), rhs.text, reg);
+			emitSetCondition(InstructionSelector.condition(operands.operator), reg);
+			break;
+		}
+		acg.is.release(rhs);
+		return reg;
+	}
+
+	/**
+	 * Sets {@code reg} to 1 if the condition code {@code cc} holds and to 0
+	 * otherwise. Registers without a byte register are set with a branch
+	 * instead, mov leaves the flags alone.
+	 */
+	private void emitSetCondition(String cc, String reg) {
+		String byteReg = byteReg(reg);
+		if (byteReg != null) {
+			emit("set" + cc, byteReg);
+			emit(w("movzb"), byteReg, reg);
+			return;
+		}
+		String endLabel = uniqueLabel();
+		emitMove(c(1), reg);
+		emit("j" + cc, endLabel);
+		emitMove(c(0), reg);
+		emitLabel(endLabel);
+	}
+
+	/**
+	 * Divides {@code regLeft} by the spilled right operand with idivl and
+	 * leaves the quotient or remainder in {@code regLeft}. %eax and %edx are
+	 * saved if they hold other values.
+	 */
+	private void emitDivision(String regLeft, String rhs, boolean remainder) {
+		emit(w("cmp"), c(0), rhs);
+		emit("je", StdLibEmitter.DIVISION_BY_ZERO_EXCEPTION);
+		List<String> saved = new ArrayList<String>();
+		for (String reg : new String[] { AX, DX })
+			if (!reg.equals(regLeft) && acg.registerPool.isInUse(reg)) {
+				emitPush(reg);
+				saved.add(reg);
+			}
+		String divisor = o(saved.size() * Config.SIZEOF_PTR, SP);
+		emitMove(regLeft, AX);
+		emit("cltd");
+		emit("idivl", divisor);
+		emitMove(remainder ? DX : AX, regLeft);
+		emitSignExtend(regLeft);
+		for (int i = saved.size() - 1; i >= 0; i--)
+			emitPop(saved.get(i));
+	}
+
+	/**
+	 * Emits a float operation using SSE2 scalar instructions. The result of
+	 * arithmetic is computed in an xmm register, see {@link #genFloat}, and
+	 * only moved into a general register here, where its value is needed.
+	 */
+	private String sseBinaryOp(BinaryOp ast) {
+		switch (ast.operator) {
+		case B_EQUAL:
+			return sseCompare(ast, "jne", false);
+		case B_NOT_EQUAL:
+			return sseCompare(ast, "jne", true);
+		case B_GREATER_THAN:
+			return sseCompare(ast, "jbe", false);
+		case B_GREATER_OR_EQUAL:
+			return sseCompare(ast, "jb", false);
+		case B_LESS_THAN:
+			return sseCompare(ast, "jbe", false);
+		case B_LESS_OR_EQUAL:
+			return sseCompare(ast, "jb", false);
+		default:
+			String xmm = genFloat(ast);
+			String reg = acg.registerPool.reserve();
+			emit("movd", xmm, reg);
+			acg.xmmPool.release(xmm);
+			return reg;
+		}
+	}
+
+	/**
+	 * Compares two floats with ucomiss and returns a register with 0 if
+	 * {@code jumpFalse} is taken and 1 otherwise ({@code negate} swaps the
+	 * two). a < b is compared as b > a. Unordered operands (NaN) set CF, PF
+	 * and ZF, so they are false for the ordered conditions; for == they are
+	 * caught by the parity flag.
+	 */
+	private String sseCompare(BinaryOp ast, String jumpFalse, boolean negate) {
+		boolean reversed = ast.operator == BinaryOp.BOp.B_LESS_THAN
+				|| ast.operator == BinaryOp.BOp.B_LESS_OR_EQUAL;
+		acg.xmmPool.release(floatOperation("ucomiss", ast.left(), ast.right(), reversed));
+		String reg = acg.registerPool.reserve();
+		String endLabel = uniqueLabel();
+		emitMove(c(negate ? 1 : 0), reg);
+		emit(jumpFalse, endLabel);
+		if (jumpFalse.equals("jne"))
+			emit("jp", endLabel);
+		emitMove(c(negate ? 0 : 1), reg);
+		emitLabel(endLabel);
+		return reg;
+	}
+
+	/**
+	 * Returns whether {@link #genFloat} computes {@code ast} in xmm
+	 * registers, instead of loading a value from elsewhere.
+	 */
+	static boolean isFloatComputation(Expr ast) {
+		return Config.SSE2 && ast.type != null && ast.type.name.equals("float")
+				&& (ast instanceof BinaryOp || ast instanceof UnaryOp);
+	}
+
+	/**
+	 * Evaluates a float into a register of the xmm pool with SSE2 and
+	 * returns it. Operations keep their operands in xmm registers, other
+	 * values are loaded from where the instruction selector finds them.
+	 */
+	String genFloat(Expr ast) {
+		if (!isFloatComputation(ast))
+			return loadFloat(acg.is.select(ast));
+		if (ast instanceof UnaryOp) {
+			UnaryOp op = (UnaryOp) ast;
+			String xmm = genFloat(op.arg());
+			if (op.operator == UnaryOp.UOp.U_MINUS) {
+				// Flip the sign bit with a mask of all ones shifted left
+				String mask = acg.xmmPool.reserve();
+				emit("pcmpeqd", mask, mask);
+				emit("pslld", c(31), mask);
+				emit("xorps", mask, xmm);
+				acg.xmmPool.release(mask);
+			}
+			return xmm;
+		}
+		BinaryOp op = (BinaryOp) ast;
+		switch (op.operator) {
+		case B_PLUS:
+			return floatOperation("addss", op.left(), op.right(), false);
+		case B_MINUS:
+			return floatOperation("subss", op.left(), op.right(), false);
+		case B_TIMES:
+			return floatOperation("mulss", op.left(), op.right(), false);
+		case B_DIV:
+			return floatOperation("divss", op.left(), op.right(), false);
+		default:
+			throw new RuntimeException("Unsupported float operator " + op.operator);
+		}
+	}
+
+	/**
+	 * Emits the SSE2 instruction {@code op} on two floats and returns the
+	 * xmm register of its result. The left operand is computed into an xmm
+	 * register, and a right operand in memory is folded into the
+	 * instruction. With {@code reversed}, the right operand is computed into
+	 * the destination instead, e.g. to compare b with a by ucomiss. The left
+	 * operand is only spilled if the right one could run out of xmm
+	 * registers otherwise.
+	 */
+	String floatOperation(String op, Expr left, Expr right, boolean reversed) {
+		String dest = genFloat(left);
+		boolean spill = xmmNeeded(right) > acg.xmmPool.available();
+		if (spill) {
+			emitPush(dest);
+			acg.xmmPool.release(dest);
+		}
+		Operand operand = isFloatComputation(right) ? null : acg.is.select(right);
+		String src = null;
+		if (operand == null)
+			src = genFloat(right);
+		else if (!operand.isMemory() || reversed)
+			src = loadFloat(operand);
+		if (spill) {
+			dest = acg.xmmPool.reserve();
+			emitPop(dest);
+		}
+		if (src == null) {
+			emit(op, operand.text, dest);
+			acg.is.release(operand);
+			return dest;
+		}
+		if (reversed) {
+			emit(op, dest, src);
+			acg.xmmPool.release(dest);
+			return src;
+		}
+		emit(op, src, dest);
+		acg.xmmPool.release(src);
+		return dest;
+	}
+
+	/** Moves a float operand into a new xmm register and returns it. */
+	private String loadFloat(Operand operand) {
+		String xmm = acg.xmmPool.reserve();
+		if (operand.text.equals(c(0)))
+			emit("xorps", xmm, xmm);
+		else if (operand.isImmediate() && acg.registerPool.available() > 0) {
+			// SSE2 has no immediates
+			String reg = acg.registerPool.reserve();
+			emitMove(operand.text, reg);
+			emit("movd", reg, xmm);
+			acg.registerPool.release(reg);
+		} else if (operand.isImmediate()) {
+			emitPush(operand.text);
+			emitPop(xmm);
+		} else
+			emit(operand.isMemory() ? "movss" : "movd", operand.text, xmm);
+		acg.is.release(operand);
+		return xmm;
+	}
+
+	/** Returns the number of xmm registers {@link #genFloat} uses for {@code ast}. */
+	private static int xmmNeeded(Expr ast) {
+		if (!isFloatComputation(ast))
+			return 1;
+		if (ast instanceof UnaryOp)
+			return Math.max(xmmNeeded(((UnaryOp) ast).arg()), 2);
+		BinaryOp op = (BinaryOp) ast;
+		return Math.max(xmmNeeded(op.left()), xmmNeeded(op.right()) + 1);
+	}
+
 	/**
 	 * Emits code for short circuiting.
 	 * @param ast The BinaryOp Ast.
@@ -211,13 +462,13 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 			case B_AND:
 				//If lhs is false, jump out of calculation
 				//immediately and return false.
-				emit("cmpl", c(0), register);
+				emit(w("cmp"), c(0), register);
 				emit("je", shortCircuitLabel);
 				break;
 			case B_OR:
 				//If lhs is true, jump out of calculation
 				//immediately and return false.
-				emit("cmpl", c(0), register);
+				emit(w("cmp"), c(0), register);
 				emit("jne", shortCircuitLabel);
 				break;
 			default:
@@ -246,16 +497,34 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 	}
 
 	private String emitBuiltInReadCall(String formatStringName) {
+		List<String> saved = saveRegisters();
+		if (Config.BUFFERED_IO) {
+			boolean isFloat = formatStringName.equals("float_format_string");
+			emit("call", isFloat ? BufferedIoEmitter.READ_FLOAT : BufferedIoEmitter.READ_INT);
+			String reg = acg.registerPool.reserve();
+			emitMove(AX, reg);
+			restoreRegisters(saved);
+			return reg;
+		}
 		// allocate memory for return value
-		emitAllocation(4);
+		emitAllocation(Config.SIZEOF_PTR);
 		// call function
-		emit("pushl", "%esp");
-		emit("pushl", c(formatStringName));
-		emit("call", Config.SCANF);
-		emitDeallocation(8);
+		if (Config.X64) {
+			emitMove(SP, "%rsi");
+			emitLoadAddress(formatStringName, "%rdi");
+			emitLibCall(Config.SCANF, 0);
+		} else {
+			emit("pushl", "%esp");
+			emit("pushl", c(formatStringName));
+			emitLibCall(Config.SCANF, 0);
+			emitDeallocation(8);
+		}
 
 		String addressReg = acg.registerPool.reserve();
-		emitLoad(0, "%esp", addressReg); // Convert pointer to value
+		emitLoad(0, SP, addressReg); // Convert pointer to value
+		emitSignExtend(addressReg);
+		emitDeallocation(Config.SIZEOF_PTR);
+		restoreRegisters(saved);
 		// move result from memory to register
 		return addressReg;
 	}
@@ -284,19 +553,19 @@ class ExprGenerator extends ExprVisitor<String, Void> {
         }
         
         // Call helper to verify correct downcast.
-        emit("pushl", o(0, fromInstanceAddrReg)); // Push address to vTable of From Class as argument
-		emit("pushl", String.format("$vtable_%s", castToType)); // Push address of vTable of To Class as argument
+		List<String> saved = saveRegisters();
+        emitPush(o(0, fromInstanceAddrReg)); // Push address to vTable of From Class as argument
+		emitPushAddress("vtable_" + castToType); // Push address of vTable of To Class as argument
 		emit("call", "CastValidate");
-		emitDeallocation(8);
+		emitDeallocation(2 * Config.SIZEOF_PTR);
+		restoreRegisters(saved);
         
 		return fromInstanceAddrReg;
 	}
 
 	@Override
 	public String index(Index ast, Void arg) {
-		String indexAddrReg = acg.av.visit(ast, arg);
-		emitLoad(0, indexAddrReg, indexAddrReg);
-		return indexAddrReg;
+		return acg.is.toRegister(acg.is.index(ast, arg));
 	}
 
 	@Override
@@ -318,11 +587,7 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 
 	@Override
 	public String field(Field ast, Void arg) {
-		// For the sake of nicer Java code, getting the value can be seen as a special
-		// case of getting the address of the field, and then loading it.
-		String fieldAddrReg = acg.av.field(ast, arg);
-		emitLoad(0, fieldAddrReg, fieldAddrReg);
-		return fieldAddrReg;
+		return acg.is.toRegister(acg.is.field(ast, arg));
 	}
 
 	@Override
@@ -332,21 +597,21 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 		emitComment("Calculate byte length of array from element length");
 
 		// Jump if negative array size. Size 0 is supported.
-		emit("cmpl", c(0), lengthReg);
+		emit(w("cmp"), c(0), lengthReg);
 		emit("jl", StdLibEmitter.ILLEGAL_ARRAY_SIZE_EXCEPTION);
 
 		// Calculate the required length it bytes and allocate it on the heap it.
 		emitMove(lengthReg, byteLengthReg);
-		emit("imull", c(4), byteLengthReg);
+		emit(w("imul"), c(Config.SIZEOF_PTR), byteLengthReg);
 		// Add space for vtable and capacity
-		emit("addl", c(8), byteLengthReg);
-		String arrReg = allocateMemory(byteLengthReg);
+		emit(w("add"), c(2 * Config.SIZEOF_PTR), byteLengthReg);
+		String arrReg = allocateMemory(ast, byteLengthReg);
 
 		// Arrays has a pointer to its vtable as its first element
 		String elementTypeName = ast.typeName.split("\\[")[0].trim();
-		emitMove(c("vtable_" + elementTypeName + "_Array"), o(0, arrReg));
+		emitStoreAddress("vtable_" + elementTypeName + "_Array", 0, arrReg);
 		// Arrays has a capacity field as its second element.
-		emitStore(lengthReg, 4, arrReg);
+		emitStore(lengthReg, Config.SIZEOF_PTR, arrReg);
 
 		acg.registerPool.release(byteLengthReg);
 		acg.registerPool.release(lengthReg);
@@ -354,18 +619,23 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 	}
 
 	/*
-	 * Allocates memory using malloc and then returns the register
-	 * containing the memory address.
+	 * Allocates memory for the object or array of {@code ast} using malloc
+	 * and then returns the register containing the memory address.
 	 */
-	private String allocateMemory(String byteSizeRegister) {
-		boolean pushEax = pushEax();
-		emit("pushl", byteSizeRegister);
-		emit("call", Config.MALLOC);
-		emitDeallocation(4); // Remove argument
+	private String allocateMemory(Expr ast, String byteSizeRegister) {
+		acg.ap.emitCount(ast, byteSizeRegister);
+		List<String> saved = saveRegisters();
+		if (Config.X64) {
+			emitMove(byteSizeRegister, "%rdi");
+			emitLibCall(Config.MALLOC, 0);
+		} else {
+			emit("pushl", byteSizeRegister);
+			emitLibCall(Config.MALLOC, 0);
+			emitDeallocation(4); // Remove argument
+		}
 		String addrReg = acg.registerPool.reserve();
-		emitMove("%eax", addrReg);
-		if (pushEax)
-			restoreEax();
+		emitMove(AX, addrReg);
+		restoreRegisters(saved);
 		return addrReg;
 	}
 
@@ -375,10 +645,10 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 		// all fields.
 		Collection<String> fieldInstanceTable = acg.getClassOffsets(ast.typeName).getFields();
 		emitComment("Creating object of type " + ast.typeName);
-		String objectReg = allocateMemory(c(4 + fieldInstanceTable.size() * 4));
+		String objectReg = allocateMemory(ast, c((1 + fieldInstanceTable.size()) * Config.SIZEOF_PTR));
 
 		// Set vtable pointer as its first element.
-		emitStore(c("vtable_" + ast.typeName), 0, objectReg);
+		emitStoreAddress("vtable_" + ast.typeName, 0, objectReg);
 		return objectReg;
 	}
 
@@ -392,50 +662,162 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 
 	@Override
 	public String thisRef(ThisRef ast, Void arg) {
-		// A reference to this is always set as the first argument in the method.
-		int thisOffset = acg.currentClass.getLocal(acg.currentMethod, "this");
-		String receiverReg = acg.registerPool.reserve();
-		emitLoad(thisOffset, "%ebp", receiverReg);
-		return receiverReg;
+		return acg.is.toRegister(acg.is.thisRef(ast, arg));
 	}
 
 	@Override
 	public String methodCall(MethodCallExpr ast, Void dummy) {
-		boolean pushEax = pushEax();
-		String methodAddressRegister = getMethodPointer(ast);
-		List<Expr> args = ast.allArguments();
-		
-		for (int i = args.size() - 1; i >= 0; i--) {
-			Expr arg = args.get(i);
-			String reg = acg.eg.visit(arg, dummy);
-			emit("pushl", reg);
-			acg.registerPool.release(reg);
-		}
-		emit("call", "*" + methodAddressRegister);
+		List<String> saved = saveRegisters();
+		int stackArgs = emitArguments(ast);
+		emitLoad(stackArgs * Config.SIZEOF_PTR, SP, CallingConvention.argumentRegisters()[0]);
+		String method = methodPointer(ast);
+		String receiverClass = acg.profile.dominantReceiver(acg.profile.site(ast));
+		// Ignore the profile of another version of the program
+		if (receiverClass != null && acg.getSubclasses(ast.receiver().type.name).contains(receiverClass)) {
+			// Devirtualize the call for the class nearly all receivers had
+			// while profiling, guarded by a compare of the vtable
+			String virtualCall = uniqueLabel();
+			String end = uniqueLabel();
+			MethodSymbol target = acg.getClassSymbol(receiverClass).getMethod(ast.methodName);
+			emitCompareAddress("vtable_" + receiverClass, CallingConvention.scratchRegister());
+			emit("jne", virtualCall);
+			if (!emitInlined(target, stackArgs, saved))
+				emit("call", target.getClassAst().name + "_" + target.name);
+			emit("jmp", end);
+			emitLabel(virtualCall);
+			emit("call", "*" + method);
+			emitLabel(end);
+		} else
+			emit("call", "*" + method);
+		// Remove the stack arguments and the receiver below them
+		emitDeallocation((stackArgs + 1) * Config.SIZEOF_PTR);
+
+		String resultReg = acg.registerPool.reserve();
+		emitMove(AX, resultReg);
+		restoreRegisters(saved);
+		return resultReg;
+	}
 
-		emitDeallocation(args.size() * 4);
-		emitMove("%eax", methodAddressRegister);
+	/**
+	 * Evaluates the body of {@code method} in place of calling it, if it is
+	 * no larger than {@link #MAX_INLINED_SIZE} nodes and only returns an
+	 * expression which calls nothing. Like a frameless method, it finds the
+	 * receiver and arguments in their registers. The registers reserved by
+	 * the caller have been saved around the call and are free meanwhile.
+	 * Returns false without emitting anything otherwise.
+	 */
+	private boolean emitInlined(MethodSymbol method, int stackArgs, List<String> saved) {
+		List<Ast> body = method.ast.body().children();
+		if (stackArgs > 0 || !method.ast.decls().children().isEmpty()
+				|| !acg.variableRegisters.isEmpty())
+			return false;
+		if (body.isEmpty())
+			return true;
+		if (body.size() != 1 || !(body.get(0) instanceof ReturnStmt))
+			return false;
+		Expr result = ((ReturnStmt) body.get(0)).arg();
+		if (result == null || !CallingConvention.isLeaf(result) || size(result) > MAX_INLINED_SIZE
+				|| acg.rnv.calc(result) + method.parameters.size() + 1 > acg.registerPool.size())
+			return false;
+
+		emitComment("Inlined " + method.getClassAst().name + "." + method.name);
+		for (String reg : saved)
+			(isXmm(reg) ? acg.xmmPool : acg.registerPool).release(reg);
+		ClassOffsets caller = acg.currentClass;
+		String callerMethod = acg.currentMethod;
+		acg.currentClass = acg.getClassOffsets(method.getClassAst().name);
+		acg.currentMethod = method.name;
+		String[] argumentRegisters = CallingConvention.argumentRegisters();
+		acg.variableRegisters.put("this", acg.registerPool.reserve(argumentRegisters[0]));
+		for (int i = 0; i < method.parameters.size(); i++)
+			acg.variableRegisters.put(method.parameters.get(i).name,
+					acg.registerPool.reserve(argumentRegisters[i + 1]));
+
+		Operand value = acg.is.select(result);
+		emitMove(value.text, AX);
+		acg.is.release(value);
+
+		for (String reg : acg.variableRegisters.values())
+			acg.registerPool.release(reg);
+		acg.variableRegisters.clear();
+		acg.currentClass = caller;
+		acg.currentMethod = callerMethod;
+		for (String reg : saved)
+			(isXmm(reg) ? acg.xmmPool : acg.registerPool).reserve(reg);
+		return true;
+	}
 
-		if(pushEax) restoreEax();
-		return methodAddressRegister;
+	/** Returns the number of nodes of an expression. */
+	private static int size(Ast ast) {
+		int size = 1;
+		for (Ast child : ast.children())
+			size += size(child);
+		return size;
 	}
 
-	private String getMethodPointer(MethodCallExpr ast) {
-		// Loads the pointer of the method from the receivers vtable and returns it.
-		Ast.Expr rcvr = ast.receiver();
-		TypeSymbol type = rcvr.type; //Resolve static type of receiver
-		String className = type.name;
-		String receiverReg = visit(rcvr, null);
-		// Check that you are not trying to call a method on a null pointer
-		emit("cmpl", c(0), receiverReg);
-		emit("je", StdLibEmitter.NULL_POINTER_EXCEPTION);
+	/**
+	 * Evaluates the receiver of a call, which is checked for null, and then
+	 * its arguments from right to left. The first arguments are left in
+	 * their registers as defined by {@link CallingConvention}, the others on
+	 * the stack, and the receiver on the stack below them. Returns the
+	 * number of arguments on the stack.
+	 */
+	int emitArguments(MethodCallExpr ast) {
+		String receiverReg = visit(ast.receiver(), null);
+		List<Expr> args = ast.argumentsWithoutReceiver();
+		// Check that you are not trying to call a method on a null pointer.
+		// Implicitly, loading the vtable faults after the arguments are
+		// evaluated, so the receiver is touched first unless the arguments
+		// can neither fail nor have effects, like the explicit check
+		emitNullCheck(receiverReg, 0);
+		if (Config.IMPLICIT_NULL_CHECKS && !haveNoEffects(args))
+			emit(w("test"), receiverReg, o(0, receiverReg));
+		emitPush(receiverReg);
+		acg.registerPool.release(receiverReg);
 
-		emitLoad(0, receiverReg, receiverReg); // vtable now in receiver reg
+		for (int i = args.size() - 1; i >= 0; i--) {
+			Operand operand = acg.is.select(args.get(i));
+			emitPush(operand.text);
+			acg.is.release(operand);
+		}
+		String[] argumentRegisters = CallingConvention.argumentRegisters();
+		int inRegisters = Math.min(args.size(), argumentRegisters.length - 1);
+		for (int i = 0; i < inRegisters; i++)
+			emitPop(argumentRegisters[i + 1]);
+		return args.size() - inRegisters;
+	}
 
-		int methodOffset = acg.getClassOffsets(className).getMethod(ast.methodName); //Get offset for methodcall
+	/** Returns whether evaluating {@code exprs} can neither fail nor have effects. */
+	private static boolean haveNoEffects(List<Expr> exprs) {
+		for (Expr expr : exprs)
+			if (!(expr instanceof IntConst || expr instanceof FloatConst
+					|| expr instanceof BooleanConst || expr instanceof NullConst
+					|| expr instanceof ThisRef || expr instanceof Var))
+				return false;
+		return true;
+	}
 
-		emitLoad(methodOffset, receiverReg,receiverReg);
-		return receiverReg;
+	/**
+	 * Loads the vtable of the receiver, which is in its argument register
+	 * already, and returns the operand with the pointer to the method.
+	 */
+	String methodPointer(MethodCallExpr ast) {
+		String className = ast.receiver().type.name; // static type of receiver
+		int methodOffset = acg.getClassOffsets(className).getMethod(ast.methodName);
+		String vtableReg = CallingConvention.scratchRegister();
+		emitLoad(0, CallingConvention.argumentRegisters()[0], vtableReg);
+		if (Config.PROFILE_GENERATE != null) {
+			// Count the class of the receiver
+			String site = acg.profile.site(ast);
+			for (String receiverClass : acg.getSubclasses(className)) {
+				String next = uniqueLabel();
+				emitCompareAddress("vtable_" + receiverClass, vtableReg);
+				emit("jne", next);
+				acg.profile.emitCounter(site + ":" + receiverClass);
+				emitLabel(next);
+			}
+		}
+		return o(methodOffset, vtableReg);
 	}
 
 	@Override
@@ -445,11 +827,16 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 		case U_PLUS:
 			break;
 		case U_MINUS:
-			emit("negl", argReg);
+			if (ast.arg().type.name.equals("float"))
+				emit(w("xor"), c(0x80000000), argReg); // flip the sign bit
+			else {
+				emit(w("neg"), argReg);
+				emitSignExtend(argReg);
+			}
 			break;
 		case U_BOOL_NOT:
-			emit("negl", argReg);
-			emit("incl", argReg);
+			emit(w("neg"), argReg);
+			emit(w("inc"), argReg);
 			break;
 		}
 		return argReg;
@@ -457,11 +844,7 @@ class ExprGenerator extends ExprVisitor<String, Void> {
 
 	@Override
 	public String var(Var ast, Void arg) {
-		// For the sake of nicer Java code, getting the value can be seen as a special
-		// case of getting the address of the var, and then loading it.
-		String varAddrReg = acg.av.var(ast, arg);
-		emitLoad(0, varAddrReg, varAddrReg);
-		return varAddrReg;
+		return acg.is.toRegister(acg.is.var(ast, arg));
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,415 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+import cd.Config;
+
+/*
+ * Emits the runtime of Config.FREESTANDING programs, which replaces the C
+ * library: _start, which calls main and exits with its result, and the
+ * few C functions the code calls, see replacement(), done with Linux
+ * system calls. Memory is allocated from the break and never freed. The
+ * buffered I/O formats floats with Javali_format_float instead of
+ * snprintf.
+ *
+ * The replacements follow the C calling convention and are called with
+ * emitLibCall. Javali_format_float takes its arguments on the stack like
+ * the functions of BufferedIoEmitter.
+ */
+class FreestandingEmitter {
+
+	protected static final String FORMAT_FLOAT = "Javali_format_float";
+
+	private static final String START = "_start";
+	private static final String SYS_WRITE = "Javali_sys_write";
+	private static final String SYS_READ = "Javali_sys_read";
+	private static final String SYS_EXIT = "Javali_sys_exit";
+	private static final String SYS_MALLOC = "Javali_sys_malloc";
+	private static final String SYS_SIGACTION = "Javali_sys_sigaction";
+	private static final String SYS_BRK = "Javali_sys_brk";
+	protected static final String SIGRETURN = "Javali_sigreturn";
+	private static final String HEAP_TOP = "Javali_heap_top";
+	private static final String HEAP_END = "Javali_heap_end";
+
+	// The system call numbers, for i386 and x86-64
+	private static final int NR_READ = 3, NR64_READ = 0;
+	private static final int NR_WRITE = 4, NR64_WRITE = 1;
+	private static final int NR_BRK = 45, NR64_BRK = 12;
+	private static final int NR_RT_SIGRETURN = 173, NR64_RT_SIGRETURN = 15;
+	private static final int NR_RT_SIGACTION = 174, NR64_RT_SIGACTION = 13;
+	private static final int NR_EXIT_GROUP = 252, NR64_EXIT_GROUP = 231;
+
+	/** The size of the signal mask of the kernel, in bytes. */
+	protected static final int SIGSET_SIZE = 8;
+	/** The break grows by at least this much at a time. */
+	private static final int HEAP_CHUNK = 1 << 20;
+	/** Objects are aligned like malloc aligns them. */
+	private static final int HEAP_ALIGN = 16;
+
+	/** Offset of the first argument from the base pointer */
+	private static int ARG;
+
+	/**
+	 * Returns the function of this runtime which replaces the C library
+	 * {@code function}.
+	 */
+	protected static String replacement(String function) {
+		if (function.equals(Config.WRITE))
+			return SYS_WRITE;
+		if (function.equals(Config.READ))
+			return SYS_READ;
+		if (function.equals(Config.EXIT))
+			return SYS_EXIT;
+		if (function.equals(Config.MALLOC))
+			return SYS_MALLOC;
+		if (function.equals(Config.SIGACTION))
+			return SYS_SIGACTION;
+		throw new IllegalArgumentException(function
+				+ " is not available in freestanding programs, which need the buffered I/O and no profiling");
+	}
+
+	public static void emitAll() {
+		ARG = 2 * Config.SIZEOF_PTR;
+		data();
+		emitSection(".text");
+		start();
+		syscall(SYS_WRITE, NR_WRITE, NR64_WRITE, 3, null);
+		syscall(SYS_READ, NR_READ, NR64_READ, 3, null);
+		syscall(SYS_EXIT, NR_EXIT_GROUP, NR64_EXIT_GROUP, 1, null);
+		syscall(SYS_BRK, NR_BRK, NR64_BRK, 1, null);
+		syscall(SYS_SIGACTION, NR_RT_SIGACTION, NR64_RT_SIGACTION, 3, c(SIGSET_SIZE));
+		sigreturn();
+		malloc();
+		formatFloat();
+	}
+
+	private static void data() {
+		emit("");
+		emitSection(".section .data");
+		emitDeclaration(HEAP_TOP, Config.X64 ? "quad" : "int", "0");
+		emitDeclaration(HEAP_END, Config.X64 ? "quad" : "int", "0");
+	}
+
+	/*
+	 * The entry point of the binary. The stack is aligned for main like the
+	 * C runtime aligns it.
+	 */
+	private static void start() {
+		emit(".globl", START);
+		emitFunctionLabel(START);
+		emitIndent(null);
+		emit("xorl", "%ebp", "%ebp");
+		emit(w("and"), c(-16), SP);
+		emit("call", Config.MAIN);
+		if (Config.X64)
+			emit("movl", "%eax", "%edi");
+		else
+			emit("pushl", "%eax");
+		emit("call", SYS_EXIT);
+		emitUndent();
+	}
+
+	/*
+	 * Emits a C function which makes the system call with the number nr
+	 * (i386) or nr64 (x86-64) with its args arguments, and with the fourth
+	 * argument fourth unless it is null. Returns what the kernel returns,
+	 * which is the negated error number on errors.
+	 */
+	private static void syscall(String name, int nr, int nr64, int args, String fourth) {
+		emitFunctionLabel(name);
+		emitIndent(null);
+		if (Config.X64) {
+			if (args > 3)
+				emit("movq", "%rcx", "%r10");
+			if (fourth != null)
+				emit("movq", fourth, "%r10");
+			emit("movl", c(nr64), "%eax");
+			emit("syscall");
+			emit("ret");
+		} else {
+			// %ebx and %esi are callee-saved
+			String[] registers = { "%ebx", "%ecx", "%edx", "%esi" };
+			emit("pushl", "%ebx");
+			emit("pushl", "%esi");
+			for (int i = 0; i < args; i++)
+				emit("movl", o(12 + 4 * i, "%esp"), registers[i]);
+			if (fourth != null)
+				emit("movl", fourth, registers[3]);
+			emit("movl", c(nr), "%eax");
+			emit("int", c(0x80));
+			emit("popl", "%esi");
+			emit("popl", "%ebx");
+			emit("ret");
+		}
+		emitUndent();
+	}
+
+	/*
+	 * The restorer of the signal handlers, which the handler returns to.
+	 */
+	private static void sigreturn() {
+		emitFunctionLabel(SIGRETURN);
+		emitIndent(null);
+		if (Config.X64) {
+			emit("movl", c(NR64_RT_SIGRETURN), "%eax");
+			emit("syscall");
+		} else {
+			emit("movl", c(NR_RT_SIGRETURN), "%eax");
+			emit("int", c(0x80));
+		}
+		emitUndent();
+	}
+
+	/*
+	 * Allocates from the break, which the kernel fills with zeros. Returns
+	 * null if the break cannot grow.
+	 */
+	private static void malloc() {
+		String haveHeapLabel = uniqueLabel();
+		String fitsLabel = uniqueLabel();
+		String failLabel = uniqueLabel();
+		String size = Config.X64 ? o(-Config.SIZEOF_PTR, BP) : o(ARG, BP);
+		emitFunctionLabel(SYS_MALLOC);
+		emitIndent(null);
+		emitMethodPrefix();
+		if (Config.X64)
+			emit("pushq", "%rdi");
+		emit(w("mov"), g(HEAP_TOP), AX);
+		emit(w("test"), AX, AX);
+		emit("jnz", haveHeapLabel);
+		// The heap starts at the initial break
+		brk(c(0));
+		emit(w("mov"), AX, g(HEAP_TOP));
+		emit(w("mov"), AX, g(HEAP_END));
+		emitLabel(haveHeapLabel);
+		emit(w("mov"), size, r("cx"));
+		emit(w("add"), c(HEAP_ALIGN - 1), r("cx"));
+		emit("jc", failLabel);
+		emit(w("and"), c(-HEAP_ALIGN), r("cx"));
+		emit(w("add"), g(HEAP_TOP), r("cx"));
+		emit("jc", failLabel);
+		emit(w("cmp"), g(HEAP_END), r("cx"));
+		emit("jbe", fitsLabel);
+		// Grow the break past the new top, which is kept in size
+		emit(w("mov"), r("cx"), size);
+		emit(w("add"), c(HEAP_CHUNK), r("cx"));
+		emit("jc", failLabel);
+		brk(r("cx"));
+		emit(w("mov"), size, r("cx"));
+		emit(w("cmp"), r("cx"), AX);
+		emit("jb", failLabel);
+		emit(w("mov"), AX, g(HEAP_END));
+		emitLabel(fitsLabel);
+		emit(w("mov"), g(HEAP_TOP), AX);
+		emit(w("mov"), r("cx"), g(HEAP_TOP));
+		emit("leave");
+		emit("ret");
+		emitLabel(failLabel);
+		emitMethodSuffix(true);
+		emitUndent();
+	}
+
+	private static void brk(String address) {
+		if (Config.X64) {
+			emit("movq", address, "%rdi");
+			emit("call", SYS_BRK);
+		} else {
+			emit("pushl", address);
+			emit("call", SYS_BRK);
+			emitDeallocation(4);
+		}
+	}
+
+	/*
+	 * Formats the float with the bits of the second argument like printf
+	 * formats it with "%f", with six digits after the point, into the
+	 * memory at the first argument, and returns the number of characters.
+	 *
+	 * The float is m * 2^e with an int m, so the result is the 160-bit int
+	 * m * 10^6 * 2^e, rounded half to even, in decimal with the point
+	 * before the last six digits. The int is kept in five limbs on the
+	 * stack, the lowest first.
+	 */
+	private static void formatFloat() {
+		final int LIMBS = 5;
+		final int DIGITS_END = -4 * LIMBS;
+		String[] limb = new String[LIMBS];
+		for (int i = 0; i < LIMBS; i++)
+			limb[i] = o(-4 * (LIMBS - i), BP);
+		String positiveLabel = uniqueLabel();
+		String finiteLabel = uniqueLabel();
+		String nanLabel = uniqueLabel();
+		String normalLabel = uniqueLabel();
+		String scaledLabel = uniqueLabel();
+		String shiftWordsLabel = uniqueLabel();
+		String shiftBitsLabel = uniqueLabel();
+		String rightLabel = uniqueLabel();
+		String highLabel = uniqueLabel();
+		String lowLabel = uniqueLabel();
+		String roundUpLabel = uniqueLabel();
+		String digitLabel = uniqueLabel();
+		String doneLabel = uniqueLabel();
+
+		emitFunctionLabel(FORMAT_FLOAT);
+		emitIndent(null);
+		emitMethodPrefix();
+		emitAllocation(-DIGITS_END + 64);
+		emitLoad(ARG, BP, r("di"));
+		emit("movl", o(ARG + Config.SIZEOF_PTR, BP), "%eax");
+		emit("testl", "%eax", "%eax");
+		emit("jns", positiveLabel);
+		emit("movb", c('-'), o(0, r("di")));
+		emit(w("inc"), r("di"));
+		emitLabel(positiveLabel);
+		// %ecx: the biased exponent, %edx: the mantissa
+		emit("movl", "%eax", "%ecx");
+		emit("shrl", c(23), "%ecx");
+		emit("andl", c(0xFF), "%ecx");
+		emit("movl", "%eax", "%edx");
+		emit("andl", c(0x7FFFFF), "%edx");
+		emit("cmpl", c(0xFF), "%ecx");
+		emit("jne", finiteLabel);
+		emit("testl", "%edx", "%edx");
+		emit("jnz", nanLabel);
+		emitChars("inf");
+		emit("jmp", doneLabel);
+		emitLabel(nanLabel);
+		emitChars("nan");
+		emit("jmp", doneLabel);
+
+		// m * 10^6 has at most 44 bits
+		emitLabel(finiteLabel);
+		emit("testl", "%ecx", "%ecx");
+		emit("jnz", normalLabel);
+		emit("incl", "%ecx"); // subnormal
+		emit("jmp", normalLabel + "_exponent");
+		emitLabel(normalLabel);
+		emit("orl", c(0x800000), "%edx");
+		emitLabel(normalLabel + "_exponent");
+		emit("subl", c(150), "%ecx");
+		emit("movl", "%edx", "%eax");
+		emit("movl", c(1000000), "%edx");
+		emit("mull", "%edx");
+		emit("movl", "%eax", limb[0]);
+		emit("movl", "%edx", limb[1]);
+		for (int i = 2; i < LIMBS; i++)
+			emit("movl", c(0), limb[i]);
+		emit("testl", "%ecx", "%ecx");
+		emit("js", rightLabel);
+
+		// Multiply by 2^e: shift whole limbs, then the bits
+		emitLabel(shiftWordsLabel);
+		emit("cmpl", c(32), "%ecx");
+		emit("jb", shiftBitsLabel);
+		for (int i = LIMBS - 1; i > 0; i--) {
+			emit("movl", limb[i - 1], "%eax");
+			emit("movl", "%eax", limb[i]);
+		}
+		emit("movl", c(0), limb[0]);
+		emit("subl", c(32), "%ecx");
+		emit("jmp", shiftWordsLabel);
+		emitLabel(shiftBitsLabel);
+		for (int i = LIMBS - 1; i > 0; i--) {
+			emit("movl", limb[i - 1], "%eax");
+			emit("shldl", "%cl, %eax", limb[i]);
+		}
+		emit("shll", "%cl", limb[0]);
+		emit("jmp", scaledLabel);
+
+		// Divide by 2^-e. The quotient is 0 when 2^-e is more than twice
+		// m * 10^6, and otherwise q2 = m * 10^6 >> (-e - 1) tells it: q2 / 2,
+		// rounded up if the bit shifted out last is set and either bits
+		// below it are set or q2 / 2 is odd.
+		emitLabel(rightLabel);
+		emit("negl", "%ecx");
+		emit("cmpl", c(64), "%ecx");
+		emit("jb", rightLabel + "_shift");
+		emit("movl", c(0), limb[0]);
+		emit("movl", c(0), limb[1]);
+		emit("jmp", scaledLabel);
+		emitLabel(rightLabel + "_shift");
+		emit("decl", "%ecx");
+		emit("movl", limb[0], "%eax");
+		emit("movl", limb[1], "%edx");
+		emit("shrdl", "%cl, %edx", "%eax");
+		emit("shrl", "%cl", "%edx");
+		emit("testb", c(32), "%cl");
+		emit("jz", highLabel);
+		emit("movl", "%edx", "%eax");
+		emit("xorl", "%edx", "%edx");
+		emitLabel(highLabel);
+		emit("movl", "%eax", limb[3]);
+		emit("movl", "%edx", limb[4]);
+		// The bits below are set unless q2 << (-e - 1) gives m * 10^6 back
+		emit("shldl", "%cl, %eax", "%edx");
+		emit("shll", "%cl", "%eax");
+		emit("testb", c(32), "%cl");
+		emit("jz", lowLabel);
+		emit("movl", "%eax", "%edx");
+		emit("xorl", "%eax", "%eax");
+		emitLabel(lowLabel);
+		emit("xorl", limb[0], "%eax");
+		emit("xorl", limb[1], "%edx");
+		emit("orl", "%edx", "%eax");
+		emit("movl", limb[3], "%esi");
+		emit("movl", limb[4], "%edx");
+		emit("shrdl", c(1) + ", %edx", "%esi");
+		emit("shrl", c(1), "%edx");
+		emit("movl", "%esi", limb[0]);
+		emit("movl", "%edx", limb[1]);
+		emit("movl", limb[3], "%edx");
+		emit("movl", c(0), limb[3]);
+		emit("movl", c(0), limb[4]);
+		emit("testb", c(1), "%dl");
+		emit("jz", scaledLabel);
+		emit("testl", "%eax", "%eax");
+		emit("jnz", roundUpLabel);
+		emit("testb", c(1), limb[0]);
+		emit("jz", scaledLabel);
+		emitLabel(roundUpLabel);
+		emit("addl", c(1), limb[0]);
+		emit("adcl", c(0), limb[1]);
+		emitLabel(scaledLabel);
+
+		// The digits, backwards below the limbs, at least seven of them
+		emit(w("lea"), o(DIGITS_END, BP), r("si"));
+		emitLabel(digitLabel);
+		emit("movl", c(10), "%ecx");
+		emit("xorl", "%edx", "%edx");
+		for (int i = LIMBS - 1; i >= 0; i--) {
+			emit("movl", limb[i], "%eax");
+			emit("divl", "%ecx");
+			emit("movl", "%eax", limb[i]);
+		}
+		emit("addb", c('0'), "%dl");
+		emit(w("dec"), r("si"));
+		emit("movb", "%dl", o(0, r("si")));
+		emit("movl", limb[0], "%eax");
+		for (int i = 1; i < LIMBS; i++)
+			emit("orl", limb[i], "%eax");
+		emit("jnz", digitLabel);
+		emit(w("lea"), o(DIGITS_END, BP), r("cx"));
+		emit(w("sub"), r("si"), r("cx"));
+		emit("cmpl", c(7), "%ecx");
+		emit("jb", digitLabel);
+		emit("subl", c(6), "%ecx");
+		emit("rep movsb");
+		emit("movb", c('.'), o(0, r("di")));
+		emit(w("inc"), r("di"));
+		emit("movl", c(6), "%ecx");
+		emit("rep movsb");
+
+		emitLabel(doneLabel);
+		emitMove(r("di"), AX);
+		emit(w("sub"), o(ARG, BP), AX);
+		emit("leave");
+		emit("ret");
+		emitUndent();
+	}
+
+	private static void emitChars(String chars) {
+		for (int i = 0; i < chars.length(); i++)
+			emit("movb", c(chars.charAt(i)), o(i, r("di")));
+		emit(w("add"), c(chars.length()), r("di"));
+	}
+
+}
@@ -2,6 +2,8 @@ package cd.codegen;
 
 import static cd.codegen.AssemblerHelper.emit;
 import static cd.codegen.AssemblerHelper.emitConstantData;
+import static cd.codegen.AssemblerHelper.emitGlobal;
+import static cd.codegen.AssemblerHelper.emitSection;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -9,6 +11,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
+import cd.Config;
 import cd.ir.Ast.ClassDecl;
 import cd.ir.AstVisitor;
 import cd.ir.Symbol.ClassSymbol;
@@ -30,28 +33,47 @@ class InitializationGenerator extends AstVisitor<Void, Void> {
 	 */
 	public void go(List<? extends ClassDecl> astRoots) {
 		emit("");
-		emit(".section .data");
+		emitSection(".section .data");
+		emitRuntimeVtables();
+		acg.getClassOffsets("Object");
+
+		// Generate the rest of the vtables
+		for (ClassDecl ast : astRoots) {
+			visit(ast, null);
+		}
+
+	}
+
+	/*
+	 * Initializes the offset information of all classes without emitting
+	 * their vtables, which are emitted with emitVtables() instead.
+	 */
+	public void addOffsets(List<? extends ClassDecl> astRoots) {
+		acg.getClassOffsets("Object");
+		for (ClassDecl ast : astRoots)
+			addOffsets(ast);
+	}
+
+	/*
+	 * Emits the vtables which do not depend on the program: the one of
+	 * Object and the ones of arrays of the primitive types and of Object.
+	 */
+	public void emitRuntimeVtables() {
 		// Emit vtable for Object type. Is defined as subtype of null
 		// because each vtable needs atleast one item (otherwise two vtables
 		// will have the same address).
 		emitVtable("Object", null, null);
-		acg.getClassOffsets("Object");
 
 		// Need vtables for primitive types as well, so we can handle
 		// casts from Object to e.g. int[].
 		for (String s : new String[]{"float", "boolean", "int", "Object"}) {
 			emitVtable(s + "_Array", "Object", null);
 		}
-
-		// Generate the rest of the vtables
-		for (ClassDecl ast : astRoots) {
-			visit(ast, null);
-		}
-
 	}
 	
 	private void emitVtable(String typeName, String superClassName,
 						    List<MethodSymbol> orderedMethods) {
+		emitGlobal("vtable_" + typeName);
 		emit(String.format("vtable_%s:", typeName));
 		// Set super class to 0 if not needed -- i.e. for Object
 		emitConstantData(superClassName == null ? "0" : ("vtable_"+superClassName));
@@ -65,29 +87,37 @@ class InitializationGenerator extends AstVisitor<Void, Void> {
 	
 	@Override
 	public Void classDecl(ClassDecl ast, Void arg) {
+		emitVtables(ast);
+		addOffsets(ast);
+		return null;
+	}
+
+	/*
+	 * Emits the vtable of the class, and the one of arrays of it.
+	 */
+	public void emitVtables(ClassDecl ast) {
+		emitVtable(ast.name, ast.superClass, getMethodsInOrder(ast.sym));
+		// Emit vtable for array type. Needed for casting.
+		emitVtable(ast.name + "_Array", "Object", null);
+	}
+
+	private void addOffsets(ClassDecl ast) {
 		List<MethodSymbol> orderedMethods = getMethodsInOrder(ast.sym);
 
-		// Emit vtable
-		emitVtable(ast.name, ast.superClass, orderedMethods);
 		// instantiate vtable, keep track of offsets for methods, allocate
 		// memory on heap
-		int offset = 4; // Method pointers in vtable start after the super class pointer
+		int offset = Config.SIZEOF_PTR; // Method pointers in vtable start after the super class pointer
 		for (MethodSymbol method : orderedMethods) {
 			acg.getClassOffsets(ast.name).addMethod(method.name, offset);
-			offset += 4;
+			offset += Config.SIZEOF_PTR;
 		}
 
 		List<String> orderedFields = getFieldsInOrder(ast.sym);
-		offset = 4; // Fields in instance start after the vtable pointer
+		offset = Config.SIZEOF_PTR; // Fields in instance start after the vtable pointer
 		for (String field : orderedFields) {
 			acg.getClassOffsets(ast.name).addField(field, offset);
-			offset += 4;
+			offset += Config.SIZEOF_PTR;
 		}
-
-		// Emit vtable for array type. Needed for casting.
-		emitVtable(ast.name + "_Array", "Object", null);
-
-		return null;
 	}
 	
 	public List<String> getFieldsInOrder(ClassSymbol sym) {
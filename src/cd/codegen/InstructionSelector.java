@@ -0,0 +1,341 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cd.Config;
+import cd.ir.Ast;
+import cd.ir.ExprVisitor;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.Field;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.NullConst;
+import cd.ir.Ast.ThisRef;
+import cd.ir.Ast.Var;
+
+/**
+ * Covers expression trees with x86 operands by maximal munch. Instead of
+ * evaluating every subtree into a register, the largest of these patterns
+ * that matches is turned into a single immediate or memory operand. The
+ * cost is the number of instructions emitted before the operand can be
+ * used:
+ *
+ * <pre>
+ * IntConst, BooleanConst, NullConst, FloatConst   $imm                0
+ * ThisRef, Var (local)                            off(%ebp)           0
+ * Var (field of this)                             off(%this)          1
+ * Field(e)                                        off(%e)             e + 2
+ * Index(e, IntConst)                              8+4*i(%e)           e + 4
+ * Index(e1, e2)                                   8(%e1,%e2,4)        e1 + e2 + 4
+ * anything else                                   %reg                ExprGenerator
+ * </pre>
+ *
+ * The null check is left out for fields of this. Also replaces the old
+ * AddressGenerator, as a memory operand is the address of an assignment
+ * target.
+ */
+class InstructionSelector extends ExprVisitor<InstructionSelector.Operand, Void> {
+
+	/** An operand covering an expression, with the registers it occupies. */
+	static class Operand {
+		final String text;
+		final List<String> regs;
+
+		Operand(String text, String... regs) {
+			this(text, Arrays.asList(regs));
+		}
+
+		Operand(String text, List<String> regs) {
+			this.text = text;
+			this.regs = regs;
+		}
+
+		boolean isImmediate() {
+			return text.startsWith("$");
+		}
+
+		boolean isRegister() {
+			return text.startsWith("%");
+		}
+
+		boolean isMemory() {
+			return !isImmediate() && !isRegister();
+		}
+	}
+
+	/**
+	 * The operands of a binary operation: the left one in a register and the
+	 * right one as chosen by the patterns. The operands may have been swapped,
+	 * in which case {@code operator} is mirrored.
+	 */
+	static class BinaryOperands {
+		final String left;
+		final Operand right;
+		final BOp operator;
+
+		BinaryOperands(String left, Operand right, BOp operator) {
+			this.left = left;
+			this.right = right;
+			this.operator = operator;
+		}
+	}
+
+	private final AstCodeGenerator acg;
+
+	InstructionSelector(AstCodeGenerator astCodeGenerator) {
+		this.acg = astCodeGenerator;
+	}
+
+	public Operand select(Expr ast) {
+		return visit(ast, null);
+	}
+
+	/** Covers {@code ast} with an immediate or a register operand. */
+	public Operand selectValue(Expr ast) {
+		Operand operand = select(ast);
+		if (!operand.isMemory())
+			return operand;
+		String reg = toRegister(operand);
+		return new Operand(reg, reg);
+	}
+
+	/**
+	 * Loads an operand into a register of its own, reusing one of its
+	 * registers. A variable which lives in a register is copied.
+	 */
+	public String toRegister(Operand operand) {
+		if (operand.isRegister() && !operand.regs.isEmpty())
+			return operand.text;
+		String reg = operand.regs.isEmpty() ? acg.registerPool.reserve() : operand.regs.get(0);
+		emitMove(operand.text, reg);
+		for (int i = 1; i < operand.regs.size(); i++)
+			acg.registerPool.release(operand.regs.get(i));
+		return reg;
+	}
+
+	public void release(Operand operand) {
+		for (String reg : operand.regs)
+			acg.registerPool.release(reg);
+	}
+
+	/**
+	 * Evaluates the operands of a binary operation. The left operand is only
+	 * spilled if the right one could run out of registers otherwise. If the
+	 * left operand is a constant or a local and the right one has to be
+	 * computed anyway, they are swapped so that the left one is folded into
+	 * the instruction.
+	 */
+	public BinaryOperands selectOperands(BinaryOp ast) {
+		Expr left = ast.left(), right = ast.right();
+		BOp operator = ast.operator;
+		BOp mirrored = mirror(operator);
+		if (mirrored != null && isInvariant(left)
+				&& registerCost(right) + cost(left) < registerCost(left) + cost(right)) {
+			left = ast.right();
+			right = ast.left();
+			operator = mirrored;
+		}
+		String reg = acg.eg.visit(left, null);
+		if (acg.rnv.calc(right) < acg.registerPool.available())
+			return new BinaryOperands(reg, select(right), operator);
+
+		emitPush(reg);
+		acg.registerPool.release(reg);
+		Operand operand = select(right);
+		reg = acg.registerPool.reserve();
+		emitPop(reg);
+		return new BinaryOperands(reg, operand, operator);
+	}
+
+	/** Returns the condition code suffix of a comparison, e.g. "l" for <. */
+	static String condition(BOp operator) {
+		switch (operator) {
+		case B_EQUAL:
+			return "e";
+		case B_NOT_EQUAL:
+			return "ne";
+		case B_LESS_THAN:
+			return "l";
+		case B_LESS_OR_EQUAL:
+			return "le";
+		case B_GREATER_THAN:
+			return "g";
+		case B_GREATER_OR_EQUAL:
+			return "ge";
+		default:
+			throw new RuntimeException("Not a comparison: " + operator);
+		}
+	}
+
+	/** Returns the operator for swapped operands, or null if there is none. */
+	private static BOp mirror(BOp operator) {
+		switch (operator) {
+		case B_PLUS:
+		case B_TIMES:
+		case B_EQUAL:
+		case B_NOT_EQUAL:
+			return operator;
+		case B_LESS_THAN:
+			return BOp.B_GREATER_THAN;
+		case B_LESS_OR_EQUAL:
+			return BOp.B_GREATER_OR_EQUAL;
+		case B_GREATER_THAN:
+			return BOp.B_LESS_THAN;
+		case B_GREATER_OR_EQUAL:
+			return BOp.B_LESS_OR_EQUAL;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * True if the value of {@code ast} cannot be changed by evaluating another
+	 * expression, so that it may be evaluated later.
+	 */
+	private boolean isInvariant(Expr ast) {
+		return isConstant(ast) || ast instanceof ThisRef
+				|| (ast instanceof Var && isLocal((Var) ast));
+	}
+
+	private static boolean isConstant(Expr ast) {
+		return ast instanceof IntConst || ast instanceof BooleanConst
+				|| ast instanceof NullConst || ast instanceof FloatConst;
+	}
+
+	boolean isLocal(Var ast) {
+		return acg.variableRegisters.containsKey(ast.name)
+				|| acg.currentClass.containsLocal(acg.currentMethod, ast.name);
+	}
+
+	/**
+	 * Returns the registers of an operand used as a base register: the ones
+	 * it owns, or a new one if it is not in a register yet.
+	 */
+	private List<String> baseRegisters(Operand operand) {
+		if (operand.isRegister())
+			return operand.regs;
+		return Arrays.asList(toRegister(operand));
+	}
+
+	/** Returns the cost of the pattern covering {@code ast}, see above. */
+	private int cost(Expr ast) {
+		if (isInvariant(ast))
+			return 0;
+		if (ast instanceof Var)
+			return 1;
+		if (ast instanceof Field)
+			return registerCost(((Field) ast).arg()) + (((Field) ast).arg() instanceof ThisRef ? 0 : 2);
+		if (ast instanceof Index) {
+			Index index = (Index) ast;
+			int cost = registerCost(index.left()) + 4;
+			if (!(index.right() instanceof IntConst))
+				cost += registerCost(index.right());
+			return cost;
+		}
+		// Computed into a register: at least one instruction per node
+		int cost = 1;
+		for (Ast child : ast.children())
+			cost += registerCost((Expr) child);
+		return cost;
+	}
+
+	/** Returns the cost of having {@code ast} in a register. */
+	private int registerCost(Expr ast) {
+		boolean folded = isConstant(ast) || ast instanceof ThisRef || ast instanceof Var
+				|| ast instanceof Field || ast instanceof Index;
+		return cost(ast) + (folded ? 1 : 0);
+	}
+
+	@Override
+	protected Operand dfltExpr(Expr ast, Void arg) {
+		String reg = acg.eg.visit(ast, arg);
+		return new Operand(reg, reg);
+	}
+
+	@Override
+	public Operand intConst(IntConst ast, Void arg) {
+		return new Operand(c(ast.value));
+	}
+
+	@Override
+	public Operand booleanConst(BooleanConst ast, Void arg) {
+		return new Operand(c(ast.value ? 1 : 0));
+	}
+
+	@Override
+	public Operand nullConst(NullConst ast, Void arg) {
+		return new Operand(c(0));
+	}
+
+	@Override
+	public Operand floatConst(FloatConst ast, Void arg) {
+		return new Operand(c(Float.floatToRawIntBits(ast.value)));
+	}
+
+	@Override
+	public Operand thisRef(ThisRef ast, Void arg) {
+		if (acg.variableRegisters.containsKey("this"))
+			return new Operand(acg.variableRegisters.get("this"));
+		return new Operand(o(acg.currentClass.getLocal(acg.currentMethod, "this"), BP));
+	}
+
+	@Override
+	public Operand var(Var ast, Void arg) {
+		// Sometimes a field is accessed without the this keyword. This is allowed, but will be
+		// interpreted as an access to a var instead.
+		if (!isLocal(ast))
+			return field(new Field(new ThisRef(), ast.name), arg);
+		if (acg.variableRegisters.containsKey(ast.name))
+			return new Operand(acg.variableRegisters.get(ast.name));
+		return new Operand(o(acg.currentClass.getLocal(acg.currentMethod, ast.name), BP));
+	}
+
+	@Override
+	public Operand field(Field ast, Void arg) {
+		Operand base = visit(ast.arg(), arg);
+		List<String> regs = baseRegisters(base);
+		String objPointerReg = base.isRegister() ? base.text : regs.get(0);
+		String staticClassName = ast.arg() instanceof ThisRef ? acg.currentClass.name : ast.sym.getStaticClass().name;
+		int offset = acg.getClassOffsets(staticClassName).getField(ast.fieldName);
+		// Check that you are not trying to get the field of a null pointer
+		if (!(ast.arg() instanceof ThisRef))
+			emitNullCheck(objPointerReg, offset);
+		return new Operand(o(offset, objPointerReg), regs);
+	}
+
+	@Override
+	public Operand index(Index ast, Void arg) {
+		Operand array = visit(ast.left(), arg);
+		List<String> regs = new ArrayList<String>(baseRegisters(array));
+		String arrayReg = array.isRegister() ? array.text : regs.get(0);
+		// Check that you are not trying to index on a null pointer. The
+		// length is read first, by the bounds check.
+		emitNullCheck(arrayReg, Config.SIZEOF_PTR);
+
+		String length = o(Config.SIZEOF_PTR, arrayReg);
+		if (ast.right() instanceof IntConst) {
+			int index = ((IntConst) ast.right()).value;
+			if (index >= 0 && index < (1 << 24)) {
+				emit(w("cmp"), c(index), length);
+				emit("jle", StdLibEmitter.INDEX_OUT_OF_BOUNDS_EXCEPTION);
+				int offset = (2 + index) * Config.SIZEOF_PTR;
+				return new Operand(o(offset, arrayReg), regs);
+			}
+		}
+		Operand index = visit(ast.right(), arg);
+		regs.addAll(baseRegisters(index));
+		String indexReg = index.isRegister() ? index.text : regs.get(regs.size() - 1);
+		// Negative indices are large unsigned numbers and fail the check, too
+		emit(w("cmp"), length, indexReg);
+		emit("jae", StdLibEmitter.INDEX_OUT_OF_BOUNDS_EXCEPTION);
+		return new Operand(a(arrayReg, indexReg), regs);
+	}
+}
@@ -0,0 +1,864 @@
+package cd.codegen;
+
+import static cd.codegen.ClassFileWriter.ACC_PUBLIC;
+import static cd.codegen.ClassFileWriter.ACC_STATIC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cd.codegen.ClassFileWriter.Code;
+import cd.codegen.ClassFileWriter.Label;
+import cd.ir.Ast;
+import cd.ir.Ast.Assign;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.BuiltInRead;
+import cd.ir.Ast.BuiltInReadFloat;
+import cd.ir.Ast.BuiltInWrite;
+import cd.ir.Ast.BuiltInWriteFloat;
+import cd.ir.Ast.BuiltInWriteln;
+import cd.ir.Ast.Cast;
+import cd.ir.Ast.ClassDecl;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.Field;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.IfElse;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.NewArray;
+import cd.ir.Ast.NewObject;
+import cd.ir.Ast.Nop;
+import cd.ir.Ast.NullConst;
+import cd.ir.Ast.ReturnStmt;
+import cd.ir.Ast.ThisRef;
+import cd.ir.Ast.UnaryOp;
+import cd.ir.Ast.UnaryOp.UOp;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.VarDecl;
+import cd.ir.Ast.WhileLoop;
+import cd.ir.AstVisitor;
+import cd.ir.ExprVisitor;
+import cd.ir.Symbol.ArrayTypeSymbol;
+import cd.ir.Symbol.ClassSymbol;
+import cd.ir.Symbol.MethodSymbol;
+import cd.ir.Symbol.PrimitiveTypeSymbol;
+import cd.ir.Symbol.TypeSymbol;
+import cd.ir.Symbol.VariableSymbol;
+
+/**
+ * Generates JVM class files, which {@link JvmRuntime} loads and runs in the
+ * compiler's process. A Javali class X becomes the class javali.X with the
+ * fields f_name and the public methods m_name, so that no name clashes with
+ * the ones of java.lang.Object. The built-in functions call the
+ * {@link JvmRuntime} in a static field of a holder class.
+ * <p>
+ * The JVM evaluates operands from left to right and checks for null and
+ * array bounds when it accesses memory. Where this is observably different
+ * from the assembly, which evaluates the value of an assignment before its
+ * target and the arguments of a call from the last to the first, and
+ * checks for null as soon as it has a reference, the values are computed
+ * into locals first and null is checked explicitly. The JVM's own
+ * exceptions are reported with the messages and exit codes of the
+ * assembly by {@link JvmRuntime#run}.
+ */
+public class JvmCodeGenerator {
+
+	private static final String RUNTIME = "cd/codegen/JvmRuntime";
+	private static final String HOLDER = JvmRuntime.HOLDER.replace('.', '/');
+	private static final String OBJECT = "java/lang/Object";
+
+	// Opcodes
+	private static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, FCONST_0 = 0x0b, BIPUSH = 0x10,
+			SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, ILOAD = 0x15, FLOAD = 0x17, ALOAD = 0x19,
+			IALOAD = 0x2e, FALOAD = 0x30, AALOAD = 0x32, BALOAD = 0x33, ISTORE = 0x36,
+			FSTORE = 0x38, ASTORE = 0x3a, IASTORE = 0x4f, FASTORE = 0x51, AASTORE = 0x53,
+			BASTORE = 0x54, POP = 0x57, DUP = 0x59, IADD = 0x60, FADD = 0x62, ISUB = 0x64,
+			FSUB = 0x66, IMUL = 0x68, FMUL = 0x6a, IDIV = 0x6c, FDIV = 0x6e, IREM = 0x70,
+			FREM = 0x72, INEG = 0x74, FNEG = 0x76, IXOR = 0x82, FCMPL = 0x95, FCMPG = 0x96,
+			IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+			IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+			IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, IF_ACMPEQ = 0xa5, IF_ACMPNE = 0xa6, GOTO = 0xa7,
+			IFNULL = 0xc6, ATHROW = 0xbf,
+			IRETURN = 0xac, FRETURN = 0xae, ARETURN = 0xb0, RETURN = 0xb1, GETSTATIC = 0xb2,
+			GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+			NEW = 0xbb, NEWARRAY = 0xbc, ANEWARRAY = 0xbd, CHECKCAST = 0xc0;
+
+	private static final TypeSymbol INT = new PrimitiveTypeSymbol("int");
+	private static final TypeSymbol FLOAT = new PrimitiveTypeSymbol("float");
+
+	private static final int T_BOOLEAN = 4, T_FLOAT = 6, T_INT = 10;
+
+	/**
+	 * How an expression depends on the rest of the program: a stable one
+	 * neither fails nor has side effects nor reads memory, a pure one reads
+	 * memory but neither fails nor has side effects.
+	 */
+	private enum Effect {
+		STABLE, PURE, OTHER
+	}
+
+	private ClassFileWriter cf;
+	private Code code;
+	private ClassDecl currentClass;
+	private MethodDecl currentMethod;
+	// The slots of this, the parameters and the locals of the current method
+	private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+	private final Expressions eg = new Expressions();
+	private final Statements sg = new Statements();
+
+	/**
+	 * Returns the class files for {@code astRoots} by their binary names,
+	 * for {@link JvmRuntime#run}.
+	 */
+	public Map<String, byte[]> go(List<? extends ClassDecl> astRoots) {
+		Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+		ClassFileWriter holder = new ClassFileWriter(HOLDER, OBJECT);
+		holder.addField(ACC_PUBLIC | ACC_STATIC, JvmRuntime.HOLDER_FIELD, "L" + RUNTIME + ";");
+		classes.put(JvmRuntime.HOLDER, holder.toByteArray());
+
+		for (ClassDecl ast : astRoots)
+			if (ast.sym != null)
+				classes.put("javali." + ast.name, generateClass(ast));
+		return classes;
+	}
+
+	private byte[] generateClass(ClassDecl ast) {
+		currentClass = ast;
+		cf = new ClassFileWriter(className(ast.name), className(ast.superClass));
+
+		// A field the super class has already is the same field
+		for (VariableSymbol field : ast.sym.fields.values())
+			if (ast.sym.superClass.getField(field.name) == null)
+				cf.addField(ACC_PUBLIC, "f_" + field.name, descriptor(field.type));
+
+		code = new Code(1);
+		code.local(ALOAD, 0, 1);
+		code.op2(INVOKESPECIAL, cf.methodConstant(className(ast.superClass), "<init>", "()V"), -1);
+		code.op(RETURN, 0);
+		cf.addMethod(ACC_PUBLIC, "<init>", "()V", code);
+
+		for (MethodDecl method : ast.methods())
+			generateMethod(method);
+		return cf.toByteArray();
+	}
+
+	private void generateMethod(MethodDecl ast) {
+		currentMethod = ast;
+		slots.clear();
+		slots.put("this", 0);
+		for (VariableSymbol parameter : ast.sym.parameters)
+			slots.put(parameter.name, slots.size());
+		code = new Code(slots.size());
+
+		// Locals start out as zero, like the ones of the assembly
+		for (Ast decl : ast.decls().children()) {
+			VariableSymbol local = ast.sym.locals.get(((VarDecl) decl).name);
+			int slot = code.newLocal();
+			slots.put(local.name, slot);
+			pushZero(local.type);
+			code.local(storeOpcode(local.type), slot, -1);
+		}
+		sg.visit(ast.body(), null);
+
+		// A method may end without a return statement
+		if (ast.sym.returnType == null)
+			code.op(RETURN, 0);
+		else {
+			pushZero(ast.sym.returnType);
+			code.op(returnOpcode(ast.sym.returnType), -1);
+		}
+		cf.addMethod(ACC_PUBLIC, "m_" + ast.name, descriptor(ast.sym), code);
+	}
+
+	private class Statements extends AstVisitor<Void, Void> {
+
+		@Override
+		public Void nop(Nop ast, Void arg) {
+			return null;
+		}
+
+		@Override
+		public Void varDecl(VarDecl ast, Void arg) {
+			// Initialized at the start of the method
+			return null;
+		}
+
+		@Override
+		public Void assign(Assign ast, Void arg) {
+			if (ast.left() instanceof Var && isLocal((Var) ast.left())) {
+				TypeSymbol type = typeOf(ast.left());
+				eg.visit(ast.right(), null);
+				code.local(storeOpcode(type), slots.get(((Var) ast.left()).name), -1);
+				return null;
+			}
+
+			// Like the assembly, evaluates the value before the target
+			List<Expr> target = new ArrayList<Expr>();
+			if (ast.left() instanceof Field)
+				target.add(((Field) ast.left()).arg());
+			else if (ast.left() instanceof Index) {
+				target.add(((Index) ast.left()).left());
+				target.add(((Index) ast.left()).right());
+			}
+			int value = commutes(ast.right(), target) ? -1 : evaluateToLocal(ast.right());
+
+			if (ast.left() instanceof Var) {
+				Var var = (Var) ast.left();
+				code.local(ALOAD, 0, 1);
+				pushValue(ast.right(), value);
+				putField(currentClass.sym, var.name);
+			} else if (ast.left() instanceof Field) {
+				Field field = (Field) ast.left();
+				eg.visit(field.arg(), null);
+				pushValue(ast.right(), value);
+				putField((ClassSymbol) typeOf(field.arg()), field.fieldName);
+			} else {
+				Index index = (Index) ast.left();
+				arrayAndIndex(index);
+				pushValue(ast.right(), value);
+				code.op(arrayStoreOpcode(typeOf(index.left())), -3);
+			}
+			return null;
+		}
+
+		@Override
+		public Void builtInWrite(BuiltInWrite ast, Void arg) {
+			runtime();
+			eg.visit(ast.arg(), null);
+			code.op2(INVOKEVIRTUAL, cf.methodConstant(RUNTIME, "write", "(I)V"), -2);
+			return null;
+		}
+
+		@Override
+		public Void builtInWriteFloat(BuiltInWriteFloat ast, Void arg) {
+			runtime();
+			eg.visit(ast.arg(), null);
+			code.op2(INVOKEVIRTUAL, cf.methodConstant(RUNTIME, "writef", "(F)V"), -2);
+			return null;
+		}
+
+		@Override
+		public Void builtInWriteln(BuiltInWriteln ast, Void arg) {
+			runtime();
+			code.op2(INVOKEVIRTUAL, cf.methodConstant(RUNTIME, "writeln", "()V"), -1);
+			return null;
+		}
+
+		@Override
+		public Void ifElse(IfElse ast, Void arg) {
+			Label otherwise = new Label(), end = new Label();
+			branch(ast.condition(), otherwise, false);
+			visit(ast.then(), null);
+			code.jump(GOTO, end, 0);
+			code.place(otherwise);
+			visit(ast.otherwise(), null);
+			code.place(end);
+			return null;
+		}
+
+		@Override
+		public Void whileLoop(WhileLoop ast, Void arg) {
+			// The condition is at the bottom, so each iteration has one jump
+			Label body = new Label(), condition = new Label();
+			code.jump(GOTO, condition, 0);
+			code.place(body);
+			visit(ast.body(), null);
+			code.place(condition);
+			branch(ast.condition(), body, true);
+			return null;
+		}
+
+		@Override
+		public Void returnStmt(ReturnStmt ast, Void arg) {
+			if (ast.arg() == null)
+				code.op(RETURN, 0);
+			else {
+				eg.visit(ast.arg(), null);
+				code.op(returnOpcode(currentMethod.sym.returnType), -1);
+			}
+			return null;
+		}
+
+		@Override
+		public Void methodCall(MethodCall ast, Void arg) {
+			if (call(ast.receiver(), ast.methodName, ast.argumentsWithoutReceiver()) != null)
+				code.op(POP, -1);
+			return null;
+		}
+	}
+
+	/** Pushes the values of expressions on the stack. */
+	private class Expressions extends ExprVisitor<Void, Void> {
+
+		@Override
+		public Void intConst(IntConst ast, Void arg) {
+			pushInt(ast.value);
+			return null;
+		}
+
+		@Override
+		public Void floatConst(FloatConst ast, Void arg) {
+			if (Float.floatToRawIntBits(ast.value) == 0)
+				code.op(FCONST_0, 1);
+			else
+				ldc(cf.floatConstant(ast.value));
+			return null;
+		}
+
+		@Override
+		public Void booleanConst(BooleanConst ast, Void arg) {
+			pushInt(ast.value ? 1 : 0);
+			return null;
+		}
+
+		@Override
+		public Void nullConst(NullConst ast, Void arg) {
+			code.op(ACONST_NULL, 1);
+			return null;
+		}
+
+		@Override
+		public Void thisRef(ThisRef ast, Void arg) {
+			code.local(ALOAD, 0, 1);
+			return null;
+		}
+
+		@Override
+		public Void var(Var ast, Void arg) {
+			// Like the semantic analysis, a name which is no local variable
+			// or parameter is a field
+			if (isLocal(ast))
+				code.local(loadOpcode(typeOf(ast)), slots.get(ast.name), 1);
+			else {
+				code.local(ALOAD, 0, 1);
+				getField(currentClass.sym, ast.name);
+			}
+			return null;
+		}
+
+		@Override
+		public Void field(Field ast, Void arg) {
+			visit(ast.arg(), null);
+			getField((ClassSymbol) typeOf(ast.arg()), ast.fieldName);
+			return null;
+		}
+
+		@Override
+		public Void index(Index ast, Void arg) {
+			arrayAndIndex(ast);
+			code.op(arrayLoadOpcode(typeOf(ast.left())), -1);
+			return null;
+		}
+
+		@Override
+		public Void cast(Cast ast, Void arg) {
+			visit(ast.arg(), null);
+			// Casts to Object and upcasts always succeed
+			if (ast.typeName.equals("Object"))
+				return null;
+			if (typeOf(ast.arg()) instanceof ClassSymbol)
+				for (ClassSymbol c = (ClassSymbol) typeOf(ast.arg()); c != null; c = c.superClass)
+					if (c.name.equals(ast.typeName))
+						return null;
+			int type = cf.classConstant(classOrArrayName(ast.typeName));
+			if (ast.typeName.contains("[")) {
+				// Javali arrays are not covariant, their class has to match
+				Label ok = new Label();
+				code.op(DUP, 1);
+				code.jump(IFNULL, ok, -1);
+				code.op(DUP, 1);
+				code.op2(INVOKEVIRTUAL, cf.methodConstant(OBJECT, "getClass", "()Ljava/lang/Class;"), 0);
+				ldc(type);
+				code.jump(IF_ACMPEQ, ok, -2);
+				String exception = "java/lang/ClassCastException";
+				code.op2(NEW, cf.classConstant(exception), 1);
+				code.op(DUP, 1);
+				code.op2(INVOKESPECIAL, cf.methodConstant(exception, "<init>", "()V"), -1);
+				code.op(ATHROW, -1);
+				code.place(ok);
+			}
+			code.op2(CHECKCAST, type, 0);
+			return null;
+		}
+
+		@Override
+		public Void binaryOp(BinaryOp ast, Void arg) {
+			if (isCondition(ast)) {
+				condition(ast);
+				return null;
+			}
+			visit(ast.left(), null);
+			visit(ast.right(), null);
+			boolean isFloat = typeOf(ast.left()).name.equals("float");
+			switch (ast.operator) {
+			case B_PLUS:
+				code.op(isFloat ? FADD : IADD, -1);
+				break;
+			case B_MINUS:
+				code.op(isFloat ? FSUB : ISUB, -1);
+				break;
+			case B_TIMES:
+				code.op(isFloat ? FMUL : IMUL, -1);
+				break;
+			case B_DIV:
+				code.op(isFloat ? FDIV : IDIV, -1);
+				break;
+			case B_MOD:
+				code.op(isFloat ? FREM : IREM, -1);
+				break;
+			default:
+				throw new RuntimeException("Unexpected operator " + ast.operator);
+			}
+			return null;
+		}
+
+		@Override
+		public Void unaryOp(UnaryOp ast, Void arg) {
+			if (ast.operator == UOp.U_BOOL_NOT) {
+				visit(ast.arg(), null);
+				pushInt(1);
+				code.op(IXOR, -1);
+			} else if (ast.operator == UOp.U_MINUS) {
+				visit(ast.arg(), null);
+				code.op(typeOf(ast.arg()).name.equals("float") ? FNEG : INEG, 0);
+			} else
+				visit(ast.arg(), null);
+			return null;
+		}
+
+		@Override
+		public Void builtInRead(BuiltInRead ast, Void arg) {
+			runtime();
+			code.op2(INVOKEVIRTUAL, cf.methodConstant(RUNTIME, "read", "()I"), 0);
+			return null;
+		}
+
+		@Override
+		public Void builtInReadFloat(BuiltInReadFloat ast, Void arg) {
+			runtime();
+			code.op2(INVOKEVIRTUAL, cf.methodConstant(RUNTIME, "readf", "()F"), 0);
+			return null;
+		}
+
+		@Override
+		public Void newObject(NewObject ast, Void arg) {
+			String name = className(ast.typeName);
+			code.op2(NEW, cf.classConstant(name), 1);
+			code.op(DUP, 1);
+			code.op2(INVOKESPECIAL, cf.methodConstant(name, "<init>", "()V"), -1);
+			return null;
+		}
+
+		@Override
+		public Void newArray(NewArray ast, Void arg) {
+			visit(ast.arg(), null);
+			String elementType = ast.typeName.split("\\[")[0].trim();
+			if (elementType.equals("int"))
+				code.op1(NEWARRAY, T_INT, 0);
+			else if (elementType.equals("boolean"))
+				code.op1(NEWARRAY, T_BOOLEAN, 0);
+			else if (elementType.equals("float"))
+				code.op1(NEWARRAY, T_FLOAT, 0);
+			else
+				code.op2(ANEWARRAY, cf.classConstant(className(elementType)), 0);
+			return null;
+		}
+
+		@Override
+		public Void methodCall(MethodCallExpr ast, Void arg) {
+			call(ast.receiver(), ast.methodName, ast.argumentsWithoutReceiver());
+			return null;
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Conditions
+
+	private static boolean isCondition(BinaryOp ast) {
+		switch (ast.operator) {
+		case B_AND:
+		case B_OR:
+		case B_EQUAL:
+		case B_NOT_EQUAL:
+		case B_LESS_THAN:
+		case B_LESS_OR_EQUAL:
+		case B_GREATER_THAN:
+		case B_GREATER_OR_EQUAL:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** Pushes 1 if {@code ast} is true, 0 otherwise. */
+	private void condition(Expr ast) {
+		Label isTrue = new Label(), end = new Label();
+		int depth = code.depth();
+		branch(ast, isTrue, true);
+		pushInt(0);
+		code.jump(GOTO, end, 0);
+		code.setDepth(depth);
+		code.place(isTrue);
+		pushInt(1);
+		code.place(end);
+	}
+
+	/** Jumps to {@code target} if {@code ast} is {@code jumpIf}. */
+	private void branch(Expr ast, Label target, boolean jumpIf) {
+		if (ast instanceof BooleanConst) {
+			if (((BooleanConst) ast).value == jumpIf)
+				code.jump(GOTO, target, 0);
+			return;
+		}
+		if (ast instanceof UnaryOp && ((UnaryOp) ast).operator == UOp.U_BOOL_NOT) {
+			branch(((UnaryOp) ast).arg(), target, !jumpIf);
+			return;
+		}
+		if (!(ast instanceof BinaryOp) || !isCondition((BinaryOp) ast)) {
+			eg.visit(ast, null);
+			code.jump(jumpIf ? IFNE : IFEQ, target, -1);
+			return;
+		}
+
+		BinaryOp op = (BinaryOp) ast;
+		if (op.operator == BOp.B_AND || op.operator == BOp.B_OR) {
+			// The right operand decides unless the left one does
+			boolean decidingValue = op.operator == BOp.B_OR;
+			if (decidingValue == jumpIf) {
+				branch(op.left(), target, jumpIf);
+				branch(op.right(), target, jumpIf);
+			} else {
+				Label skip = new Label();
+				branch(op.left(), skip, decidingValue);
+				branch(op.right(), target, jumpIf);
+				code.place(skip);
+			}
+			return;
+		}
+
+		eg.visit(op.left(), null);
+		eg.visit(op.right(), null);
+		String type = typeOf(op.left()).name;
+		if (type.equals("float")) {
+			// fcmpg gives 1 and fcmpl -1 for NaN, so that < and > are false
+			boolean less = op.operator == BOp.B_LESS_THAN || op.operator == BOp.B_LESS_OR_EQUAL;
+			code.op(less ? FCMPG : FCMPL, -1);
+			code.jump(jumpIf ? compareWithZero(op.operator) : compareWithZero(negate(op.operator)),
+					target, -1);
+		} else {
+			int opcode = compareInts(jumpIf ? op.operator : negate(op.operator));
+			if (typeOf(op.left()).isReferenceType())
+				opcode = opcode == IF_ICMPEQ ? IF_ACMPEQ : IF_ACMPNE;
+			code.jump(opcode, target, -2);
+		}
+	}
+
+	private static BOp negate(BOp operator) {
+		switch (operator) {
+		case B_EQUAL:
+			return BOp.B_NOT_EQUAL;
+		case B_NOT_EQUAL:
+			return BOp.B_EQUAL;
+		case B_LESS_THAN:
+			return BOp.B_GREATER_OR_EQUAL;
+		case B_LESS_OR_EQUAL:
+			return BOp.B_GREATER_THAN;
+		case B_GREATER_THAN:
+			return BOp.B_LESS_OR_EQUAL;
+		default:
+			return BOp.B_LESS_THAN;
+		}
+	}
+
+	private static int compareWithZero(BOp operator) {
+		return compareInts(operator) - (IF_ICMPEQ - IFEQ);
+	}
+
+	private static int compareInts(BOp operator) {
+		switch (operator) {
+		case B_EQUAL:
+			return IF_ICMPEQ;
+		case B_NOT_EQUAL:
+			return IF_ICMPNE;
+		case B_LESS_THAN:
+			return IF_ICMPLT;
+		case B_LESS_OR_EQUAL:
+			return IF_ICMPLE;
+		case B_GREATER_THAN:
+			return IF_ICMPGT;
+		default:
+			return IF_ICMPGE;
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Evaluation order
+
+	/**
+	 * Calls a method of {@code receiver}, leaving its result on the stack.
+	 * Like the assembly, the receiver is checked before the arguments are
+	 * evaluated, from the last to the first. Returns the return type, null
+	 * for void methods.
+	 */
+	private TypeSymbol call(Expr receiver, String methodName, List<Expr> arguments) {
+		ClassSymbol receiverType = (ClassSymbol) typeOf(receiver);
+		MethodSymbol method = receiverType.getMethod(methodName);
+		eg.visit(receiver, null);
+
+		boolean hasEffects = false;
+		for (Expr argument : arguments)
+			hasEffects |= effect(argument) == Effect.OTHER;
+		if (hasEffects && !(receiver instanceof ThisRef))
+			nullCheck();
+
+		boolean inOrder = true;
+		for (int i = 0; i < arguments.size(); i++)
+			for (int j = i + 1; j < arguments.size(); j++)
+				inOrder &= commutes(arguments.get(i), arguments.get(j));
+		int[] values = new int[arguments.size()];
+		for (int i = arguments.size() - 1; i >= 0; i--)
+			values[i] = inOrder ? -1 : evaluateToLocal(arguments.get(i));
+		for (int i = 0; i < arguments.size(); i++)
+			pushValue(arguments.get(i), values[i]);
+
+		int stackChange = -1 - arguments.size() + (method.returnType == null ? 0 : 1);
+		code.op2(INVOKEVIRTUAL, cf.methodConstant(className(receiverType.name), "m_" + methodName,
+				descriptor(method)), stackChange);
+		return method.returnType;
+	}
+
+	/**
+	 * Pushes the array and index of {@code ast}, checking the array for null
+	 * before the index is evaluated if that can fail or has side effects.
+	 */
+	private void arrayAndIndex(Index ast) {
+		eg.visit(ast.left(), null);
+		if (effect(ast.right()) == Effect.OTHER)
+			nullCheck();
+		eg.visit(ast.right(), null);
+	}
+
+	/** Throws a NullPointerException if the reference on the stack is null. */
+	private void nullCheck() {
+		code.op(DUP, 1);
+		code.op2(INVOKEVIRTUAL, cf.methodConstant(OBJECT, "getClass", "()Ljava/lang/Class;"), 0);
+		code.op(POP, -1);
+	}
+
+	/**
+	 * Evaluates {@code ast} into a new local and returns it, or -1 if the
+	 * value is stable and can be computed when needed.
+	 */
+	private int evaluateToLocal(Expr ast) {
+		if (effect(ast) == Effect.STABLE)
+			return -1;
+		TypeSymbol type = typeOf(ast);
+		eg.visit(ast, null);
+		int slot = code.newLocal();
+		code.local(storeOpcode(type), slot, -1);
+		return slot;
+	}
+
+	/** Pushes the value of {@code ast}, which is in {@code slot} unless that is -1. */
+	private void pushValue(Expr ast, int slot) {
+		if (slot < 0)
+			eg.visit(ast, null);
+		else
+			code.local(loadOpcode(typeOf(ast)), slot, 1);
+	}
+
+	/** True if {@code ast} can be evaluated after all of {@code others}. */
+	private boolean commutes(Expr ast, List<Expr> others) {
+		for (Expr other : others)
+			if (!commutes(ast, other))
+				return false;
+		return true;
+	}
+
+	private boolean commutes(Expr a, Expr b) {
+		Effect ea = effect(a), eb = effect(b);
+		return ea == Effect.STABLE || eb == Effect.STABLE
+				|| (ea == Effect.PURE && eb == Effect.PURE);
+	}
+
+	private Effect effect(Expr ast) {
+		if (ast instanceof IntConst || ast instanceof FloatConst || ast instanceof BooleanConst
+				|| ast instanceof NullConst || ast instanceof ThisRef || ast instanceof NewObject)
+			return Effect.STABLE;
+		if (ast instanceof Var)
+			return isLocal((Var) ast) ? Effect.STABLE : Effect.PURE;
+		if (ast instanceof UnaryOp)
+			return effect(((UnaryOp) ast).arg());
+		if (ast instanceof BinaryOp) {
+			BinaryOp op = (BinaryOp) ast;
+			if ((op.operator == BOp.B_DIV || op.operator == BOp.B_MOD)
+					&& !typeOf(op.left()).name.equals("float"))
+				return Effect.OTHER;
+			Effect left = effect(op.left()), right = effect(op.right());
+			return left.compareTo(right) > 0 ? left : right;
+		}
+		return Effect.OTHER;
+	}
+
+	// ---------------------------------------------------------------
+	// Helpers
+
+	private boolean isLocal(Var ast) {
+		return slots.containsKey(ast.name);
+	}
+
+	private void runtime() {
+		code.op2(GETSTATIC, cf.fieldConstant(HOLDER, JvmRuntime.HOLDER_FIELD, "L" + RUNTIME + ";"), 1);
+	}
+
+	private void getField(ClassSymbol sym, String name) {
+		ClassSymbol owner = declaringClass(sym, name);
+		code.op2(GETFIELD, cf.fieldConstant(className(owner.name), "f_" + name,
+				descriptor(owner.fields.get(name).type)), 0);
+	}
+
+	private void putField(ClassSymbol sym, String name) {
+		ClassSymbol owner = declaringClass(sym, name);
+		code.op2(PUTFIELD, cf.fieldConstant(className(owner.name), "f_" + name,
+				descriptor(owner.fields.get(name).type)), -2);
+	}
+
+	/** Returns the class which declares {@code field} first. */
+	private static ClassSymbol declaringClass(ClassSymbol sym, String field) {
+		ClassSymbol owner = null;
+		for (ClassSymbol c = sym; c != null; c = c.superClass)
+			if (c.fields.containsKey(field))
+				owner = c;
+		return owner;
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5)
+			code.op(ICONST_0 + value, 1);
+		else if (value == (byte) value)
+			code.op1(BIPUSH, value, 1);
+		else if (value == (short) value)
+			code.op2(SIPUSH, value, 1);
+		else
+			ldc(cf.intConstant(value));
+	}
+
+	private void ldc(int index) {
+		if (index > 0xFF)
+			code.op2(LDC_W, index, 1);
+		else
+			code.op1(LDC, index, 1);
+	}
+
+	private void pushZero(TypeSymbol type) {
+		if (type.name.equals("float"))
+			code.op(FCONST_0, 1);
+		else if (type.isReferenceType())
+			code.op(ACONST_NULL, 1);
+		else
+			code.op(ICONST_0, 1);
+	}
+
+	/**
+	 * Returns the type of {@code ast}. The semantic analysis gives field
+	 * accesses the type of their receiver, the field has the actual one.
+	 */
+	private TypeSymbol typeOf(Expr ast) {
+		if (ast instanceof Field)
+			return ((Field) ast).sym.type;
+		if (ast instanceof Var && ast.type == null) {
+			Var var = (Var) ast;
+			VariableSymbol sym = currentMethod.sym.locals.get(var.name);
+			for (VariableSymbol parameter : currentMethod.sym.parameters)
+				if (parameter.name.equals(var.name))
+					sym = parameter;
+			if (sym == null)
+				sym = currentClass.sym.getField(var.name);
+			return sym.type;
+		}
+		// The semantic analysis leaves the types of the built-in reads and
+		// of new arrays out, the latter is only needed to be a reference
+		if (ast instanceof BuiltInRead)
+			return INT;
+		if (ast instanceof BuiltInReadFloat)
+			return FLOAT;
+		if (ast instanceof NewArray && ast.type == null)
+			return new ArrayTypeSymbol(new PrimitiveTypeSymbol(((NewArray) ast).typeName.split("\\[")[0].trim()));
+		return ast.type;
+	}
+
+	private static int loadOpcode(TypeSymbol type) {
+		return type.name.equals("float") ? FLOAD : type.isReferenceType() ? ALOAD : ILOAD;
+	}
+
+	private static int storeOpcode(TypeSymbol type) {
+		return type.name.equals("float") ? FSTORE : type.isReferenceType() ? ASTORE : ISTORE;
+	}
+
+	private static int returnOpcode(TypeSymbol type) {
+		return type.name.equals("float") ? FRETURN : type.isReferenceType() ? ARETURN : IRETURN;
+	}
+
+	private static int arrayLoadOpcode(TypeSymbol arrayType) {
+		return arrayStoreOpcode(arrayType) - (IASTORE - IALOAD);
+	}
+
+	private static int arrayStoreOpcode(TypeSymbol arrayType) {
+		TypeSymbol elementType = ((ArrayTypeSymbol) arrayType).elementType;
+		if (elementType.name.equals("int"))
+			return IASTORE;
+		if (elementType.name.equals("boolean"))
+			return BASTORE;
+		if (elementType.name.equals("float"))
+			return FASTORE;
+		return AASTORE;
+	}
+
+	/** The internal name of a Javali class. */
+	private static String className(String name) {
+		return name.equals("Object") ? OBJECT : "javali/" + name;
+	}
+
+	/** The internal name of a class, or the descriptor of an array type. */
+	private static String classOrArrayName(String typeName) {
+		return typeName.contains("[") ? descriptor(typeName) : className(typeName);
+	}
+
+	private static String descriptor(MethodSymbol method) {
+		StringBuilder descriptor = new StringBuilder("(");
+		for (VariableSymbol parameter : method.parameters)
+			descriptor.append(descriptor(parameter.type));
+		descriptor.append(")");
+		// Void methods have no return type
+		descriptor.append(method.returnType == null ? "V" : descriptor(method.returnType));
+		return descriptor.toString();
+	}
+
+	private static String descriptor(TypeSymbol type) {
+		return descriptor(type.name);
+	}
+
+	private static String descriptor(String typeName) {
+		typeName = typeName.trim();
+		if (typeName.endsWith("[]"))
+			return "[" + descriptor(typeName.substring(0, typeName.length() - 2));
+		if (typeName.equals("int"))
+			return "I";
+		if (typeName.equals("boolean"))
+			return "Z";
+		if (typeName.equals("float"))
+			return "F";
+		if (typeName.equals("void"))
+			return "V";
+		return "L" + className(typeName) + ";";
+	}
+}
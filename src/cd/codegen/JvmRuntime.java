@@ -0,0 +1,246 @@
+package cd.codegen;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Map;
+
+/**
+ * The built-in functions of the classes generated by
+ * {@link JvmCodeGenerator}, which read and write like the scanf and printf
+ * calls of the assembly, and the loader which runs them. Each program gets
+ * its own class loader and instance of the runtime, so that several
+ * programs can run at once.
+ */
+public class JvmRuntime {
+
+	/** The binary name of the class whose static field holds the runtime. */
+	static final String HOLDER = "javali.$Io";
+
+	/** The name of that field. */
+	static final String HOLDER_FIELD = "io";
+
+	/** The stack of the thread running a program, as large as a native one. */
+	private static final long STACK_SIZE = 256L << 20;
+
+	private final PushbackReader in;
+	private final Writer out;
+
+	public JvmRuntime(Reader in, Writer out) {
+		this.in = new PushbackReader(in);
+		this.out = out;
+	}
+
+	public void write(int value) throws IOException {
+		out.write(Integer.toString(value));
+	}
+
+	/** Writes {@code value} as printf's %f does. */
+	public void writef(float value) throws IOException {
+		if (Float.isNaN(value)) {
+			out.write(Float.floatToRawIntBits(value) < 0 ? "-nan" : "nan");
+			return;
+		}
+		// Negative values which round to zero keep their sign
+		if (Float.floatToRawIntBits(value) < 0) {
+			out.write('-');
+			value = -value;
+		}
+		if (Float.isInfinite(value))
+			out.write("inf");
+		else
+			out.write(new BigDecimal(value).setScale(6, RoundingMode.HALF_EVEN).toPlainString());
+	}
+
+	public void writeln() throws IOException {
+		out.write('\n');
+	}
+
+	/** Reads an int as scanf's %d does, returning 0 if there is none. */
+	public int read() throws IOException {
+		StringBuilder number = new StringBuilder();
+		int c = skipWhitespace();
+		if (c == '-' || c == '+') {
+			number.append((char) c);
+			c = in.read();
+		}
+		int digits = 0;
+		while (c >= '0' && c <= '9') {
+			number.append((char) c);
+			digits++;
+			c = in.read();
+		}
+		unread(c);
+		if (digits == 0)
+			return 0;
+		// Like strtol, out of range values are clamped
+		BigDecimal value = new BigDecimal(number.toString());
+		if (value.compareTo(BigDecimal.valueOf(Integer.MAX_VALUE)) > 0)
+			return Integer.MAX_VALUE;
+		if (value.compareTo(BigDecimal.valueOf(Integer.MIN_VALUE)) < 0)
+			return Integer.MIN_VALUE;
+		return value.intValue();
+	}
+
+	/** Reads a float as scanf's %f does, returning 0 if there is none. */
+	public float readf() throws IOException {
+		StringBuilder number = new StringBuilder();
+		int c = skipWhitespace();
+		if (c == '-' || c == '+') {
+			number.append((char) c);
+			c = in.read();
+		}
+		int digits = 0;
+		while (c >= '0' && c <= '9') {
+			number.append((char) c);
+			digits++;
+			c = in.read();
+		}
+		if (c == '.') {
+			number.append('.');
+			c = in.read();
+			while (c >= '0' && c <= '9') {
+				number.append((char) c);
+				digits++;
+				c = in.read();
+			}
+		}
+		if (digits > 0 && (c == 'e' || c == 'E')) {
+			int exponentStart = number.length();
+			number.append('e');
+			c = in.read();
+			if (c == '-' || c == '+') {
+				number.append((char) c);
+				c = in.read();
+			}
+			int exponentDigits = 0;
+			while (c >= '0' && c <= '9') {
+				number.append((char) c);
+				exponentDigits++;
+				c = in.read();
+			}
+			if (exponentDigits == 0)
+				number.setLength(exponentStart);
+		}
+		unread(c);
+		if (digits == 0)
+			return 0;
+		return Float.parseFloat(number.toString());
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c = in.read();
+		while (c != -1 && Character.isWhitespace(c))
+			c = in.read();
+		return c;
+	}
+
+	private void unread(int c) throws IOException {
+		if (c != -1)
+			in.unread(c);
+	}
+
+	/**
+	 * Loads {@code classes}, the binary names and class files generated by
+	 * {@link JvmCodeGenerator}, and runs {@code main()} of {@code Main}.
+	 * An exception is reported like the assembly does: the message is
+	 * written to {@code out}, and its exit code returned. Returns 0 if the
+	 * program ends normally. {@code out} is flushed, but not closed.
+	 */
+	public static int run(final Map<String, byte[]> classes, Reader in, final Writer out)
+			throws IOException {
+		ClassLoader loader = new ClassLoader(JvmRuntime.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				byte[] bytes = classes.get(name);
+				if (bytes == null)
+					throw new ClassNotFoundException(name);
+				return defineClass(name, bytes, 0, bytes.length);
+			}
+		};
+
+		final Object main;
+		try {
+			loader.loadClass(HOLDER).getField(HOLDER_FIELD).set(null, new JvmRuntime(in, out));
+			main = loader.loadClass("javali.Main").getConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Deep recursion needs more stack than the JVM gives threads by default
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					main.getClass().getMethod("m_main").invoke(main);
+				} catch (InvocationTargetException e) {
+					failure[0] = e.getCause();
+				} catch (ReflectiveOperationException e) {
+					failure[0] = e;
+				}
+			}
+		}, "javali", STACK_SIZE);
+		// A program which does not end must not keep the JVM alive after
+		// the caller gave up on it
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			thread.interrupt();
+			throw new RuntimeException(e);
+		}
+
+		int code = 0;
+		if (failure[0] instanceof StackOverflowError)
+			// The native program dies of a segmentation fault
+			code = 128 + 11;
+		else if (failure[0] != null) {
+			code = exitCode(failure[0]);
+			out.write(message(code));
+		}
+		out.flush();
+		return code;
+	}
+
+	/** The exit code of the assembly for {@code failure}. */
+	private static int exitCode(Throwable failure) throws IOException {
+		if (failure instanceof ClassCastException)
+			return 1;
+		if (failure instanceof ArrayIndexOutOfBoundsException)
+			return 3;
+		if (failure instanceof NullPointerException)
+			return 4;
+		if (failure instanceof NegativeArraySizeException)
+			return 5;
+		if (failure instanceof ArithmeticException)
+			return 8;
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new RuntimeException(failure);
+	}
+
+	/** The message {@link StdLibEmitter} writes for {@code code}. */
+	private static String message(int code) {
+		switch (code) {
+		case 1:
+			return "EXCEPTION: Invalid cast.\n";
+		case 3:
+			return "EXCEPTION: Array index out of bounds.\n";
+		case 4:
+			return "EXCEPTION: Null pointer.\n";
+		case 5:
+			return "EXCEPTION: Illegal Array Size.\n";
+		default:
+			return "EXCEPTION: Division by zero.\n";
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cd.Config;
+import cd.codegen.InstructionSelector.Operand;
+import cd.ir.Ast;
+import cd.ir.Ast.Assign;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.Nop;
+import cd.ir.Ast.NullConst;
+import cd.ir.Ast.Seq;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.WhileLoop;
+
+/**
+ * Recognizes loops which fill an array with a value or copy one array into
+ * another,
+ *
+ * <pre>
+ * while (i &lt; n) { a[i] = v; i = i + 1; }
+ * while (i &lt; n) { a[i] = b[i]; i = i + 1; }
+ * </pre>
+ *
+ * where i, a and b are local variables and n and v are local variables or
+ * constants, and replaces them by rep stos and rep movs. The arrays are
+ * checked once up front: the checks of the first iteration in the order of
+ * the assignment, then that n is within the bounds. A later iteration can
+ * only fail with an index out of bounds exception, too, and the elements
+ * written before are never seen, as the exception ends the program.
+ */
+class LoopIdioms {
+
+	private final AstCodeGenerator acg;
+
+	LoopIdioms(AstCodeGenerator astCodeGenerator) {
+		this.acg = astCodeGenerator;
+	}
+
+	/**
+	 * A loop {@code while (i < n) { ...; i = i + 1; }} which counts the local
+	 * int i up to a local or constant n, which the loop does not assign.
+	 */
+	static class CountedLoop {
+		final Var counter;
+		final Expr end;
+		/** The statements of the body before the increment. */
+		final List<Ast> body;
+
+		private CountedLoop(Var counter, Expr end, List<Ast> body) {
+			this.counter = counter;
+			this.end = end;
+			this.body = body;
+		}
+
+		/** Returns the counted loop {@code ast} is, or null. */
+		static CountedLoop match(AstCodeGenerator acg, WhileLoop ast) {
+			if (!(ast.condition() instanceof BinaryOp))
+				return null;
+			BinaryOp condition = (BinaryOp) ast.condition();
+			Expr counter, end;
+			if (condition.operator == BOp.B_LESS_THAN) {
+				counter = condition.left();
+				end = condition.right();
+			} else if (condition.operator == BOp.B_GREATER_THAN) {
+				counter = condition.right();
+				end = condition.left();
+			} else
+				return null;
+			if (!isLocal(acg, counter) || !counter.type.name.equals("int"))
+				return null;
+			String i = ((Var) counter).name;
+			if (!(end instanceof IntConst) && !isLocalOtherThan(acg, end, i))
+				return null;
+
+			List<Ast> body = new ArrayList<Ast>();
+			flatten(ast.body(), body);
+			if (body.isEmpty() || !isIncrement(body.get(body.size() - 1), i))
+				return null;
+			body.remove(body.size() - 1);
+			for (Ast statement : body)
+				if (!(statement instanceof Assign) || isVar(((Assign) statement).left(), i)
+						|| (end instanceof Var && isVar(((Assign) statement).left(), ((Var) end).name)))
+					return null;
+			return new CountedLoop((Var) counter, end, body);
+		}
+	}
+
+	/**
+	 * Emits code for {@code ast} if it is a fill or copy loop and returns
+	 * true. Returns false, without emitting anything, otherwise.
+	 */
+	public boolean generate(WhileLoop ast) {
+		if (!Config.LOOP_IDIOMS)
+			return false;
+		CountedLoop loop = CountedLoop.match(acg, ast);
+		if (loop == null || loop.body.size() != 1 || acg.registerPool.available() < 4)
+			return false;
+		String i = loop.counter.name;
+		Assign store = (Assign) loop.body.get(0);
+		Var target = array(store.left(), i);
+		if (target == null)
+			return false;
+		Var source = array(store.right(), i);
+		if (source != null) {
+			emitComment("Copy loop");
+			emitLoop(loop.counter, loop.end, source, target, null);
+			return true;
+		}
+		if (isConstant(store.right()) || isLocalOtherThan(acg, store.right(), i)) {
+			emitComment("Fill loop");
+			emitLoop(loop.counter, loop.end, null, target, store.right());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Emits the checks and a rep movs from {@code source}, or a rep stos of
+	 * {@code value} if there is no source, into {@code target}.
+	 */
+	private void emitLoop(Expr counter, Expr end, Var source, Var target, Expr value) {
+		String skip = uniqueLabel();
+		String index = acg.is.toRegister(acg.is.select(counter));
+		String endReg = acg.is.toRegister(acg.is.select(end));
+		emit(w("cmp"), index, endReg);
+		emit("jle", skip);
+
+		// The checks of the first iteration, where the value of an
+		// assignment is evaluated before its target, then that all
+		// iterations are within bounds
+		String sourceReg = source == null ? null : emitFirstChecks(source, index);
+		String targetReg = emitFirstChecks(target, index);
+		if (source != null)
+			emitEndCheck(sourceReg, endReg);
+		emitEndCheck(targetReg, endReg);
+
+		// The loop ends with i = n
+		emitMove(endReg, acg.is.select(counter).text);
+		emit(w("sub"), index, endReg);
+		emit(w("lea"), a(targetReg, index), targetReg);
+		if (source != null)
+			emit(w("lea"), a(sourceReg, index), sourceReg);
+		acg.registerPool.release(index);
+
+		// rep stos and movs work on fixed registers, which may hold
+		// variables
+		String ax = r("ax"), cx = r("cx"), di = r("di"), si = r("si");
+		List<String> saved = new ArrayList<String>();
+		for (String reg : new String[] { ax, cx, di, si })
+			if (acg.variableRegisters.containsValue(reg))
+				saved.add(reg);
+		for (String reg : saved)
+			emitPush(reg);
+		emitPush(endReg);
+		emitPush(targetReg);
+		acg.registerPool.release(endReg);
+		acg.registerPool.release(targetReg);
+		if (source != null) {
+			emitPush(sourceReg);
+			acg.registerPool.release(sourceReg);
+		} else {
+			Operand operand = acg.is.select(value);
+			emitPush(operand.text);
+			acg.is.release(operand);
+		}
+		emitPop(source == null ? ax : si);
+		emitPop(di);
+		emitPop(cx);
+		emit(source == null ? w("rep stos") : w("rep movs"));
+		for (int k = saved.size() - 1; k >= 0; k--)
+			emitPop(saved.get(k));
+		emitLabel(skip);
+	}
+
+	/**
+	 * Loads an array into a register and checks it as its first access at
+	 * {@code index} does.
+	 */
+	private String emitFirstChecks(Var array, String index) {
+		String reg = acg.is.toRegister(acg.is.select(array));
+		emitNullCheck(reg, Config.SIZEOF_PTR);
+		emit(w("cmp"), o(Config.SIZEOF_PTR, reg), index);
+		emit("jae", StdLibEmitter.INDEX_OUT_OF_BOUNDS_EXCEPTION);
+		return reg;
+	}
+
+	/**
+	 * Checks that all elements of the array in {@code reg} up to
+	 * {@code end} exist, where end &gt; index &gt;= 0.
+	 */
+	private static void emitEndCheck(String reg, String end) {
+		emit(w("cmp"), o(Config.SIZEOF_PTR, reg), end);
+		emit("ja", StdLibEmitter.INDEX_OUT_OF_BOUNDS_EXCEPTION);
+	}
+
+	/** Returns a if {@code ast} is a[i] for a local a, null otherwise. */
+	private Var array(Expr ast, String i) {
+		if (!(ast instanceof Index))
+			return null;
+		Index index = (Index) ast;
+		if (!isVar(index.right(), i) || !isLocalOtherThan(acg, index.left(), i))
+			return null;
+		return (Var) index.left();
+	}
+
+	/** True if {@code ast} is i = i + 1 or i = 1 + i. */
+	private static boolean isIncrement(Ast ast, String i) {
+		if (!(ast instanceof Assign))
+			return false;
+		Assign assign = (Assign) ast;
+		if (!isVar(assign.left(), i) || !(assign.right() instanceof BinaryOp))
+			return false;
+		BinaryOp sum = (BinaryOp) assign.right();
+		if (sum.operator != BOp.B_PLUS)
+			return false;
+		return (isVar(sum.left(), i) && isOne(sum.right()))
+				|| (isOne(sum.left()) && isVar(sum.right(), i));
+	}
+
+	static boolean isVar(Expr ast, String name) {
+		return ast instanceof Var && ((Var) ast).name.equals(name);
+	}
+
+	private static boolean isOne(Expr ast) {
+		return ast instanceof IntConst && ((IntConst) ast).value == 1;
+	}
+
+	static boolean isConstant(Expr ast) {
+		return ast instanceof IntConst || ast instanceof BooleanConst
+				|| ast instanceof NullConst || ast instanceof FloatConst;
+	}
+
+	static boolean isLocal(AstCodeGenerator acg, Expr ast) {
+		return ast instanceof Var && acg.is.isLocal((Var) ast);
+	}
+
+	static boolean isLocalOtherThan(AstCodeGenerator acg, Expr ast, String name) {
+		return isLocal(acg, ast) && !((Var) ast).name.equals(name);
+	}
+
+	/** Collects the statements of a block, leaving out empty ones. */
+	private static void flatten(Ast ast, List<Ast> statements) {
+		if (ast instanceof Seq) {
+			for (Ast child : ast.children())
+				flatten(child, statements);
+		} else if (!(ast instanceof Nop))
+			statements.add(ast);
+	}
+}
@@ -0,0 +1,374 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+import static cd.codegen.LoopIdioms.isLocalOtherThan;
+import static cd.codegen.LoopIdioms.isVar;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cd.Config;
+import cd.codegen.LoopIdioms.CountedLoop;
+import cd.ir.Ast;
+import cd.ir.Ast.Assign;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.WhileLoop;
+
+/**
+ * Vectorizes counted loops whose statements combine int or float arrays
+ * element by element, e.g.
+ *
+ * <pre>
+ * while (i &lt; n) { c[i] = a[i] * k + b[i]; i = i + 1; }
+ * while (i &lt; n) { s = s + a[i] * b[i]; i = i + 1; }
+ * </pre>
+ *
+ * The statements may store into a[i] and sum up one int variable, from
+ * a[i], locals and constants with +, - and *. As all arrays are accessed
+ * at i only, the iterations do not depend on each other and are done four
+ * at a time with SSE2, the iterations left over one at a time by the
+ * ordinary loop. Float sums are left alone, as adding them in another
+ * order changes the result.
+ *
+ * The arrays are checked once up front: the checks of the first iteration
+ * in the order the statements make them, then that n is within the bounds
+ * of each array. A later iteration can only fail with an index out of
+ * bounds exception, too, and the elements written before are never seen.
+ *
+ * Invariant operands are broadcast into the upper xmm registers before
+ * the loop, the sum is kept in %xmm7 and expressions are computed from
+ * %xmm0 upwards.
+ */
+class LoopVectorizer {
+
+	private static final int XMM_REGISTERS = 8;
+
+	private final AstCodeGenerator acg;
+
+	// The loop being vectorized: its counter, the arrays by name with their
+	// base register, the accesses in the order of the first iteration, the
+	// invariant operands with their register and the sum
+	private String counter;
+	private String sum;
+	private final Map<String, String> arrays = new LinkedHashMap<String, String>();
+	private final List<String> accesses = new ArrayList<String>();
+	private final Map<String, String> invariants = new LinkedHashMap<String, String>();
+	private final Map<String, Expr> invariantExprs = new LinkedHashMap<String, Expr>();
+
+	LoopVectorizer(AstCodeGenerator astCodeGenerator) {
+		this.acg = astCodeGenerator;
+	}
+
+	/**
+	 * Emits code for {@code ast} if it can be vectorized and returns true.
+	 * Returns false, without emitting anything, otherwise.
+	 */
+	public boolean generate(WhileLoop ast) {
+		if (!Config.VECTORIZE || !Config.SSE2 || Config.X64)
+			return false;
+		CountedLoop loop = CountedLoop.match(acg, ast);
+		if (loop == null || loop.body.isEmpty())
+			return false;
+		counter = loop.counter.name;
+		sum = null;
+		arrays.clear();
+		accesses.clear();
+		invariants.clear();
+		invariantExprs.clear();
+		for (Ast statement : loop.body)
+			if (!analyze((Assign) statement))
+				return false;
+
+		// Registers for the end of the vector loop, the counter and the
+		// arrays unless they live in registers already
+		int registers = 1;
+		for (String name : arrays.keySet())
+			if (!acg.variableRegisters.containsKey(name))
+				registers++;
+		if (!acg.variableRegisters.containsKey(counter))
+			registers++;
+		if (acg.registerPool.available() < registers)
+			return false;
+		int free = XMM_REGISTERS - invariants.size() - (sum != null ? 1 : 0);
+		for (Ast statement : loop.body)
+			if (registersNeeded(vectorValue((Assign) statement), 0) > free)
+				return false;
+		int xmm = free;
+		for (String key : invariants.keySet())
+			invariants.put(key, xmm(xmm++));
+
+		emitComment("Vectorized loop");
+		emitLoop(ast, loop);
+		return true;
+	}
+
+	/** Records the operands of a statement, returns false if it does not fit. */
+	private boolean analyze(Assign ast) {
+		Expr target = ast.left();
+		if (target instanceof Index) {
+			String type = target.type.name;
+			if (!(type.equals("int") || type.equals("float")))
+				return false;
+			if (!analyze(ast.right(), type))
+				return false;
+			return access(target);
+		}
+		// s = s + e or s = e + s, once per loop
+		if (sum != null || !isLocalOtherThan(acg, target, counter)
+				|| !target.type.name.equals("int") || !(ast.right() instanceof BinaryOp))
+			return false;
+		String name = ((Var) target).name;
+		BinaryOp plus = (BinaryOp) ast.right();
+		if (plus.operator != BOp.B_PLUS || invariantExprs.containsKey(name) || arrays.containsKey(name))
+			return false;
+		sum = name;
+		if (isVar(plus.left(), name))
+			return analyze(plus.right(), "int");
+		if (isVar(plus.right(), name))
+			return analyze(plus.left(), "int");
+		return false;
+	}
+
+	private boolean analyze(Expr ast, String type) {
+		if (!ast.type.name.equals(type))
+			return false;
+		if (ast instanceof Index)
+			return access(ast);
+		if (ast instanceof IntConst || ast instanceof FloatConst) {
+			invariantExprs.put(key(ast), ast);
+			invariants.put(key(ast), null);
+			return true;
+		}
+		if (ast instanceof Var) {
+			String name = ((Var) ast).name;
+			if (!isLocalOtherThan(acg, ast, counter) || name.equals(sum) || arrays.containsKey(name))
+				return false;
+			invariantExprs.put(key(ast), ast);
+			invariants.put(key(ast), null);
+			return true;
+		}
+		if (ast instanceof BinaryOp) {
+			BOp operator = ((BinaryOp) ast).operator;
+			if (operator != BOp.B_PLUS && operator != BOp.B_MINUS && operator != BOp.B_TIMES)
+				return false;
+			return analyze(((BinaryOp) ast).left(), type) && analyze(((BinaryOp) ast).right(), type);
+		}
+		return false;
+	}
+
+	/** Records an access a[i], in the order the scalar code makes them. */
+	private boolean access(Expr ast) {
+		Index index = (Index) ast;
+		if (!isVar(index.right(), counter) || !isLocalOtherThan(acg, index.left(), counter))
+			return false;
+		String name = ((Var) index.left()).name;
+		if (name.equals(sum) || invariantExprs.containsKey(name))
+			return false;
+		arrays.put(name, null);
+		accesses.add(name);
+		return true;
+	}
+
+	private static String key(Expr ast) {
+		if (ast instanceof IntConst)
+			return "$" + ((IntConst) ast).value;
+		if (ast instanceof FloatConst)
+			return "$" + Float.floatToRawIntBits(((FloatConst) ast).value);
+		return ((Var) ast).name;
+	}
+
+	/** Returns the value computed four times per iteration. */
+	private Expr vectorValue(Assign ast) {
+		if (ast.left() instanceof Index)
+			return ast.right();
+		BinaryOp plus = (BinaryOp) ast.right();
+		return isVar(plus.left(), sum) ? plus.right() : plus.left();
+	}
+
+	/** Returns the number of xmm registers {@link #emitVector} uses. */
+	private int registersNeeded(Expr ast, int depth) {
+		if (!(ast instanceof BinaryOp))
+			return depth + 1;
+		BinaryOp op = (BinaryOp) ast;
+		boolean intTimes = op.operator == BOp.B_TIMES && op.type.name.equals("int");
+		int needed = registersNeeded(op.left(), depth);
+		if (isInvariant(op.right()))
+			needed = Math.max(needed, depth + (intTimes ? 2 : 1));
+		else
+			needed = Math.max(needed, registersNeeded(op.right(), depth + 1));
+		return Math.max(needed, depth + (intTimes ? 3 : 1));
+	}
+
+	private static boolean isInvariant(Expr ast) {
+		return !(ast instanceof Index) && !(ast instanceof BinaryOp);
+	}
+
+	private static String xmm(int n) {
+		return "%xmm" + n;
+	}
+
+	private void emitLoop(WhileLoop ast, CountedLoop loop) {
+		String skip = uniqueLabel(), top = uniqueLabel(), done = uniqueLabel();
+		List<String> reserved = new ArrayList<String>();
+		String index = register(counter, reserved);
+		String end = acg.is.toRegister(acg.is.select(loop.end));
+		reserved.add(end);
+		emit("cmpl", index, end);
+		emit("jle", skip);
+		for (String name : arrays.keySet())
+			arrays.put(name, register(name, reserved));
+
+		// The checks of the first iteration, then that all iterations are
+		// within bounds
+		List<String> checked = new ArrayList<String>();
+		for (String name : accesses) {
+			if (checked.contains(name))
+				continue;
+			checked.add(name);
+			String base = arrays.get(name);
+			emitNullCheck(base, Config.SIZEOF_PTR);
+			emit("cmpl", o(Config.SIZEOF_PTR, base), index);
+			emit("jae", StdLibEmitter.INDEX_OUT_OF_BOUNDS_EXCEPTION);
+		}
+		for (String base : arrays.values()) {
+			emit("cmpl", o(Config.SIZEOF_PTR, base), end);
+			emit("ja", StdLibEmitter.INDEX_OUT_OF_BOUNDS_EXCEPTION);
+		}
+
+		for (Map.Entry<String, String> invariant : invariants.entrySet()) {
+			Expr value = invariantExprs.get(invariant.getKey());
+			InstructionSelector.Operand operand = acg.is.select(value);
+			String xmm = invariant.getValue();
+			if (operand.isImmediate()) {
+				emit("pushl", operand.text);
+				emit("movd", o(0, SP), xmm);
+				emitDeallocation(4);
+			} else
+				emit("movd", operand.text, xmm);
+			acg.is.release(operand);
+			emit("pshufd", c(0) + ", " + xmm, xmm);
+		}
+		String accumulator = xmm(XMM_REGISTERS - 1);
+		if (sum != null)
+			emit("pxor", accumulator, accumulator);
+
+		// The vector loop runs up to the last multiple of four iterations
+		String vectorEnd = end;
+		emit("subl", index, vectorEnd);
+		emit("andl", c(-4), vectorEnd);
+		emit("addl", index, vectorEnd);
+		emit("cmpl", index, vectorEnd);
+		emit("je", done);
+		emitLabel(top);
+		for (Ast statement : loop.body) {
+			Assign assign = (Assign) statement;
+			String value = emitVector(vectorValue(assign), 0, index);
+			if (assign.left() instanceof Index)
+				emit(move(assign.left()), value, element(assign.left(), index));
+			else
+				emit("paddd", value, accumulator);
+		}
+		emit("addl", c(4), index);
+		emit("cmpl", vectorEnd, index);
+		emit("jl", top);
+
+		emitLabel(done);
+		emitMove(index, acg.is.select(loop.counter).text);
+		if (sum != null) {
+			emit("pshufd", c(0x4e) + ", " + accumulator, xmm(0));
+			emit("paddd", xmm(0), accumulator);
+			emit("pshufd", c(0xb1) + ", " + accumulator, xmm(0));
+			emit("paddd", xmm(0), accumulator);
+			emit("movd", accumulator, vectorEnd);
+			emit("addl", vectorEnd, acg.is.select(new Var(sum)).text);
+		}
+		for (String reg : reserved)
+			acg.registerPool.release(reg);
+
+		// The remaining iterations
+		acg.sdg.emitLoop(ast, null);
+		emitLabel(skip);
+	}
+
+	/**
+	 * Returns the register of a local variable, a copy if it does not live
+	 * in one, which is added to {@code reserved}.
+	 */
+	private String register(String name, List<String> reserved) {
+		if (acg.variableRegisters.containsKey(name))
+			return acg.variableRegisters.get(name);
+		String reg = acg.is.toRegister(acg.is.select(new Var(name)));
+		reserved.add(reg);
+		return reg;
+	}
+
+	/** Computes four values of {@code ast} into %xmm{depth} and returns it. */
+	private String emitVector(Expr ast, int depth, String index) {
+		String dest = xmm(depth);
+		if (ast instanceof Index) {
+			emit(move(ast), element(ast, index), dest);
+			return dest;
+		}
+		if (isInvariant(ast)) {
+			emit("movdqa", invariants.get(key(ast)), dest);
+			return dest;
+		}
+		BinaryOp op = (BinaryOp) ast;
+		boolean isFloat = op.type.name.equals("float");
+		emitVector(op.left(), depth, index);
+		String src;
+		if (isInvariant(op.right()))
+			src = invariants.get(key(op.right()));
+		else
+			src = emitVector(op.right(), depth + 1, index);
+		switch (op.operator) {
+		case B_PLUS:
+			emit(isFloat ? "addps" : "paddd", src, dest);
+			break;
+		case B_MINUS:
+			emit(isFloat ? "subps" : "psubd", src, dest);
+			break;
+		case B_TIMES:
+			if (isFloat) {
+				emit("mulps", src, dest);
+				break;
+			}
+			// SSE2 only multiplies the even lanes into 64 bits: multiply
+			// the even and the odd lanes separately and interleave the low
+			// halves of the products
+			String odd = xmm(depth + 1), products = xmm(depth + 2);
+			if (!src.equals(odd))
+				emit("movdqa", src, odd);
+			emit("movdqa", dest, products);
+			emit("pmuludq", odd, products);
+			emit("psrlq", c(32), dest);
+			emit("psrlq", c(32), odd);
+			emit("pmuludq", odd, dest);
+			emit("pshufd", c(8) + ", " + products, products);
+			emit("pshufd", c(8) + ", " + dest, dest);
+			emit("punpckldq", dest, products);
+			emit("movdqa", products, dest);
+			break;
+		default:
+			throw new RuntimeException("Cannot vectorize " + op.operator);
+		}
+		return dest;
+	}
+
+	private static String move(Expr ast) {
+		return ast.type.name.equals("float") ? "movups" : "movdqu";
+	}
+
+	/** Returns the operand of the four elements of a[i] to a[i + 3]. */
+	private String element(Expr ast, String index) {
+		return a(arrays.get(((Var) ((Index) ast).left()).name), index);
+	}
+}
@@ -0,0 +1,52 @@
+package cd.codegen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The assembly of the methods of earlier compilations of a program, by a
+ * hash of everything their code depends on (see
+ * {@link AstCodeGenerator#methodKey}). The code of a method whose hash is
+ * unchanged is reused instead of generated again. Only the methods of the
+ * last compilation are kept.
+ */
+public class MethodCache {
+	private Map<String, String> previous = new HashMap<String, String>();
+	private Map<String, String> current = new HashMap<String, String>();
+	private int hits, misses;
+
+	/** Starts a compilation, dropping the methods the last one did not have. */
+	void startCompilation() {
+		previous = current;
+		current = new HashMap<String, String>();
+		hits = 0;
+		misses = 0;
+	}
+
+	/** Returns the code of the method with {@code key}, or null if there is none. */
+	String get(String key) {
+		String code = current.get(key);
+		if (code == null)
+			code = previous.get(key);
+		if (code == null)
+			return null;
+		current.put(key, code);
+		hits++;
+		return code;
+	}
+
+	void put(String key, String code) {
+		current.put(key, code);
+		misses++;
+	}
+
+	/** The number of methods of the last compilation whose code was reused. */
+	public int hits() {
+		return hits;
+	}
+
+	/** The number of methods of the last compilation whose code was generated. */
+	public int misses() {
+		return misses;
+	}
+}
@@ -0,0 +1,629 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cd.Config;
+
+/**
+ * A profiler built into the generated program. Every method calls
+ * {@link #ENTER} after its prologue and {@link #EXIT} before it returns,
+ * which read the time stamp counter and keep a shadow stack of the active
+ * methods. The cycles between two events are charged to the method on top
+ * of it. Each method has a record of its own:
+ *
+ * <pre>
+ * 0    calls         number of invocations
+ * 8    self cycles   spent in the method itself
+ * 16   total cycles  spent in the method and its callees
+ * 24   active        invocations on the shadow stack
+ * 32   name
+ * 40   other callers calls from callers which found no free slot
+ * 48   callers       {@link #CALLER_SLOTS} of: caller record, calls
+ * </pre>
+ *
+ * where the callers are only kept with {@link Config#PROFILE_CALLERS}. At
+ * exit the active methods are left and the flat profile, sorted by self
+ * cycles, and the callers of each method are written to
+ * {@link Config#PROFILE}. All counts have 64 bits.
+ */
+class MethodProfiler {
+
+	static final String ENTER = "Javali_prof_enter";
+	static final String EXIT = "Javali_prof_exit";
+	private static final String CHARGE = "Javali_prof_charge";
+	private static final String DUMP = "Javali_prof_dump";
+	private static final String RECORDS = "Javali_prof_records";
+	private static final String ROOT = "Javali_prof_root";
+	private static final String STACK = "Javali_prof_stack";
+	private static final String DEPTH = "Javali_prof_depth";
+	private static final String LAST = "Javali_prof_last";
+
+	/** The depth of the shadow stack; deeper calls are only counted. */
+	private static final int STACK_SIZE = 1 << 16;
+	private static final int CALLER_SLOTS = 8;
+
+	private static final int CALLS = 0, SELF = 8, TOTAL = 16, ACTIVE = 24,
+			NAME = 32, OTHER_CALLERS = 40, CALLERS = 48;
+
+	// The methods of the program, by label, in the order of their records
+	private final List<String> methods = new ArrayList<String>();
+
+	private static int recordSize() {
+		return Config.PROFILE_CALLERS ? CALLERS + 16 * CALLER_SLOTS : CALLERS;
+	}
+
+	/** Enters the current method, whose frame has been set up. */
+	void emitEnter(String className, String methodName) {
+		if (Config.PROFILE == null)
+			return;
+		String record = RECORDS + "+" + methods.size() * recordSize();
+		methods.add(className + "." + methodName);
+		if (Config.X64) {
+			emitLoadAddress(record, "%r11");
+			emit("call", ENTER);
+		} else {
+			emit("pushl", c(record));
+			emit("call", ENTER);
+			emitDeallocation(4);
+		}
+	}
+
+	/** Leaves the current method before it returns or jumps to a callee. */
+	void emitExit() {
+		if (Config.PROFILE != null)
+			emit("call", EXIT);
+	}
+
+	/** Makes main write the profile at exit, however the program ends. */
+	void emitRegistration() {
+		emitAtExit(DUMP);
+	}
+
+	/** Emits the records and the runtime, once all methods are known. */
+	void emitRuntime() {
+		emitSection(".data");
+		emit(".balign", "8");
+		emitLabel(RECORDS);
+		for (int i = 0; i < methods.size(); i++)
+			emitRecord("method_name_" + i);
+		emitLabel(ROOT);
+		emitRecord("method_name_root");
+		emitLabel(LAST);
+		emit(".quad", "0");
+		emitLabel(DEPTH);
+		emitConstantData("0");
+		emitSection(".bss");
+		emitLabel(STACK);
+		emit(".skip", Integer.toString(16 * STACK_SIZE));
+
+		emitSection(".section .rodata");
+		for (int i = 0; i < methods.size(); i++)
+			emitDeclaration("method_name_" + i, "string", "\"" + methods.get(i) + "\"");
+		emitDeclaration("method_name_root", "string", "\"<main>\"");
+		emitDeclaration("prof_file_name", "string", "\"" + Config.PROFILE.replace("\\", "\\\\") + "\"");
+		emitDeclaration("prof_file_mode", "string", "\"w\"");
+		emitDeclaration("prof_header", "string",
+				"\"%12s %16s %16s  %s\\n\"");
+		emitDeclaration("prof_calls", "string", "\"calls\"");
+		emitDeclaration("prof_self", "string", "\"self cycles\"");
+		emitDeclaration("prof_total", "string", "\"total cycles\"");
+		emitDeclaration("prof_method", "string", "\"method\"");
+		emitDeclaration("prof_line", "string", "\"%12llu %16llu %16llu  %s\\n\"");
+		emitDeclaration("prof_callers", "string", "\"\\nCallers:\\n\"");
+		emitDeclaration("prof_caller", "string", "\"%12llu  %s -> %s\\n\"");
+		emitDeclaration("prof_other", "string", "\"<other>\"");
+
+		emitSection(".text");
+		if (Config.X64)
+			emitRuntime64();
+		else
+			emitRuntime32();
+	}
+
+	private void emitRecord(String name) {
+		emit(".quad", "0, 0, 0, 0");
+		if (Config.X64)
+			emit(".quad", name);
+		else
+			emit(".int", name + ", 0");
+		emit(".quad", "0");
+		if (Config.PROFILE_CALLERS)
+			emit(".fill", 2 * CALLER_SLOTS + ", 8, 0");
+	}
+
+	// The runtime for x86. ENTER gets the record on the stack, CHARGE the
+	// time stamp in %edx:%eax and clobbers %ebx, %esi and %edi.
+	private void emitRuntime32() {
+		String skip = uniqueLabel();
+		emitFunctionLabel(CHARGE);
+		emit("movl", "%eax", "%esi");
+		emit("movl", "%edx", "%edi");
+		emit("subl", LAST, "%esi");
+		emit("sbbl", LAST + "+4", "%edi");
+		emit("movl", "%eax", LAST);
+		emit("movl", "%edx", LAST + "+4");
+		emit("movl", DEPTH, "%ebx");
+		emit("testl", "%ebx", "%ebx");
+		emit("je", skip);
+		emit("cmpl", c(STACK_SIZE), "%ebx");
+		emit("ja", skip);
+		emit("shll", c(4), "%ebx");
+		emit("movl", STACK + "-16(%ebx)", "%ebx");
+		emit("addl", "%esi", o(SELF, "%ebx"));
+		emit("adcl", "%edi", o(SELF + 4, "%ebx"));
+		emitLabel(skip);
+		emit("ret");
+
+		String unrecorded = uniqueLabel();
+		emitFunctionLabel(ENTER);
+		emit("pushal");
+		emit("rdtsc");
+		emit("call", CHARGE);
+		emit("movl", "36(%esp)", "%ecx");
+		emit("addl", c(1), o(CALLS, "%ecx"));
+		emit("adcl", c(0), o(CALLS + 4, "%ecx"));
+		if (Config.PROFILE_CALLERS)
+			emitCountCaller32();
+		emit("movl", DEPTH, "%ebx");
+		emit("cmpl", c(STACK_SIZE), "%ebx");
+		emit("jae", unrecorded);
+		emit("incl", o(ACTIVE, "%ecx"));
+		emit("shll", c(4), "%ebx");
+		emit("movl", "%ecx", STACK + "(%ebx)");
+		emit("movl", "%eax", STACK + "+8(%ebx)");
+		emit("movl", "%edx", STACK + "+12(%ebx)");
+		emitLabel(unrecorded);
+		emit("incl", DEPTH);
+		emit("popal");
+		emit("ret");
+
+		String done = uniqueLabel();
+		emitFunctionLabel(EXIT);
+		emit("pushal");
+		emit("rdtsc");
+		emit("call", CHARGE);
+		emit("decl", DEPTH);
+		emit("movl", DEPTH, "%ebx");
+		emit("cmpl", c(STACK_SIZE), "%ebx");
+		emit("jae", done);
+		emit("shll", c(4), "%ebx");
+		emit("movl", STACK + "(%ebx)", "%ecx");
+		// Recursive invocations are included in the outermost one
+		emit("decl", o(ACTIVE, "%ecx"));
+		emit("jne", done);
+		emit("subl", STACK + "+8(%ebx)", "%eax");
+		emit("sbbl", STACK + "+12(%ebx)", "%edx");
+		emit("addl", "%eax", o(TOTAL, "%ecx"));
+		emit("adcl", "%edx", o(TOTAL + 4, "%ecx"));
+		emitLabel(done);
+		emit("popal");
+		emit("ret");
+
+		emitDump32();
+	}
+
+	// Counts the call of the record in %ecx by the method on top of the
+	// shadow stack
+	private void emitCountCaller32() {
+		String top = uniqueLabel(), search = uniqueLabel(), found = uniqueLabel();
+		String free = uniqueLabel(), counted = uniqueLabel();
+		emit("movl", c(ROOT), "%esi");
+		emit("movl", DEPTH, "%ebx");
+		emit("testl", "%ebx", "%ebx");
+		emit("je", top);
+		emit("cmpl", c(STACK_SIZE), "%ebx");
+		emit("ja", top);
+		emit("shll", c(4), "%ebx");
+		emit("movl", STACK + "-16(%ebx)", "%esi");
+		emitLabel(top);
+		emit("leal", o(CALLERS, "%ecx"), "%ebx");
+		emit("movl", c(CALLER_SLOTS), "%edi");
+		emitLabel(search);
+		emit("cmpl", "%esi", "(%ebx)");
+		emit("je", found);
+		emit("cmpl", c(0), "(%ebx)");
+		emit("je", free);
+		emit("addl", c(16), "%ebx");
+		emit("decl", "%edi");
+		emit("jne", search);
+		emit("addl", c(1), o(OTHER_CALLERS, "%ecx"));
+		emit("adcl", c(0), o(OTHER_CALLERS + 4, "%ecx"));
+		emit("jmp", counted);
+		emitLabel(free);
+		emit("movl", "%esi", "(%ebx)");
+		emitLabel(found);
+		emit("addl", c(1), "8(%ebx)");
+		emit("adcl", c(0), "12(%ebx)");
+		emitLabel(counted);
+	}
+
+	private void emitDump32() {
+		String leave = uniqueLabel(), close = uniqueLabel(), done = uniqueLabel();
+		String select = uniqueLabel(), next = uniqueLabel(), better = uniqueLabel();
+		String print = uniqueLabel();
+		emitFunctionLabel(DUMP);
+		emitMethodPrefix();
+		for (String reg : CallingConvention.cCalleeSaved())
+			emitPush(reg);
+		// Leave the methods which are still active, e.g. after an exception
+		emitLabel(leave);
+		emit("cmpl", c(0), DEPTH);
+		emit("je", close);
+		emit("call", EXIT);
+		emit("jmp", leave);
+
+		emitLabel(close);
+		emit("pushl", c("prof_file_mode"));
+		emit("pushl", c("prof_file_name"));
+		emitLibCall(Config.FOPEN, 0);
+		emitDeallocation(8);
+		emit("testl", "%eax", "%eax");
+		emit("je", done);
+		emit("movl", "%eax", "%esi");
+		emit("pushl", c("prof_method"));
+		emit("pushl", c("prof_total"));
+		emit("pushl", c("prof_self"));
+		emit("pushl", c("prof_calls"));
+		emit("pushl", c("prof_header"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(24);
+
+		// Select the called record with the most self cycles which has not
+		// been printed yet, marked as active
+		emitLabel(select);
+		emit("xorl", "%edi", "%edi");
+		emit("movl", c(RECORDS), "%ebx");
+		emit("movl", c(methods.size()), "%ecx");
+		emitLabel(next);
+		emit("testl", "%ecx", "%ecx");
+		emit("je", print);
+		emit("decl", "%ecx");
+		emit("movl", "%ebx", "%eax");
+		emit("addl", c(recordSize()), "%ebx");
+		emit("cmpl", c(0), o(ACTIVE, "%eax"));
+		emit("jne", next);
+		emit("movl", o(CALLS, "%eax"), "%edx");
+		emit("orl", o(CALLS + 4, "%eax"), "%edx");
+		emit("je", next);
+		emit("testl", "%edi", "%edi");
+		emit("je", better);
+		emit("movl", o(SELF + 4, "%eax"), "%edx");
+		emit("cmpl", o(SELF + 4, "%edi"), "%edx");
+		emit("ja", better);
+		emit("jb", next);
+		emit("movl", o(SELF, "%eax"), "%edx");
+		emit("cmpl", o(SELF, "%edi"), "%edx");
+		emit("jbe", next);
+		emitLabel(better);
+		emit("movl", "%eax", "%edi");
+		emit("jmp", next);
+
+		emitLabel(print);
+		String callers = uniqueLabel();
+		emit("testl", "%edi", "%edi");
+		emit("je", callers);
+		emit("movl", c(1), o(ACTIVE, "%edi"));
+		emit("pushl", o(NAME, "%edi"));
+		emit("pushl", o(TOTAL + 4, "%edi"));
+		emit("pushl", o(TOTAL, "%edi"));
+		emit("pushl", o(SELF + 4, "%edi"));
+		emit("pushl", o(SELF, "%edi"));
+		emit("pushl", o(CALLS + 4, "%edi"));
+		emit("pushl", o(CALLS, "%edi"));
+		emit("pushl", c("prof_line"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(36);
+		emit("jmp", select);
+
+		emitLabel(callers);
+		if (Config.PROFILE_CALLERS)
+			emitCallers32();
+		emit("pushl", "%esi");
+		emitLibCall(Config.FCLOSE, 0);
+		emitDeallocation(4);
+		emitLabel(done);
+		String[] calleeSaved = CallingConvention.cCalleeSaved();
+		for (int i = calleeSaved.length - 1; i >= 0; i--)
+			emitPop(calleeSaved[i]);
+		emitMethodSuffix(false);
+	}
+
+	// Prints "calls caller -> callee" for all records in %ebx, with the
+	// slot in %edi and the slots left in %ecx
+	private void emitCallers32() {
+		String record = uniqueLabel(), slot = uniqueLabel();
+		String nextRecord = uniqueLabel(), other = uniqueLabel(), end = uniqueLabel();
+		emit("pushl", c("prof_callers"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(8);
+		emit("movl", c(RECORDS), "%ebx");
+		emitLabel(record);
+		emit("cmpl", c(ROOT), "%ebx");
+		emit("je", end);
+		emit("leal", o(CALLERS, "%ebx"), "%edi");
+		emit("movl", c(CALLER_SLOTS), "%ecx");
+		emitLabel(slot);
+		emit("movl", "(%edi)", "%eax");
+		emit("testl", "%eax", "%eax");
+		emit("je", other);
+		emit("pushl", "%ecx");
+		emit("pushl", o(NAME, "%ebx"));
+		emit("pushl", o(NAME, "%eax"));
+		emit("pushl", "12(%edi)");
+		emit("pushl", "8(%edi)");
+		emit("pushl", c("prof_caller"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(24);
+		emit("popl", "%ecx");
+		emit("addl", c(16), "%edi");
+		emit("decl", "%ecx");
+		emit("jne", slot);
+		emitLabel(other);
+		emit("movl", o(OTHER_CALLERS, "%ebx"), "%eax");
+		emit("orl", o(OTHER_CALLERS + 4, "%ebx"), "%eax");
+		emit("je", nextRecord);
+		emit("pushl", o(NAME, "%ebx"));
+		emit("pushl", c("prof_other"));
+		emit("pushl", o(OTHER_CALLERS + 4, "%ebx"));
+		emit("pushl", o(OTHER_CALLERS, "%ebx"));
+		emit("pushl", c("prof_caller"));
+		emit("pushl", "%esi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitDeallocation(24);
+		emitLabel(nextRecord);
+		emit("addl", c(recordSize()), "%ebx");
+		emit("jmp", record);
+		emitLabel(end);
+	}
+
+	// The runtime for x86-64. ENTER gets the record in %r11, CHARGE the
+	// time stamp in %rax and clobbers %rcx, %rdx and %r10.
+	private void emitRuntime64() {
+		String skip = uniqueLabel();
+		emitFunctionLabel(CHARGE);
+		emit("movq", "%rax", "%rdx");
+		emit("subq", g(LAST), "%rdx");
+		emit("movq", "%rax", g(LAST));
+		emit("movq", g(DEPTH), "%rcx");
+		emit("testq", "%rcx", "%rcx");
+		emit("je", skip);
+		emit("cmpq", c(STACK_SIZE), "%rcx");
+		emit("ja", skip);
+		emit("shlq", c(4), "%rcx");
+		emitLoadAddress(STACK, "%r10");
+		emit("movq", "-16(%r10,%rcx)", "%rcx");
+		emit("addq", "%rdx", o(SELF, "%rcx"));
+		emitLabel(skip);
+		emit("ret");
+
+		String unrecorded = uniqueLabel();
+		emitFunctionLabel(ENTER);
+		emitPushAll64();
+		emitTimeStamp64();
+		emit("call", CHARGE);
+		emit("incq", o(CALLS, "%r11"));
+		if (Config.PROFILE_CALLERS)
+			emitCountCaller64();
+		emit("movq", g(DEPTH), "%rcx");
+		emit("cmpq", c(STACK_SIZE), "%rcx");
+		emit("jae", unrecorded);
+		emit("incq", o(ACTIVE, "%r11"));
+		emit("shlq", c(4), "%rcx");
+		emitLoadAddress(STACK, "%r10");
+		emit("movq", "%r11", "(%r10,%rcx)");
+		emit("movq", "%rax", "8(%r10,%rcx)");
+		emitLabel(unrecorded);
+		emit("incq", g(DEPTH));
+		emitPopAll64();
+		emit("ret");
+
+		String done = uniqueLabel();
+		emitFunctionLabel(EXIT);
+		emitPushAll64();
+		emitTimeStamp64();
+		emit("call", CHARGE);
+		emit("decq", g(DEPTH));
+		emit("movq", g(DEPTH), "%rcx");
+		emit("cmpq", c(STACK_SIZE), "%rcx");
+		emit("jae", done);
+		emit("shlq", c(4), "%rcx");
+		emitLoadAddress(STACK, "%r10");
+		emit("movq", "(%r10,%rcx)", "%r11");
+		// Recursive invocations are included in the outermost one
+		emit("decq", o(ACTIVE, "%r11"));
+		emit("jne", done);
+		emit("subq", "8(%r10,%rcx)", "%rax");
+		emit("addq", "%rax", o(TOTAL, "%r11"));
+		emitLabel(done);
+		emitPopAll64();
+		emit("ret");
+
+		emitDump64();
+	}
+
+	// ENTER and EXIT keep all registers, the arguments of the method in
+	// particular
+	private static final String[] USED_REGISTERS_64 = { "%rax", "%rcx", "%rdx", "%r10", "%r11" };
+
+	private void emitPushAll64() {
+		for (String reg : USED_REGISTERS_64)
+			emitPush(reg);
+	}
+
+	private void emitPopAll64() {
+		for (int i = USED_REGISTERS_64.length - 1; i >= 0; i--)
+			emitPop(USED_REGISTERS_64[i]);
+	}
+
+	private void emitTimeStamp64() {
+		emit("rdtsc");
+		emit("shlq", c(32), "%rdx");
+		emit("orq", "%rdx", "%rax");
+	}
+
+	// Counts the call of the record in %r11 by the method on top of the
+	// shadow stack
+	private void emitCountCaller64() {
+		String top = uniqueLabel(), search = uniqueLabel(), found = uniqueLabel();
+		String free = uniqueLabel(), counted = uniqueLabel();
+		emitLoadAddress(ROOT, "%rdx");
+		emit("movq", g(DEPTH), "%rcx");
+		emit("testq", "%rcx", "%rcx");
+		emit("je", top);
+		emit("cmpq", c(STACK_SIZE), "%rcx");
+		emit("ja", top);
+		emit("shlq", c(4), "%rcx");
+		emitLoadAddress(STACK, "%r10");
+		emit("movq", "-16(%r10,%rcx)", "%rdx");
+		emitLabel(top);
+		emit("leaq", o(CALLERS, "%r11"), "%r10");
+		emit("movl", c(CALLER_SLOTS), "%ecx");
+		emitLabel(search);
+		emit("cmpq", "%rdx", "(%r10)");
+		emit("je", found);
+		emit("cmpq", c(0), "(%r10)");
+		emit("je", free);
+		emit("addq", c(16), "%r10");
+		emit("decl", "%ecx");
+		emit("jne", search);
+		emit("incq", o(OTHER_CALLERS, "%r11"));
+		emit("jmp", counted);
+		emitLabel(free);
+		emit("movq", "%rdx", "(%r10)");
+		emitLabel(found);
+		emit("incq", "8(%r10)");
+		emitLabel(counted);
+	}
+
+	private void emitDump64() {
+		String leave = uniqueLabel(), close = uniqueLabel(), done = uniqueLabel();
+		String select = uniqueLabel(), next = uniqueLabel(), better = uniqueLabel();
+		String print = uniqueLabel();
+		String file = "%r12", best = "%r13", record = "%r14", left = "%r15";
+		emitFunctionLabel(DUMP);
+		emitMethodPrefix();
+		for (String reg : CallingConvention.cCalleeSaved())
+			emitPush(reg);
+		// Leave the methods which are still active, e.g. after an exception
+		emitLabel(leave);
+		emit("cmpq", c(0), g(DEPTH));
+		emit("je", close);
+		emit("call", EXIT);
+		emit("jmp", leave);
+
+		emitLabel(close);
+		emitLoadAddress("prof_file_mode", "%rsi");
+		emitLoadAddress("prof_file_name", "%rdi");
+		emitLibCall(Config.FOPEN, 0);
+		emit("testq", "%rax", "%rax");
+		emit("je", done);
+		emit("movq", "%rax", file);
+		emit("movq", file, "%rdi");
+		emitLoadAddress("prof_header", "%rsi");
+		emitLoadAddress("prof_calls", "%rdx");
+		emitLoadAddress("prof_self", "%rcx");
+		emitLoadAddress("prof_total", "%r8");
+		emitLoadAddress("prof_method", "%r9");
+		emitLibCall(Config.FPRINTF, 0);
+
+		// Select the called record with the most self cycles which has not
+		// been printed yet, marked as active
+		emitLabel(select);
+		emit("xorl", "%r13d", "%r13d");
+		emitLoadAddress(RECORDS, record);
+		emit("movl", c(methods.size()), "%r15d");
+		emitLabel(next);
+		emit("testq", left, left);
+		emit("je", print);
+		emit("decq", left);
+		emit("movq", record, "%rax");
+		emit("addq", c(recordSize()), record);
+		emit("cmpq", c(0), o(ACTIVE, "%rax"));
+		emit("jne", next);
+		emit("cmpq", c(0), o(CALLS, "%rax"));
+		emit("je", next);
+		emit("testq", best, best);
+		emit("je", better);
+		emit("movq", o(SELF, "%rax"), "%rdx");
+		emit("cmpq", o(SELF, best), "%rdx");
+		emit("jbe", next);
+		emitLabel(better);
+		emit("movq", "%rax", best);
+		emit("jmp", next);
+
+		emitLabel(print);
+		String callers = uniqueLabel();
+		emit("testq", best, best);
+		emit("je", callers);
+		emit("movq", c(1), o(ACTIVE, best));
+		emit("movq", file, "%rdi");
+		emitLoadAddress("prof_line", "%rsi");
+		emit("movq", o(CALLS, best), "%rdx");
+		emit("movq", o(SELF, best), "%rcx");
+		emit("movq", o(TOTAL, best), "%r8");
+		emit("movq", o(NAME, best), "%r9");
+		emitLibCall(Config.FPRINTF, 0);
+		emit("jmp", select);
+
+		emitLabel(callers);
+		if (Config.PROFILE_CALLERS)
+			emitCallers64(file, record, best, left);
+		emit("movq", file, "%rdi");
+		emitLibCall(Config.FCLOSE, 0);
+		emitLabel(done);
+		String[] calleeSaved = CallingConvention.cCalleeSaved();
+		for (int i = calleeSaved.length - 1; i >= 0; i--)
+			emitPop(calleeSaved[i]);
+		emitMethodSuffix(false);
+	}
+
+	// Prints "calls caller -> callee" for all records
+	private void emitCallers64(String file, String record, String slot, String left) {
+		String nextRecord = uniqueLabel(), slotLoop = uniqueLabel(), other = uniqueLabel();
+		String end = uniqueLabel();
+		emit("movq", file, "%rdi");
+		emitLoadAddress("prof_callers", "%rsi");
+		emitLibCall(Config.FPRINTF, 0);
+		emitLoadAddress(RECORDS, record);
+		String recordLoop = uniqueLabel();
+		emitLabel(recordLoop);
+		emitLoadAddress(ROOT, "%rax");
+		emit("cmpq", "%rax", record);
+		emit("je", end);
+		emit("leaq", o(CALLERS, record), slot);
+		emit("movl", c(CALLER_SLOTS), "%r15d");
+		emitLabel(slotLoop);
+		emit("movq", "(" + slot + ")", "%rax");
+		emit("testq", "%rax", "%rax");
+		emit("je", other);
+		emit("movq", file, "%rdi");
+		emitLoadAddress("prof_caller", "%rsi");
+		emit("movq", "8(" + slot + ")", "%rdx");
+		emit("movq", o(NAME, "%rax"), "%rcx");
+		emit("movq", o(NAME, record), "%r8");
+		emitLibCall(Config.FPRINTF, 0);
+		emit("addq", c(16), slot);
+		emit("decq", left);
+		emit("jne", slotLoop);
+		emitLabel(other);
+		emit("cmpq", c(0), o(OTHER_CALLERS, record));
+		emit("je", nextRecord);
+		emit("movq", file, "%rdi");
+		emitLoadAddress("prof_caller", "%rsi");
+		emit("movq", o(OTHER_CALLERS, record), "%rdx");
+		emitLoadAddress("prof_other", "%rcx");
+		emit("movq", o(NAME, record), "%r8");
+		emitLibCall(Config.FPRINTF, 0);
+		emitLabel(nextRecord);
+		emit("addq", c(recordSize()), record);
+		emit("jmp", recordLoop);
+		emitLabel(end);
+	}
+}
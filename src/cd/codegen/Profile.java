@@ -0,0 +1,267 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cd.Config;
+import cd.ir.Ast;
+import cd.ir.Ast.IfElse;
+import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.WhileLoop;
+import cd.ir.AstVisitor;
+
+/**
+ * Profile-guided optimization. An instrumented program counts how often
+ * the profiled sites of each method are executed and appends the counts to
+ * the profile file at exit, one "key count" line each. The keys are
+ *
+ * <pre>
+ * Class.method               entries of the method
+ * Class.method@n.enter       executions of the if or while statement n
+ * Class.method@n.then        executions of its then branch
+ * Class.method@n.body        iterations of the while loop n
+ * Class.method@n:Receiver    calls n on an instance of class Receiver
+ * </pre>
+ *
+ * where the sites of a method are numbered in the order of the source, so
+ * that a recompilation of the same program finds them again. Counts of
+ * several runs, appended to the same file, are added up when it is read.
+ */
+class Profile {
+
+	private static final String COUNTERS = "Javali_profile_counters";
+	private static final String NAMES = "Javali_profile_names";
+	private static final String DUMP = "Javali_profile_dump";
+
+	/** The share of calls which a receiver class needs to be devirtualized. */
+	private static final double DEVIRTUALIZE_RATIO = 0.9;
+
+	// The counts read from the profile file
+	private final Map<String, Long> counts = new HashMap<String, Long>();
+	private final Map<String, Map<String, Long>> receivers = new HashMap<String, Map<String, Long>>();
+	// The counters of the instrumented program by key, in order of their index
+	private final Map<String, Integer> counters = new LinkedHashMap<String, Integer>();
+	// The sites of the current method
+	private final Map<Ast, String> sites = new IdentityHashMap<Ast, String>();
+	private String method;
+
+	/** Returns an empty profile, or the one in {@link Config#PROFILE_USE}. */
+	static Profile load() {
+		Profile profile = new Profile();
+		if (Config.PROFILE_USE == null)
+			return profile;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(Config.PROFILE_USE));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null)
+					profile.add(line.trim());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read profile " + Config.PROFILE_USE, e);
+		}
+		return profile;
+	}
+
+	private void add(String line) {
+		String[] parts = line.split("\\s+");
+		if (parts.length != 2)
+			return;
+		long count = Long.parseLong(parts[1]);
+		counts.put(parts[0], count(parts[0]) + count);
+		int colon = parts[0].indexOf(':');
+		if (colon >= 0) {
+			String site = parts[0].substring(0, colon);
+			if (!receivers.containsKey(site))
+				receivers.put(site, new HashMap<String, Long>());
+			receivers.get(site).put(parts[0].substring(colon + 1), count(parts[0]));
+		}
+	}
+
+	/** Numbers the sites of a method before code is generated for it. */
+	void enterMethod(String className, MethodDecl ast) {
+		method = className + "." + ast.name;
+		sites.clear();
+		new AstVisitor<Void, Void>() {
+			@Override
+			public Void ifElse(IfElse ast, Void arg) {
+				number(ast);
+				return visitChildren(ast, arg);
+			}
+
+			@Override
+			public Void whileLoop(WhileLoop ast, Void arg) {
+				number(ast);
+				return visitChildren(ast, arg);
+			}
+
+			@Override
+			public Void methodCall(MethodCall ast, Void arg) {
+				number(ast);
+				return visitChildren(ast, arg);
+			}
+
+			@Override
+			public Void methodCall(MethodCallExpr ast, Void arg) {
+				number(ast);
+				return visitChildren(ast, arg);
+			}
+
+			private void number(Ast ast) {
+				sites.put(ast, method + "@" + sites.size());
+			}
+		}.visit(ast.body(), null);
+	}
+
+	/** Returns the key of the current method. */
+	String method() {
+		return method;
+	}
+
+	/** Returns the key of an if, while or call of the current method. */
+	String site(Ast ast) {
+		return sites.get(ast);
+	}
+
+	/** Makes {@code copy} a stand-in for {@code ast}, e.g. a call statement. */
+	void sameSite(Ast copy, Ast ast) {
+		sites.put(copy, sites.get(ast));
+	}
+
+	/** Returns the count of a key in the profile, 0 if there is none. */
+	long count(String key) {
+		Long count = counts.get(key);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Returns the class of nearly all receivers of a call site, or null if
+	 * the profile has no such class.
+	 */
+	String dominantReceiver(String site) {
+		Map<String, Long> classes = receivers.get(site);
+		if (classes == null)
+			return null;
+		long total = 0;
+		for (long count : classes.values())
+			total += count;
+		for (Map.Entry<String, Long> entry : classes.entrySet())
+			if (entry.getValue() > 0 && entry.getValue() >= DEVIRTUALIZE_RATIO * total)
+				return entry.getKey();
+		return null;
+	}
+
+	/** Counts the execution of a key in an instrumented program. */
+	void emitCounter(String key) {
+		if (Config.PROFILE_GENERATE == null)
+			return;
+		if (!counters.containsKey(key))
+			counters.put(key, counters.size());
+		emit(w("inc"), g(COUNTERS + "+" + counters.get(key) * Config.SIZEOF_PTR));
+	}
+
+	/** Makes main write the profile at exit, however the program ends. */
+	void emitRegistration() {
+		emitAtExit(DUMP);
+	}
+
+	/**
+	 * Emits the counters, their keys and the function appending them to the
+	 * profile file, once all code has been generated.
+	 */
+	void emitRuntime() {
+		emitSection(".data");
+		emitLabel(COUNTERS);
+		emit(".fill", Math.max(1, counters.size()) + ", " + Config.SIZEOF_PTR + ", 0");
+		emitLabel(NAMES);
+		for (int i = 0; i < counters.size(); i++)
+			emitConstantData(NAMES + "_" + i);
+		emitSection(".section .rodata");
+		int i = 0;
+		for (String key : counters.keySet())
+			emitDeclaration(NAMES + "_" + i++, "string", "\"" + key + "\"");
+		emitDeclaration("profile_file_name", "string", "\"" + escape(Config.PROFILE_GENERATE) + "\"");
+		emitDeclaration("profile_file_mode", "string", "\"a\"");
+		emitDeclaration("profile_format_string", "string",
+				Config.X64 ? "\"%s %ld\\n\"" : "\"%s %d\\n\"");
+
+		String loop = uniqueLabel();
+		String close = uniqueLabel();
+		String done = uniqueLabel();
+		emitSection(".text");
+		emitFunctionLabel(DUMP);
+		emitIndent(null);
+		emitMethodPrefix();
+		// Called by exit: keep the registers of the C calling convention
+		String index = r("bx");
+		String file = Config.X64 ? "%r12" : "%esi";
+		emitPush(index);
+		emitPush(file);
+		if (Config.X64) {
+			emitLoadAddress("profile_file_mode", "%rsi");
+			emitLoadAddress("profile_file_name", "%rdi");
+			emitLibCall(Config.FOPEN, 0);
+		} else {
+			emit("pushl", c("profile_file_mode"));
+			emit("pushl", c("profile_file_name"));
+			emitLibCall(Config.FOPEN, 0);
+			emitDeallocation(8);
+		}
+		emit(w("test"), AX, AX);
+		emit("je", done);
+		emitMove(AX, file);
+		emit(w("xor"), index, index);
+
+		emitLabel(loop);
+		emit(w("cmp"), c(counters.size()), index);
+		emit("jae", close);
+		if (Config.X64) {
+			emitLoadAddress(COUNTERS, "%rcx");
+			emitMove(String.format("(%%rcx,%s,8)", index), "%rcx");
+			emitLoadAddress(NAMES, "%rdx");
+			emitMove(String.format("(%%rdx,%s,8)", index), "%rdx");
+			emitLoadAddress("profile_format_string", "%rsi");
+			emitMove(file, "%rdi");
+			emitLibCall(Config.FPRINTF, 0);
+		} else {
+			emit("pushl", String.format("%s(,%s,4)", COUNTERS, index));
+			emit("pushl", String.format("%s(,%s,4)", NAMES, index));
+			emit("pushl", c("profile_format_string"));
+			emit("pushl", file);
+			emitLibCall(Config.FPRINTF, 0);
+			emitDeallocation(16);
+		}
+		emit(w("inc"), index);
+		emit("jmp", loop);
+
+		emitLabel(close);
+		if (Config.X64) {
+			emitMove(file, "%rdi");
+			emitLibCall(Config.FCLOSE, 0);
+		} else {
+			emit("pushl", file);
+			emitLibCall(Config.FCLOSE, 0);
+			emitDeallocation(4);
+		}
+		emitLabel(done);
+		emitPop(file);
+		emitPop(index);
+		emitMethodSuffix(false);
+		emitUndent();
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -1,17 +1,30 @@
 package cd.codegen;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
+
+import cd.Config;
 import static cd.codegen.AssemblerHelper.*;
 
 // Class for maintaining our register pool.
 class RegisterPool {
 	private Queue<String> availableRegisters = new PriorityQueue<String>();
+	private final List<String> allRegisters;
 
 	public RegisterPool(AstCodeGenerator astCodeGenerator) {
-		availableRegisters.addAll(Arrays.asList("%eax", "%ebx", "%ecx",
-				"%edx", "%edi", "%esi"));
+		this(Config.X64
+				? Arrays.asList("%rax", "%rbx", "%rcx", "%rdx", "%rdi", "%rsi",
+						"%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14", "%r15")
+				: Arrays.asList("%eax", "%ebx", "%ecx", "%edx", "%edi", "%esi"));
+	}
+
+	/** A pool of other registers, e.g. the xmm registers for floats. */
+	RegisterPool(List<String> registers) {
+		allRegisters = registers;
+		availableRegisters.addAll(allRegisters);
 	}
 
 	public String reserve() {
@@ -38,7 +51,26 @@ class RegisterPool {
 		emitComment("Releasing register " + reg);
 	}
 
+	/** Returns the number of registers that can still be reserved. */
+	protected int available() {
+		return availableRegisters.size();
+	}
+
+	/** Returns the number of registers in the pool. */
+	protected int size() {
+		return allRegisters.size();
+	}
+
 	protected boolean isInUse(String reg) {
 		return !availableRegisters.contains(reg);
 	}
+
+	/** Returns the registers currently reserved. */
+	protected List<String> getInUse() {
+		List<String> inUse = new ArrayList<String>();
+		for (String reg : allRegisters)
+			if (isInUse(reg))
+				inUse.add(reg);
+		return inUse;
+	}
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package cd.codegen;
 
 import static java.lang.Math.max;
-import static java.lang.Math.min;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -68,12 +67,10 @@ public class RegsNeededVisitor extends AstVisitor<Integer, Void> {
 
 	@Override
 	public Integer binaryOp(BinaryOp ast, Void arg) {
+		// The left operand is always evaluated first
 		int left = calc(ast.left());
 		int right = calc(ast.right());
-		int ifLeftFirst = max(left, right+1);
-		int ifRightFirst = max(left+1, right);
-		int overall = min(ifLeftFirst, ifRightFirst);
-		return overall;
+		return max(left, right+1);
 	}
 
 	@Override
@@ -93,12 +90,12 @@ public class RegsNeededVisitor extends AstVisitor<Integer, Void> {
 
 	@Override
 	public Integer cast(Cast ast, Void arg) {
-		return calc(ast.arg());
+		return max(calc(ast.arg()), 2);
 	}
 
 	@Override
 	public Integer index(Index ast, Void arg) {
-		return max(calc(ast.left()) + 1, calc(ast.right()));
+		return max(calc(ast.left()), calc(ast.right()) + 1);
 	}
 	
 	@Override
@@ -118,12 +115,13 @@ public class RegsNeededVisitor extends AstVisitor<Integer, Void> {
 
 	@Override
 	public Integer newArray(NewArray ast, Void arg) {
-		return calc(ast.arg());
+		// length, byte length and the allocated array
+		return max(calc(ast.arg()), 3);
 	}
 
 	@Override
 	public Integer newObject(NewObject ast, Void arg) {
-		return 1;
+		return 2;
 	}
 
 	@Override
@@ -138,7 +136,11 @@ public class RegsNeededVisitor extends AstVisitor<Integer, Void> {
 	
 	@Override
 	public Integer methodCall(MethodCallExpr ast, Void arg) {
-		return 1;
+		// The method pointer is kept while the arguments are evaluated
+		int maxReg = 0;
+		for (Expr a : ast.allArguments())
+			maxReg = max(calc(a), maxReg);
+		return maxReg + 1;
 	}
 
 	@Override
@@ -16,19 +16,58 @@ public class StdLibEmitter {
 	protected static String ILLEGAL_ARRAY_SIZE_EXCEPTION = "IllegalArraySizeException";
 	protected static String INDEX_OUT_OF_BOUNDS_EXCEPTION = "IndexOutOfBoundsException";
 	protected static String NULL_POINTER_EXCEPTION = "NullPointerException";
+	/** Faults below this address are null pointer dereferences. */
+	protected static final int NULL_PAGE_SIZE = 4096;
+	private static final String SEGV_HANDLER = "Javali_segv_handler";
+	private static final String SEGV_ACTION = "Javali_segv_action";
+	private static final int SIGSEGV = 11;
+	// SA_SIGINFO | SA_RESETHAND: the handler gets the faulting address, and
+	// returning from it faults again with the default action
+	private static final int SEGV_ACTION_FLAGS = 0x80000004;
+	// SA_RESTORER: the kernel needs the restorer without the C library
+	private static final int SA_RESTORER = 0x04000000;
 
 
 	public static void emitAll(AstCodeGenerator acg) {
 		StdLibEmitter.acg = acg;
 		constants();
 		mainMethod();
+		emitHelpers();
+	}
+
+	/*
+	 * Emits everything but the main method, which is all that does not
+	 * depend on the program.
+	 */
+	public static void emitRuntime(AstCodeGenerator acg) {
+		StdLibEmitter.acg = acg;
+		constants();
+		emitSection(".text");
+		emitHelpers();
+	}
+
+	/*
+	 * Emits the main method on its own, for the unit of the Main class.
+	 */
+	public static void emitMain(AstCodeGenerator acg) {
+		StdLibEmitter.acg = acg;
+		mainMethod();
+	}
+
+	private static void emitHelpers() {
 		castValidate();
 		exceptions();
+		if (Config.IMPLICIT_NULL_CHECKS)
+			segvHandler();
+		if (Config.BUFFERED_IO)
+			BufferedIoEmitter.emitAll();
+		if (Config.FREESTANDING)
+			FreestandingEmitter.emitAll();
 	}
 	
 	private static void constants() {
 		emit("");
-		emit(".section .rodata");
+		emitSection(".section .rodata");
 		emitDeclaration("int_format_string", "string", "\"%d\"");
 		emitDeclaration("float_format_string", "string", "\"%f\"");
 		emitDeclaration("divide_by_zero_exception_string", "string", "\"EXCEPTION: Division by zero.\\n\"");
@@ -50,20 +89,20 @@ public class StdLibEmitter {
 		String objectVtableReg = acg.registerPool.reserve();
 		String toVtableReg = acg.registerPool.reserve();
 
-		emitLabel("CastValidate");
+		emitFunctionLabel("CastValidate");
 		emitIndent("");
 		emitMethodPrefix();
 		
-		emitLoad(8, "%ebp", toVtableReg); // vtable of To Class is first argument to function
-		emitLoad(12, "%ebp", fromVtableReg); // vtable of From Class is second argument to function
+		emitLoad(2 * Config.SIZEOF_PTR, BP, toVtableReg); // vtable of To Class is first argument to function
+		emitLoad(3 * Config.SIZEOF_PTR, BP, fromVtableReg); // vtable of From Class is second argument to function
 
-		emitMove(c("vtable_Object"), objectVtableReg);
+		emitLoadAddress("vtable_Object", objectVtableReg);
 
 		emitLabel(verifyCastLoopLabel);
-		emit("cmpl", fromVtableReg, objectVtableReg); 
+		emit(w("cmp"), fromVtableReg, objectVtableReg); 
 		emit("je", CAST_EXCEPTION); // If current class is object, fail (reached end of hierarchy)
 		
-		emit("cmpl", fromVtableReg, toVtableReg);
+		emit(w("cmp"), fromVtableReg, toVtableReg);
 		emit("je", castSuccessLabel); // if current class is equal to the cast to-type, succeed
 		emitLoad(0, fromVtableReg, fromVtableReg); // move from pointer to its super class
 		
@@ -87,36 +126,122 @@ public class StdLibEmitter {
 	}
 	
 	private static void emitException(String name, String errorMsg, int code) {
-		emitLabel(name);
+		emitFunctionLabel(name);
 		emitIndent(null);
-		emit("pushl", c(errorMsg));
-		emit("call", Config.PRINTF);
-		emit("pushl", c(code));
-		emit("call", Config.EXIT);
+		if (Config.BUFFERED_IO) {
+			emitPushAddress(errorMsg);
+			emit("call", BufferedIoEmitter.WRITE_STRING);
+			emit("call", BufferedIoEmitter.FLUSH);
+			if (Config.X64)
+				emit("movl", c(code), "%edi");
+			else
+				emit("pushl", c(code));
+			emitLibCall(Config.EXIT, 0);
+		} else if (Config.X64) {
+			emitLoadAddress(errorMsg, "%rdi");
+			emitLibCall(Config.PRINTF, 0);
+			emit("movl", c(code), "%edi");
+			emitLibCall(Config.EXIT, 0);
+		} else {
+			emit("pushl", c(errorMsg));
+			emitLibCall(Config.PRINTF, 0);
+			emit("pushl", c(code));
+			emitLibCall(Config.EXIT, 0);
+		}
 		emitUndent();
 	}
 	
+	/*
+	 * Emits the SIGSEGV handler for implicit null checks, which turns faults
+	 * on page zero into null pointer exceptions, and the struct sigaction
+	 * (glibc layout, or the one of the kernel if freestanding) to install it
+	 * with.
+	 */
+	private static void segvHandler() {
+		emitSection(".data");
+		emitGlobal(SEGV_ACTION);
+		emitLabel(SEGV_ACTION);
+		emitConstantData(SEGV_HANDLER); // sa_sigaction
+		if (Config.FREESTANDING) {
+			emitConstantData(String.format("0x%x", SEGV_ACTION_FLAGS | SA_RESTORER)); // sa_flags
+			emitConstantData(FreestandingEmitter.SIGRETURN); // sa_restorer
+			emit(".fill", FreestandingEmitter.SIGSET_SIZE + ", 1, 0"); // sa_mask
+		} else {
+			emit(".fill", "128, 1, 0"); // sa_mask
+			emit(Config.DOT_INT, Integer.toString(SEGV_ACTION_FLAGS)); // sa_flags
+			if (Config.X64)
+				emit(Config.DOT_INT, "0"); // padding
+			emitConstantData("0"); // sa_restorer
+		}
+
+		emitSection(".text");
+		emitFunctionLabel(SEGV_HANDLER);
+		emitIndent(null);
+		// The faulting address is si_addr of the siginfo_t, the second argument
+		if (Config.X64) {
+			emit("movq", o(16, "%rsi"), AX);
+		} else {
+			emit("movl", o(8, "%esp"), AX);
+			emit("movl", o(12, AX), AX);
+		}
+		emit(w("cmp"), c(NULL_PAGE_SIZE), AX);
+		emit("jb", NULL_POINTER_EXCEPTION);
+		emit("ret");
+		emitUndent();
+	}
+
+	private static void installSegvHandler() {
+		if (Config.X64) {
+			emit("movl", c(SIGSEGV), "%edi");
+			emitLoadAddress(SEGV_ACTION, "%rsi");
+			emit("xorl", "%edx", "%edx");
+			emitLibCall(Config.SIGACTION, 0);
+		} else {
+			emit("pushl", c(0));
+			emit("pushl", c(SEGV_ACTION));
+			emit("pushl", c(SIGSEGV));
+			emitLibCall(Config.SIGACTION, 0);
+			emitDeallocation(12);
+		}
+	}
+
 	/*
 	 * Emits the main method, which just creates a Main object m
 	 * and calls m.main();
 	 */
 	private static void mainMethod(){
-		emit(".text");
+		emitSection(".text");
 		emit(".globl", Config.MAIN);
-		emitLabel(Config.MAIN);
+		emitFunctionLabel(Config.MAIN);
 		emitIndent(null);
 
 		emitMethodPrefix();
+		// The generated code does not preserve any registers, so save
+		// the ones the C runtime expects to be preserved.
+		String[] calleeSaved = CallingConvention.cCalleeSaved();
+		for (String reg : calleeSaved)
+			emitPush(reg);
+		if (Config.IMPLICIT_NULL_CHECKS)
+			installSegvHandler();
+		if (Config.PROFILE_GENERATE != null)
+			acg.profile.emitRegistration();
+		if (Config.PROFILE != null)
+			acg.mp.emitRegistration();
+		if (Config.ALLOC_PROFILE != null)
+			acg.ap.emitRegistration();
 
 		// Reuse newObject expression to emit creation of first Main object
 		String mainObjReg = acg.eg.newObject(new NewObject("Main"), null);
 		
-		// Call m.main();
-		emit("pushl", mainObjReg);
+		// Call m.main(), passing m in its register
+		emitMove(mainObjReg, CallingConvention.argumentRegisters()[0]);
 		acg.registerPool.release(mainObjReg);
 		emit("call", "Main_main");
 		
-		emitDeallocation(4);
+		if (Config.BUFFERED_IO)
+			emit("call", BufferedIoEmitter.FLUSH);
+		for (int i = calleeSaved.length - 1; i >= 0; i--)
+			emitPop(calleeSaved[i]);
 		emitMethodSuffix(true);
 
 		emitUndent();
@@ -1,33 +1,57 @@
 package cd.codegen;
 
+import static cd.codegen.AssemblerHelper.AX;
+import static cd.codegen.AssemblerHelper.BP;
 import static cd.codegen.AssemblerHelper.c;
 import static cd.codegen.AssemblerHelper.emit;
 import static cd.codegen.AssemblerHelper.emitAllocation;
 import static cd.codegen.AssemblerHelper.emitComment;
 import static cd.codegen.AssemblerHelper.emitDeallocation;
+import static cd.codegen.AssemblerHelper.emitFunction;
+import static cd.codegen.AssemblerHelper.emitFunctionEnd;
+import static cd.codegen.AssemblerHelper.emitFunctionLabel;
 import static cd.codegen.AssemblerHelper.emitIndent;
+import static cd.codegen.AssemblerHelper.emitLibCall;
+import static cd.codegen.AssemblerHelper.emitLoadAddress;
 import static cd.codegen.AssemblerHelper.emitLabel;
 import static cd.codegen.AssemblerHelper.emitMethodPrefix;
 import static cd.codegen.AssemblerHelper.emitMethodSuffix;
 import static cd.codegen.AssemblerHelper.emitMove;
-import static cd.codegen.AssemblerHelper.emitStore;
+import static cd.codegen.AssemblerHelper.emitPop;
+import static cd.codegen.AssemblerHelper.emitPush;
 import static cd.codegen.AssemblerHelper.emitUndent;
 import static cd.codegen.AssemblerHelper.o;
+import static cd.codegen.AssemblerHelper.redirect;
 import static cd.codegen.AssemblerHelper.uniqueLabel;
+import static cd.codegen.AssemblerHelper.w;
 
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import cd.Config;
+import cd.codegen.InstructionSelector.Operand;
 import cd.debug.AstOneLine;
 import cd.ir.Ast;
 import cd.ir.Ast.Assign;
 import cd.ir.Ast.BuiltInWrite;
 import cd.ir.Ast.BuiltInWriteFloat;
 import cd.ir.Ast.BuiltInWriteln;
+import cd.ir.Ast.Expr;
 import cd.ir.Ast.IfElse;
 import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
 import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.Nop;
 import cd.ir.Ast.ReturnStmt;
+import cd.ir.Ast.Seq;
+import cd.ir.Ast.ThisRef;
 import cd.ir.Ast.VarDecl;
 import cd.ir.Ast.WhileLoop;
 import cd.ir.AstVisitor;
@@ -37,8 +61,52 @@ import cd.ir.AstVisitor;
  */
 public class StmtDeclGenerator extends AstVisitor<String, Void> {
 
+	/**
+	 * The least number of registers a frameless method leaves for evaluating
+	 * expressions, e.g. two for an array element and one more for a
+	 * strength reduced division. Methods whose expressions need more, as
+	 * counted by {@link RegsNeededVisitor}, leave that many.
+	 */
+	private static final int MIN_FREE_REGISTERS = 3;
+
+	/**
+	 * A branch taken by less than one in this many executions of its if
+	 * statement is moved behind the code of the method.
+	 */
+	private static final int COLD_RATIO = 100;
+
+	/** A branch of an if statement, with the key of its profile counter. */
+	private static class Branch {
+		final Ast body;
+		final String counter;
+		// Where a cold branch starts and where it returns to
+		String label, end;
+
+		Branch(Ast body, String counter) {
+			this.body = body;
+			this.counter = counter;
+		}
+
+		boolean isEmpty() {
+			return StmtDeclGenerator.isEmpty(body)
+					&& (counter == null || Config.PROFILE_GENERATE == null);
+		}
+	}
+
 	private final AstCodeGenerator acg;
 
+	// The start of the body of the current method, the target of recursive
+	// tail calls, and its arguments including this.
+	private String bodyLabel;
+	private List<String> arguments;
+	// True if the current method is a leaf which keeps all of its variables
+	// in registers and sets up no frame.
+	private boolean frameless;
+	// The last statement of a void method, which is in tail position, too.
+	private Ast lastVoidStatement;
+	// Branches of the current method to emit after its code.
+	private final List<Branch> coldBranches = new ArrayList<Branch>();
+
 	StmtDeclGenerator(AstCodeGenerator astCodeGenerator) {
 		this.acg = astCodeGenerator;
 	}
@@ -63,6 +131,9 @@ public class StmtDeclGenerator extends AstVisitor<String, Void> {
 		// the return value.
 		Ast.MethodCallExpr expr = new Ast.MethodCallExpr(ast.receiver(), ast.methodName,
 														 ast.argumentsWithoutReceiver());
+		acg.profile.sameSite(expr, ast);
+		if (Config.TAIL_CALLS && ast == lastVoidStatement && emitTailCall(expr))
+			return null;
 		String returnValReg = acg.eg.methodCall(expr, dummy);
 		acg.registerPool.release(returnValReg);
 		return null;
@@ -70,103 +141,343 @@ public class StmtDeclGenerator extends AstVisitor<String, Void> {
 
 	@Override
 	public String methodDecl(MethodDecl ast, Void arg) {
+		String function = String.format("%s_%s", acg.currentClass.name, ast.name);
+		String key = acg.methodKey(ast);
+		if (key == null) {
+			generateMethod(ast, function, arg);
+			return null;
+		}
+		// The code starts with the label of the method, not with the end of
+		// the method before
+		emitFunctionEnd();
+		String code = acg.methodCache.get(key);
+		if (code == null) {
+			Writer out = redirect(new StringWriter());
+			try {
+				generateMethod(ast, function, arg);
+			} finally {
+				code = redirect(out).toString();
+			}
+			acg.methodCache.put(key, code);
+		}
+		emitFunction(function, code);
+		return null;
+	}
+
+	private void generateMethod(MethodDecl ast, String function, Void arg) {
 		acg.currentMethod = ast.name;
-		emitLabel(String.format("%s_%s", acg.currentClass.name, ast.name));
+		acg.profile.enterMethod(acg.currentClass.name, ast);
+		emitFunctionLabel(function);
 		emitIndent(null);
-		emitMethodPrefix();
-		List<String> arguments = ast.argumentNames;
+		arguments = ast.argumentNames;
 		arguments.add(0, "this"); // all methods receive this reference
-		generateDeclarations(ast.argumentNames, ast.decls().rwChildren());
+		List<Ast> declarations = ast.decls().rwChildren();
+		Set<String> registerVariables = chooseRegisterVariables(ast, declarations);
+		frameless = registerVariables.size() == arguments.size() + declarations.size();
+		if (frameless) {
+			generateRegisterDeclarations(arguments, declarations);
+		} else {
+			emitMethodPrefix();
+			generateDeclarations(arguments, declarations, registerVariables);
+		}
+		acg.profile.emitCounter(acg.profile.method());
+		acg.mp.emitEnter(acg.currentClass.name, ast.name);
+		bodyLabel = uniqueLabel();
+		emitLabel(bodyLabel);
+
+		int lastItemIndex = ast.body().children().size() - 1;
+		Ast lastStatement = lastItemIndex != -1 ? ast.body().children().get(lastItemIndex) : null;
+		lastVoidStatement = ast.returnType.equals("void") ? lastStatement : null;
 
 		acg.sdg.visit(ast.body(), arg);
 
 		// Method does not explicitly return -- return manually
-		int lastItemIndex = ast.body().children().size() - 1;
-		Ast lastStatement = lastItemIndex != -1 ? ast.body().children().get(lastItemIndex) : null;
 		if (!(lastStatement instanceof ReturnStmt)) {
-			emitMethodSuffix(true);
+			emitReturn(true);
 		}
+		emitColdBranches();
+		for (String reg : acg.variableRegisters.values())
+			acg.registerPool.release(reg);
+		acg.variableRegisters.clear();
 		emitUndent();
-		return null;
+	}
+
+	/** Returns from the current method, with or without a frame. */
+	private void emitReturn(boolean returnNull) {
+		acg.mp.emitExit();
+		if (!frameless) {
+			emitMethodSuffix(returnNull);
+			return;
+		}
+		if (returnNull)
+			emitMove(c(0), AX);
+		emit("ret");
+	}
+
+	/**
+	 * Chooses the variables of a leaf method to keep in registers: all of
+	 * them if they fit, else the ones used most often as estimated by
+	 * {@link VariableWeights}. Arguments passed on the stack stay there, and
+	 * enough registers stay free to evaluate every expression of the method.
+	 */
+	private Set<String> chooseRegisterVariables(MethodDecl ast, List<Ast> declarations) {
+		Set<String> chosen = new LinkedHashSet<String>();
+		if (!Config.OMIT_FRAMES || !CallingConvention.isLeaf(ast.body()))
+			return chosen;
+		int argumentRegisters = CallingConvention.argumentRegisters().length;
+		List<String> candidates = new ArrayList<String>(
+				arguments.subList(0, Math.min(arguments.size(), argumentRegisters)));
+		for (Ast declaration : declarations)
+			candidates.add(((VarDecl) declaration).name);
+		int registers = acg.registerPool.available()
+				- Math.max(MIN_FREE_REGISTERS, acg.rnv.calc(ast.body()));
+		if (candidates.size() == arguments.size() + declarations.size()
+				&& candidates.size() <= registers) {
+			chosen.addAll(candidates);
+			return chosen;
+		}
+		final Map<String, Double> weights = acg.vw.weights(ast);
+		Collections.sort(candidates, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(VariableWeights.weight(weights, b),
+						VariableWeights.weight(weights, a));
+			}
+		});
+		for (String candidate : candidates)
+			if (chosen.size() < registers && VariableWeights.weight(weights, candidate) > 0)
+				chosen.add(candidate);
+		return chosen;
+	}
+
+	/**
+	 * Keeps the arguments of a frameless leaf method in the registers they
+	 * are passed in and reserves a register for each of its variables.
+	 */
+	private void generateRegisterDeclarations(List<String> arguments,
+			List<Ast> declarations) {
+		String[] argumentRegisters = CallingConvention.argumentRegisters();
+		for (int i = 0; i < arguments.size(); i++)
+			acg.variableRegisters.put(arguments.get(i),
+					acg.registerPool.reserve(argumentRegisters[i]));
+		for (Ast declaration : declarations)
+			acg.variableRegisters.put(((VarDecl) declaration).name,
+					acg.registerPool.reserve());
 	}
 
 	/**
 	 * Generates declarations of the locals (arguments and method variables).
 	 * @param arguments Names of arguments
 	 * @param declarations Declared variables.
+	 * @param registerVariables Variables to keep in registers instead.
 	 */
 	private void generateDeclarations(List<String> arguments,
-			List<Ast> declarations) {
-		int offset = 8;
-		for (String argument : arguments) {
-			acg.currentClass.addLocal(acg.currentMethod, argument, offset);
-			offset += 4;
+			List<Ast> declarations, Set<String> registerVariables) {
+		// Arguments passed in registers are stored below the base pointer
+		String[] argumentRegisters = CallingConvention.argumentRegisters();
+		int offset = -Config.SIZEOF_PTR;
+		for (int i = 0; i < arguments.size() && i < argumentRegisters.length; i++) {
+			if (registerVariables.contains(arguments.get(i))) {
+				acg.variableRegisters.put(arguments.get(i),
+						acg.registerPool.reserve(argumentRegisters[i]));
+				continue;
+			}
+			emitPush(argumentRegisters[i]);
+			acg.currentClass.addLocal(acg.currentMethod, arguments.get(i), offset);
+			offset -= Config.SIZEOF_PTR;
+		}
+		// Skip saved base pointer and return address
+		int stackOffset = 2 * Config.SIZEOF_PTR;
+		for (int i = argumentRegisters.length; i < arguments.size(); i++) {
+			acg.currentClass.addLocal(acg.currentMethod, arguments.get(i), stackOffset);
+			stackOffset += Config.SIZEOF_PTR;
 		}
 
-		if (!declarations.isEmpty()) {
-			emitAllocation(declarations.size() * 4);
+		int frameVariables = 0;
+		for (Ast declaration : declarations)
+			if (!registerVariables.contains(((VarDecl) declaration).name))
+				frameVariables++;
+		if (frameVariables > 0) {
+			emitAllocation(frameVariables * Config.SIZEOF_PTR);
 		}
-		offset = -4;
 		for (Ast declaration : declarations) {
 			VarDecl decVar = (VarDecl) declaration;
+			if (registerVariables.contains(decVar.name)) {
+				acg.variableRegisters.put(decVar.name, acg.registerPool.reserve());
+				continue;
+			}
 			acg.currentClass.addLocal(acg.currentMethod, decVar.name, offset);
-			offset -= 4;
+			offset -= Config.SIZEOF_PTR;
 		}
 
 	}
 
 	@Override
 	public String ifElse(IfElse ast, Void arg) {
+		String site = acg.profile.site(ast);
+		Branch then = new Branch(ast.then(), site + ".then");
+		Branch otherwise = new Branch(ast.otherwise(), null);
 		String elseLabel = uniqueLabel();
 		String endLabel = uniqueLabel();
+		acg.profile.emitCounter(site + ".enter");
 
-		String condReg = acg.eg.visit(ast.condition(), arg);
-		emit("cmpl", c(0), condReg);
-		acg.registerPool.release(condReg);
-		emit("je", elseLabel); // jump to else if condition is false
-		acg.sdg.visit(ast.then(), arg);
+		if (!Config.JUMP_CONDITIONS) {
+			String condReg = acg.eg.visit(ast.condition(), arg);
+			emit(w("cmp"), c(0), condReg);
+			acg.registerPool.release(condReg);
+			emit("je", elseLabel); // jump to else if condition is false
+			emitBranch(then);
+			emit("jmp", endLabel);
+			emitLabel(elseLabel);
+			emitBranch(otherwise);
+			emitLabel(endLabel);
+			return null;
+		}
+		// The branch taken more often according to the profile comes first
+		// and falls through, the other one is moved behind the method if it
+		// is hardly ever taken
+		long executions = acg.profile.count(site + ".enter");
+		long thenCount = acg.profile.count(site + ".then");
+		boolean swapped = executions - thenCount > thenCount;
+		Branch first = swapped ? otherwise : then;
+		Branch second = swapped ? then : otherwise;
+		long secondCount = swapped ? thenCount : executions - thenCount;
+
+		acg.cg.jumpIf(ast.condition(), swapped, elseLabel);
+		emitBranch(first);
+		if (second.isEmpty()) {
+			// No else branch, nothing to jump over
+			emitLabel(elseLabel);
+			return null;
+		}
+		if (secondCount * COLD_RATIO < executions) {
+			second.label = elseLabel;
+			second.end = endLabel;
+			coldBranches.add(second);
+			emitLabel(endLabel);
+			return null;
+		}
 		emit("jmp", endLabel);
 		emitLabel(elseLabel);
-		acg.sdg.visit(ast.otherwise(), arg);
+		emitBranch(second);
 		emitLabel(endLabel);
 		return null;
 	}
 
+	private void emitBranch(Branch branch) {
+		if (branch.counter != null)
+			acg.profile.emitCounter(branch.counter);
+		acg.sdg.visit(branch.body, null);
+	}
+
+	/**
+	 * Emits the cold branches of the current method, which jump back to the
+	 * end of their if statements.
+	 */
+	private void emitColdBranches() {
+		// Cold branches may contain further ones
+		for (int i = 0; i < coldBranches.size(); i++) {
+			Branch branch = coldBranches.get(i);
+			emitLabel(branch.label);
+			emitBranch(branch);
+			emit("jmp", branch.end);
+		}
+		coldBranches.clear();
+	}
+
+	/** Returns true if a statement does not emit any code. */
+	private static boolean isEmpty(Ast ast) {
+		if (ast instanceof Nop)
+			return true;
+		if (!(ast instanceof Seq))
+			return false;
+		for (Ast child : ast.children())
+			if (!isEmpty(child))
+				return false;
+		return true;
+	}
+
 	@Override
 	public String whileLoop(WhileLoop ast, Void arg) {
+		acg.profile.emitCounter(acg.profile.site(ast) + ".enter");
+		if (acg.li.generate(ast) || acg.lv.generate(ast))
+			return null;
+		emitLoop(ast, arg);
+		return null;
+	}
+
+	/**
+	 * Emits a while loop one iteration at a time, e.g. for the iterations
+	 * left over by the vectorizer.
+	 */
+	void emitLoop(WhileLoop ast, Void arg) {
 		String startOfWhile = uniqueLabel();
 		String endOfWhile = uniqueLabel();
+		String site = acg.profile.site(ast);
+		if (Config.JUMP_CONDITIONS) {
+			// Test the condition at the bottom of the loop, so that only
+			// one jump is taken per iteration
+			String condition = uniqueLabel();
+			emit("jmp", condition);
+			emitLabel(startOfWhile);
+			acg.profile.emitCounter(site + ".body");
+			acg.sdg.visit(ast.body(), arg);
+			emitLabel(condition);
+			acg.cg.jumpIf(ast.condition(), true, startOfWhile);
+			return;
+		}
 		emitLabel(startOfWhile);
 		String condReg = acg.eg.visit(ast.condition(), arg);
-		emit("cmpl", c(0), condReg);
+		emit(w("cmp"), c(0), condReg);
 		acg.registerPool.release(condReg);
 		emit("je", endOfWhile); // jump out of loop if condition no longer
 								// holds
+		acg.profile.emitCounter(site + ".body");
 		acg.sdg.visit(ast.body(), arg);
 		emit("jmp", startOfWhile);
 		emitLabel(endOfWhile);
-		return null;
 	}
 
 	@Override
 	public String assign(Assign ast, Void arg) {
-		String resultRegister = acg.eg.visit(ast.right(), arg);
-		String address = acg.av.visit(ast.left(), arg);
-		emitStore(resultRegister, 0, address);
-		acg.registerPool.release(resultRegister);
-		acg.registerPool.release(address);
+		// A computed float is stored from its xmm register
+		if (ExprGenerator.isFloatComputation(ast.right())) {
+			String xmm = acg.eg.genFloat(ast.right());
+			Operand target = acg.is.select(ast.left());
+			emit(target.isMemory() ? "movss" : "movd", xmm, target.text);
+			acg.xmmPool.release(xmm);
+			acg.is.release(target);
+			return null;
+		}
+		// x86 has no memory to memory move, so the value is an immediate or
+		// in a register, the target is always a memory operand
+		Operand value = acg.is.selectValue(ast.right());
+		Operand target = acg.is.select(ast.left());
+		emitMove(value.text, target.text);
+		acg.is.release(value);
+		acg.is.release(target);
 		return null;
 	}
 
 	@Override
 	public String builtInWrite(BuiltInWrite ast, Void arg) {
+		Operand argument = acg.is.select(ast.arg());
+		if (Config.BUFFERED_IO) {
+			emitBufferedWrite(BufferedIoEmitter.WRITE_INT, argument);
+			return null;
+		}
+		if (Config.X64) {
+			emitMove(argument.text, "%rsi");
+			acg.is.release(argument);
+			emitLoadAddress("int_format_string", "%rdi");
+			emitLibCall(Config.PRINTF, 0);
+			return null;
+		}
 		emitComment("Write: Push 2 arguments to printf: integer and format str");
-		String argumentReg = acg.eg.visit(ast.arg(), arg);
-		emit("pushl", argumentReg);
-		acg.registerPool.release(argumentReg);
+		emit("pushl", argument.text);
+		acg.is.release(argument);
 		emit("pushl", c("int_format_string"));
 
-		emit("call", Config.PRINTF);
+		emitLibCall(Config.PRINTF, 0);
 
 		emitComment("Write: restore stack");
 		emitDeallocation(8);
@@ -175,6 +486,28 @@ public class StmtDeclGenerator extends AstVisitor<String, Void> {
 
 	@Override
 	public String builtInWriteFloat(BuiltInWriteFloat ast, Void arg) {
+		if (Config.BUFFERED_IO) {
+			emitBufferedWrite(BufferedIoEmitter.WRITE_FLOAT, acg.is.select(ast.arg()));
+			return null;
+		}
+		if (Config.SSE2) {
+			emitComment("WriteF: convert to double precision in %xmm0 (printf needs it)");
+			String xmm = acg.eg.genFloat(ast.arg());
+			emit("cvtss2sd", xmm, "%xmm0");
+			acg.xmmPool.release(xmm);
+			if (Config.X64) {
+				emitLoadAddress("float_format_string", "%rdi");
+				emitLibCall(Config.PRINTF, 1);
+				return null;
+			}
+			emitAllocation(8);
+			emit("movsd", "%xmm0", o(0, "%esp"));
+
+			emit("pushl", c("float_format_string"));
+			emitLibCall(Config.PRINTF, 1);
+			emitDeallocation(12);
+			return null;
+		}
 		emitComment("WriteF: Load single precision float into FPU");
 		String argumentReg = acg.eg.visit(ast.arg(), arg);
 		emit("pushl", argumentReg);
@@ -186,7 +519,7 @@ public class StmtDeclGenerator extends AstVisitor<String, Void> {
 		emit("fstpl", o(0, "%esp"));
 
 		emit("pushl", c("float_format_string"));
-		emit("call", Config.PRINTF);
+		emitLibCall(Config.PRINTF, 1);
 
 		emitComment("WriteF: restore stack");
 		emitDeallocation(16);
@@ -196,22 +529,89 @@ public class StmtDeclGenerator extends AstVisitor<String, Void> {
 	@Override
 	public String builtInWriteln(BuiltInWriteln ast, Void arg) {
 		String lineFeedChar = c(10); // ASCI code 10 is line feed
+		if (Config.BUFFERED_IO) {
+			emitBufferedWrite(BufferedIoEmitter.WRITE_CHAR, new Operand(lineFeedChar));
+			return null;
+		}
+		if (Config.X64) {
+			emit("movl", lineFeedChar, "%edi");
+			emitLibCall(Config.PUTCHAR, 0);
+			return null;
+		}
 		emit("pushl", lineFeedChar);
-		emit("call", Config.PUTCHAR);
+		emitLibCall(Config.PUTCHAR, 0);
 		emitDeallocation(4);
 		return null;
 	}
 
+	/**
+	 * Calls one of the write functions of the buffered I/O runtime.
+	 */
+	private void emitBufferedWrite(String function, Operand argument) {
+		emitPush(argument.text);
+		acg.is.release(argument);
+		emit("call", function);
+		emitDeallocation(Config.SIZEOF_PTR);
+	}
+
+	/**
+	 * Emits a call in tail position which reuses the frame of the current
+	 * method. Returns false without emitting anything if the callee has more
+	 * stack arguments than the current method has slots for.
+	 *
+	 * A recursive call on this which no subclass overrides evaluates the
+	 * arguments onto the stack, as they may read the current ones, pops
+	 * them over the current ones and jumps back to the start of the body.
+	 * Any other call stores its stack arguments over the current ones and
+	 * jumps to the callee after leave, so that it returns to our caller
+	 * directly, which removes the arguments it pushed as usual.
+	 */
+	private boolean emitTailCall(MethodCallExpr call) {
+		List<Expr> args = call.allArguments();
+		int registers = CallingConvention.argumentRegisters().length;
+		int stackSlots = Math.max(0, arguments.size() - registers);
+		if (frameless || Math.max(0, args.size() - registers) > stackSlots)
+			return false;
+		boolean recursive = call.receiver() instanceof ThisRef
+				&& call.methodName.equals(acg.currentMethod)
+				&& !acg.isOverridden(acg.currentClass.name, acg.currentMethod);
+		emitComment("Tail call of " + call.methodName);
+		if (recursive) {
+			// The receiver of a recursive call is this already
+			for (int i = args.size() - 1; i >= 1; i--) {
+				Operand operand = acg.is.select(args.get(i));
+				emitPush(operand.text);
+				acg.is.release(operand);
+			}
+			for (int i = 1; i < args.size(); i++)
+				emitPop(o(acg.currentClass.getLocal(acg.currentMethod, arguments.get(i)), BP));
+			emit("jmp", bodyLabel);
+			return true;
+		}
+		int stackArgs = acg.eg.emitArguments(call);
+		for (int i = 0; i < stackArgs; i++)
+			emitPop(o((2 + i) * Config.SIZEOF_PTR, BP));
+		emitPop(CallingConvention.argumentRegisters()[0]);
+		String method = acg.eg.methodPointer(call);
+		acg.mp.emitExit();
+		emit("leave");
+		emit("jmp", "*" + method);
+		return true;
+	}
+
 	@Override
 	public String returnStmt(ReturnStmt ast, Void arg) {
+		if (Config.TAIL_CALLS && ast.arg() instanceof MethodCallExpr
+				&& emitTailCall((MethodCallExpr) ast.arg()))
+			return null;
 		if (ast.arg() != null) {
-			String returnReg = acg.eg.visit(ast.arg(), arg);
-			emitMove(returnReg, "%eax");
-			acg.registerPool.release(returnReg);
-			emitMethodSuffix(false);
+			Operand value = acg.is.select(ast.arg());
+			emitMove(value.text, AX);
+			acg.is.release(value);
+			emitReturn(false);
 		} else {
 			emitComment("Returning from void...");
-			emitMethodSuffix(true);
+			emitReturn(true);
 		}
 		return null;
 	}
@@ -0,0 +1,232 @@
+package cd.codegen;
+
+import static cd.codegen.AssemblerHelper.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cd.Config;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.UnaryOp;
+
+/**
+ * Replaces integer multiplications, divisions and modulo operations by a
+ * constant with cheaper instruction sequences: shifts and lea for
+ * multiplication, shifts with a sign correction for division by powers of
+ * two, multiplication with a magic reciprocal for other divisors and
+ * masking for modulo by powers of two. No division by zero check is needed
+ * for a constant divisor other than zero.
+ *
+ * All arithmetic is done on the 32-bit registers, the result is sign
+ * extended for x86-64 afterwards.
+ */
+class StrengthReducer {
+
+	private final AstCodeGenerator acg;
+
+	StrengthReducer(AstCodeGenerator astCodeGenerator) {
+		this.acg = astCodeGenerator;
+	}
+
+	/**
+	 * Emits code for {@code ast} if it can be strength reduced and returns
+	 * the register with the result. Returns null, without emitting
+	 * anything, otherwise.
+	 */
+	public String reduce(BinaryOp ast) {
+		if (!ast.left().type.name.equals("int"))
+			return null;
+		Integer right = intConstant(ast.right());
+		switch (ast.operator) {
+		case B_TIMES:
+			if (right != null)
+				return multiply(acg.eg.visit(ast.left(), null), right);
+			Integer left = intConstant(ast.left());
+			if (left != null)
+				return multiply(acg.eg.visit(ast.right(), null), left);
+			return null;
+		case B_DIV:
+			if (right == null || right == 0)
+				return null;
+			return divide(acg.eg.visit(ast.left(), null), right);
+		case B_MOD:
+			if (right == null || right == 0)
+				return null;
+			return modulo(acg.eg.visit(ast.left(), null), right);
+		default:
+			return null;
+		}
+	}
+
+	/** Returns the value of an int constant, possibly negated, or null. */
+	private static Integer intConstant(Expr expr) {
+		if (expr instanceof IntConst)
+			return ((IntConst) expr).value;
+		if (expr instanceof UnaryOp) {
+			UnaryOp op = (UnaryOp) expr;
+			Integer value = intConstant(op.arg());
+			if (value == null)
+				return null;
+			switch (op.operator) {
+			case U_PLUS:
+				return value;
+			case U_MINUS:
+				return -value;
+			default:
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private String multiply(String reg, int factor) {
+		String reg32 = low32(reg);
+		long abs = Math.abs((long) factor);
+		int shift = Long.numberOfTrailingZeros(abs);
+		long odd = abs >> shift;
+		if (factor == 0) {
+			emit("xorl", reg32, reg32);
+			return reg;
+		} else if (odd == 1) {
+			if (shift > 0)
+				emit("shll", c(shift), reg32);
+		} else if (odd == 3 || odd == 5 || odd == 9) {
+			emit("leal", String.format("(%s,%s,%d)", reg, reg, odd - 1), reg32);
+			if (shift > 0)
+				emit("shll", c(shift), reg32);
+		} else {
+			emit("imull", c(factor), reg32);
+			emitSignExtend(reg);
+			return reg;
+		}
+		if (factor < 0)
+			emit("negl", reg32);
+		emitSignExtend(reg);
+		return reg;
+	}
+
+	private String divide(String reg, int divisor) {
+		String reg32 = low32(reg);
+		long abs = Math.abs((long) divisor);
+		if (abs == 1) {
+			// nothing to do
+		} else if (Long.bitCount(abs) == 1) {
+			// Round towards zero by adding 2^k - 1 to negative dividends
+			int shift = Long.numberOfTrailingZeros(abs);
+			String tmp = acg.registerPool.reserve();
+			String tmp32 = low32(tmp);
+			emit("movl", reg32, tmp32);
+			emit("sarl", c(31), tmp32);
+			emit("shrl", c(32 - shift), tmp32);
+			emit("addl", tmp32, reg32);
+			emit("sarl", c(shift), reg32);
+			acg.registerPool.release(tmp);
+		} else {
+			divideByMagic(reg, (int) abs, false);
+		}
+		if (divisor < 0)
+			emit("negl", reg32);
+		emitSignExtend(reg);
+		return reg;
+	}
+
+	private String modulo(String reg, int divisor) {
+		String reg32 = low32(reg);
+		long abs = Math.abs((long) divisor);
+		if (abs == 1) {
+			emit("xorl", reg32, reg32);
+		} else if (Long.bitCount(abs) == 1) {
+			// The remainder has the sign of the dividend: bias negative
+			// dividends by 2^k - 1, mask, and remove the bias again.
+			int shift = Long.numberOfTrailingZeros(abs);
+			String tmp = acg.registerPool.reserve();
+			String tmp32 = low32(tmp);
+			emit("movl", reg32, tmp32);
+			emit("sarl", c(31), tmp32);
+			emit("shrl", c(32 - shift), tmp32);
+			emit("addl", tmp32, reg32);
+			emit("andl", c((int) (abs - 1)), reg32);
+			emit("subl", tmp32, reg32);
+			acg.registerPool.release(tmp);
+		} else {
+			divideByMagic(reg, (int) abs, true);
+		}
+		emitSignExtend(reg);
+		return reg;
+	}
+
+	/**
+	 * Divides {@code reg} by a positive constant which is not a power of two
+	 * by multiplying with its magic reciprocal (Hacker's Delight, 10-4).
+	 * The high half of the product ends up in %edx, so %eax and %edx are
+	 * saved if they are in use. The dividend is kept on the stack.
+	 */
+	private void divideByMagic(String reg, int divisor, boolean remainder) {
+		int[] magic = magic(divisor);
+		List<String> saved = new ArrayList<String>();
+		for (String r : new String[] { AX, DX })
+			if (!r.equals(reg) && acg.registerPool.isInUse(r)) {
+				emitPush(r);
+				saved.add(r);
+			}
+		emitPush(reg);
+		String dividend = o(0, SP);
+		emit("movl", c(magic[0]), "%eax");
+		emit("imull", dividend);
+		if (magic[0] < 0)
+			emit("addl", dividend, "%edx");
+		if (magic[1] > 0)
+			emit("sarl", c(magic[1]), "%edx");
+		// Add one for negative dividends to round towards zero
+		emit("movl", dividend, "%eax");
+		emit("shrl", c(31), "%eax");
+		emit("addl", "%eax", "%edx");
+		if (remainder) {
+			emit("imull", c(divisor), "%edx");
+			emit("movl", dividend, "%eax");
+			emit("subl", "%edx", "%eax");
+			if (!low32(reg).equals("%eax"))
+				emit("movl", "%eax", low32(reg));
+		} else if (!low32(reg).equals("%edx")) {
+			emit("movl", "%edx", low32(reg));
+		}
+		emitDeallocation(Config.SIZEOF_PTR);
+		for (int i = saved.size() - 1; i >= 0; i--)
+			emitPop(saved.get(i));
+	}
+
+	/**
+	 * Computes the magic number and shift amount for signed division by
+	 * {@code d >= 2}, following Hacker's Delight, figure 10-1. Unsigned 32
+	 * bit arithmetic is emulated with longs.
+	 */
+	static int[] magic(int d) {
+		final long two31 = 0x80000000L, mask = 0xFFFFFFFFL;
+		long ad = d;
+		long anc = two31 - 1 - two31 % ad;
+		int p = 31;
+		long q1 = two31 / anc, r1 = two31 - q1 * anc;
+		long q2 = two31 / ad, r2 = two31 - q2 * ad;
+		long delta;
+		do {
+			p++;
+			q1 = (2 * q1) & mask;
+			r1 = (2 * r1) & mask;
+			if (r1 >= anc) {
+				q1 = (q1 + 1) & mask;
+				r1 = (r1 - anc) & mask;
+			}
+			q2 = (2 * q2) & mask;
+			r2 = (2 * r2) & mask;
+			if (r2 >= ad) {
+				q2 = (q2 + 1) & mask;
+				r2 = (r2 - ad) & mask;
+			}
+			delta = ad - r2;
+		} while (q1 < delta || (q1 == delta && r1 == 0));
+		return new int[] { (int) (q2 + 1), p - 32 };
+	}
+
+}
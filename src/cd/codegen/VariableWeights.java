@@ -0,0 +1,82 @@
+package cd.codegen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cd.ir.Ast.IfElse;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.WhileLoop;
+import cd.ir.AstVisitor;
+
+/**
+ * Estimates how often the variables of a method are used, to choose the
+ * ones to keep in registers. Each use counts with the frequency of the
+ * block it is in: the counts of the profile if the method was run while
+ * profiling, else an estimate in which every loop is iterated
+ * {@link #LOOP_ITERATIONS} times.
+ */
+class VariableWeights extends AstVisitor<Void, Double> {
+
+	private static final double LOOP_ITERATIONS = 8;
+
+	private final AstCodeGenerator acg;
+	private final Map<String, Double> weights = new HashMap<String, Double>();
+	private boolean profiled;
+
+	VariableWeights(AstCodeGenerator astCodeGenerator) {
+		this.acg = astCodeGenerator;
+	}
+
+	/**
+	 * Returns the weights of the variables used by the current method,
+	 * whose sites have been numbered by the profile.
+	 */
+	Map<String, Double> weights(MethodDecl ast) {
+		weights.clear();
+		long entries = acg.profile.count(acg.profile.method());
+		profiled = entries > 0;
+		visit(ast.body(), profiled ? entries : 1.0);
+		return new HashMap<String, Double>(weights);
+	}
+
+	/** Returns the weight of a variable, 0 if it is not used. */
+	static double weight(Map<String, Double> weights, String name) {
+		Double weight = weights.get(name);
+		return weight == null ? 0 : weight;
+	}
+
+	@Override
+	public Void var(Var ast, Double frequency) {
+		weights.put(ast.name, weight(weights, ast.name) + frequency);
+		return null;
+	}
+
+	@Override
+	public Void ifElse(IfElse ast, Double frequency) {
+		visit(ast.condition(), frequency);
+		double then = frequency, otherwise = frequency;
+		if (profiled) {
+			String site = acg.profile.site(ast);
+			then = acg.profile.count(site + ".then");
+			otherwise = acg.profile.count(site + ".enter") - then;
+		}
+		visit(ast.then(), then);
+		visit(ast.otherwise(), otherwise);
+		return null;
+	}
+
+	@Override
+	public Void whileLoop(WhileLoop ast, Double frequency) {
+		double body = frequency * LOOP_ITERATIONS;
+		double condition = body;
+		if (profiled) {
+			String site = acg.profile.site(ast);
+			body = acg.profile.count(site + ".body");
+			condition = acg.profile.count(site + ".enter") + body;
+		}
+		visit(ast.condition(), condition);
+		visit(ast.body(), body);
+		return null;
+	}
+}
@@ -0,0 +1,1083 @@
+package cd.codegen;
+
+import static cd.codegen.ElfObjectWriter.R_386_32;
+import static cd.codegen.ElfObjectWriter.R_386_PC32;
+import static cd.codegen.ElfObjectWriter.SHF_ALLOC;
+import static cd.codegen.ElfObjectWriter.SHF_EXECINSTR;
+import static cd.codegen.ElfObjectWriter.SHF_WRITE;
+import static cd.codegen.ElfObjectWriter.SHT_NOBITS;
+import static cd.codegen.ElfObjectWriter.SHT_PROGBITS;
+import static cd.codegen.ElfObjectWriter.STT_FUNC;
+import static cd.codegen.ElfObjectWriter.STT_NOTYPE;
+import static cd.codegen.ElfObjectWriter.STT_OBJECT;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cd.codegen.ElfObjectWriter.Relocation;
+import cd.codegen.ElfObjectWriter.Section;
+import cd.codegen.ElfObjectWriter.Symbol;
+import cd.exceptions.AssemblyFailedException;
+
+/**
+ * Assembles the 32-bit x86 code of {@link AstCodeGenerator} into an ELF
+ * object, so that only the link is left to {@link cd.Config#ASM}. The code
+ * is written to the assembler like to a file, and each line is encoded as
+ * it is written; {@link #writeObject} then resolves the labels and writes
+ * the object.
+ * <p>
+ * It takes the AT&T syntax of the GNU assembler, but only the instructions
+ * and directives which the code generators emit, and throws an
+ * {@link AssemblyFailedException} on any other. Unlike the GNU assembler,
+ * it does not shrink forward jumps, which keep a 32-bit displacement.
+ */
+public class X86Assembler extends Writer {
+
+	private static final int ESP = 4, EBP = 5;
+
+	/** Operand kinds, and for registers their size in bytes. */
+	private static final int IMM = 0, MEM = 1, BYTE = 2, LONG = 3, XMM = 4, FPU = 5;
+
+	private static final Map<String, Integer> REGISTERS = new HashMap<String, Integer>();
+	private static final Map<String, Integer> REGISTER_KINDS = new HashMap<String, Integer>();
+	static {
+		String[] longs = { "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi" };
+		String[] bytes = { "al", "cl", "dl", "bl", "ah", "ch", "dh", "bh" };
+		for (int i = 0; i < 8; i++) {
+			register(longs[i], i, LONG);
+			register(bytes[i], i, BYTE);
+			register("xmm" + i, i, XMM);
+			register("st(" + i + ")", i, FPU);
+		}
+		register("st", 0, FPU);
+	}
+
+	private static void register(String name, int number, int kind) {
+		REGISTERS.put(name, number);
+		REGISTER_KINDS.put(name, kind);
+	}
+
+	private static final Map<String, Integer> CONDITIONS = new HashMap<String, Integer>();
+	static {
+		String[][] names = { { "o" }, { "no" }, { "b", "c", "nae" }, { "ae", "nb", "nc" },
+				{ "e", "z" }, { "ne", "nz" }, { "be", "na" }, { "a", "nbe" }, { "s" }, { "ns" },
+				{ "p", "pe" }, { "np", "po" }, { "l", "nge" }, { "ge", "nl" }, { "le", "ng" },
+				{ "g", "nle" } };
+		for (int cc = 0; cc < names.length; cc++)
+			for (String name : names[cc])
+				CONDITIONS.put(name, cc);
+	}
+
+	/** The integer instructions which take a size suffix, b or l. */
+	private static final Set<String> SIZED = new HashSet<String>(Arrays.asList("add", "or", "adc",
+			"sbb", "and", "sub", "xor", "cmp", "mov", "test", "inc", "dec", "not", "neg", "mul",
+			"imul", "div", "idiv", "shl", "sal", "shr", "sar", "shld", "shrd", "lea", "push", "pop"));
+
+	/** The arithmetic instructions, by the opcode extension of their immediate form. */
+	private static final List<String> ARITHMETIC = Arrays.asList("add", "or", "adc", "sbb", "and",
+			"sub", "xor", "cmp");
+
+	/** The instructions with one operand, by their opcode extension of F7. */
+	private static final List<String> UNARY = Arrays.asList("test", null, "not", "neg", "mul",
+			"imul", "div", "idiv");
+
+	/** The shifts, by their opcode extension of C1. */
+	private static final List<String> SHIFTS = Arrays.asList(null, null, null, null, "shl", "shr",
+			null, "sar");
+
+	/**
+	 * The SSE instructions from an xmm register or memory to an xmm
+	 * register: their prefix (or 0) and their opcode after 0F, and for
+	 * moves the opcode of the store to memory.
+	 */
+	private static final Map<String, int[]> SSE = new HashMap<String, int[]>();
+	static {
+		sse("movss", 0xF3, 0x10, 0x11);
+		sse("movsd", 0xF2, 0x10, 0x11);
+		sse("movups", 0, 0x10, 0x11);
+		sse("movaps", 0, 0x28, 0x29);
+		sse("movdqu", 0xF3, 0x6F, 0x7F);
+		sse("movdqa", 0x66, 0x6F, 0x7F);
+		String[] arithmetic = { "add", "mul", "sub", "min", "div", "max" };
+		int[] opcodes = { 0x58, 0x59, 0x5C, 0x5D, 0x5E, 0x5F };
+		for (int i = 0; i < arithmetic.length; i++) {
+			sse(arithmetic[i] + "ss", 0xF3, opcodes[i]);
+			sse(arithmetic[i] + "sd", 0xF2, opcodes[i]);
+			sse(arithmetic[i] + "ps", 0, opcodes[i]);
+			sse(arithmetic[i] + "pd", 0x66, opcodes[i]);
+		}
+		sse("sqrtss", 0xF3, 0x51);
+		sse("ucomiss", 0, 0x2E);
+		sse("comiss", 0, 0x2F);
+		sse("ucomisd", 0x66, 0x2E);
+		sse("comisd", 0x66, 0x2F);
+		sse("cvtss2sd", 0xF3, 0x5A);
+		sse("cvtsd2ss", 0xF2, 0x5A);
+		sse("cvtsi2ss", 0xF3, 0x2A);
+		sse("cvtsi2ssl", 0xF3, 0x2A);
+		sse("cvtsi2sd", 0xF2, 0x2A);
+		sse("cvtsi2sdl", 0xF2, 0x2A);
+		sse("paddd", 0x66, 0xFE);
+		sse("psubd", 0x66, 0xFA);
+		sse("pmuludq", 0x66, 0xF4);
+		sse("pand", 0x66, 0xDB);
+		sse("por", 0x66, 0xEB);
+		sse("pxor", 0x66, 0xEF);
+		sse("pcmpeqd", 0x66, 0x76);
+		sse("xorps", 0, 0x57);
+		sse("punpckldq", 0x66, 0x62);
+	}
+
+	private static void sse(String name, int... encoding) {
+		SSE.put(name, encoding);
+	}
+
+	/**
+	 * The x87 instructions with a memory operand: their opcode and its
+	 * extension. Without a suffix they take a float.
+	 */
+	private static final Map<String, int[]> X87 = new HashMap<String, int[]>();
+	static {
+		x87("fld", 0xD9, 0, 0xDD, 0);
+		x87("fst", 0xD9, 2, 0xDD, 2);
+		x87("fstp", 0xD9, 3, 0xDD, 3);
+		x87("fadd", 0xD8, 0, 0xDC, 0);
+		x87("fmul", 0xD8, 1, 0xDC, 1);
+		x87("fsub", 0xD8, 4, 0xDC, 4);
+		x87("fsubr", 0xD8, 5, 0xDC, 5);
+		x87("fdiv", 0xD8, 6, 0xDC, 6);
+		x87("fdivr", 0xD8, 7, 0xDC, 7);
+		X87.put("fildl", new int[] { 0xDB, 0 });
+		X87.put("fistpl", new int[] { 0xDB, 3 });
+		X87.put("fisttpl", new int[] { 0xDB, 1 });
+	}
+
+	private static void x87(String name, int single, int singleExt, int dbl, int dblExt) {
+		X87.put(name, new int[] { single, singleExt });
+		X87.put(name + "s", new int[] { single, singleExt });
+		X87.put(name + "l", new int[] { dbl, dblExt });
+	}
+
+	/** The x87 instructions on the stack registers which pop: their second opcode byte. */
+	private static final Map<String, Integer> X87_POP = new HashMap<String, Integer>();
+	static {
+		X87_POP.put("faddp", 0xC0);
+		X87_POP.put("fmulp", 0xC8);
+		// AT&T swaps these two, see the GNU assembler manual
+		X87_POP.put("fsubp", 0xE0);
+		X87_POP.put("fsubrp", 0xE8);
+		X87_POP.put("fdivp", 0xF0);
+		X87_POP.put("fdivrp", 0xF8);
+	}
+
+	/** The instructions without operands. */
+	private static final Map<String, int[]> PLAIN = new HashMap<String, int[]>();
+	static {
+		PLAIN.put("ret", new int[] { 0xC3 });
+		PLAIN.put("leave", new int[] { 0xC9 });
+		PLAIN.put("cltd", new int[] { 0x99 });
+		PLAIN.put("cdq", new int[] { 0x99 });
+		PLAIN.put("nop", new int[] { 0x90 });
+		PLAIN.put("hlt", new int[] { 0xF4 });
+		PLAIN.put("rdtsc", new int[] { 0x0F, 0x31 });
+		PLAIN.put("pushal", new int[] { 0x60 });
+		PLAIN.put("pusha", new int[] { 0x60 });
+		PLAIN.put("popal", new int[] { 0x61 });
+		PLAIN.put("popa", new int[] { 0x61 });
+		PLAIN.put("movsb", new int[] { 0xA4 });
+		PLAIN.put("movsl", new int[] { 0xA5 });
+		PLAIN.put("stosb", new int[] { 0xAA });
+		PLAIN.put("stosl", new int[] { 0xAB });
+		PLAIN.put("fchs", new int[] { 0xD9, 0xE0 });
+		PLAIN.put("fabs", new int[] { 0xD9, 0xE1 });
+		PLAIN.put("fld1", new int[] { 0xD9, 0xE8 });
+		PLAIN.put("fldz", new int[] { 0xD9, 0xEE });
+	}
+
+	private static final Pattern LABEL = Pattern.compile("^([A-Za-z_.$][\\w.$]*)\\s*:");
+
+	/** An operand; for memory and immediates the value of its symbol plus {@link #disp}. */
+	private static class Operand {
+		int kind;
+		int reg;
+		String symbol;
+		int disp;
+		int base = -1, index = -1, scale;
+		boolean indirect;
+
+		boolean isReg() {
+			return kind >= BYTE;
+		}
+	}
+
+	/** A symbol plus a number. */
+	private static class Value {
+		String symbol;
+		int number;
+	}
+
+	/** A field whose value depends on a symbol, which is only known at the end. */
+	private static class Fixup {
+		final Section section;
+		final int offset, type;
+		final String symbol, line;
+
+		Fixup(Section section, int offset, int type, String symbol, String line) {
+			this.section = section;
+			this.offset = offset;
+			this.type = type;
+			this.symbol = symbol;
+			this.line = line;
+		}
+	}
+
+	private final Writer listing;
+	private final StringBuilder pending = new StringBuilder();
+	private String line;
+
+	private final ElfObjectWriter object = new ElfObjectWriter();
+	private final Map<String, Section> sections = new HashMap<String, Section>();
+	private Section section;
+	private final Map<String, Symbol> symbols = new LinkedHashMap<String, Symbol>();
+	private final List<Fixup> fixups = new ArrayList<Fixup>();
+
+	public X86Assembler() {
+		this(null);
+	}
+
+	/** Also writes the assembly to {@code listing}, unless it is null. */
+	public X86Assembler(Writer listing) {
+		this.listing = listing;
+		addSection(".text", SHT_PROGBITS, SHF_ALLOC | SHF_EXECINSTR, 16);
+		addSection(".data", SHT_PROGBITS, SHF_ALLOC | SHF_WRITE, 4);
+		addSection(".bss", SHT_NOBITS, SHF_ALLOC | SHF_WRITE, 4);
+		addSection(".rodata", SHT_PROGBITS, SHF_ALLOC, 4);
+		section = sections.get(".text");
+	}
+
+	private void addSection(String name, int type, int flags, int align) {
+		Section section = new Section(name, type, flags);
+		section.align = align;
+		sections.put(name, section);
+		object.addSection(section);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (listing != null)
+			listing.write(cbuf, off, len);
+		for (int i = off; i < off + len; i++) {
+			if (cbuf[i] == '\n') {
+				assemble(pending.toString());
+				pending.setLength(0);
+			} else {
+				pending.append(cbuf[i]);
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (listing != null)
+			listing.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (listing != null)
+			listing.close();
+	}
+
+	/**
+	 * Writes the ELF object of the code written so far to {@code out}.
+	 * Symbols which are not defined become references to other objects.
+	 */
+	public void writeObject(OutputStream out) throws IOException {
+		if (pending.length() > 0) {
+			assemble(pending.toString());
+			pending.setLength(0);
+		}
+		for (Fixup fixup : fixups)
+			resolve(fixup);
+		for (Symbol symbol : symbols.values()) {
+			if (symbol.section == null)
+				symbol.global = true;
+			if (!symbol.name.startsWith(".L"))
+				object.addSymbol(symbol);
+		}
+		out.write(object.toByteArray());
+	}
+
+	/**
+	 * Fills in the field of {@code fixup}. Jumps within a section need no
+	 * relocation, and relocations against local symbols are made against
+	 * their section, as the local symbols need not be in the object.
+	 */
+	private void resolve(Fixup fixup) {
+		Symbol target = symbols.get(fixup.symbol);
+		Section section = fixup.section;
+		if (target.section == null) {
+			if (target.name.startsWith(".L"))
+				throw failure(fixup.line, "Undefined label " + target.name);
+			section.relocations.add(new Relocation(fixup.offset, fixup.type, target));
+		} else if (fixup.type == R_386_PC32 && target.section == section) {
+			section.patch32(fixup.offset, section.read32(fixup.offset) + target.value - fixup.offset);
+		} else if (target.global) {
+			section.relocations.add(new Relocation(fixup.offset, fixup.type, target));
+		} else {
+			section.patch32(fixup.offset, section.read32(fixup.offset) + target.value);
+			section.relocations.add(new Relocation(fixup.offset, fixup.type, target.section.symbol));
+		}
+	}
+
+	private Symbol symbol(String name) {
+		Symbol symbol = symbols.get(name);
+		if (symbol == null) {
+			symbol = new Symbol(name, STT_NOTYPE);
+			symbols.put(name, symbol);
+		}
+		return symbol;
+	}
+
+	private void define(String name) {
+		Symbol symbol = symbol(name);
+		if (symbol.section != null)
+			throw failure("Symbol " + name + " is already defined");
+		symbol.section = section;
+		symbol.value = section.size();
+	}
+
+	private AssemblyFailedException failure(String message) {
+		return failure(line, message);
+	}
+
+	private static AssemblyFailedException failure(String line, String message) {
+		return new AssemblyFailedException(message + " in: " + line.trim());
+	}
+
+	private void assemble(String text) {
+		line = text;
+		String code = stripComment(text).trim();
+		Matcher label;
+		while ((label = LABEL.matcher(code)).find()) {
+			define(label.group(1));
+			code = code.substring(label.end()).trim();
+		}
+		if (code.isEmpty())
+			return;
+		int space = 0;
+		while (space < code.length() && !Character.isWhitespace(code.charAt(space)))
+			space++;
+		String mnemonic = code.substring(0, space);
+		String operands = code.substring(space).trim();
+		if (mnemonic.startsWith("."))
+			directive(mnemonic, operands);
+		else
+			instruction(mnemonic, operands);
+	}
+
+	private static String stripComment(String text) {
+		boolean quoted = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == '\\' && quoted)
+				i++;
+			else if (c == '#' && !quoted)
+				return text.substring(0, i);
+		}
+		return text;
+	}
+
+	/** Splits {@code operands} at the commas which are not in parentheses or strings. */
+	private static List<String> split(String operands) {
+		List<String> result = new ArrayList<String>();
+		if (operands.isEmpty())
+			return result;
+		int depth = 0, start = 0;
+		boolean quoted = false;
+		for (int i = 0; i < operands.length(); i++) {
+			char c = operands.charAt(i);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == '\\' && quoted)
+				i++;
+			else if (!quoted && c == '(')
+				depth++;
+			else if (!quoted && c == ')')
+				depth--;
+			else if (!quoted && depth == 0 && c == ',') {
+				result.add(operands.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		result.add(operands.substring(start).trim());
+		return result;
+	}
+
+	// -------------------------------------------------------------------
+	// Directives
+
+	private void directive(String name, String operands) {
+		List<String> args = split(operands);
+		if (name.equals(".section")) {
+			switchTo(args.get(0));
+		} else if (name.equals(".text") || name.equals(".data") || name.equals(".bss")) {
+			switchTo(name);
+		} else if (name.equals(".globl") || name.equals(".global")) {
+			for (String arg : args)
+				symbol(arg).global = true;
+		} else if (name.equals(".type")) {
+			String type = args.get(1);
+			symbol(args.get(0)).type = type.equals("@function") ? STT_FUNC
+					: type.equals("@object") ? STT_OBJECT : STT_NOTYPE;
+		} else if (name.equals(".size")) {
+			Symbol symbol = symbol(args.get(0));
+			if (args.get(1).replace(" ", "").equals(".-" + symbol.name))
+				symbol.size = section.size() - symbol.value;
+			else
+				symbol.size = number(args.get(1));
+		} else if (name.equals(".int") || name.equals(".long")) {
+			for (String arg : args)
+				emitValue(value(arg), R_386_32);
+		} else if (name.equals(".byte") || name.equals(".short") || name.equals(".word")
+				|| name.equals(".quad")) {
+			int size = name.equals(".byte") ? 1 : name.equals(".quad") ? 8 : 2;
+			for (String arg : args)
+				emitBytes(Long.decode(arg), size);
+		} else if (name.equals(".double")) {
+			for (String arg : args)
+				emitBytes(Double.doubleToRawLongBits(Double.parseDouble(arg)), 8);
+		} else if (name.equals(".float") || name.equals(".single")) {
+			for (String arg : args)
+				emitBytes(Float.floatToRawIntBits(Float.parseFloat(arg)), 4);
+		} else if (name.equals(".string") || name.equals(".asciz") || name.equals(".ascii")) {
+			for (String arg : args) {
+				for (byte b : string(arg))
+					section.emit(b);
+				if (!name.equals(".ascii"))
+					section.emit(0);
+			}
+		} else if (name.equals(".fill")) {
+			int count = number(args.get(0));
+			int size = args.size() > 1 ? number(args.get(1)) : 1;
+			long fill = args.size() > 2 ? number(args.get(2)) : 0;
+			for (int i = 0; i < count; i++)
+				emitBytes(fill, Math.min(size, 8));
+		} else if (name.equals(".skip") || name.equals(".space") || name.equals(".zero")) {
+			int count = number(args.get(0));
+			int fill = args.size() > 1 ? number(args.get(1)) : 0;
+			for (int i = 0; i < count; i++)
+				section.emit(fill);
+		} else if (name.equals(".balign") || name.equals(".align")) {
+			align(number(args.get(0)));
+		} else if (name.equals(".lcomm")) {
+			int size = number(args.get(1));
+			int alignment = args.size() > 2 ? number(args.get(2))
+					: Math.max(1, Math.min(Integer.highestOneBit(size), 16));
+			Section current = section;
+			section = sections.get(".bss");
+			align(alignment);
+			define(args.get(0));
+			symbol(args.get(0)).type = STT_OBJECT;
+			symbol(args.get(0)).size = size;
+			for (int i = 0; i < size; i++)
+				section.emit(0);
+			section = current;
+		} else {
+			throw failure("Unknown directive " + name);
+		}
+	}
+
+	private void switchTo(String name) {
+		section = sections.get(name);
+		if (section == null)
+			throw failure("Unknown section " + name);
+	}
+
+	private void align(int alignment) {
+		if (Integer.bitCount(alignment) != 1)
+			throw failure("Alignment " + alignment + " is not a power of two");
+		section.align = Math.max(section.align, alignment);
+		boolean code = (section.flags & SHF_EXECINSTR) != 0;
+		while (section.size() % alignment != 0)
+			section.emit(code ? 0x90 : 0);
+	}
+
+	private byte[] string(String literal) {
+		if (!literal.startsWith("\"") || !literal.endsWith("\"") || literal.length() < 2)
+			throw failure("Not a string: " + literal);
+		StringBuilder s = new StringBuilder();
+		for (int i = 1; i < literal.length() - 1; i++) {
+			char c = literal.charAt(i);
+			if (c != '\\') {
+				s.append(c);
+				continue;
+			}
+			c = literal.charAt(++i);
+			if (c >= '0' && c <= '7') {
+				int octal = 0;
+				for (int j = 0; j < 3 && c >= '0' && c <= '7'; j++) {
+					octal = octal * 8 + c - '0';
+					c = literal.charAt(++i);
+				}
+				i--;
+				s.append((char) (octal & 0xFF));
+				continue;
+			}
+			switch (c) {
+			case 'n': s.append('\n'); break;
+			case 't': s.append('\t'); break;
+			case 'r': s.append('\r'); break;
+			case 'b': s.append('\b'); break;
+			case 'f': s.append('\f'); break;
+			default: s.append(c);
+			}
+		}
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) s.charAt(i);
+		return bytes;
+	}
+
+	// -------------------------------------------------------------------
+	// Operands
+
+	private int number(String text) {
+		Value value = value(text);
+		if (value.symbol != null)
+			throw failure("Not a number: " + text);
+		return value.number;
+	}
+
+	/** Parses a sum of numbers and at most one symbol, which is added. */
+	private Value value(String text) {
+		Value value = new Value();
+		int i = 0;
+		text = text.trim();
+		while (i < text.length()) {
+			int sign = 1;
+			while (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-'
+					|| text.charAt(i) == ' ')) {
+				if (text.charAt(i) == '-')
+					sign = -sign;
+				i++;
+			}
+			int start = i;
+			while (i < text.length() && text.charAt(i) != '+' && text.charAt(i) != '-'
+					&& text.charAt(i) != ' ')
+				i++;
+			String term = text.substring(start, i);
+			if (term.isEmpty())
+				throw failure("Bad expression " + text);
+			if (Character.isDigit(term.charAt(0))) {
+				try {
+					value.number += sign * Long.decode(term).intValue();
+				} catch (NumberFormatException e) {
+					throw failure("Bad number " + term);
+				}
+			} else if (value.symbol == null && sign == 1) {
+				value.symbol = term;
+			} else {
+				throw failure("Bad expression " + text);
+			}
+		}
+		return value;
+	}
+
+	private Operand operand(String text) {
+		Operand op = new Operand();
+		if (text.startsWith("*")) {
+			op.indirect = true;
+			text = text.substring(1).trim();
+		}
+		if (text.startsWith("%")) {
+			String name = text.substring(1).replace(" ", "");
+			Integer reg = REGISTERS.get(name);
+			if (reg == null)
+				throw failure("Unknown register " + text);
+			op.reg = reg;
+			op.kind = REGISTER_KINDS.get(name);
+		} else if (text.startsWith("$")) {
+			op.kind = IMM;
+			Value value = value(text.substring(1));
+			op.symbol = value.symbol;
+			op.disp = value.number;
+		} else {
+			op.kind = MEM;
+			int paren = text.indexOf('(');
+			Value value = value(paren < 0 ? text : text.substring(0, paren));
+			op.symbol = value.symbol;
+			op.disp = value.number;
+			if (paren >= 0) {
+				if (!text.endsWith(")"))
+					throw failure("Bad operand " + text);
+				String[] parts = text.substring(paren + 1, text.length() - 1).split(",", -1);
+				if (!parts[0].trim().isEmpty())
+					op.base = longRegister(parts[0]);
+				if (parts.length > 1) {
+					op.index = longRegister(parts[1]);
+					if (op.index == ESP)
+						throw failure("%esp cannot be an index");
+					int scale = parts.length > 2 ? number(parts[2]) : 1;
+					op.scale = Integer.numberOfTrailingZeros(scale);
+					if (scale != 1 && scale != 2 && scale != 4 && scale != 8)
+						throw failure("Bad scale " + scale);
+				}
+			}
+		}
+		return op;
+	}
+
+	private int longRegister(String text) {
+		Operand op = operand(text.trim());
+		if (op.kind != LONG)
+			throw failure("Not a 32-bit register: " + text);
+		return op.reg;
+	}
+
+	// -------------------------------------------------------------------
+	// Encoding
+
+	private void emit(int... bytes) {
+		for (int b : bytes)
+			section.emit(b);
+	}
+
+	private void emitBytes(long value, int size) {
+		for (int i = 0; i < size; i++)
+			section.emit((int) (value >>> (8 * i)));
+	}
+
+	/** Emits the 32 bits of a value, which the symbol is added to later. */
+	private void emitValue(Value value, int type) {
+		if (value.symbol != null) {
+			symbol(value.symbol);
+			fixups.add(new Fixup(section, section.size(), type, value.symbol, line));
+		}
+		section.emit32(value.number);
+	}
+
+	private void emitValue(Operand op) {
+		Value value = new Value();
+		value.symbol = op.symbol;
+		value.number = op.disp;
+		emitValue(value, R_386_32);
+	}
+
+	private static boolean isByte(int value) {
+		return value >= -128 && value <= 127;
+	}
+
+	/** Emits the ModRM byte and what follows it for {@code rm}. */
+	private void modrm(int reg, Operand rm) {
+		if (rm.isReg()) {
+			emit(0xC0 | reg << 3 | rm.reg);
+			return;
+		}
+		if (rm.kind != MEM)
+			throw failure("Not a register or memory");
+		if (rm.base == -1 && rm.index == -1) {
+			emit(reg << 3 | 5);
+			emitValue(rm);
+			return;
+		}
+		int mod;
+		if (rm.base == -1 || rm.symbol != null)
+			mod = rm.base == -1 ? 0 : 2;
+		else if (rm.disp == 0 && rm.base != EBP)
+			mod = 0;
+		else if (isByte(rm.disp))
+			mod = 1;
+		else
+			mod = 2;
+		if (rm.index != -1 || rm.base == ESP || rm.base == -1) {
+			emit(mod << 6 | reg << 3 | 4);
+			emit(rm.scale << 6 | (rm.index == -1 ? 4 : rm.index) << 3 | (rm.base == -1 ? 5 : rm.base));
+		} else {
+			emit(mod << 6 | reg << 3 | rm.base);
+		}
+		if (mod == 1)
+			emit(rm.disp);
+		else if (mod == 2 || rm.base == -1)
+			emitValue(rm);
+	}
+
+	/** Emits a jump or call to {@code target}, with a 32-bit displacement. */
+	private void emitRelative(Operand target) {
+		if (target.kind != MEM || target.base != -1 || target.index != -1 || target.symbol == null)
+			throw failure("Bad jump target");
+		Value value = new Value();
+		value.symbol = target.symbol;
+		value.number = target.disp - 4;
+		emitValue(value, R_386_PC32);
+	}
+
+	/**
+	 * Returns the 8-bit displacement of a jump of {@code length} bytes to
+	 * {@code target} in this section, or null if the target is not known
+	 * yet or too far.
+	 */
+	private Integer shortJump(Operand target, int length) {
+		if (target.kind != MEM || target.base != -1 || target.index != -1 || target.symbol == null)
+			return null;
+		Symbol symbol = symbols.get(target.symbol);
+		if (symbol == null || symbol.section != section)
+			return null;
+		int disp = symbol.value + target.disp - (section.size() + length);
+		return isByte(disp) ? disp : null;
+	}
+
+	private void instruction(String mnemonic, String operandText) {
+		if (mnemonic.equals("rep")) {
+			emit(0xF3);
+			instruction(operandText, "");
+			return;
+		}
+		List<Operand> ops = new ArrayList<Operand>();
+		for (String text : split(operandText))
+			ops.add(operand(text));
+		int count = ops.size();
+
+		if (count == 0 && PLAIN.containsKey(mnemonic)) {
+			emit(PLAIN.get(mnemonic));
+			return;
+		}
+		if (mnemonic.equals("jmp") || mnemonic.equals("call")) {
+			checkCount(ops, 1);
+			Operand target = ops.get(0);
+			if (target.indirect) {
+				emit(0xFF);
+				modrm(mnemonic.equals("call") ? 2 : 4, target);
+				return;
+			}
+			Integer disp = mnemonic.equals("jmp") ? shortJump(target, 2) : null;
+			if (disp != null) {
+				emit(0xEB, disp);
+			} else {
+				emit(mnemonic.equals("call") ? 0xE8 : 0xE9);
+				emitRelative(target);
+			}
+			return;
+		}
+		if (mnemonic.startsWith("j") && CONDITIONS.containsKey(mnemonic.substring(1))) {
+			checkCount(ops, 1);
+			int cc = CONDITIONS.get(mnemonic.substring(1));
+			Integer disp = shortJump(ops.get(0), 2);
+			if (disp != null) {
+				emit(0x70 | cc, disp);
+			} else {
+				emit(0x0F, 0x80 | cc);
+				emitRelative(ops.get(0));
+			}
+			return;
+		}
+		if (mnemonic.startsWith("set") && CONDITIONS.containsKey(mnemonic.substring(3))) {
+			checkCount(ops, 1);
+			emit(0x0F, 0x90 | CONDITIONS.get(mnemonic.substring(3)));
+			modrm(0, ops.get(0));
+			return;
+		}
+		if (mnemonic.equals("movzbl") || mnemonic.equals("movzb") || mnemonic.equals("movsbl")
+				|| mnemonic.equals("movsb") && count == 2) {
+			checkCount(ops, 2);
+			emit(0x0F, mnemonic.startsWith("movz") ? 0xB6 : 0xBE);
+			modrm(register(ops.get(1), LONG), ops.get(0));
+			return;
+		}
+		if (mnemonic.equals("int")) {
+			checkCount(ops, 1);
+			emit(0xCD, immediate(ops.get(0)));
+			return;
+		}
+		if (mnemonic.equals("movd")) {
+			checkCount(ops, 2);
+			if (ops.get(1).kind == XMM) {
+				emit(0x66, 0x0F, 0x6E);
+				modrm(ops.get(1).reg, ops.get(0));
+			} else {
+				emit(0x66, 0x0F, 0x7E);
+				modrm(register(ops.get(0), XMM), ops.get(1));
+			}
+			return;
+		}
+		if (mnemonic.equals("pshufd")) {
+			checkCount(ops, 3);
+			emit(0x66, 0x0F, 0x70);
+			modrm(register(ops.get(2), XMM), ops.get(1));
+			emit(immediate(ops.get(0)));
+			return;
+		}
+		if (mnemonic.matches("ps(rl|ll)[dq]|psrldq|pslldq") && count == 2
+				&& ops.get(0).kind == IMM) {
+			int opcode = mnemonic.endsWith("dq") ? 0x73 : mnemonic.endsWith("q") ? 0x73 : 0x72;
+			int ext = mnemonic.endsWith("dq") ? (mnemonic.startsWith("psr") ? 3 : 7)
+					: mnemonic.startsWith("psr") ? 2 : 6;
+			emit(0x66, 0x0F, opcode);
+			modrm(ext, xmm(ops.get(1)));
+			emit(immediate(ops.get(0)));
+			return;
+		}
+		if (mnemonic.matches("cvtt?s[sd]2si") || mnemonic.matches("cvtt?s[sd]2sil")) {
+			checkCount(ops, 2);
+			emit(mnemonic.contains("ss2") ? 0xF3 : 0xF2, 0x0F, mnemonic.startsWith("cvtt") ? 0x2C : 0x2D);
+			modrm(register(ops.get(1), LONG), ops.get(0));
+			return;
+		}
+		if (SSE.containsKey(mnemonic)) {
+			checkCount(ops, 2);
+			int[] encoding = SSE.get(mnemonic);
+			boolean store = ops.get(1).kind == MEM;
+			if (store && encoding.length < 3)
+				throw failure("Cannot store to memory");
+			if (encoding[0] != 0)
+				emit(encoding[0]);
+			emit(0x0F, store ? encoding[2] : encoding[1]);
+			if (store)
+				modrm(register(ops.get(0), XMM), ops.get(1));
+			else
+				modrm(register(ops.get(1), XMM), ops.get(0));
+			return;
+		}
+		if (X87_POP.containsKey(mnemonic)) {
+			int i = 1;
+			if (count == 2) {
+				if (ops.get(0).kind != FPU || ops.get(0).reg != 0)
+					throw failure("Bad operands");
+				i = register(ops.get(1), FPU);
+			} else if (count != 0) {
+				throw failure("Bad operands");
+			}
+			emit(0xDE, X87_POP.get(mnemonic) + i);
+			return;
+		}
+		if ((mnemonic.equals("fld") || mnemonic.equals("fstp") || mnemonic.equals("fxch"))
+				&& count == 1 && ops.get(0).kind == FPU) {
+			int i = ops.get(0).reg;
+			emit(mnemonic.equals("fstp") ? 0xDD : 0xD9,
+					(mnemonic.equals("fld") ? 0xC0 : mnemonic.equals("fstp") ? 0xD8 : 0xC8) + i);
+			return;
+		}
+		if (X87.containsKey(mnemonic)) {
+			checkCount(ops, 1);
+			if (ops.get(0).kind != MEM)
+				throw failure("Not memory");
+			int[] encoding = X87.get(mnemonic);
+			emit(encoding[0]);
+			modrm(encoding[1], ops.get(0));
+			return;
+		}
+		integer(mnemonic, ops);
+	}
+
+	/** Encodes the integer instructions of {@link #SIZED}. */
+	private void integer(String mnemonic, List<Operand> ops) {
+		String name = mnemonic;
+		int size = 0;
+		if (!SIZED.contains(mnemonic)) {
+			String stem = mnemonic.substring(0, mnemonic.length() - 1);
+			char suffix = mnemonic.charAt(mnemonic.length() - 1);
+			if (!SIZED.contains(stem) || (suffix != 'l' && suffix != 'b'))
+				throw failure("Unknown instruction " + mnemonic);
+			name = stem;
+			size = suffix == 'l' ? 4 : 1;
+		}
+		// Without a suffix, the registers tell the size, the destination first
+		for (int i = ops.size() - 1; i >= 0 && size == 0; i--)
+			if (ops.get(i).kind == BYTE || ops.get(i).kind == LONG)
+				size = ops.get(i).kind == BYTE ? 1 : 4;
+		if (size == 0)
+			size = 4;
+		int w = size == 1 ? 0 : 1;
+		int reg = size == 1 ? BYTE : LONG;
+		int count = ops.size();
+
+		if (ARITHMETIC.contains(name)) {
+			checkCount(ops, 2);
+			int ext = ARITHMETIC.indexOf(name);
+			Operand src = ops.get(0), dst = ops.get(1);
+			if (src.kind == IMM) {
+				if (size == 1) {
+					emit(0x80);
+					modrm(ext, dst);
+					emit(src.disp);
+				} else if (src.symbol == null && isByte(src.disp)) {
+					emit(0x83);
+					modrm(ext, dst);
+					emit(src.disp);
+				} else {
+					emit(0x81);
+					modrm(ext, dst);
+					emitValue(src);
+				}
+			} else if (src.isReg()) {
+				emit(ext << 3 | w);
+				modrm(register(src, reg), dst);
+			} else {
+				emit(ext << 3 | 2 | w);
+				modrm(register(dst, reg), src);
+			}
+		} else if (name.equals("mov")) {
+			checkCount(ops, 2);
+			Operand src = ops.get(0), dst = ops.get(1);
+			if (src.kind == IMM && dst.isReg()) {
+				emit((size == 1 ? 0xB0 : 0xB8) + register(dst, reg));
+				if (size == 1)
+					emit(src.disp);
+				else
+					emitValue(src);
+			} else if (src.kind == IMM) {
+				emit(0xC6 | w);
+				modrm(0, dst);
+				if (size == 1)
+					emit(src.disp);
+				else
+					emitValue(src);
+			} else if (src.isReg()) {
+				emit(0x88 | w);
+				modrm(register(src, reg), dst);
+			} else {
+				emit(0x8A | w);
+				modrm(register(dst, reg), src);
+			}
+		} else if (name.equals("test")) {
+			checkCount(ops, 2);
+			Operand src = ops.get(0), dst = ops.get(1);
+			if (src.kind == IMM) {
+				emit(0xF6 | w);
+				modrm(0, dst);
+				if (size == 1)
+					emit(src.disp);
+				else
+					emitValue(src);
+			} else if (src.isReg()) {
+				emit(0x84 | w);
+				modrm(register(src, reg), dst);
+			} else {
+				emit(0x84 | w);
+				modrm(register(dst, reg), src);
+			}
+		} else if ((name.equals("inc") || name.equals("dec")) && count == 1) {
+			emit(0xFE | w);
+			modrm(name.equals("inc") ? 0 : 1, ops.get(0));
+		} else if (name.equals("imul") && count > 1) {
+			Operand src = ops.get(count == 3 ? 1 : 0), dst = ops.get(count - 1);
+			if (ops.get(0).kind == IMM) {
+				Operand factor = ops.get(0);
+				if (count == 2)
+					src = dst;
+				boolean small = factor.symbol == null && isByte(factor.disp);
+				emit(small ? 0x6B : 0x69);
+				modrm(register(dst, LONG), src);
+				if (small)
+					emit(factor.disp);
+				else
+					emitValue(factor);
+			} else {
+				checkCount(ops, 2);
+				emit(0x0F, 0xAF);
+				modrm(register(dst, LONG), src);
+			}
+		} else if (UNARY.contains(name) && count == 1) {
+			emit(0xF6 | w);
+			modrm(UNARY.indexOf(name), ops.get(0));
+		} else if (SHIFTS.contains(name) || name.equals("sal")) {
+			int ext = name.equals("sal") ? 4 : SHIFTS.indexOf(name);
+			Operand dst = ops.get(count - 1);
+			if (count == 1 || ops.get(0).kind == IMM && ops.get(0).disp == 1) {
+				emit(0xD0 | w);
+				modrm(ext, dst);
+			} else if (ops.get(0).kind == IMM) {
+				checkCount(ops, 2);
+				emit(0xC0 | w);
+				modrm(ext, dst);
+				emit(ops.get(0).disp);
+			} else {
+				checkCount(ops, 2);
+				if (ops.get(0).kind != BYTE || ops.get(0).reg != 1)
+					throw failure("Shift count must be %cl");
+				emit(0xD2 | w);
+				modrm(ext, dst);
+			}
+		} else if ((name.equals("shld") || name.equals("shrd")) && size == 4) {
+			checkCount(ops, 3);
+			Operand amount = ops.get(0);
+			int opcode = name.equals("shld") ? 0xA4 : 0xAC;
+			if (amount.kind == IMM) {
+				emit(0x0F, opcode);
+				modrm(register(ops.get(1), LONG), ops.get(2));
+				emit(amount.disp);
+			} else {
+				if (amount.kind != BYTE || amount.reg != 1)
+					throw failure("Shift count must be %cl");
+				emit(0x0F, opcode + 1);
+				modrm(register(ops.get(1), LONG), ops.get(2));
+			}
+		} else if (name.equals("lea")) {
+			checkCount(ops, 2);
+			if (ops.get(0).kind != MEM)
+				throw failure("Not memory");
+			emit(0x8D);
+			modrm(register(ops.get(1), LONG), ops.get(0));
+		} else if (name.equals("push")) {
+			checkCount(ops, 1);
+			Operand src = ops.get(0);
+			if (src.kind == LONG) {
+				emit(0x50 + src.reg);
+			} else if (src.kind == IMM && src.symbol == null && isByte(src.disp)) {
+				emit(0x6A, src.disp);
+			} else if (src.kind == IMM) {
+				emit(0x68);
+				emitValue(src);
+			} else {
+				emit(0xFF);
+				modrm(6, src);
+			}
+		} else if (name.equals("pop")) {
+			checkCount(ops, 1);
+			if (ops.get(0).kind == LONG) {
+				emit(0x58 + ops.get(0).reg);
+			} else {
+				emit(0x8F);
+				modrm(0, ops.get(0));
+			}
+		} else {
+			throw failure("Bad operands for " + mnemonic);
+		}
+	}
+
+	private void checkCount(List<Operand> ops, int count) {
+		if (ops.size() != count)
+			throw failure("Expected " + count + " operands");
+	}
+
+	/** Returns the number of {@code op}, which must be a register of {@code kind}. */
+	private int register(Operand op, int kind) {
+		if (op.kind != kind)
+			throw failure("Bad register operand");
+		return op.reg;
+	}
+
+	private Operand xmm(Operand op) {
+		register(op, XMM);
+		return op;
+	}
+
+	private int immediate(Operand op) {
+		if (op.kind != IMM || op.symbol != null)
+			throw failure("Not a number");
+		return op.disp;
+	}
+}
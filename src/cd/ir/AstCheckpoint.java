@@ -0,0 +1,935 @@
+package cd.ir;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cd.ir.Ast.Assign;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.BuiltInRead;
+import cd.ir.Ast.BuiltInReadFloat;
+import cd.ir.Ast.BuiltInWrite;
+import cd.ir.Ast.BuiltInWriteFloat;
+import cd.ir.Ast.BuiltInWriteln;
+import cd.ir.Ast.Cast;
+import cd.ir.Ast.ClassDecl;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.Field;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.IfElse;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.NewArray;
+import cd.ir.Ast.NewObject;
+import cd.ir.Ast.Nop;
+import cd.ir.Ast.NullConst;
+import cd.ir.Ast.ReturnStmt;
+import cd.ir.Ast.Seq;
+import cd.ir.Ast.ThisRef;
+import cd.ir.Ast.UnaryOp;
+import cd.ir.Ast.UnaryOp.UOp;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.VarDecl;
+import cd.ir.Ast.WhileLoop;
+import cd.ir.Symbol.ArrayTypeSymbol;
+import cd.ir.Symbol.ClassSymbol;
+import cd.ir.Symbol.MethodSymbol;
+import cd.ir.Symbol.NullTypeSymbol;
+import cd.ir.Symbol.PrimitiveTypeSymbol;
+import cd.ir.Symbol.TypeSymbol;
+import cd.ir.Symbol.VariableSymbol;
+
+/**
+ * A binary format for the ASTs of a program and the symbols the semantic
+ * analysis attached to them, so that later phases can start from a
+ * checkpoint instead of parsing and checking the program again.
+ *
+ * <p>All numbers are unsigned LEB128 varints, except for float constants
+ * (4 bytes) and int constants (zigzag varints). A string is 0 for null, 1
+ * followed by its length and UTF-8 bytes the first time, and 2 plus its
+ * index in the order of first appearance later on. A file has:
+ * <ol>
+ * <li>the magic number, the version and the number of classes;</li>
+ * <li>the nodes in preorder: a tag (0 for a null child), the fields of the
+ * node, and the number of children followed by the children. Symbols are
+ * referred to by index plus one (0 for null);</li>
+ * <li>the number of symbols and for each a tag and what it is created
+ * with, which always comes before it. Nodes are referred to by their
+ * position in preorder plus one;</li>
+ * <li>for each symbol the symbols it refers to, e.g. the super class and
+ * members of a class.</li>
+ * </ol>
+ */
+public class AstCheckpoint {
+
+	private static final int MAGIC = 0x4A415354; // "JAST"
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Tags of the nodes
+	private static final int NULL = 0, THIS_REF = 1, BINARY_OP = 2, CAST = 3, FLOAT_CONST = 4,
+			INT_CONST = 5, BOOLEAN_CONST = 6, NULL_CONST = 7, FIELD = 8, INDEX = 9,
+			NEW_OBJECT = 10, NEW_ARRAY = 11, UNARY_OP = 12, VAR = 13, BUILT_IN_READ = 14,
+			BUILT_IN_READ_FLOAT = 15, METHOD_CALL_EXPR = 16, NOP = 17, ASSIGN = 18, IF_ELSE = 19,
+			RETURN_STMT = 20, BUILT_IN_WRITE = 21, BUILT_IN_WRITE_FLOAT = 22, BUILT_IN_WRITELN = 23,
+			METHOD_CALL = 24, WHILE_LOOP = 25, VAR_DECL = 26, SEQ = 27, METHOD_DECL = 28,
+			CLASS_DECL = 29;
+
+	// Tags of the symbols
+	private static final int PRIMITIVE_TYPE = 1, NULL_TYPE = 2, ARRAY_TYPE = 3, CLASS = 4,
+			METHOD = 5, VARIABLE = 6, THIS = 7;
+
+	/**
+	 * Writes {@code astRoots} and their symbols to {@code out}, which is
+	 * flushed but not closed.
+	 */
+	public static void write(List<ClassDecl> astRoots, OutputStream out) throws IOException {
+		try {
+			new Writer(out).write(astRoots);
+		} catch (WriteFailure e) {
+			throw (IOException) e.getCause();
+		}
+	}
+
+	/** Reads the classes of a program from {@code file}, which is mapped into memory. */
+	public static List<ClassDecl> read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Reads the classes of a program from {@code in}, from its position on. */
+	public static List<ClassDecl> read(ByteBuffer in) throws IOException {
+		try {
+			return new Reader(in).read();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated checkpoint", e);
+		}
+	}
+
+	/** Writes the nodes as they are visited, and then their symbols. */
+	private static class Writer extends AstVisitor<Void, Void> {
+		private final OutputStream out;
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+		private final Map<Ast, Integer> nodes = new IdentityHashMap<Ast, Integer>();
+		// Symbols override equals, so they are told apart by identity
+		private final Map<Symbol, Integer> symbolIndices = new IdentityHashMap<Symbol, Integer>();
+		private final List<Symbol> symbols = new ArrayList<Symbol>();
+
+		Writer(OutputStream out) {
+			this.out = new BufferedOutputStream(out);
+		}
+
+		void write(List<ClassDecl> astRoots) throws IOException {
+			for (int shift = 24; shift >= 0; shift -= 8)
+				out.write(MAGIC >>> shift);
+			varint(VERSION);
+			varint(astRoots.size());
+			for (ClassDecl ast : astRoots)
+				node(ast);
+
+			// The symbols which only other symbols refer to
+			for (int i = 0; i < symbols.size(); i++)
+				for (Symbol linked : linked(symbols.get(i)))
+					index(linked);
+			varint(symbols.size());
+			for (Symbol sym : symbols)
+				create(sym);
+			for (Symbol sym : symbols)
+				link(sym);
+			out.flush();
+		}
+
+		private void node(Ast ast) throws IOException {
+			if (ast == null) {
+				varint(NULL);
+				return;
+			}
+			nodes.put(ast, nodes.size());
+			visit(ast, null);
+			varint(ast.rwChildren.size());
+			for (Ast child : ast.rwChildren)
+				node(child);
+		}
+
+		// ---------------------------------------------------------------
+		// The tags and fields of the nodes
+
+		private void expr(int tag, Expr ast) {
+			varint(tag);
+			symbol(ast.type);
+		}
+
+		@Override
+		public Void thisRef(ThisRef ast, Void arg) {
+			expr(THIS_REF, ast);
+			return null;
+		}
+
+		@Override
+		public Void binaryOp(BinaryOp ast, Void arg) {
+			expr(BINARY_OP, ast);
+			varint(ast.operator.ordinal());
+			return null;
+		}
+
+		@Override
+		public Void cast(Cast ast, Void arg) {
+			expr(CAST, ast);
+			string(ast.typeName);
+			symbol(ast.typeSym);
+			return null;
+		}
+
+		@Override
+		public Void floatConst(FloatConst ast, Void arg) {
+			expr(FLOAT_CONST, ast);
+			int bits = Float.floatToRawIntBits(ast.value);
+			for (int shift = 24; shift >= 0; shift -= 8)
+				writeByte(bits >>> shift);
+			return null;
+		}
+
+		@Override
+		public Void intConst(IntConst ast, Void arg) {
+			expr(INT_CONST, ast);
+			varint((ast.value << 1) ^ (ast.value >> 31));
+			return null;
+		}
+
+		@Override
+		public Void booleanConst(BooleanConst ast, Void arg) {
+			expr(BOOLEAN_CONST, ast);
+			varint(ast.value ? 1 : 0);
+			return null;
+		}
+
+		@Override
+		public Void nullConst(NullConst ast, Void arg) {
+			expr(NULL_CONST, ast);
+			return null;
+		}
+
+		@Override
+		public Void field(Field ast, Void arg) {
+			expr(FIELD, ast);
+			string(ast.fieldName);
+			symbol(ast.sym);
+			return null;
+		}
+
+		@Override
+		public Void index(Index ast, Void arg) {
+			expr(INDEX, ast);
+			return null;
+		}
+
+		@Override
+		public Void newObject(NewObject ast, Void arg) {
+			expr(NEW_OBJECT, ast);
+			string(ast.typeName);
+			return null;
+		}
+
+		@Override
+		public Void newArray(NewArray ast, Void arg) {
+			expr(NEW_ARRAY, ast);
+			string(ast.typeName);
+			return null;
+		}
+
+		@Override
+		public Void unaryOp(UnaryOp ast, Void arg) {
+			expr(UNARY_OP, ast);
+			varint(ast.operator.ordinal());
+			return null;
+		}
+
+		@Override
+		public Void var(Var ast, Void arg) {
+			expr(VAR, ast);
+			string(ast.name);
+			symbol(ast.sym);
+			return null;
+		}
+
+		@Override
+		public Void builtInRead(BuiltInRead ast, Void arg) {
+			expr(BUILT_IN_READ, ast);
+			return null;
+		}
+
+		@Override
+		public Void builtInReadFloat(BuiltInReadFloat ast, Void arg) {
+			expr(BUILT_IN_READ_FLOAT, ast);
+			return null;
+		}
+
+		@Override
+		public Void methodCall(MethodCallExpr ast, Void arg) {
+			expr(METHOD_CALL_EXPR, ast);
+			string(ast.methodName);
+			symbol(ast.sym);
+			return null;
+		}
+
+		@Override
+		public Void nop(Nop ast, Void arg) {
+			varint(NOP);
+			return null;
+		}
+
+		@Override
+		public Void assign(Assign ast, Void arg) {
+			varint(ASSIGN);
+			return null;
+		}
+
+		@Override
+		public Void ifElse(IfElse ast, Void arg) {
+			varint(IF_ELSE);
+			return null;
+		}
+
+		@Override
+		public Void returnStmt(ReturnStmt ast, Void arg) {
+			varint(RETURN_STMT);
+			return null;
+		}
+
+		@Override
+		public Void builtInWrite(BuiltInWrite ast, Void arg) {
+			varint(BUILT_IN_WRITE);
+			return null;
+		}
+
+		@Override
+		public Void builtInWriteFloat(BuiltInWriteFloat ast, Void arg) {
+			varint(BUILT_IN_WRITE_FLOAT);
+			return null;
+		}
+
+		@Override
+		public Void builtInWriteln(BuiltInWriteln ast, Void arg) {
+			varint(BUILT_IN_WRITELN);
+			return null;
+		}
+
+		@Override
+		public Void methodCall(MethodCall ast, Void arg) {
+			varint(METHOD_CALL);
+			string(ast.methodName);
+			symbol(ast.sym);
+			return null;
+		}
+
+		@Override
+		public Void whileLoop(WhileLoop ast, Void arg) {
+			varint(WHILE_LOOP);
+			return null;
+		}
+
+		@Override
+		public Void varDecl(VarDecl ast, Void arg) {
+			varint(VAR_DECL);
+			string(ast.type);
+			string(ast.name);
+			symbol(ast.sym);
+			return null;
+		}
+
+		@Override
+		public Void seq(Seq ast, Void arg) {
+			varint(SEQ);
+			return null;
+		}
+
+		@Override
+		public Void methodDecl(MethodDecl ast, Void arg) {
+			varint(METHOD_DECL);
+			string(ast.returnType);
+			string(ast.name);
+			strings(ast.argumentTypes);
+			strings(ast.argumentNames);
+			symbol(ast.sym);
+			return null;
+		}
+
+		@Override
+		public Void classDecl(ClassDecl ast, Void arg) {
+			varint(CLASS_DECL);
+			string(ast.name);
+			string(ast.superClass);
+			symbol(ast.sym);
+			return null;
+		}
+
+		// ---------------------------------------------------------------
+		// Symbols
+
+		/**
+		 * Gives {@code sym} the next index, after the symbols it is
+		 * created with.
+		 */
+		private void index(Symbol sym) {
+			if (sym == null || symbolIndices.containsKey(sym))
+				return;
+			if (isThis(sym))
+				index(((VariableSymbol) sym).type);
+			else if (sym instanceof VariableSymbol)
+				index(((VariableSymbol) sym).type);
+			else if (sym instanceof ArrayTypeSymbol)
+				index(((ArrayTypeSymbol) sym).elementType);
+			symbolIndices.put(sym, symbols.size());
+			symbols.add(sym);
+		}
+
+		/** The symbols {@code sym} refers to besides the ones it is created with. */
+		private List<Symbol> linked(Symbol sym) {
+			List<Symbol> linked = new ArrayList<Symbol>();
+			if (sym instanceof ClassSymbol) {
+				ClassSymbol cls = (ClassSymbol) sym;
+				linked.add(cls.superClass);
+				linked.addAll(cls.fields.values());
+				linked.addAll(cls.methods.values());
+			} else if (sym instanceof MethodSymbol) {
+				MethodSymbol method = (MethodSymbol) sym;
+				linked.addAll(method.locals.values());
+				linked.addAll(method.parameters);
+				linked.add(method.returnType);
+			} else if (sym instanceof VariableSymbol)
+				linked.add(((VariableSymbol) sym).getStaticClass());
+			return linked;
+		}
+
+		private void create(Symbol sym) throws IOException {
+			if (sym instanceof PrimitiveTypeSymbol) {
+				varint(PRIMITIVE_TYPE);
+				string(sym.name);
+			} else if (sym instanceof NullTypeSymbol) {
+				varint(NULL_TYPE);
+			} else if (sym instanceof ArrayTypeSymbol) {
+				varint(ARRAY_TYPE);
+				symbol(((ArrayTypeSymbol) sym).elementType);
+			} else if (sym instanceof ClassSymbol) {
+				varint(CLASS);
+				string(sym.name);
+				nodeRef(((ClassSymbol) sym).ast);
+			} else if (sym instanceof MethodSymbol) {
+				varint(METHOD);
+				nodeRef(((MethodSymbol) sym).ast);
+			} else if (isThis(sym)) {
+				varint(THIS);
+				symbol(((VariableSymbol) sym).type);
+			} else if (sym instanceof VariableSymbol) {
+				VariableSymbol var = (VariableSymbol) sym;
+				varint(VARIABLE);
+				string(var.name);
+				symbol(var.type);
+				varint(var.kind.ordinal());
+			} else
+				throw new IllegalArgumentException("Unknown symbol " + sym);
+		}
+
+		private void link(Symbol sym) throws IOException {
+			if (sym instanceof ClassSymbol) {
+				ClassSymbol cls = (ClassSymbol) sym;
+				symbol(cls.superClass);
+				varint(cls.fields.size());
+				for (Map.Entry<String, VariableSymbol> field : cls.fields.entrySet()) {
+					string(field.getKey());
+					symbol(field.getValue());
+				}
+				varint(cls.methods.size());
+				for (Map.Entry<String, MethodSymbol> method : cls.methods.entrySet()) {
+					string(method.getKey());
+					symbol(method.getValue());
+				}
+			} else if (sym instanceof MethodSymbol) {
+				MethodSymbol method = (MethodSymbol) sym;
+				nodeRef(method.getClassAst());
+				varint(method.locals.size());
+				for (Map.Entry<String, VariableSymbol> local : method.locals.entrySet()) {
+					string(local.getKey());
+					symbol(local.getValue());
+				}
+				varint(method.parameters.size());
+				for (VariableSymbol parameter : method.parameters)
+					symbol(parameter);
+				symbol(method.returnType);
+			} else if (sym instanceof VariableSymbol)
+				symbol(((VariableSymbol) sym).getStaticClass());
+		}
+
+		/** True if {@code sym} is the symbol of {@code this} its class was created with. */
+		private boolean isThis(Symbol sym) {
+			if (!(sym instanceof VariableSymbol))
+				return false;
+			TypeSymbol type = ((VariableSymbol) sym).type;
+			return type instanceof ClassSymbol && ((ClassSymbol) type).thisSymbol == sym;
+		}
+
+		// ---------------------------------------------------------------
+		// Encoding
+
+		private void symbol(Symbol sym) {
+			if (sym == null) {
+				varint(0);
+				return;
+			}
+			index(sym);
+			varint(symbolIndices.get(sym) + 1);
+		}
+
+		private void nodeRef(Ast ast) {
+			if (ast == null) {
+				varint(0);
+				return;
+			}
+			Integer id = nodes.get(ast);
+			if (id == null)
+				throw new IllegalArgumentException("A symbol refers to a node which is not in the program: " + ast);
+			varint(id + 1);
+		}
+
+		private void string(String value) {
+			if (value == null) {
+				varint(0);
+				return;
+			}
+			Integer index = strings.get(value);
+			if (index != null) {
+				varint(index + 2);
+				return;
+			}
+			strings.put(value, strings.size());
+			byte[] bytes = value.getBytes(UTF8);
+			varint(1);
+			varint(bytes.length);
+			for (byte b : bytes)
+				writeByte(b);
+		}
+
+		private void strings(List<String> values) {
+			varint(values.size());
+			for (String value : values)
+				string(value);
+		}
+
+		private void varint(int value) {
+			while ((value & ~0x7F) != 0) {
+				writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			writeByte(value);
+		}
+
+		private void writeByte(int b) {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				throw new WriteFailure(e);
+			}
+		}
+	}
+
+	/** Carries an {@link IOException} out of the visitor, which cannot throw it. */
+	private static class WriteFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		WriteFailure(IOException cause) {
+			super(cause);
+		}
+	}
+
+	/** Reads the nodes, then their symbols, and then attaches the symbols to the nodes. */
+	private static class Reader {
+		private final ByteBuffer in;
+		private final List<String> strings = new ArrayList<String>();
+		private final List<Ast> nodes = new ArrayList<Ast>();
+		private Symbol[] symbols;
+
+		// The symbol references of the nodes, attached once the symbols exist:
+		// the node, which of its fields, and the reference
+		private final List<Ast> referringNodes = new ArrayList<Ast>();
+		private final List<Integer> referringFields = new ArrayList<Integer>();
+		private final List<Integer> references = new ArrayList<Integer>();
+		private static final int TYPE = 0, SYM = 1, TYPE_SYM = 2;
+
+		Reader(ByteBuffer in) {
+			this.in = in;
+		}
+
+		List<ClassDecl> read() throws IOException {
+			if (in.getInt() != MAGIC)
+				throw new IOException("Not a checkpoint");
+			int version = varint();
+			if (version != VERSION)
+				throw new IOException("Checkpoint version " + version + " instead of " + VERSION);
+			int count = varint();
+			List<ClassDecl> astRoots = new ArrayList<ClassDecl>();
+			for (int i = 0; i < count; i++)
+				astRoots.add((ClassDecl) node());
+
+			symbols = new Symbol[varint()];
+			for (int i = 0; i < symbols.length; i++)
+				symbols[i] = create();
+			for (Symbol sym : symbols)
+				link(sym);
+
+			for (int i = 0; i < referringNodes.size(); i++)
+				attach(referringNodes.get(i), referringFields.get(i), symbol(references.get(i)));
+			return astRoots;
+		}
+
+		private Ast node() throws IOException {
+			int tag = varint();
+			if (tag == NULL)
+				return null;
+			int id = nodes.size();
+			nodes.add(null);
+			int referring = referringNodes.size();
+			int type = tag <= METHOD_CALL_EXPR ? varint() : 0;
+			Ast ast;
+			switch (tag) {
+			case THIS_REF:
+				children();
+				ast = new ThisRef();
+				break;
+			case BINARY_OP: {
+				BOp operator = BOp.values()[varint()];
+				List<Ast> children = children();
+				ast = new BinaryOp((Expr) children.get(0), operator, (Expr) children.get(1));
+				break;
+			}
+			case CAST: {
+				String typeName = string();
+				refer(TYPE_SYM, varint());
+				ast = new Cast((Expr) children().get(0), typeName);
+				break;
+			}
+			case FLOAT_CONST:
+				ast = new FloatConst(Float.intBitsToFloat(in.getInt()));
+				children();
+				break;
+			case INT_CONST: {
+				int zigzag = varint();
+				ast = new IntConst((zigzag >>> 1) ^ -(zigzag & 1));
+				children();
+				break;
+			}
+			case BOOLEAN_CONST:
+				ast = new BooleanConst(varint() != 0);
+				children();
+				break;
+			case NULL_CONST:
+				children();
+				ast = new NullConst();
+				break;
+			case FIELD: {
+				String fieldName = string();
+				refer(SYM, varint());
+				ast = new Field((Expr) children().get(0), fieldName);
+				break;
+			}
+			case INDEX: {
+				List<Ast> children = children();
+				ast = new Index((Expr) children.get(0), (Expr) children.get(1));
+				break;
+			}
+			case NEW_OBJECT:
+				ast = new NewObject(string());
+				children();
+				break;
+			case NEW_ARRAY: {
+				String typeName = string();
+				ast = new NewArray(typeName, (Expr) children().get(0));
+				break;
+			}
+			case UNARY_OP: {
+				UOp operator = UOp.values()[varint()];
+				ast = new UnaryOp(operator, (Expr) children().get(0));
+				break;
+			}
+			case VAR:
+				ast = new Var(string());
+				refer(SYM, varint());
+				children();
+				break;
+			case BUILT_IN_READ:
+				children();
+				ast = new BuiltInRead();
+				break;
+			case BUILT_IN_READ_FLOAT:
+				children();
+				ast = new BuiltInReadFloat();
+				break;
+			case METHOD_CALL_EXPR: {
+				String methodName = string();
+				refer(SYM, varint());
+				List<Ast> children = children();
+				ast = new MethodCallExpr((Expr) children.get(0), methodName, arguments(children));
+				break;
+			}
+			case NOP:
+				children();
+				ast = new Nop();
+				break;
+			case ASSIGN: {
+				List<Ast> children = children();
+				ast = new Assign((Expr) children.get(0), (Expr) children.get(1));
+				break;
+			}
+			case IF_ELSE: {
+				List<Ast> children = children();
+				ast = new IfElse((Expr) children.get(0), children.get(1), children.get(2));
+				break;
+			}
+			case RETURN_STMT:
+				ast = new ReturnStmt((Expr) children().get(0));
+				break;
+			case BUILT_IN_WRITE:
+				ast = new BuiltInWrite((Expr) children().get(0));
+				break;
+			case BUILT_IN_WRITE_FLOAT:
+				ast = new BuiltInWriteFloat((Expr) children().get(0));
+				break;
+			case BUILT_IN_WRITELN:
+				children();
+				ast = new BuiltInWriteln();
+				break;
+			case METHOD_CALL: {
+				String methodName = string();
+				refer(SYM, varint());
+				List<Ast> children = children();
+				ast = new MethodCall((Expr) children.get(0), methodName, arguments(children));
+				break;
+			}
+			case WHILE_LOOP: {
+				List<Ast> children = children();
+				ast = new WhileLoop((Expr) children.get(0), children.get(1));
+				break;
+			}
+			case VAR_DECL: {
+				String varType = string();
+				String name = string();
+				refer(SYM, varint());
+				children();
+				ast = new VarDecl(varType, name);
+				break;
+			}
+			case SEQ:
+				ast = new Seq(children());
+				break;
+			case METHOD_DECL: {
+				String returnType = string();
+				String name = string();
+				List<String> argumentTypes = strings();
+				List<String> argumentNames = strings();
+				refer(SYM, varint());
+				List<Ast> children = children();
+				ast = new MethodDecl(returnType, name, argumentTypes, argumentNames,
+						(Seq) children.get(0), (Seq) children.get(1));
+				break;
+			}
+			case CLASS_DECL: {
+				String name = string();
+				String superClass = string();
+				refer(SYM, varint());
+				ast = new ClassDecl(name, superClass, children());
+				break;
+			}
+			default:
+				throw new IOException("Unknown node " + tag);
+			}
+			nodes.set(id, ast);
+			// The references of the node were noted before it existed, the
+			// ones of its children are complete
+			for (int i = referring; i < referringNodes.size(); i++)
+				if (referringNodes.get(i) == null)
+					referringNodes.set(i, ast);
+			if (tag <= METHOD_CALL_EXPR)
+				refer(ast, TYPE, type);
+			return ast;
+		}
+
+		private List<Ast> children() throws IOException {
+			int count = varint();
+			List<Ast> children = new ArrayList<Ast>(count);
+			for (int i = 0; i < count; i++)
+				children.add(node());
+			return children;
+		}
+
+		private static List<Expr> arguments(List<Ast> children) {
+			List<Expr> arguments = new ArrayList<Expr>();
+			for (Ast child : children.subList(1, children.size()))
+				arguments.add((Expr) child);
+			return arguments;
+		}
+
+		/** Notes a reference of the node being read, which is not created yet. */
+		private void refer(int field, int reference) {
+			refer(null, field, reference);
+		}
+
+		private void refer(Ast ast, int field, int reference) {
+			if (reference == 0)
+				return;
+			referringNodes.add(ast);
+			referringFields.add(field);
+			references.add(reference);
+		}
+
+		private static void attach(Ast ast, int field, Symbol sym) {
+			if (field == TYPE)
+				((Expr) ast).type = (TypeSymbol) sym;
+			else if (field == TYPE_SYM)
+				((Cast) ast).typeSym = (TypeSymbol) sym;
+			else if (ast instanceof Field)
+				((Field) ast).sym = (VariableSymbol) sym;
+			else if (ast instanceof Var)
+				((Var) ast).sym = (VariableSymbol) sym;
+			else if (ast instanceof MethodCallExpr)
+				((MethodCallExpr) ast).sym = (MethodSymbol) sym;
+			else if (ast instanceof MethodCall)
+				((MethodCall) ast).sym = (MethodSymbol) sym;
+			else if (ast instanceof VarDecl)
+				((VarDecl) ast).sym = (VariableSymbol) sym;
+			else if (ast instanceof MethodDecl)
+				((MethodDecl) ast).sym = (MethodSymbol) sym;
+			else
+				((ClassDecl) ast).sym = (ClassSymbol) sym;
+		}
+
+		private Symbol create() throws IOException {
+			int tag = varint();
+			switch (tag) {
+			case PRIMITIVE_TYPE:
+				return new PrimitiveTypeSymbol(string());
+			case NULL_TYPE:
+				return new NullTypeSymbol();
+			case ARRAY_TYPE:
+				return new ArrayTypeSymbol((TypeSymbol) symbol(varint()));
+			case CLASS: {
+				String name = string();
+				ClassDecl ast = (ClassDecl) nodeRef();
+				return ast == null ? new ClassSymbol(name) : new ClassSymbol(ast);
+			}
+			case METHOD:
+				return new MethodSymbol((MethodDecl) nodeRef());
+			case VARIABLE: {
+				String name = string();
+				TypeSymbol type = (TypeSymbol) symbol(varint());
+				return new VariableSymbol(name, type, VariableSymbol.Kind.values()[varint()]);
+			}
+			case THIS:
+				return ((ClassSymbol) symbol(varint())).thisSymbol;
+			default:
+				throw new IOException("Unknown symbol " + tag);
+			}
+		}
+
+		private void link(Symbol sym) throws IOException {
+			if (sym instanceof ClassSymbol) {
+				ClassSymbol cls = (ClassSymbol) sym;
+				cls.superClass = (ClassSymbol) symbol(varint());
+				for (int count = varint(); count > 0; count--) {
+					String name = string();
+					cls.fields.put(name, (VariableSymbol) symbol(varint()));
+				}
+				for (int count = varint(); count > 0; count--) {
+					String name = string();
+					cls.methods.put(name, (MethodSymbol) symbol(varint()));
+				}
+			} else if (sym instanceof MethodSymbol) {
+				MethodSymbol method = (MethodSymbol) sym;
+				method.setClassAst((ClassDecl) nodeRef());
+				for (int count = varint(); count > 0; count--) {
+					String name = string();
+					method.locals.put(name, (VariableSymbol) symbol(varint()));
+				}
+				for (int count = varint(); count > 0; count--)
+					method.parameters.add((VariableSymbol) symbol(varint()));
+				method.returnType = (TypeSymbol) symbol(varint());
+			} else if (sym instanceof VariableSymbol)
+				((VariableSymbol) sym).setStaticClass((ClassSymbol) symbol(varint()));
+		}
+
+		// ---------------------------------------------------------------
+		// Decoding
+
+		private Symbol symbol(int reference) throws IOException {
+			if (reference == 0)
+				return null;
+			if (reference > symbols.length)
+				throw new IOException("Unknown symbol reference " + reference);
+			return symbols[reference - 1];
+		}
+
+		private Ast nodeRef() throws IOException {
+			int reference = varint();
+			if (reference == 0)
+				return null;
+			if (reference > nodes.size())
+				throw new IOException("Unknown node reference " + reference);
+			return nodes.get(reference - 1);
+		}
+
+		private String string() throws IOException {
+			int reference = varint();
+			if (reference == 0)
+				return null;
+			if (reference == 1) {
+				byte[] bytes = new byte[varint()];
+				in.get(bytes);
+				// Like the names the compiler uses as literals, e.g. "Object"
+				String value = new String(bytes, UTF8).intern();
+				strings.add(value);
+				return value;
+			}
+			if (reference - 2 >= strings.size())
+				throw new IOException("Unknown string reference " + reference);
+			return strings.get(reference - 2);
+		}
+
+		private List<String> strings() throws IOException {
+			int count = varint();
+			List<String> values = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++)
+				values.add(string());
+			return values;
+		}
+
+		private int varint() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = in.get();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package cd.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Texts stored by a key, e.g. the hash of what they were made from, in a
+ * plain directory which several processes may share. A text is written to
+ * a temporary file and renamed, so that other processes read all of it or
+ * nothing. When the store grows beyond its size, the texts used least
+ * recently are deleted.
+ *
+ * The size of the store is estimated in {@link #SIZE_FILE}, which each put
+ * adds to, so that the texts are only listed once the estimate is too
+ * large, which also corrects it. Puts of several processes at the same
+ * time may lose each other's additions, which only delays the eviction.
+ */
+public class ContentStore {
+
+	/** Temporary files this old were left by a process which died. */
+	private static final long STALE_MILLIS = 60 * 60 * 1000;
+
+	/** The estimated size of the texts, next to their subdirectories. */
+	private static final String SIZE_FILE = "size";
+
+	private final File dir;
+	private final long maxSize;
+
+	/** A store in {@code dir} of at most {@code maxSize} bytes. */
+	public ContentStore(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/** Returns the text stored by {@code key}, or null if there is none. */
+	public String get(String key) throws IOException {
+		File file = file(key);
+		String text;
+		try {
+			text = FileUtil.read(file);
+		} catch (FileNotFoundException e) {
+			// Also if another process just deleted it
+			return null;
+		}
+		// The modification time is the time of the last use
+		file.setLastModified(System.currentTimeMillis());
+		return text;
+	}
+
+	public void put(String key, String text) throws IOException {
+		File file = file(key);
+		File parent = file.getParentFile();
+		parent.mkdirs();
+		long replaced = file.length();
+		File temp = File.createTempFile(key, ".tmp", parent);
+		try {
+			FileUtil.write(temp, text);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+		long size = estimatedSize();
+		if (size >= 0)
+			size += file.length() - replaced;
+		if (size < 0 || size > maxSize)
+			size = evict();
+		FileUtil.write(new File(dir, SIZE_FILE), Long.toString(size));
+	}
+
+	/** Returns the size in {@link #SIZE_FILE}, or -1 if it is unknown. */
+	private long estimatedSize() {
+		try {
+			return Long.parseLong(FileUtil.read(new File(dir, SIZE_FILE)).trim());
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			// Written by another process at the same time
+			return -1;
+		}
+	}
+
+	/** The file of {@code key}, in a subdirectory so that no directory gets too large. */
+	private File file(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key);
+	}
+
+	/**
+	 * Deletes the texts used least recently until the rest fits, and
+	 * returns the size of the rest.
+	 */
+	private long evict() {
+		List<File> files = new ArrayList<File>();
+		long size = 0;
+		long now = System.currentTimeMillis();
+		File[] subdirs = dir.listFiles();
+		if (subdirs == null)
+			return 0;
+		for (File subdir : subdirs) {
+			File[] entries = subdir.listFiles();
+			if (entries == null)
+				continue;
+			for (File entry : entries) {
+				if (entry.getName().endsWith(".tmp")) {
+					if (now - entry.lastModified() > STALE_MILLIS)
+						entry.delete();
+					continue;
+				}
+				files.add(entry);
+				size += entry.length();
+			}
+		}
+		if (size <= maxSize)
+			return size;
+
+		final long[] lastUse = new long[files.size()];
+		for (int i = 0; i < files.size(); i++)
+			lastUse[i] = files.get(i).lastModified();
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < files.size(); i++)
+			order.add(i);
+		// The modification times can change while sorting, so they are read once
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(lastUse[a], lastUse[b]);
+			}
+		});
+		for (int i : order) {
+			if (size <= maxSize)
+				break;
+			File file = files.get(i);
+			size -= file.length();
+			file.delete();
+		}
+		return size;
+	}
+}
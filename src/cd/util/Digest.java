@@ -0,0 +1,66 @@
+package cd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/** Hashes of contents, to recognize contents seen before. */
+public class Digest {
+
+	/** Returns the SHA-256 of {@code parts} as a hexadecimal string. */
+	public static String sha256(String... parts) {
+		MessageDigest digest = sha256();
+		try {
+			for (String part : parts) {
+				digest.update(part.getBytes("UTF-8"));
+				// Keeps e.g. "ab", "c" and "a", "bc" apart
+				digest.update((byte) 0);
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Returns the SHA-256 of the contents of {@code file}, or if it is a
+	 * directory of the names and contents of all files below it.
+	 */
+	public static String sha256(File file) throws IOException {
+		MessageDigest digest = sha256();
+		update(digest, file, "");
+		return hex(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, File file, String path) throws IOException {
+		if (file.isDirectory()) {
+			String[] names = file.list();
+			Arrays.sort(names);
+			for (String name : names)
+				update(digest, new File(file, name), path + "/" + name);
+			return;
+		}
+		byte[] contents = Files.readAllBytes(file.toPath());
+		digest.update((path + "\0" + contents.length + "\0").getBytes("UTF-8"));
+		digest.update(contents);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hash = new StringBuilder();
+		for (byte b : bytes)
+			hash.append(String.format("%02x", b & 0xFF));
+		return hash.toString();
+	}
+}
@@ -5,11 +5,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class FileUtil {
 
@@ -37,9 +40,25 @@ public class FileUtil {
 		writer.close();
 	}
 
+	/** What {@link #runCommand} returns for a command which ran out of time. */
+	public static final String TIMEOUT = "Timeout\n";
+
 	public static String runCommand(File dir, String[] command,
 			String[] substs, String input, boolean detectError)
 			throws IOException {
+		return runCommand(dir, command, substs, input, detectError, 0);
+	}
+
+	/**
+	 * Runs {@code command} like
+	 * {@link #runCommand(File, String[], String[], String, boolean)}, but
+	 * kills it and returns {@link #TIMEOUT} if it has not ended after
+	 * {@code timeout} milliseconds, unless that is 0. If the calling thread
+	 * is interrupted, the command is killed too.
+	 */
+	public static String runCommand(File dir, String[] command,
+			String[] substs, String input, boolean detectError, long timeout)
+			throws IOException {
 		// Substitute the substitution strings $0, $1, etc
 		String newCommand[] = new String[command.length];
 		for (int i = 0; i < command.length; i++) {
@@ -59,7 +78,23 @@ public class FileUtil {
 			osw.write(input);
 			osw.close();
 		}
-		String result = readAll(new InputStreamReader(p.getInputStream()));
+		// The output is read while the command runs, so that it cannot
+		// block on a full pipe and an interrupted thread can kill it
+		OutputReader reader = new OutputReader(p.getInputStream());
+		reader.start();
+		try {
+			if (timeout == 0)
+				p.waitFor();
+			else if (!p.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+				p.destroyForcibly();
+				return TIMEOUT;
+			}
+			reader.join();
+		} catch (InterruptedException e) {
+			p.destroyForcibly();
+			throw new InterruptedIOException(String.join(" ", newCommand));
+		}
+		String result = reader.result();
 
 		if (detectError) {
 			int err;
@@ -76,6 +111,34 @@ public class FileUtil {
 		return result;
 	}
 
+	/** Reads the output of a command on a thread of its own. */
+	private static class OutputReader extends Thread {
+		private final InputStream in;
+		private String result;
+		private IOException failure;
+
+		OutputReader(InputStream in) {
+			this.in = in;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = readAll(new InputStreamReader(in));
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/** The output, once the thread has ended. */
+		String result() throws IOException {
+			if (failure != null)
+				throw failure;
+			return result;
+		}
+	}
+
 	/**
 	 * Finds all .javali under directory {@code testDir}, adding File objects
 	 * into {@code result} for each one.
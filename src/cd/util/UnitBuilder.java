@@ -0,0 +1,150 @@
+package cd.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cd.Config;
+import cd.codegen.X86Assembler;
+import cd.exceptions.AssemblyFailedException;
+
+/**
+ * Builds a binary from assembly files which are assembled on their own, in
+ * parallel, and then linked, e.g. the units of
+ * {@link cd.Main#generateUnits}. The objects are kept in a directory under
+ * the hash of their code and the assembler command, so that a file which
+ * was assembled before, like the runtime or an unchanged class, is not
+ * assembled again. Builds may share the directory. With
+ * {@link Config#INTEGRATED_ASSEMBLER}, the files are assembled in this
+ * process by the {@link X86Assembler}.
+ */
+public class UnitBuilder {
+
+	private final File objectDir;
+	private final int threads;
+
+	/** Keeps the objects in {@code objectDir} and assembles on {@code threads} threads. */
+	public UnitBuilder(File objectDir, int threads) {
+		this.objectDir = objectDir;
+		this.threads = threads;
+	}
+
+	/**
+	 * Assembles the {@code units} which have no object yet and links the
+	 * objects of all of them into {@code binary}. Returns the output of the
+	 * assembler and the linker; they failed if the binary does not exist.
+	 */
+	public String build(List<File> units, File binary) throws IOException {
+		objectDir.mkdirs();
+		final String[] assemble = assembleCommand();
+		String assembler = Config.INTEGRATED_ASSEMBLER ? X86Assembler.class.getName()
+				: Arrays.toString(assemble);
+		List<File> objects = new ArrayList<File>();
+		List<Callable<String>> assembling = new ArrayList<Callable<String>>();
+		for (final File unit : units) {
+			final File object = new File(objectDir,
+					Digest.sha256(assembler, FileUtil.read(unit)) + ".o");
+			objects.add(object);
+			if (!object.exists()) {
+				assembling.add(new Callable<String>() {
+					public String call() throws IOException {
+						return assemble(assemble, unit, object);
+					}
+				});
+			}
+		}
+
+		StringBuilder output = new StringBuilder();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			for (Future<String> result : pool.invokeAll(assembling))
+				output.append(result.get());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		for (File object : objects)
+			if (!object.exists())
+				return output.toString();
+
+		binary.delete();
+		output.append(FileUtil.runCommand(Config.ASM_DIR, linkCommand(objects),
+				new String[] { binary.getAbsolutePath() }, null, false));
+		return output.toString();
+	}
+
+	/**
+	 * Assembles {@code unit} into {@code object}. The object is written
+	 * under another name first, so that no other build sees a partial one.
+	 */
+	private static String assemble(String[] command, File unit, File object) throws IOException {
+		File partial = File.createTempFile(object.getName(), ".tmp", object.getParentFile());
+		try {
+			String output = Config.INTEGRATED_ASSEMBLER ? assemble(unit, partial)
+					: FileUtil.runCommand(Config.ASM_DIR, command,
+							new String[] { partial.getAbsolutePath(), unit.getAbsolutePath() }, null, false);
+			// The assembler leaves no object, or an empty one, if it failed
+			if (partial.length() > 0)
+				Files.move(partial.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			return output;
+		} finally {
+			partial.delete();
+		}
+	}
+
+	/**
+	 * Assembles {@code unit} into {@code object} with the
+	 * {@link X86Assembler}. Returns why it failed, like the output of the
+	 * assembler, and leaves the object empty then.
+	 */
+	private static String assemble(File unit, File object) throws IOException {
+		X86Assembler assembler = new X86Assembler();
+		FileOutputStream out = new FileOutputStream(object);
+		try {
+			assembler.write(FileUtil.read(unit));
+			assembler.writeObject(out);
+			return "";
+		} catch (AssemblyFailedException e) {
+			return unit + ": " + e.getMessage() + "\n";
+		} finally {
+			out.close();
+		}
+	}
+
+	/** {@link Config#ASM}, but only assembling "$1" into the object "$0". */
+	private static String[] assembleCommand() {
+		List<String> command = new ArrayList<String>(Arrays.asList(Config.ASM));
+		command.add(1, "-c");
+		return command.toArray(new String[command.size()]);
+	}
+
+	/**
+	 * {@link Config#ASM}, but linking {@code objects} instead of assembling
+	 * "$1". The objects are not substituted, as "$1" is a prefix of "$10".
+	 */
+	private static String[] linkCommand(List<File> objects) {
+		List<String> command = new ArrayList<String>();
+		for (String arg : Config.ASM) {
+			if (arg.equals("$1"))
+				for (File object : objects)
+					command.add(object.getAbsolutePath());
+			else
+				command.add(arg);
+		}
+		return command.toArray(new String[command.size()]);
+	}
+}
@@ -1,17 +1,21 @@
 package cd.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -22,16 +26,42 @@ import cd.debug.AstDump;
 import cd.exceptions.AssemblyFailedException;
 import cd.exceptions.ParseFailure;
 import cd.exceptions.SemanticFailure;
+import cd.ir.AstCheckpoint;
 import cd.ir.Ast.ClassDecl;
+import cd.util.Digest;
 import cd.util.FileUtil;
+import cd.util.UnitBuilder;
 
 abstract public class AbstractTestSamplePrograms {
 
 	public File file, sfile, binfile, infile;
-	public File parserreffile, semanticreffile, execreffile, cfgreffile, optreffile;
+	public File parserreffile, semanticreffile, execreffile, optreffile;
 	public File errfile;
 	public Main main;
 
+	/**
+	 * The milliseconds each phase of the last run of {@link #test()} took,
+	 * in the order the phases ran. Finding the reference results counts as
+	 * the phase "reference".
+	 */
+	public final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+	/**
+	 * The code generator keeps its state in static fields, so tests which
+	 * run at the same time take turns generating code.
+	 */
+	private static final Object CODE_GENERATOR_LOCK = new Object();
+
+	/** The milliseconds after which a compiled program is taken not to end. */
+	private static final long EXEC_TIMEOUT = 10000;
+
+	/**
+	 * With {@link Config#SEPARATE}, the objects of the units are shared by
+	 * all tests in this directory, so that e.g. the runtime is assembled
+	 * once.
+	 */
+	public static final File OBJECT_DIR = new File("javali_tests/objects");
+
 	public void assertEquals(String phase, String exp, String act) {
 		act = act.replace("\r\n", "\n"); // for windows machines
 		if (!exp.equals(act)) {
@@ -94,9 +124,23 @@ abstract public class AbstractTestSamplePrograms {
 	
 	public static int counter = 0;
 
+	/** Adds the time since {@code start}, from {@link System#nanoTime()}, to {@code phase}. */
+	private void time(String phase, long start) {
+		long millis = (System.nanoTime() - start) / 1000000;
+		Long before = timings.get(phase);
+		timings.put(phase, before == null ? millis : before + millis);
+	}
+
+	/** The hash of the assembly {@code text} and the commands which assemble it. */
+	private static String assemblyHash(String text) {
+		return Digest.sha256(Arrays.toString(Config.ASM),
+				String.valueOf(Config.INTEGRATED_ASSEMBLER), text);
+	}
+
 	@Test
 	public void test() throws Throwable {
 		System.err.println("[" + counter++ + " = " + file + "]");
+		timings.clear();
 
 		// ignore 64-bit-only tests when running 32-bit Java
 		if (new File(file.getAbsolutePath()+".64bitonly").exists() &&
@@ -107,13 +151,12 @@ abstract public class AbstractTestSamplePrograms {
 			
 			try {
 				// Load the input and reference results:
-				// Note: this may use the network if no .ref files exist.
+				// Note: this runs the reference if no .ref files exist.
 	
-				// Delete intermediate files from previous runs:
+				// Delete intermediate files from previous runs. The binary
+				// is kept, as it is reused if the assembly is unchanged.
 				if (sfile.exists())
 					sfile.delete();
-				if (binfile.exists())
-					binfile.delete();
 	
 				// Parse the file and check that the generated AST is correct,
 				// or if the parser failed that the correct message was generated:
@@ -125,6 +168,7 @@ abstract public class AbstractTestSamplePrograms {
 						boolean passedSemanticAnalysis = testSemanticAnalyzer(astRoots);
 						
 						if (passedSemanticAnalysis) {
+							astRoots = testCheckpoint(astRoots);
 							boolean passedCodeGen = testCodeGenerator(astRoots, hasWellDefinedOutput);
 						}
 					}
@@ -151,7 +195,9 @@ abstract public class AbstractTestSamplePrograms {
 
 	/** Run the parser and compare the output against the reference results */
 	public List<ClassDecl> testParser() throws Exception {
+		long start = System.nanoTime();
 		String parserRef = findParserRef();
+		time("reference", start);
 		List<ClassDecl> astRoots = null;
 		String parserOut;
 		boolean parserDebug;
@@ -159,6 +205,7 @@ abstract public class AbstractTestSamplePrograms {
 		// CUP's debug output is NOT relevant to this assignment.
 		// Change to TRUE if you'd like to see it for some reason.
 		parserDebug = false;
+		start = System.nanoTime();
 		try {
 			astRoots = main.parse(file.getAbsolutePath(), new FileReader(
 					this.file), parserDebug);
@@ -170,6 +217,7 @@ abstract public class AbstractTestSamplePrograms {
 			main.debug("%s", pf.toString());
 			parserOut = Reference.PARSE_FAILURE;
 		}
+		time("parse", start);
 
 		// Now that the 2nd assignment is over, we don't
 		// do a detailed comparison of the AST, just check
@@ -182,10 +230,13 @@ abstract public class AbstractTestSamplePrograms {
 
 	public boolean testSemanticAnalyzer(List<ClassDecl> astRoots)
 			throws IOException {
+		long start = System.nanoTime();
 		String semanticRef = findSemanticRef();
+		time("reference", start);
 
 		boolean passed;
 		String result;
+		start = System.nanoTime();
 		try {
 			main.semanticCheck(astRoots);
 			result = "OK";
@@ -195,11 +246,47 @@ abstract public class AbstractTestSamplePrograms {
 			main.debug("Error message: %s", sf.getLocalizedMessage());
 			passed = false;
 		}
+		time("semantic", start);
 
 		assertEquals("semantic", semanticRef, result);
 		return passed;
 	}
 	
+	/**
+	 * Writes the checked program to a checkpoint and reads it back, which
+	 * must give the same program: the same tree, the same checkpoint when
+	 * written again, and the same code. Generating the code changes the
+	 * program, so the program is returned as read from the checkpoint once
+	 * more, for the tests after this one.
+	 */
+	public List<ClassDecl> testCheckpoint(List<ClassDecl> astRoots) throws IOException {
+		long start = System.nanoTime();
+		byte[] checkpoint = checkpoint(astRoots);
+		List<ClassDecl> restored = AstCheckpoint.read(ByteBuffer.wrap(checkpoint));
+		assertEquals("checkpoint", AstDump.toString(astRoots), AstDump.toString(restored));
+		Assert.assertArrayEquals(String.format("Phase checkpoint for %s failed!",
+				file.getPath()), checkpoint, checkpoint(restored));
+		assertEquals("checkpoint", generate(astRoots), generate(restored));
+		restored = AstCheckpoint.read(ByteBuffer.wrap(checkpoint));
+		time("checkpoint", start);
+		return restored;
+	}
+
+	private static byte[] checkpoint(List<ClassDecl> astRoots) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AstCheckpoint.write(astRoots, out);
+		return out.toByteArray();
+	}
+
+	/** Generates the code of {@code astRoots} with a compiler which caches nothing. */
+	private static String generate(List<ClassDecl> astRoots) {
+		StringWriter out = new StringWriter();
+		synchronized (CODE_GENERATOR_LOCK) {
+			new Main().generateCode(astRoots, out);
+		}
+		return out.toString();
+	}
+
 	/**
 	 * Run the code generator, assemble the resulting .s file, and (if the output
 	 * is well-defined) compare against the expected output.
@@ -208,34 +295,44 @@ abstract public class AbstractTestSamplePrograms {
 			throws IOException {
 		// Determine the input and expected output.
 		String inFile = (infile.exists() ? FileUtil.read(infile) : "");
+		long start = System.nanoTime();
 		String execRef = findExecRef(inFile);
+		time("reference", start);
+		// A program which the reference does not see end is not run
+		boolean endless = execRef.equals(FileUtil.TIMEOUT);
+
+		// The JVM backend runs the program in this process
+		if (Config.TARGET == Config.Target.JVM) {
+			if (endless)
+				return true;
+			StringWriter out = new StringWriter();
+			start = System.nanoTime();
+			int code = main.runOnJvm(astRoots, new StringReader(inFile), out);
+			time("execute", start);
+			String execOut = code != 0 ? "Error: " + code + "\n" : out.toString();
+			if (execRef.equals(execOut))
+				return true;
+			if (hasWellDefinedOutput) assertEqualOutput("exec", execRef, execOut);
+			return false;
+		}
 
 		// Run the code generator:
-		FileWriter fw = new FileWriter(this.sfile);
-		main.generateCode(astRoots, fw);
-		fw.close();
+		if (Config.SEPARATE)
+			buildUnits(astRoots);
+		else
+			build(astRoots);
 
-		// At this point, we have generated a .s file and we have to compile
-		// it to a binary file. We need to call out to GCC or something
-		// to do this.
-		String asmOutput = FileUtil.runCommand(
-				Config.ASM_DIR,
-				Config.ASM,
-				new String[] { binfile.getAbsolutePath(),
-						sfile.getAbsolutePath() }, null, false);
-
-		// To check if gcc succeeded, check if the binary file exists.
-		// We could use the return code instead, but this seems more
-		// portable to other compilers / make systems.
-		if (!binfile.exists())
-			throw new AssemblyFailedException(asmOutput);
+		if (endless)
+			return true;
 
 		// Execute the binary file, providing input if relevant, and
 		// capturing the output. Check the error code so see if the
 		// code signaled dynamic errors.
+		start = System.nanoTime();
 		String execOut = FileUtil.runCommand(new File("."),
 				new String[] { binfile.getAbsolutePath() }, new String[] {},
-				inFile, true);
+				inFile, true, EXEC_TIMEOUT);
+		time("execute", start);
 
 		// Compute the output to what we expected to see.
 		if (execRef.equals(execOut))
@@ -244,13 +341,83 @@ abstract public class AbstractTestSamplePrograms {
 		return false;
 	}
 
+	/**
+	 * Generates the assembly of {@code astRoots} and assembles it into the
+	 * binary. With the integrated assembler, an object is generated as well,
+	 * which is only linked.
+	 */
+	private void build(List<ClassDecl> astRoots) throws IOException {
+		StringWriter asm = new StringWriter();
+		ByteArrayOutputStream object = Config.INTEGRATED_ASSEMBLER ? new ByteArrayOutputStream() : null;
+		long start = System.nanoTime();
+		synchronized (CODE_GENERATOR_LOCK) {
+			if (object != null)
+				main.generateObject(astRoots, object, asm);
+			else
+				main.generateCode(astRoots, asm);
+		}
+		time("codegen", start);
+		FileUtil.write(this.sfile, asm.toString());
+		File input = this.sfile;
+		if (object != null) {
+			input = new File(file.getPath() + Config.OBJEXT);
+			Files.write(input.toPath(), object.toByteArray());
+		}
+
+		// At this point, we have generated a .s file and we have to compile
+		// it to a binary file. We need to call out to GCC or something
+		// to do this. The binary of an earlier run is reused if it was
+		// assembled from the same code by the same command.
+		File hashfile = new File(binfile.getPath() + ".hash");
+		String hash = assemblyHash(asm.toString());
+		if (!binfile.exists() || !hashfile.exists() || !FileUtil.read(hashfile).equals(hash)) {
+			binfile.delete();
+			hashfile.delete();
+			start = System.nanoTime();
+			String asmOutput = FileUtil.runCommand(
+					Config.ASM_DIR,
+					Config.ASM,
+					new String[] { binfile.getAbsolutePath(),
+							input.getAbsolutePath() }, null, false);
+			time("assemble", start);
+
+			// To check if gcc succeeded, check if the binary file exists.
+			// We could use the return code instead, but this seems more
+			// portable to other compilers / make systems.
+			if (!binfile.exists())
+				throw new AssemblyFailedException(asmOutput);
+			FileUtil.write(hashfile, hash);
+		}
+	}
+
+	/**
+	 * Generates the units of {@code astRoots} and links them into the
+	 * binary, assembling only the ones which were not assembled before.
+	 */
+	private void buildUnits(List<ClassDecl> astRoots) throws IOException {
+		List<File> units;
+		long start = System.nanoTime();
+		synchronized (CODE_GENERATOR_LOCK) {
+			units = main.generateUnits(astRoots, new File(file.getPath() + ".units"));
+		}
+		time("codegen", start);
+		// The binary is linked again, so its hash no longer applies
+		new File(binfile.getPath() + ".hash").delete();
+		start = System.nanoTime();
+		String asmOutput = new UnitBuilder(OBJECT_DIR,
+				Runtime.getRuntime().availableProcessors()).build(units, binfile);
+		time("assemble", start);
+		if (!binfile.exists())
+			throw new AssemblyFailedException(asmOutput);
+	}
+
 	public String findParserRef() throws IOException {
 		// Check for a .ref file
-		if (parserreffile.exists() && parserreffile.lastModified() > file.lastModified()) {
+		if (isCurrent(parserreffile, LocalReference.VERDICTS)) {
 			return FileUtil.read(parserreffile);
 		}
 
-		// If no file exists, contact reference server
+		// If no file exists, ask the reference
 		String res;
 		Reference ref = openClient();
 		try {
@@ -270,7 +437,7 @@ abstract public class AbstractTestSamplePrograms {
 
 		// Read in the result
 		String res;
-		if (semanticreffile.exists() && semanticreffile.lastModified() > file.lastModified())
+		if (isCurrent(semanticreffile, LocalReference.VERDICTS))
 			res = FileUtil.read(semanticreffile);
 		else {
 			Reference ref = openClient();
@@ -306,6 +473,9 @@ abstract public class AbstractTestSamplePrograms {
 		String res;
 		try {
 			res = ref.execReference(FileUtil.read(this.file), inputText);
+		} catch (CancellationException e) {
+			// The test was cancelled, so it must not go on
+			throw e;
 		} catch (Throwable e) {
 			return fragmentBug(e);
 		}
@@ -331,6 +501,19 @@ abstract public class AbstractTestSamplePrograms {
 		return res;
 	}
 
+	/**
+	 * Returns whether {@code reffile} was written after the program and
+	 * any of the {@code sources} its result depends on were changed.
+	 */
+	private boolean isCurrent(File reffile, File... sources) {
+		if (!reffile.exists() || reffile.lastModified() <= file.lastModified())
+			return false;
+		for (File source : sources)
+			if (reffile.lastModified() <= source.lastModified())
+				return false;
+		return true;
+	}
+
 	private String fragmentBug(Throwable e) {
 		String res = String.format("** BUG IN REFERENCE SOLUTION: %s **",
 				e.toString());
@@ -340,24 +523,12 @@ abstract public class AbstractTestSamplePrograms {
 	}
 
 	/**
-	 * Connects to {@code niko.inf.ethz.ch} and returns a Reference instance.
-	 * This uses Java RMI to obtain the expected answer for various stages.
-	 * Generally, this is only invoked if no appropriate .ref file is found.
+	 * Returns the Reference which computes the expected answer for the
+	 * various stages in this process. Generally, this is only invoked if no
+	 * appropriate .ref file is found, which its results are then written to.
 	 */
-	public static Reference openClient() {
-		Registry registry;
-		try {
-			registry = LocateRegistry.getRegistry("beholder.inf.ethz.ch");
-			Reference ref = (Reference) registry.lookup(Reference.class
-					.getName());
-			return ref;
-		} catch (RemoteException e) {
-			// No network connectivity or server not running?
-			throw new RuntimeException(e);
-		} catch (NotBoundException e) {
-			// Server not running on niko.inf.ethz.ch?
-			throw new RuntimeException(e);
-		}
+	public Reference openClient() {
+		return new LocalReference(file);
 	}
 
 	
@@ -0,0 +1,536 @@
+package cd.test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import cd.codegen.JvmRuntime;
+import cd.ir.Ast;
+import cd.ir.Ast.Assign;
+import cd.ir.Ast.BinaryOp;
+import cd.ir.Ast.BinaryOp.BOp;
+import cd.ir.Ast.BooleanConst;
+import cd.ir.Ast.BuiltInRead;
+import cd.ir.Ast.BuiltInReadFloat;
+import cd.ir.Ast.BuiltInWrite;
+import cd.ir.Ast.BuiltInWriteFloat;
+import cd.ir.Ast.BuiltInWriteln;
+import cd.ir.Ast.Cast;
+import cd.ir.Ast.ClassDecl;
+import cd.ir.Ast.Expr;
+import cd.ir.Ast.Field;
+import cd.ir.Ast.FloatConst;
+import cd.ir.Ast.IfElse;
+import cd.ir.Ast.Index;
+import cd.ir.Ast.IntConst;
+import cd.ir.Ast.MethodCall;
+import cd.ir.Ast.MethodCallExpr;
+import cd.ir.Ast.MethodDecl;
+import cd.ir.Ast.NewArray;
+import cd.ir.Ast.NewObject;
+import cd.ir.Ast.Nop;
+import cd.ir.Ast.NullConst;
+import cd.ir.Ast.ReturnStmt;
+import cd.ir.Ast.Seq;
+import cd.ir.Ast.ThisRef;
+import cd.ir.Ast.UnaryOp;
+import cd.ir.Ast.Var;
+import cd.ir.Ast.VarDecl;
+import cd.ir.Ast.WhileLoop;
+import cd.ir.AstVisitor;
+import cd.ir.Symbol.ClassSymbol;
+import cd.ir.Symbol.MethodSymbol;
+import cd.ir.Symbol.VariableSymbol;
+
+/**
+ * Runs a semantically checked program by walking its AST, as the reference
+ * for the output of the generated code. Operands are evaluated in the order
+ * of the assembly: the value of an assignment before its target, the
+ * receiver of a call before its arguments, from the last to the first.
+ * Values are Integer, Float, Boolean, {@link JavaliObject},
+ * {@link JavaliArray} or null; reading and writing is done like the
+ * compiled programs do by {@link JvmRuntime}.
+ */
+class Interpreter {
+
+	/** The stack of the thread running a program, as large as a native one. */
+	private static final long STACK_SIZE = 256L << 20;
+
+	/**
+	 * The number of loop iterations and calls after which a program is taken
+	 * to run forever. The test programs which end take far fewer.
+	 */
+	static final long STEPS = 10000000L;
+
+	/** Ends a program which has run for {@link #STEPS} steps. */
+	static class OutOfStepsException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		OutOfStepsException() {
+			super("No end after " + STEPS + " steps");
+		}
+	}
+
+	/** Ends the program with the exit code of a Javali exception. */
+	static class JavaliException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final int code;
+
+		JavaliException(int code) {
+			super("Exit code " + code);
+			this.code = code;
+		}
+	}
+
+	static class JavaliObject {
+		final ClassSymbol sym;
+		final Map<String, Object> fields = new HashMap<String, Object>();
+
+		JavaliObject(ClassSymbol sym) {
+			this.sym = sym;
+			for (ClassSymbol c = sym; c != null; c = c.superClass)
+				for (VariableSymbol field : c.fields.values())
+					if (!fields.containsKey(field.name))
+						fields.put(field.name, zero(field.type.name));
+		}
+	}
+
+	static class JavaliArray {
+		/** The type of the array, e.g. {@code int[]}. */
+		final String type;
+		final Object[] elements;
+
+		JavaliArray(String type, int length) {
+			this.type = type;
+			this.elements = new Object[length];
+			Object zero = zero(type.substring(0, type.length() - 2));
+			for (int i = 0; i < length; i++)
+				elements[i] = zero;
+		}
+	}
+
+	/** The variables of a method being run and its return value. */
+	private static class Frame {
+		final JavaliObject self;
+		final Map<String, Object> variables = new HashMap<String, Object>();
+		boolean returned;
+		Object result;
+
+		Frame(JavaliObject self) {
+			this.self = self;
+		}
+	}
+
+	private final JvmRuntime io;
+	private final Evaluator evaluator = new Evaluator();
+	// The loop iterations and calls run so far
+	private long steps;
+
+	Interpreter(Reader in, Writer out) {
+		this.io = new JvmRuntime(in, out);
+	}
+
+	/**
+	 * Runs {@code main()} of {@code Main} and returns 0, or the exit code of
+	 * the exception the program failed with. Throws an
+	 * {@link OutOfStepsException} if the program does not end, and a
+	 * {@link CancellationException} if the calling thread is interrupted.
+	 */
+	int run(List<ClassDecl> astRoots) {
+		ClassSymbol main = null;
+		for (ClassDecl ast : astRoots)
+			if (ast.name.equals("Main"))
+				main = ast.sym;
+		final JavaliObject object = new JavaliObject(main);
+		final MethodSymbol method = main.getMethod("main");
+
+		final int[] code = new int[1];
+		final RuntimeException[] failure = new RuntimeException[1];
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					invoke(object, method, new Object[0]);
+				} catch (JavaliException e) {
+					code[0] = e.code;
+				} catch (StackOverflowError e) {
+					// The native program dies of a segmentation fault
+					code[0] = 128 + 11;
+				} catch (RuntimeException e) {
+					failure[0] = e;
+				}
+			}
+		}, "javali", STACK_SIZE);
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			// Stops the program at its next step
+			thread.interrupt();
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted");
+		}
+		if (failure[0] != null)
+			throw failure[0];
+		return code[0];
+	}
+
+	private Object invoke(JavaliObject self, MethodSymbol method, Object[] arguments) {
+		step();
+		Frame frame = new Frame(self);
+		for (int i = 0; i < arguments.length; i++)
+			frame.variables.put(method.parameters.get(i).name, arguments[i]);
+		MethodDecl ast = method.ast;
+		for (Ast decl : ast.decls().children()) {
+			VariableSymbol local = method.locals.get(((VarDecl) decl).name);
+			frame.variables.put(local.name, zero(local.type.name));
+		}
+		evaluator.visit(ast.body(), frame);
+		if (frame.returned)
+			return frame.result;
+		// A method may end without a return statement
+		return method.returnType == null ? null : zero(method.returnType.name);
+	}
+
+	/**
+	 * Counts a loop iteration or call against {@link #STEPS}, and stops
+	 * the program if the thread running it was interrupted.
+	 */
+	private void step() {
+		if (++steps > STEPS)
+			throw new OutOfStepsException();
+		if ((steps & 0xfff) == 0 && Thread.currentThread().isInterrupted())
+			throw new CancellationException("Interrupted after " + steps + " steps");
+	}
+
+	/** Runs statements, returning null, and evaluates expressions. */
+	private class Evaluator extends AstVisitor<Object, Frame> {
+
+		@Override
+		public Object seq(Seq ast, Frame frame) {
+			for (Ast statement : ast.children()) {
+				if (frame.returned)
+					break;
+				visit(statement, frame);
+			}
+			return null;
+		}
+
+		@Override
+		public Object nop(Nop ast, Frame frame) {
+			return null;
+		}
+
+		@Override
+		public Object varDecl(VarDecl ast, Frame frame) {
+			return null;
+		}
+
+		@Override
+		public Object assign(Assign ast, Frame frame) {
+			Object value = visit(ast.right(), frame);
+			if (ast.left() instanceof Var) {
+				String name = ((Var) ast.left()).name;
+				if (frame.variables.containsKey(name))
+					frame.variables.put(name, value);
+				else
+					frame.self.fields.put(name, value);
+			} else if (ast.left() instanceof Field) {
+				Field field = (Field) ast.left();
+				JavaliObject object = (JavaliObject) nonNull(visit(field.arg(), frame));
+				object.fields.put(field.fieldName, value);
+			} else {
+				Index index = (Index) ast.left();
+				JavaliArray array = (JavaliArray) nonNull(visit(index.left(), frame));
+				array.elements[checkIndex(array, visit(index.right(), frame))] = value;
+			}
+			return null;
+		}
+
+		@Override
+		public Object ifElse(IfElse ast, Frame frame) {
+			if ((Boolean) visit(ast.condition(), frame))
+				visit(ast.then(), frame);
+			else
+				visit(ast.otherwise(), frame);
+			return null;
+		}
+
+		@Override
+		public Object whileLoop(WhileLoop ast, Frame frame) {
+			while (!frame.returned && (Boolean) visit(ast.condition(), frame)) {
+				step();
+				visit(ast.body(), frame);
+			}
+			return null;
+		}
+
+		@Override
+		public Object returnStmt(ReturnStmt ast, Frame frame) {
+			frame.result = ast.arg() == null ? null : visit(ast.arg(), frame);
+			frame.returned = true;
+			return null;
+		}
+
+		@Override
+		public Object methodCall(MethodCall ast, Frame frame) {
+			call(ast.receiver(), ast.methodName, ast.argumentsWithoutReceiver(), frame);
+			return null;
+		}
+
+		@Override
+		public Object builtInWrite(BuiltInWrite ast, Frame frame) {
+			try {
+				io.write((Integer) visit(ast.arg(), frame));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		}
+
+		@Override
+		public Object builtInWriteFloat(BuiltInWriteFloat ast, Frame frame) {
+			try {
+				io.writef((Float) visit(ast.arg(), frame));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		}
+
+		@Override
+		public Object builtInWriteln(BuiltInWriteln ast, Frame frame) {
+			try {
+				io.writeln();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		}
+
+		@Override
+		public Object intConst(IntConst ast, Frame frame) {
+			return ast.value;
+		}
+
+		@Override
+		public Object floatConst(FloatConst ast, Frame frame) {
+			return ast.value;
+		}
+
+		@Override
+		public Object booleanConst(BooleanConst ast, Frame frame) {
+			return ast.value;
+		}
+
+		@Override
+		public Object nullConst(NullConst ast, Frame frame) {
+			return null;
+		}
+
+		@Override
+		public Object thisRef(ThisRef ast, Frame frame) {
+			return frame.self;
+		}
+
+		@Override
+		public Object var(Var ast, Frame frame) {
+			// Like the semantic analysis, a name which is no local variable
+			// or parameter is a field
+			if (frame.variables.containsKey(ast.name))
+				return frame.variables.get(ast.name);
+			return frame.self.fields.get(ast.name);
+		}
+
+		@Override
+		public Object field(Field ast, Frame frame) {
+			JavaliObject object = (JavaliObject) nonNull(visit(ast.arg(), frame));
+			return object.fields.get(ast.fieldName);
+		}
+
+		@Override
+		public Object index(Index ast, Frame frame) {
+			JavaliArray array = (JavaliArray) nonNull(visit(ast.left(), frame));
+			return array.elements[checkIndex(array, visit(ast.right(), frame))];
+		}
+
+		@Override
+		public Object cast(Cast ast, Frame frame) {
+			Object value = visit(ast.arg(), frame);
+			String type = ast.typeName.replace(" ", "");
+			// null can be cast to any type, arrays only to their own
+			if (value == null || type.equals("Object"))
+				return value;
+			if (value instanceof JavaliArray) {
+				if (((JavaliArray) value).type.equals(type))
+					return value;
+			} else
+				for (ClassSymbol c = ((JavaliObject) value).sym; c != null; c = c.superClass)
+					if (c.name.equals(type))
+						return value;
+			throw new JavaliException(1);
+		}
+
+		@Override
+		public Object binaryOp(BinaryOp ast, Frame frame) {
+			if (ast.operator == BOp.B_AND)
+				return (Boolean) visit(ast.left(), frame) && (Boolean) visit(ast.right(), frame);
+			if (ast.operator == BOp.B_OR)
+				return (Boolean) visit(ast.left(), frame) || (Boolean) visit(ast.right(), frame);
+
+			Object left = visit(ast.left(), frame);
+			Object right = visit(ast.right(), frame);
+			if (ast.operator == BOp.B_EQUAL)
+				return equal(left, right);
+			if (ast.operator == BOp.B_NOT_EQUAL)
+				return !equal(left, right);
+
+			if (left instanceof Float) {
+				float l = (Float) left, r = (Float) right;
+				switch (ast.operator) {
+				case B_PLUS:
+					return l + r;
+				case B_MINUS:
+					return l - r;
+				case B_TIMES:
+					return l * r;
+				case B_DIV:
+					return l / r;
+				case B_MOD:
+					return l % r;
+				case B_LESS_THAN:
+					return l < r;
+				case B_LESS_OR_EQUAL:
+					return l <= r;
+				case B_GREATER_THAN:
+					return l > r;
+				default:
+					return l >= r;
+				}
+			}
+
+			int l = (Integer) left, r = (Integer) right;
+			switch (ast.operator) {
+			case B_PLUS:
+				return l + r;
+			case B_MINUS:
+				return l - r;
+			case B_TIMES:
+				return l * r;
+			case B_DIV:
+				if (r == 0)
+					throw new JavaliException(8);
+				return l / r;
+			case B_MOD:
+				if (r == 0)
+					throw new JavaliException(8);
+				return l % r;
+			case B_LESS_THAN:
+				return l < r;
+			case B_LESS_OR_EQUAL:
+				return l <= r;
+			case B_GREATER_THAN:
+				return l > r;
+			default:
+				return l >= r;
+			}
+		}
+
+		@Override
+		public Object unaryOp(UnaryOp ast, Frame frame) {
+			Object value = visit(ast.arg(), frame);
+			switch (ast.operator) {
+			case U_BOOL_NOT:
+				return !(Boolean) value;
+			case U_MINUS:
+				if (value instanceof Float)
+					return -(Float) value;
+				return -(Integer) value;
+			default:
+				return value;
+			}
+		}
+
+		@Override
+		public Object builtInRead(BuiltInRead ast, Frame frame) {
+			try {
+				return io.read();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public Object builtInReadFloat(BuiltInReadFloat ast, Frame frame) {
+			try {
+				return io.readf();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public Object newObject(NewObject ast, Frame frame) {
+			return new JavaliObject((ClassSymbol) ast.type);
+		}
+
+		@Override
+		public Object newArray(NewArray ast, Frame frame) {
+			int length = (Integer) visit(ast.arg(), frame);
+			if (length < 0)
+				throw new JavaliException(5);
+			return new JavaliArray(ast.typeName.replace(" ", ""), length);
+		}
+
+		@Override
+		public Object methodCall(MethodCallExpr ast, Frame frame) {
+			return call(ast.receiver(), ast.methodName, ast.argumentsWithoutReceiver(), frame);
+		}
+
+		/** Calls the method of the class of the receiver. */
+		private Object call(Expr receiver, String methodName, List<Expr> arguments, Frame frame) {
+			JavaliObject object = (JavaliObject) nonNull(visit(receiver, frame));
+			Object[] values = new Object[arguments.size()];
+			for (int i = values.length - 1; i >= 0; i--)
+				values[i] = visit(arguments.get(i), frame);
+			return invoke(object, object.sym.getMethod(methodName), values);
+		}
+	}
+
+	private static Object nonNull(Object reference) {
+		if (reference == null)
+			throw new JavaliException(4);
+		return reference;
+	}
+
+	private static int checkIndex(JavaliArray array, Object index) {
+		int i = (Integer) index;
+		if (i < 0 || i >= array.elements.length)
+			throw new JavaliException(3);
+		return i;
+	}
+
+	/** Compares values as == does: numbers by value, references by identity. */
+	private static boolean equal(Object left, Object right) {
+		if (left instanceof Float)
+			return ((Float) left).floatValue() == ((Float) right).floatValue();
+		if (left instanceof Integer || left instanceof Boolean)
+			return left.equals(right);
+		return left == right;
+	}
+
+	/** The initial value of variables of the type named {@code type}. */
+	private static Object zero(String type) {
+		if (type.equals("int"))
+			return 0;
+		if (type.equals("float"))
+			return 0.0f;
+		if (type.equals("boolean"))
+			return false;
+		return null;
+	}
+}
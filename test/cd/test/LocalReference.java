@@ -0,0 +1,100 @@
+package cd.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import cd.Main;
+import cd.ir.Ast.ClassDecl;
+import cd.util.FileUtil;
+
+/**
+ * The reference results computed in this process, so that the tests need
+ * no network. Whether a program parses and which semantic error it has
+ * are not asked of the compiler under test, which would only agree with
+ * itself, but read from the verdicts checked in with the programs in
+ * {@link #VERDICTS}; a program without one fails its tests. The output of
+ * a program is the one of the {@link Interpreter}. Each call starts from
+ * scratch, so that an instance can be shared by tests which run at the
+ * same time.
+ */
+class LocalReference implements Reference {
+
+	/**
+	 * The expected verdicts: each line which is not a {@code #} comment
+	 * names a program, relative to the directory of this file, and either
+	 * {@link Reference#PARSE_FAILURE}, {@code OK} or the cause of the
+	 * {@link cd.exceptions.SemanticFailure} it must be rejected with.
+	 */
+	static final File VERDICTS = new File("javali_tests/verdicts.txt");
+
+	/** Only whether the program fails to parse is compared by the tests. */
+	private static final String PARSED = "Parsed\n";
+
+	private final File file;
+
+	LocalReference(File file) {
+		this.file = file;
+	}
+
+	public String parserReference(String fileText) throws IOException {
+		return verdict().equals(PARSE_FAILURE) ? PARSE_FAILURE : PARSED;
+	}
+
+	public String semanticReference(String fileText) throws IOException {
+		String verdict = verdict();
+		if (verdict.equals(PARSE_FAILURE))
+			return PARSE_FAILURE;
+		return verdict + "\n";
+	}
+
+	/**
+	 * Runs the program with {@code inputText} as its input. Like the tests
+	 * do for the compiled program, the output of a program which fails is
+	 * replaced by its exit code, and the one of a program which does not
+	 * end in {@link Interpreter#STEPS} by {@link FileUtil#TIMEOUT}.
+	 */
+	public String execReference(String fileText, String inputText) {
+		Main main = new Main();
+		List<ClassDecl> astRoots = parse(main, fileText);
+		main.semanticCheck(astRoots);
+		StringWriter out = new StringWriter();
+		int code;
+		try {
+			code = new Interpreter(new StringReader(inputText), out).run(astRoots);
+		} catch (Interpreter.OutOfStepsException e) {
+			return FileUtil.TIMEOUT;
+		}
+		if (code != 0)
+			return "Error: " + code + "\n";
+		return out.toString();
+	}
+
+	/** The optimized program has to write the same output. */
+	public String optReference(String fileText, String inputText) {
+		return execReference(fileText, inputText);
+	}
+
+	/** Returns the verdict on {@link #file} in {@link #VERDICTS}. */
+	private String verdict() throws IOException {
+		String name = VERDICTS.getAbsoluteFile().getParentFile().toURI()
+				.relativize(file.getAbsoluteFile().toURI()).getPath();
+		for (String line : FileUtil.read(VERDICTS).split("\n")) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length == 2 && !fields[0].startsWith("#")
+					&& fields[0].equals(name))
+				return fields[1];
+		}
+		throw new IllegalStateException("No verdict on " + name + " in " + VERDICTS);
+	}
+
+	private static List<ClassDecl> parse(Main main, String fileText) {
+		try {
+			return main.parse(new StringReader(fileText), false);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
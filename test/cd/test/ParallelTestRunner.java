@@ -0,0 +1,238 @@
+package cd.test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cd.util.FileUtil;
+
+/**
+ * Runs the sample programs of {@link TestSamplePrograms} on a pool of
+ * threads, one per processor by default, and writes a report with the
+ * result of each test and the time its phases took. Usage:
+ *
+ * <pre>
+ * java cd.test.ParallelTestRunner [-j threads] [-t seconds] [-o report] [file or directory...]
+ * </pre>
+ *
+ * With {@code -j 0}, there is a thread per processor too. A test which
+ * runs longer than {@code -t} seconds, 120 by default, is interrupted,
+ * which kills the commands it runs, and reported as TIMEOUT.
+ * Without files, all tests of {@link TestSamplePrograms#testFiles()} run.
+ * The exit code is 0 if all tests passed, 1 otherwise.
+ */
+public class ParallelTestRunner {
+
+	/** The result of one test. */
+	static class Result {
+		final File file;
+		String status = "PASS";
+		String message = "";
+		long millis;
+		Map<String, Long> timings;
+
+		Result(File file) {
+			this.file = file;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		long timeout = 120;
+		File report = new File("test-report.txt");
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-t"))
+				timeout = Long.parseLong(args[++i]);
+			else if (args[i].equals("-o"))
+				report = new File(args[++i]);
+			else {
+				File file = new File(args[i]);
+				if (file.isDirectory())
+					files.addAll(FileUtil.findFiles(file));
+				else
+					files.add(file);
+			}
+		}
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		if (files.isEmpty())
+			for (Object[] test : TestSamplePrograms.testFiles())
+				files.add((File) test[0]);
+
+		long start = System.nanoTime();
+		List<Result> results = run(files, threads, timeout * 1000);
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		writeReport(new PrintStream(report), results, threads, millis);
+		int failed = 0;
+		for (Result result : results)
+			if (!result.status.equals("PASS"))
+				failed++;
+		System.out.println(String.format("%d tests, %d failed in %d ms on %d threads, see %s",
+				results.size(), failed, millis, threads, report));
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Runs the tests of {@code files} on {@code threads} threads, and
+	 * returns their results in order. A test is cancelled once it has run
+	 * for {@code timeout} milliseconds.
+	 */
+	static List<Result> run(List<File> files, int threads, long timeout)
+			throws InterruptedException {
+		// Daemon threads, so that a test which ignores being cancelled
+		// cannot keep the JVM alive
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// When each test started, 0 while it waits for a thread
+		final AtomicLongArray starts = new AtomicLongArray(files.size());
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < files.size(); i++) {
+			final int index = i;
+			final File file = files.get(i);
+			futures.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					starts.set(index, System.currentTimeMillis());
+					return runTest(file);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		List<Result> results = new ArrayList<Result>();
+		for (int i = 0; i < futures.size(); i++) {
+			Future<Result> future = futures.get(i);
+			Result result = null;
+			while (result == null) {
+				long start = starts.get(i);
+				long left = start == 0 ? timeout : start + timeout - System.currentTimeMillis();
+				try {
+					result = future.get(Math.max(left, 0), TimeUnit.MILLISECONDS);
+				} catch (ExecutionException e) {
+					// runTest catches everything the test throws
+					throw new RuntimeException(e.getCause());
+				} catch (TimeoutException e) {
+					start = starts.get(i);
+					if (start == 0 || System.currentTimeMillis() - start < timeout)
+						continue;
+					// Interrupting the test kills the command it waits for;
+					// if it ended meanwhile, its result is taken instead
+					if (future.cancel(true))
+						result = timedOut(files.get(i), timeout);
+				}
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	private static Result timedOut(File file, long timeout) {
+		Result result = new Result(file);
+		result.status = "TIMEOUT";
+		result.message = String.format("ran longer than %d ms", timeout);
+		result.millis = timeout;
+		result.timings = new LinkedHashMap<String, Long>();
+		return result;
+	}
+
+	private static Result runTest(File file) {
+		Result result = new Result(file);
+		TestSamplePrograms test = new TestSamplePrograms(file);
+		long start = System.nanoTime();
+		try {
+			test.test();
+		} catch (AssertionError e) {
+			result.status = "FAIL";
+			result.message = firstLine(e.getMessage());
+		} catch (Throwable e) {
+			result.status = "ERROR";
+			result.message = firstLine(e.toString());
+		}
+		result.millis = (System.nanoTime() - start) / 1000000;
+		result.timings = new LinkedHashMap<String, Long>(test.timings);
+		return result;
+	}
+
+	private static String firstLine(String text) {
+		if (text == null)
+			return "";
+		int newline = text.indexOf('\n');
+		return newline < 0 ? text : text.substring(0, newline);
+	}
+
+	/**
+	 * Writes the failed tests, the total time of each phase over all
+	 * tests, the slowest tests and then a line per test.
+	 */
+	static void writeReport(PrintStream out, List<Result> results, int threads, long millis) {
+		Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		List<Result> failed = new ArrayList<Result>();
+		for (Result result : results) {
+			if (!result.status.equals("PASS"))
+				failed.add(result);
+			for (Map.Entry<String, Long> timing : result.timings.entrySet()) {
+				Long before = phases.get(timing.getKey());
+				phases.put(timing.getKey(), before == null ? timing.getValue()
+						: before + timing.getValue());
+			}
+		}
+
+		out.println(String.format("%d tests, %d failed in %d ms on %d threads",
+				results.size(), failed.size(), millis, threads));
+		out.println();
+		if (!failed.isEmpty()) {
+			out.println("Failed:");
+			for (Result result : failed)
+				out.println(String.format("  %-7s %s: %s", result.status, result.file, result.message));
+			out.println();
+		}
+
+		out.println("Time per phase, over all tests:");
+		for (Map.Entry<String, Long> phase : phases.entrySet())
+			out.println(String.format("  %-10s %8d ms", phase.getKey(), phase.getValue()));
+		out.println();
+
+		List<Result> slowest = new ArrayList<Result>(results);
+		Collections.sort(slowest, new Comparator<Result>() {
+			public int compare(Result a, Result b) {
+				return Long.compare(b.millis, a.millis);
+			}
+		});
+		out.println("Slowest tests:");
+		for (Result result : slowest.subList(0, Math.min(10, slowest.size())))
+			out.println(String.format("  %8d ms  %s", result.millis, result.file));
+		out.println();
+
+		out.println("All tests:");
+		for (Result result : results) {
+			StringBuilder line = new StringBuilder(String.format("  %-7s %8d ms  %s",
+					result.status, result.millis, result.file));
+			for (Map.Entry<String, Long> timing : result.timings.entrySet())
+				line.append(String.format("  %s=%d", timing.getKey(), timing.getValue()));
+			out.println(line);
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,169 @@
+package cd.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cd.util.ContentStore;
+import cd.util.FileUtil;
+
+/**
+ * Tests {@link ContentStore} in a temporary directory, with a store of
+ * {@link #MAX_SIZE} bytes and texts of 10 bytes each.
+ */
+public class TestContentStore {
+
+	private static final long MAX_SIZE = 30;
+	private static final String TEXT = "0123456789";
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private File dir;
+	private ContentStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("store").toFile();
+		store = new ContentStore(dir, MAX_SIZE);
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] entries = file.listFiles();
+		if (entries != null)
+			for (File entry : entries)
+				delete(entry);
+		file.delete();
+	}
+
+	/** Where the store keeps {@code key}. */
+	private File file(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key);
+	}
+
+	/** Makes {@code key} look last used {@code hours} hours ago. */
+	private void used(String key, int hours) {
+		assertTrue(file(key).setLastModified(System.currentTimeMillis() - hours * HOUR));
+	}
+
+	private String sizeFile() throws IOException {
+		return FileUtil.read(new File(dir, "size")).trim();
+	}
+
+	private void writeSizeFile(String text) throws IOException {
+		FileUtil.write(new File(dir, "size"), text);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws IOException {
+		store.put("aa1", TEXT);
+		store.put("bb2", TEXT);
+		store.put("cc3", TEXT);
+		used("aa1", 3);
+		used("bb2", 2);
+		used("cc3", 1);
+		// Using the oldest makes the second oldest the least recently used
+		assertEquals(TEXT, store.get("aa1"));
+
+		store.put("dd4", TEXT);
+		assertFalse(file("bb2").exists());
+		assertTrue(file("aa1").exists());
+		assertTrue(file("cc3").exists());
+		assertTrue(file("dd4").exists());
+		assertEquals("30", sizeFile());
+
+		used("cc3", 2);
+		store.put("ee5", TEXT);
+		assertFalse(file("cc3").exists());
+		assertEquals(TEXT, store.get("dd4"));
+		assertNull(store.get("cc3"));
+	}
+
+	@Test
+	public void estimatesSizeWithoutListing() throws IOException {
+		store.put("aa1", TEXT);
+		assertEquals("10", sizeFile());
+		store.put("bb2", TEXT);
+		assertEquals("20", sizeFile());
+
+		// An estimate which is too small is only added to
+		writeSizeFile("0");
+		store.put("cc3", TEXT);
+		assertEquals("10", sizeFile());
+	}
+
+	@Test
+	public void correctsTooLargeEstimate() throws IOException {
+		store.put("aa1", TEXT);
+		store.put("bb2", TEXT);
+		writeSizeFile("1000");
+		store.put("cc3", TEXT);
+		// Listing the texts found that all of them fit
+		assertEquals("30", sizeFile());
+		assertTrue(file("aa1").exists());
+		assertTrue(file("bb2").exists());
+		assertTrue(file("cc3").exists());
+	}
+
+	@Test
+	public void correctsUnreadableEstimate() throws IOException {
+		store.put("aa1", TEXT);
+		writeSizeFile("garbage");
+		store.put("bb2", TEXT);
+		assertEquals("20", sizeFile());
+
+		new File(dir, "size").delete();
+		store.put("cc3", TEXT);
+		assertEquals("30", sizeFile());
+	}
+
+	@Test
+	public void deletesStaleTemporaryFiles() throws IOException {
+		store.put("aa1", TEXT);
+		File stale = new File(file("aa1").getParentFile(), "aa9123.tmp");
+		File fresh = new File(file("aa1").getParentFile(), "aa9456.tmp");
+		FileUtil.write(stale, TEXT + TEXT);
+		FileUtil.write(fresh, TEXT + TEXT);
+		assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * HOUR));
+
+		// Temporary files are only looked at when the texts are listed
+		writeSizeFile("1000");
+		store.put("bb2", TEXT);
+		assertFalse(stale.exists());
+		// Another process may still be writing this one
+		assertTrue(fresh.exists());
+		// Neither counts towards the size
+		assertEquals("20", sizeFile());
+		assertTrue(file("aa1").exists());
+	}
+
+	@Test
+	public void replacesText() throws IOException {
+		store.put("aa1", TEXT);
+		store.put("bb2", TEXT);
+		store.put("aa1", "abc");
+		assertEquals("abc", store.get("aa1"));
+		assertEquals("13", sizeFile());
+		// The temporary file was renamed
+		assertEquals(1, file("aa1").getParentFile().list().length);
+
+		// A larger text evicts others, but not itself
+		used("bb2", 1);
+		store.put("aa1", TEXT + TEXT + TEXT);
+		assertEquals(TEXT + TEXT + TEXT, store.get("aa1"));
+		assertNull(store.get("bb2"));
+		assertEquals("30", sizeFile());
+	}
+}
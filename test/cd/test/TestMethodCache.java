@@ -0,0 +1,106 @@
+package cd.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+import cd.Main;
+import cd.codegen.MethodCache;
+import cd.ir.Ast.ClassDecl;
+
+/**
+ * Tests recompiling a program with the {@link MethodCache} of its earlier
+ * compilations, as {@code --watch} does: the code must be the same as
+ * that of a fresh compilation, and only the methods which changed are
+ * generated again.
+ */
+public class TestMethodCache {
+
+	/** A program of four methods; the tests replace {@code BODY} and {@code TYPE}. */
+	private static final String PROGRAM =
+			"class Point {\n" +
+			"	int x;\n" +
+			"	int y;\n" +
+			"	TYPE tag;\n" +
+			"	int sum() { return x + y; }\n" +
+			"	int scaled(int k) { return k * x; }\n" +
+			"}\n" +
+			"class Main {\n" +
+			"	void main() {\n" +
+			"		Point p;\n" +
+			"		p = new Point();\n" +
+			"		p.x = 3;\n" +
+			"		p.y = 4;\n" +
+			"		write(p.sum()); writeln();\n" +
+			"		write(p.scaled(2)); writeln();\n" +
+			"		write(twice(5)); writeln();\n" +
+			"	}\n" +
+			"	int twice(int a) { return BODY; }\n" +
+			"}\n";
+
+	private static String program(String body, String type) {
+		return PROGRAM.replace("BODY", body).replace("TYPE", type);
+	}
+
+	/** Compiles {@code source} with {@code cache}, returning the assembly. */
+	private static String compile(String source, MethodCache cache) throws IOException {
+		Main main = new Main();
+		main.methodCache = cache;
+		List<ClassDecl> astRoots = main.parse(new StringReader(source), false);
+		main.semanticCheck(astRoots);
+		StringWriter out = new StringWriter();
+		main.generateCode(astRoots, out);
+		return out.toString();
+	}
+
+	/**
+	 * Compiles {@code source} with {@code cache}, checks that the code
+	 * is that of a fresh compilation, and that {@code hits} methods were
+	 * reused and {@code misses} generated.
+	 */
+	private static void recompile(String source, MethodCache cache, int hits, int misses)
+			throws IOException {
+		String code = compile(source, cache);
+		int cachedHits = cache.hits(), cachedMisses = cache.misses();
+		assertEquals(compile(source, new MethodCache()), code);
+		assertEquals("hits", hits, cachedHits);
+		assertEquals("misses", misses, cachedMisses);
+	}
+
+	@Test
+	public void reusesUnchangedMethods() throws IOException {
+		MethodCache cache = new MethodCache();
+		recompile(program("a + a", "int"), cache, 0, 4);
+		recompile(program("a + a", "int"), cache, 4, 0);
+
+		// Only the changed method is generated again
+		recompile(program("a * 2", "int"), cache, 3, 1);
+
+		// The layout of Point changes, which the code of all methods
+		// depends on, even of those of Main
+		recompile(program("a * 2", "boolean"), cache, 0, 4);
+		recompile(program("a * 2", "boolean"), cache, 4, 0);
+	}
+
+	@Test
+	public void keepsOnlyLastCompilation() throws IOException {
+		MethodCache cache = new MethodCache();
+		recompile(program("a + a", "int"), cache, 0, 4);
+		recompile(program("a * 2", "int"), cache, 3, 1);
+		// The method as it was two compilations ago was dropped
+		recompile(program("a + a", "int"), cache, 3, 1);
+	}
+
+	@Test
+	public void generatesSameCodeWithoutCache() throws IOException {
+		MethodCache cache = new MethodCache();
+		compile(program("a + a", "int"), cache);
+		assertEquals(compile(program("a * 2", "int"), null),
+				compile(program("a * 2", "int"), cache));
+	}
+}
@@ -0,0 +1,205 @@
+package cd.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import cd.Config;
+import cd.Main;
+import cd.exceptions.AssemblyFailedException;
+import cd.ir.Ast.ClassDecl;
+import cd.util.FileUtil;
+
+/**
+ * Tests that the programs built with profiles and profilers compute the
+ * same as the plain program, and that the profilers write well-formed
+ * reports. The program is {@link #PROGRAM}, which exercises
+ * devirtualization, inlining and a cold branch, built in a temporary
+ * directory. Only native targets can be profiled.
+ */
+public class TestProfiling {
+
+	private static final File PROGRAM = new File("javali_tests/A4/ProfileGuided.javali");
+	private static final long TIMEOUT = 10000;
+
+	private File dir;
+	private String input, expected;
+
+	// The options the tests change, restored after each build
+	private String profileGenerate, profileUse, profile, allocProfile;
+	private boolean profileCallers;
+
+	@Before
+	public void setUp() throws IOException {
+		Assume.assumeTrue(Config.TARGET == Config.Target.ASSEMBLY && !Config.FREESTANDING);
+		profileGenerate = Config.PROFILE_GENERATE;
+		profileUse = Config.PROFILE_USE;
+		profile = Config.PROFILE;
+		profileCallers = Config.PROFILE_CALLERS;
+		allocProfile = Config.ALLOC_PROFILE;
+		dir = Files.createTempDirectory("profiling").toFile();
+		input = FileUtil.read(new File(PROGRAM.getPath() + ".in"));
+		expected = new LocalReference(PROGRAM).execReference(FileUtil.read(PROGRAM), input);
+	}
+
+	@After
+	public void tearDown() {
+		if (dir != null) {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Builds {@link #PROGRAM} with {@code options} into {@code name} in
+	 * the temporary directory, and returns its assembly.
+	 */
+	private String build(String name, String... options) throws IOException {
+		StringWriter asm = new StringWriter();
+		try {
+			for (String option : options)
+				Main.parseOption(option);
+			Main main = new Main();
+			List<ClassDecl> astRoots = main.parse(PROGRAM.getPath(), new FileReader(PROGRAM), false);
+			main.semanticCheck(astRoots);
+			main.generateCode(astRoots, asm);
+		} finally {
+			restoreOptions();
+		}
+		File sfile = new File(dir, name + Config.ASMEXT);
+		File binfile = new File(dir, name + Config.BINARYEXT);
+		FileUtil.write(sfile, asm.toString());
+		String asmOutput = FileUtil.runCommand(Config.ASM_DIR, Config.ASM,
+				new String[] { binfile.getAbsolutePath(), sfile.getAbsolutePath() }, null, false);
+		if (!binfile.exists())
+			throw new AssemblyFailedException(asmOutput);
+		return asm.toString();
+	}
+
+	private void restoreOptions() {
+		Config.PROFILE_GENERATE = profileGenerate;
+		Config.PROFILE_USE = profileUse;
+		Config.PROFILE = profile;
+		Config.PROFILE_CALLERS = profileCallers;
+		Config.ALLOC_PROFILE = allocProfile;
+	}
+
+	/** Runs the binary {@code name} in the temporary directory and returns its output. */
+	private String run(String name) throws IOException {
+		File binfile = new File(dir, name + Config.BINARYEXT);
+		return FileUtil.runCommand(dir, new String[] { binfile.getAbsolutePath() },
+				new String[] {}, input, true, TIMEOUT);
+	}
+
+	/** The lines of {@code report} after its header, which must match {@code line}. */
+	private static List<Matcher> lines(String report, String header, Pattern line) {
+		String[] lines = report.split("\n");
+		assertTrue(report, lines[0].trim().matches(header));
+		List<Matcher> matches = new ArrayList<Matcher>();
+		for (int i = 1; i < lines.length && !lines[i].isEmpty(); i++) {
+			Matcher matcher = line.matcher(lines[i]);
+			assertTrue(lines[i], matcher.matches());
+			matches.add(matcher);
+		}
+		return matches;
+	}
+
+	@Test
+	public void profileGuidedBuildKeepsOutput() throws IOException {
+		String plain = build("plain");
+		assertEquals(expected, run("plain"));
+
+		File profileFile = new File(dir, "profile");
+		build("generate", "--profile-generate=" + profileFile.getPath());
+		assertEquals(expected, run("generate"));
+		// The counts of each run are appended
+		assertEquals(expected, run("generate"));
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (String line : FileUtil.read(profileFile).split("\n")) {
+			String[] fields = line.split(" ");
+			assertEquals(line, 2, fields.length);
+			Long before = counts.get(fields[0]);
+			counts.put(fields[0], Long.parseLong(fields[1]) + (before == null ? 0 : before));
+		}
+		assertEquals(Long.valueOf(200), counts.get("Main.add"));
+		assertEquals(Long.valueOf(198), counts.get("Main.add@0:Square"));
+		assertEquals(Long.valueOf(2), counts.get("Main.add@0:Circle"));
+
+		String asm = build("use", "--profile-use=" + profileFile.getPath());
+		// The vtable of Square is compared with the receiver's
+		assertTrue("devirtualized", asm.split("vtable_Square\\b").length
+				> plain.split("vtable_Square\\b").length);
+		assertTrue("inlined", asm.contains("Inlined Square.area"));
+		assertEquals(expected, run("use"));
+	}
+
+	@Test
+	public void methodProfilerKeepsOutput() throws IOException {
+		File report = new File(dir, "methods");
+		build("methods", "--profile=" + report.getPath(), "--profile-callers");
+		assertEquals(expected, run("methods"));
+
+		String text = FileUtil.read(report);
+		Map<String, Long> calls = new LinkedHashMap<String, Long>();
+		long lastSelf = Long.MAX_VALUE;
+		for (Matcher line : lines(text, "calls\\s+self cycles\\s+total cycles\\s+method",
+				Pattern.compile("\\s*(\\d+)\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)"))) {
+			long self = Long.parseLong(line.group(2));
+			assertTrue("sorted by self cycles", self <= lastSelf);
+			assertTrue("self within total", self <= Long.parseLong(line.group(3)));
+			lastSelf = self;
+			calls.put(line.group(4), Long.parseLong(line.group(1)));
+		}
+		assertEquals(Long.valueOf(1), calls.get("Main.main"));
+		assertEquals(Long.valueOf(100), calls.get("Main.add"));
+		assertEquals(Long.valueOf(99), calls.get("Square.area"));
+		assertEquals(Long.valueOf(1), calls.get("Circle.area"));
+
+		String callers = text.substring(text.indexOf("\n\n") + 2);
+		Map<String, Long> edges = new LinkedHashMap<String, Long>();
+		for (Matcher line : lines(callers, "Callers:",
+				Pattern.compile("\\s*(\\d+)\\s+(\\S+ -> \\S+)")))
+			edges.put(line.group(2), Long.parseLong(line.group(1)));
+		assertEquals(Long.valueOf(100), edges.get("Main.main -> Main.add"));
+		assertEquals(Long.valueOf(99), edges.get("Main.add -> Square.area"));
+		assertEquals(Long.valueOf(1), edges.get("Main.add -> Circle.area"));
+	}
+
+	@Test
+	public void allocationProfilerKeepsOutput() throws IOException {
+		File report = new File(dir, "allocations");
+		build("allocations", "--alloc-profile=" + report.getPath());
+		assertEquals(expected, run("allocations"));
+
+		Map<String, Long> objects = new LinkedHashMap<String, Long>();
+		long lastBytes = Long.MAX_VALUE;
+		for (Matcher line : lines(FileUtil.read(report), "objects\\s+bytes\\s+site",
+				Pattern.compile("\\s*(\\d+)\\s+(\\d+)\\s+(.+)"))) {
+			long bytes = Long.parseLong(line.group(2));
+			assertTrue("sorted by bytes", bytes <= lastBytes);
+			lastBytes = bytes;
+			objects.put(line.group(3), Long.parseLong(line.group(1)));
+		}
+		assertEquals(Long.valueOf(99), objects.get("Main.main#2 new Square"));
+		assertEquals(Long.valueOf(1), objects.get("Main.main#1 new Circle"));
+		assertEquals(Long.valueOf(1), objects.get("Main.main#0 new Shape[]"));
+		assertEquals(Long.valueOf(1), objects.get("<main> new Main"));
+	}
+}
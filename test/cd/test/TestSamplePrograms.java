@@ -33,6 +33,29 @@ public class TestSamplePrograms extends AbstractTestSamplePrograms {
 	 */
 //	public static final File testDir = new File("javali_tests/A1/");
 	public static final File testDir = null;
+
+	/**
+	 * The target to test, e.g. {@code -Dcd.target=jvm} to run the programs
+	 * in this process, with {@code -Dcd.separate=true} whether the
+	 * classes are compiled separately, and with
+	 * {@code -Dcd.integrated-as=true} whether the integrated assembler
+	 * writes the objects, with {@code -Dcd.freestanding=true} whether
+	 * the programs are linked without the C library, and with
+	 * {@code -Dcd.sse2=true} whether floats and vectorized loops use SSE2.
+	 */
+	static {
+		String target = System.getProperty("cd.target");
+		if (target != null)
+			Main.parseOption("--target=" + target);
+		if (Boolean.getBoolean("cd.separate"))
+			Main.parseOption("--separate");
+		if (Boolean.getBoolean("cd.integrated-as"))
+			Main.parseOption("--integrated-as");
+		if (Boolean.getBoolean("cd.freestanding"))
+			Main.parseOption("--freestanding");
+		if (Boolean.getBoolean("cd.sse2"))
+			Main.parseOption("--sse2");
+	}
 	
 	@Parameters
 	public static Collection<Object[]> testFiles() {
@@ -57,13 +80,13 @@ public class TestSamplePrograms extends AbstractTestSamplePrograms {
 	 */
 	public TestSamplePrograms(File file) {
 		this.file = file;
-		this.sfile = new File(file.getPath() + Config.ASMEXT);
+		this.sfile = new File(file.getPath()
+				+ (Config.TARGET == Config.Target.C ? Config.CEXT : Config.ASMEXT));
 		this.binfile = new File(file.getPath() + Config.BINARYEXT);
 		this.infile = new File(file.getPath() + ".in");
 		this.parserreffile = new File(file.getPath() + ".parser.ref");
 		this.semanticreffile = new File(file.getPath() + ".semantic.ref");
 		this.execreffile = new File(file.getPath() + ".exec.ref");
-		this.cfgreffile = new File(file.getPath() + ".cfg.dot.ref");
 		this.optreffile = new File(file.getPath() + ".opt.ref");
 		this.errfile = new File(String.format("%s.err", file.getPath()));
 		this.main = new Main();